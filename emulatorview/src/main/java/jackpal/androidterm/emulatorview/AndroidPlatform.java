@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import android.util.Log;
+
+import jackpal.androidterm.emulatorview.compat.AndroidCharacterCompat;
+import jackpal.androidterm.emulatorview.compat.AndroidCompat;
+
+/**
+ * Connects the terminal engine, which doesn't depend on Android, to the
+ * Android log and Android's character data.
+ */
+final class AndroidPlatform {
+    /**
+     * Minimum API version for which we're willing to let Android try
+     * rendering conjoining Hangul jamo as composed syllable blocks.
+     *
+     * This appears to work on Android 4.1.2, 4.3, and 4.4 (real devices only;
+     * the emulator's broken for some reason), but not on 4.0.4 -- hence the
+     * choice of API 16 as the minimum.
+     */
+    static final int HANGUL_CONJOINING_MIN_SDK = 16;
+
+    private static boolean sInstalled;
+
+    private AndroidPlatform() {
+    }
+
+    /**
+     * Install the Android logger and character data, if not done yet.
+     */
+    static synchronized void install() {
+        if (sInstalled) {
+            return;
+        }
+        EmulatorLog.setLogger(new AndroidLogger());
+        UnicodeTranscript.setCharacterWidths(new AndroidCharacterWidths());
+        sInstalled = true;
+    }
+
+    private static class AndroidLogger implements EmulatorLog.Logger {
+        public void d(String tag, String msg) {
+            Log.d(tag, msg);
+        }
+
+        public void w(String tag, String msg) {
+            Log.w(tag, msg);
+        }
+
+        public void e(String tag, String msg, Throwable tr) {
+            if (tr == null) {
+                Log.e(tag, msg);
+            } else {
+                Log.e(tag, msg, tr);
+            }
+        }
+    }
+
+    private static class AndroidCharacterWidths
+            implements UnicodeTranscript.CharacterWidths {
+        private final boolean mComposesHangulJamo =
+                AndroidCompat.SDK >= HANGUL_CONJOINING_MIN_SDK;
+
+        public boolean isWide(char c) {
+            switch (AndroidCharacterCompat.getEastAsianWidth(c)) {
+            case AndroidCharacterCompat.EAST_ASIAN_WIDTH_FULL_WIDTH:
+            case AndroidCharacterCompat.EAST_ASIAN_WIDTH_WIDE:
+                return true;
+            }
+            return false;
+        }
+
+        public boolean composesHangulJamo() {
+            return mComposesHangulJamo;
+        }
+    }
+}
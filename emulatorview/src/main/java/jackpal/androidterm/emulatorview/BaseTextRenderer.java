@@ -25,7 +25,7 @@
 import android.graphics.Path;
 import android.graphics.RectF;
 
-abstract class BaseTextRenderer implements TextRenderer {
+abstract class BaseTextRenderer implements TextRenderer<Canvas> {
     protected boolean mReverseVideo;
 
     protected int[] mPalette;
@@ -300,6 +300,8 @@ abstract class BaseTextRenderer implements TextRenderer {
             new ColorScheme(0xffcccccc, 0xff000000);
 
     private final Paint mCursorScreenPaint;
+    private final Paint mBackgroundPaint = new Paint();
+    private int mDrawnBackColor = -1;
     private final Paint mCopyRedToAlphaPaint;
     private final Paint mCursorPaint;
     private final Paint mCursorStrokePaint;
@@ -372,10 +374,66 @@ public BaseTextRenderer(ColorScheme scheme) {
         mScaleMatrix = new Matrix();
     }
 
+    public void startFrame() {
+    }
+
     public void setReverseVideo(boolean reverseVideo) {
         mReverseVideo = reverseVideo;
     }
 
+    public void setDrawnBackground(int textStyle) {
+        mDrawnBackColor = textStyle < 0 ? -1 : getBackColor(textStyle, false);
+    }
+
+    public void drawBackground(Canvas canvas, float x, float y,
+            int lineOffset, int runWidth, int rows, int textStyle) {
+        int backColor = getBackColor(textStyle, false);
+        int defaultBackColor = mReverseVideo ? TextStyle.ciForeground : TextStyle.ciBackground;
+        if (mPalette[backColor] == mPalette[defaultBackColor]) {
+            return;
+        }
+        float charWidth = getCharacterWidth();
+        float left = x + lineOffset * charWidth;
+        mBackgroundPaint.setColor(mPalette[backColor]);
+        canvas.drawRect(left, y - rows * getCharacterHeight(),
+                left + runWidth * charWidth, y, mBackgroundPaint);
+    }
+
+    /**
+     * @return the palette index of the background color of a run of text.
+     */
+    protected int getBackColor(int textStyle, boolean selectionStyle) {
+        if (selectionStyle) {
+            return TextStyle.ciCursorBackground;
+        }
+        int effect = TextStyle.decodeEffect(textStyle);
+        boolean inverse = mReverseVideo ^
+                ((effect & (TextStyle.fxInverse | TextStyle.fxItalic)) != 0);
+        int backColor = inverse ? TextStyle.decodeForeColor(textStyle)
+                : TextStyle.decodeBackColor(textStyle);
+        if ((effect & TextStyle.fxBlink) != 0 && backColor < 8) {
+            // In 16-color mode, blink also implies bright background colors
+            backColor += 8;
+        }
+        return backColor;
+    }
+
+    /**
+     * @return true if the canvas under the text run being drawn already has
+     * the given background color, either because it's the default background
+     * or because it was drawn by drawBackground.
+     */
+    protected boolean isBackgroundDrawn(int backColor, boolean selectionStyle) {
+        if (selectionStyle) {
+            // Selections and IME text are drawn over existing text
+            return false;
+        }
+        int color = mPalette[backColor];
+        int defaultBackColor = mReverseVideo ? TextStyle.ciForeground : TextStyle.ciBackground;
+        return color == mPalette[defaultBackColor]
+                || (mDrawnBackColor >= 0 && color == mPalette[mDrawnBackColor]);
+    }
+
     private void setDefaultColors(ColorScheme scheme) {
         mPalette = cloneDefaultColors();
         mPalette[TextStyle.ciForeground] = scheme.getForeColor();
@@ -27,18 +27,37 @@
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
+import android.util.SparseArray;
 
 
 class Bitmap4x8FontRenderer extends BaseTextRenderer {
     private final static int kCharacterWidth = 4;
     private final static int kCharacterHeight = 8;
     private Bitmap mFont;
-    private int mCurrentForeColor;
-    private int mCurrentBackColor;
+    private int mCurrentForeColor = -1;
+    private int mCurrentBackColor = -1;
     private float[] mColorMatrix;
     private Paint mPaint;
     private static final float BYTE_SCALE = 1.0f / 255.0f;
 
+    /**
+     * Color filters for recently used (foreground, background) palette index
+     * pairs.  The cache is bounded; when it is full, the oldest entry is
+     * replaced.
+     */
+    private static final int FILTER_CACHE_SIZE = 64;
+    private final SparseArray<ColorMatrixColorFilter> mFilterCache =
+        new SparseArray<ColorMatrixColorFilter>(FILTER_CACHE_SIZE);
+    private final int[] mFilterCacheKeys = new int[FILTER_CACHE_SIZE];
+    private int mFilterCacheCount;
+    private int mFilterCacheNext;
+
+    /** Number of color filters created, for checking steady-state drawing doesn't allocate */
+    private int mFilterAllocations;
+
+    private final Rect mSrcRect = new Rect();
+    private final Rect mDestRect = new Rect();
+
     public Bitmap4x8FontRenderer(Resources resources, ColorScheme scheme) {
         super(scheme);
         int fontResource = AndroidCompat.SDK <= 3 ? R.drawable.atari_small
@@ -97,29 +116,39 @@ public void drawTextRun(Canvas canvas, float x, float y,
             foreColor = backColor;
         }
 
-        drawTextRunHelper(canvas, x, y, lineOffset, text, index, count, foreColor, backColor);
+        boolean drawSpaces = !isBackgroundDrawn(backColor, selectionStyle);
+        drawTextRunHelper(canvas, x, y, lineOffset, text, index, count, foreColor, backColor,
+                drawSpaces);
 
         // The cursor is too small to show the cursor mode.
-        if (lineOffset <= cursorOffset && cursorOffset < (lineOffset + count)) {
-          drawTextRunHelper(canvas, x, y, cursorOffset, text, cursorOffset-lineOffset, 1,
-                  TextStyle.ciCursorForeground, TextStyle.ciCursorBackground);
+        if (lineOffset <= cursorOffset && cursorOffset < (lineOffset + runWidth)) {
+          drawTextRunHelper(canvas, x, y, cursorOffset, text, cursorIndex, cursorIncr,
+                  TextStyle.ciCursorForeground, TextStyle.ciCursorBackground, true);
         }
     }
 
     private void drawTextRunHelper(Canvas canvas, float x, float y, int lineOffset, char[] text,
-            int index, int count, int foreColor, int backColor) {
-        setColorMatrix(mPalette[foreColor], mPalette[backColor]);
+            int index, int count, int foreColor, int backColor, boolean drawSpaces) {
+        setColorFilter(foreColor, backColor);
         int destX = (int) x + kCharacterWidth * lineOffset;
         int destY = (int) y;
-        Rect srcRect = new Rect();
-        Rect destRect = new Rect();
+        Rect srcRect = mSrcRect;
+        Rect destRect = mDestRect;
         destRect.top = (destY - kCharacterHeight);
         destRect.bottom = destY;
-        boolean drawSpaces = mPalette[backColor] != mPalette[TextStyle.ciBackground];
         for (int i = 0; i < count; i++) {
             // XXX No Unicode support in bitmap font
             char c = text[i + index];
-            if ((c < 128) && ((c != 32) || drawSpaces)) {
+            if (c >= 128) {
+                // Keep following characters in their columns
+                int width = UnicodeTranscript.charWidth(text, i + index);
+                if (Character.isHighSurrogate(c)) {
+                    i++;
+                }
+                destX += kCharacterWidth * width;
+                continue;
+            }
+            if ((c != 32) || drawSpaces) {
                 int cellX = c & 31;
                 int cellY = (c >> 5) & 3;
                 int srcX = cellX * kCharacterWidth;
@@ -134,25 +163,55 @@ private void drawTextRunHelper(Canvas canvas, float x, float y, int lineOffset,
         }
     }
 
-    private void setColorMatrix(int foreColor, int backColor) {
-        if ((foreColor != mCurrentForeColor)
-                || (backColor != mCurrentBackColor)
-                || (mColorMatrix == null)) {
-            mCurrentForeColor = foreColor;
-            mCurrentBackColor = backColor;
-            if (mColorMatrix == null) {
-                mColorMatrix = new float[20];
-                mColorMatrix[18] = 1.0f; // Just copy Alpha
-            }
-            for (int component = 0; component < 3; component++) {
-                int rightShift = (2 - component) << 3;
-                int fore = 0xff & (foreColor >> rightShift);
-                int back = 0xff & (backColor >> rightShift);
-                int delta = back - fore;
-                mColorMatrix[component * 6] = delta * BYTE_SCALE;
-                mColorMatrix[component * 5 + 4] = fore;
+    /**
+     * Set the paint's color filter to map the font bitmap to the given
+     * palette colors, reusing a cached filter when possible.
+     */
+    private void setColorFilter(int foreColor, int backColor) {
+        if (foreColor == mCurrentForeColor && backColor == mCurrentBackColor) {
+            return;
+        }
+        mCurrentForeColor = foreColor;
+        mCurrentBackColor = backColor;
+
+        int key = foreColor * TextStyle.ciColorLength + backColor;
+        ColorMatrixColorFilter filter = mFilterCache.get(key);
+        if (filter == null) {
+            filter = createColorFilter(mPalette[foreColor], mPalette[backColor]);
+            if (mFilterCacheCount == FILTER_CACHE_SIZE) {
+                mFilterCache.delete(mFilterCacheKeys[mFilterCacheNext]);
+            } else {
+                mFilterCacheCount++;
             }
-            mPaint.setColorFilter(new ColorMatrixColorFilter(mColorMatrix));
+            mFilterCacheKeys[mFilterCacheNext] = key;
+            mFilterCacheNext = (mFilterCacheNext + 1) % FILTER_CACHE_SIZE;
+            mFilterCache.put(key, filter);
         }
+        mPaint.setColorFilter(filter);
+    }
+
+    private ColorMatrixColorFilter createColorFilter(int foreColor, int backColor) {
+        if (mColorMatrix == null) {
+            mColorMatrix = new float[20];
+            mColorMatrix[18] = 1.0f; // Just copy Alpha
+        }
+        for (int component = 0; component < 3; component++) {
+            int rightShift = (2 - component) << 3;
+            int fore = 0xff & (foreColor >> rightShift);
+            int back = 0xff & (backColor >> rightShift);
+            int delta = back - fore;
+            mColorMatrix[component * 6] = delta * BYTE_SCALE;
+            mColorMatrix[component * 5 + 4] = fore;
+        }
+        mFilterAllocations++;
+        return new ColorMatrixColorFilter(mColorMatrix);
+    }
+
+    /**
+     * @return the number of color filters this renderer has created.  Once
+     * the colors on screen have been seen, this should stop increasing.
+     */
+    int getAllocationCount() {
+        return mFilterAllocations;
     }
 }
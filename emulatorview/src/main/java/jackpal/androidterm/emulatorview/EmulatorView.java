@@ -20,6 +20,7 @@
 import jackpal.androidterm.emulatorview.compat.ClipboardManagerCompatFactory;
 import jackpal.androidterm.emulatorview.compat.KeycodeConstants;
 import jackpal.androidterm.emulatorview.compat.Patterns;
+import jackpal.androidterm.emulatorview.compat.ViewCompat;
 
 import java.io.IOException;
 import java.util.Arrays;
@@ -28,9 +29,12 @@
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 import android.text.style.URLSpan;
@@ -43,6 +47,7 @@
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.inputmethod.BaseInputConnection;
 import android.view.inputmethod.CompletionInfo;
 import android.view.inputmethod.CorrectionInfo;
@@ -63,7 +68,7 @@
  * #EmulatorView(Context, TermSession, DisplayMetrics)} constructor, which will
  * take care of this for you.
  */
-public class EmulatorView extends View implements GestureDetector.OnGestureListener {
+public class EmulatorView extends ViewGroup implements GestureDetector.OnGestureListener {
     private final static String TAG = "EmulatorView";
     private final static boolean LOG_KEY_EVENTS = false;
     private final static boolean LOG_IME = false;
@@ -100,13 +105,24 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
     /**
      * Used to render text
      */
-    private TextRenderer mTextRenderer;
+    private TextRenderer<Canvas> mTextRenderer;
 
     /**
      * Text size. Zero means 4 x 8 font.
      */
     private int mTextSize = 10;
 
+    /**
+     * Whether to draw text from a glyph atlas instead of with Canvas.drawText.
+     */
+    private boolean mUseGlyphAtlas;
+
+    /**
+     * Whether to look for URLs in the text of rows which already contain
+     * explicit (OSC 8) hyperlinks.
+     */
+    private boolean mLinkifyRowsWithLinks = true;
+
     private int mCursorBlink;
 
     /**
@@ -116,6 +132,11 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
 
     private Paint mForegroundPaint;
 
+    /**
+     * Translucent paint for the text selection layer.
+     */
+    private Paint mSelectionPaint;
+
     private Paint mBackgroundPaint;
 
     private boolean mUseCookedIme;
@@ -196,8 +217,12 @@ public void run() {
             } else {
                 mCursorVisible = true;
             }
-            // Perhaps just invalidate the character with the cursor.
-            invalidate();
+            if (mCursorOnLayer) {
+                // Nothing needs to be drawn again, the layer is just shown or hidden
+                ViewCompat.setAlpha(mCursorLayer, mCursorVisible ? 1 : 0);
+            } else {
+                invalidateCursor();
+            }
         }
     };
 
@@ -218,7 +243,7 @@ public void run() {
             int newTopRow = mScroller.getCurrY();
             if (newTopRow != mTopRow) {
                 mTopRow = newTopRow;
-                invalidate();
+                redraw();
             }
 
             if (more) {
@@ -278,6 +303,10 @@ private int createLinks(int row)
         if(line == null)
             return lineCount;
 
+        //The program marked up its links itself; trust it
+        if (!mLinkifyRowsWithLinks && transcriptScreen.hasLinks(row))
+            return lineCount;
+
         /* If this is not a basic line, the array returned from getScriptLine()
          * could have arbitrary garbage at the end -- find the point at which
          * the line ends and only include that in the text to linkify.
@@ -467,6 +496,48 @@ public void run() {
 
     private String mImeBuffer = "";
 
+    /**
+     * Scratch rect for the clip bounds in onDraw, and counters of full and
+     * partial (cursor-only) redraws.
+     */
+    private final Rect mClipRect = new Rect();
+    private int mFullRedrawCount;
+    private int mPartialRedrawCount;
+
+    /**
+     * With hardware acceleration, the dirty rect passed to invalidate() is
+     * ignored and the whole display list is recorded again, so the cursor
+     * is drawn on a layer of its own instead; see {@link #drawCursorLayer}.
+     * mCursorOnLayer is whether the last frame left the cursor to it.
+     */
+    private CursorLayer mCursorLayer;
+    private boolean mCursorOnLayer;
+    private final Rect mCursorRect = new Rect();
+
+    /**
+     * Whether to draw the session's performance counters over the text, and
+     * what's needed to draw them.  The HUD text is recomputed about once a
+     * second, so that rates can be shown.
+     */
+    private boolean mPerformanceHud;
+    private CountingTextRenderer<Canvas> mCountingRenderer;
+    private Paint mHudPaint;
+    private Paint mHudBackgroundPaint;
+    private String[] mHudLines;
+    private long mHudSampleTime;
+    private long mHudSampleUpdates;
+    private long mHudSampleFrames;
+    private long mHudSampleFrameNanos;
+    private long mHudSampleRowsDrawn;
+    private long mHudSampleDrawCalls;
+    private long mHudSampleCreateLinksNanos;
+    private static final long HUD_SAMPLE_PERIOD = 1000;
+    private final Runnable mRefreshHud = new Runnable() {
+        public void run() {
+            redraw();
+        }
+    };
+
     /**
      * Our message handler class. Implements a periodic callback.
      */
@@ -486,6 +557,19 @@ public void onUpdate() {
             mEmulator.clearScrollCounter();
             ensureCursorVisible();
             invalidate();
+            mCursorLayer.invalidate();
+        }
+    };
+
+    /**
+     * Called by the TermSession when a program sets the clipboard
+     */
+    private TermSession.ClipboardCallback mClipboardWrite =
+            new TermSession.ClipboardCallback() {
+        public void onClipboardWrite(TermSession session, CharSequence text) {
+            ClipboardManagerCompat clip = ClipboardManagerCompatFactory
+                    .getManager(getContext().getApplicationContext());
+            clip.setText(text);
         }
     };
 
@@ -533,6 +617,9 @@ private void commonConstructor(Context context) {
         // TODO: See if we want to use the API level 11 constructor to get new flywheel feature.
         mScroller = new Scroller(context);
         mMouseTrackingFlingRunner.mScroller = new Scroller(context);
+        setWillNotDraw(false);
+        mCursorLayer = new CursorLayer(context);
+        addView(mCursorLayer);
     }
 
     /**
@@ -544,6 +631,7 @@ public void attachSession(TermSession session) {
         mTextRenderer = null;
         mForegroundPaint = new Paint();
         mBackgroundPaint = new Paint();
+        mSelectionPaint = new Paint();
         mTopRow = 0;
         mLeftColumn = 0;
         mGestureDetector = new GestureDetector(this);
@@ -553,6 +641,9 @@ public void attachSession(TermSession session) {
         setFocusableInTouchMode(true);
 
         mTermSession = session;
+        if (mPerformanceHud) {
+            session.setPerformanceCountersEnabled(true);
+        }
 
         mKeyListener = new TermKeyListener(session);
         session.setKeyListener(mKeyListener);
@@ -583,6 +674,9 @@ public void setDensity(DisplayMetrics metrics) {
      * Inform the view that it is now visible on screen.
      */
     public void onResume() {
+        if (mTermSession != null) {
+            mTermSession.setVisible(true);
+        }
         updateSize(false);
         if (mCursorBlink != 0) {
             mHandler.postDelayed(mBlinkCursor, CURSOR_BLINK_PERIOD);
@@ -593,12 +687,18 @@ public void onResume() {
     }
 
     /**
-     * Inform the view that it is no longer visible on the screen.
+     * Inform the view that it is no longer visible on the screen.  Its
+     * session goes on reading output from the program, but at a lower
+     * priority, and doesn't update the view until {@link #onResume}.
      */
     public void onPause() {
+        if (mTermSession != null) {
+            mTermSession.setVisible(false);
+        }
         if (mCursorBlink != 0) {
             mHandler.removeCallbacks(mBlinkCursor);
         }
+        mHandler.removeCallbacks(mRefreshHud);
         if (mKeyListener != null) {
             mKeyListener.onPause();
         }
@@ -919,9 +1019,11 @@ public CharSequence getSelectedText(int flags) {
 
     private void setImeBuffer(String buffer) {
         if (!buffer.equals(mImeBuffer)) {
-            invalidate();
+            // Cover both the old and the new composing text
+            int imeLength = Math.max(buffer.length(), mImeBuffer.length());
+            mImeBuffer = buffer;
+            invalidateCursorRegion(imeLength);
         }
-        mImeBuffer = buffer;
     }
 
     /**
@@ -984,6 +1086,7 @@ private void initialize() {
 
         mEmulator = session.getEmulator();
         session.setUpdateCallback(mUpdateNotify);
+        session.setClipboardCallback(mClipboardWrite);
 
         requestFocus();
     }
@@ -1046,7 +1149,40 @@ public void page(int delta) {
         mTopRow =
                 Math.min(0, Math.max(-(mEmulator.getScreen()
                         .getActiveTranscriptRows()), mTopRow + mRows * delta));
-        invalidate();
+        redraw();
+    }
+
+    /**
+     * Scroll the terminal view up to the nearest prompt above the top of the
+     * view.  Prompts are only known if the shell marks them (with OSC 133).
+     *
+     * @return Whether there was a prompt to scroll to.
+     */
+    public boolean scrollToPreviousPrompt() {
+        int row = mEmulator.getScreen().getPreviousMark(mTopRow, 'A');
+        if (row == UnicodeTranscript.NO_MARK) {
+            return false;
+        }
+        mTopRow = Math.min(0, row);
+        redraw();
+        return true;
+    }
+
+    /**
+     * Scroll the terminal view down to the nearest prompt below the top of
+     * the view, or to the bottom of the transcript if the prompt is on the
+     * screen.
+     *
+     * @return Whether the view was scrolled.
+     */
+    public boolean scrollToNextPrompt() {
+        int row = mEmulator.getScreen().getNextMark(mTopRow, 'A');
+        if (row == UnicodeTranscript.NO_MARK || mTopRow == 0) {
+            return false;
+        }
+        mTopRow = Math.min(0, row);
+        redraw();
+        return true;
     }
 
     /**
@@ -1059,7 +1195,7 @@ public void pageHorizontal(int deltaColumns) {
         mLeftColumn =
                 Math.max(0, Math.min(mLeftColumn + deltaColumns, mColumns
                         - mVisibleColumns));
-        invalidate();
+        redraw();
     }
 
     /**
@@ -1072,6 +1208,59 @@ public void setTextSize(int fontSize) {
         updateText();
     }
 
+    /**
+     * Sets whether text is drawn by blitting glyphs from a cache of
+     * pre-rendered glyphs (a glyph atlas) rather than by drawing each run of
+     * text with the font.  Has no effect when the 4 x 8 bitmap font is in use.
+     *
+     * @param useGlyphAtlas Whether to use the glyph atlas renderer.
+     */
+    public void setUseGlyphAtlas(boolean useGlyphAtlas) {
+        if (useGlyphAtlas != mUseGlyphAtlas) {
+            mUseGlyphAtlas = useGlyphAtlas;
+            updateText();
+        }
+    }
+
+    /**
+     * Sets whether URLs in the text are made into links on rows which already
+     * contain hyperlinks set by the program (with OSC 8).  Skipping those
+     * rows saves running the URL matcher over them.
+     *
+     * @param linkifyRowsWithLinks Whether to look for URLs on those rows.
+     */
+    public void setLinkifyRowsWithLinks(boolean linkifyRowsWithLinks) {
+        if (linkifyRowsWithLinks != mLinkifyRowsWithLinks) {
+            mLinkifyRowsWithLinks = linkifyRowsWithLinks;
+            // A full redraw finds the links again
+            redraw();
+        }
+    }
+
+    /**
+     * Sets whether to show the session's performance counters (how much
+     * data it has read and written, how long parsing and drawing take) in
+     * a translucent overlay.  Showing them turns on the session's {@link
+     * PerformanceCounters}, and hiding them turns them off again.
+     *
+     * @param show Whether to show the performance counters.
+     */
+    public void setPerformanceHudEnabled(boolean show) {
+        if (show == mPerformanceHud) {
+            return;
+        }
+        mPerformanceHud = show;
+        mHudLines = null;
+        mCountingRenderer = null;
+        if (mTermSession != null) {
+            mTermSession.setPerformanceCountersEnabled(show);
+        }
+        if (!show) {
+            mHandler.removeCallbacks(mRefreshHud);
+        }
+        redraw();
+    }
+
     /**
      * Sets the IME mode ("cooked" or "raw").
      *
@@ -1159,7 +1348,7 @@ public boolean onScroll(MotionEvent e1, MotionEvent e2,
         mTopRow =
             Math.min(0, Math.max(-(mEmulator.getScreen()
                     .getActiveTranscriptRows()), mTopRow + deltaRows));
-        invalidate();
+        redraw();
 
         return true;
     }
@@ -1170,14 +1359,14 @@ public void onSingleTapConfirmed(MotionEvent e) {
     public boolean onJumpTapDown(MotionEvent e1, MotionEvent e2) {
        // Scroll to bottom
        mTopRow = 0;
-       invalidate();
+       redraw();
        return true;
     }
 
     public boolean onJumpTapUp(MotionEvent e1, MotionEvent e2) {
         // Scroll to top
         mTopRow = -mEmulator.getScreen().getActiveTranscriptRows();
-        invalidate();
+        redraw();
         return true;
     }
 
@@ -1241,9 +1430,14 @@ private boolean onTouchEventWhileSelectingText(MotionEvent ev) {
             mSelY1 = cy;
             mSelX2 = mSelX1;
             mSelY2 = mSelY1;
+            invalidateRows(cy, cy);
             break;
         case MotionEvent.ACTION_MOVE:
         case MotionEvent.ACTION_UP:
+            int oldX1 = mSelX1;
+            int oldY1 = mSelY1;
+            int oldX2 = mSelX2;
+            int oldY2 = mSelY2;
             int minx = Math.min(mSelXAnchor, cx);
             int maxx = Math.max(mSelXAnchor, cx);
             int miny = Math.min(mSelYAnchor, cy);
@@ -1257,12 +1451,20 @@ private boolean onTouchEventWhileSelectingText(MotionEvent ev) {
                         .getManager(getContext().getApplicationContext());
                 clip.setText(getSelectedText().trim());
                 toggleSelectingText();
+                redraw();
+                break;
+            }
+            // Only redraw the rows where the selection changed
+            if (oldX1 != mSelX1 || oldY1 != mSelY1) {
+                invalidateRows(Math.min(oldY1, mSelY1), Math.max(oldY1, mSelY1));
+            }
+            if (oldX2 != mSelX2 || oldY2 != mSelY2) {
+                invalidateRows(Math.min(oldY2, mSelY2), Math.max(oldY2, mSelY2));
             }
-            invalidate();
             break;
         default:
             toggleSelectingText();
-            invalidate();
+            redraw();
             break;
         }
         return true;
@@ -1300,7 +1502,7 @@ public boolean onKeyDown(int keyCode, KeyEvent event) {
                     TermKeyListener.isEventFromToggleDevice(event));
             if (mKeyListener.getCombiningAccent() != oldCombiningAccent
                     || mKeyListener.getCursorMode() != oldCursorMode) {
-                invalidate();
+                invalidateCursor();
             }
         } catch (IOException e) {
             // Ignore I/O exceptions
@@ -1380,7 +1582,7 @@ private boolean handleControlKey(int keyCode, boolean down) {
                 Log.w(TAG, "handleControlKey " + keyCode);
             }
             mKeyListener.handleControlKey(down);
-            invalidate();
+            invalidateCursor();
             return true;
         }
         return false;
@@ -1394,7 +1596,7 @@ private boolean handleHardwareControlKey(int keyCode, KeyEvent event) {
             }
             boolean down = event.getAction() == KeyEvent.ACTION_DOWN;
             mKeyListener.handleHardwareControlKey(down);
-            invalidate();
+            invalidateCursor();
             return true;
         }
         return false;
@@ -1406,7 +1608,7 @@ private boolean handleFnKey(int keyCode, boolean down) {
                 Log.w(TAG, "handleFnKey " + keyCode);
             }
             mKeyListener.handleFnKey(down);
-            invalidate();
+            invalidateCursor();
             return true;
         }
         return false;
@@ -1420,18 +1622,20 @@ private void clearSpecialKeyStatus() {
         if (mIsControlKeySent) {
             mIsControlKeySent = false;
             mKeyListener.handleControlKey(false);
-            invalidate();
+            invalidateCursor();
         }
         if (mIsFnKeySent) {
             mIsFnKeySent = false;
             mKeyListener.handleFnKey(false);
-            invalidate();
+            invalidateCursor();
         }
     }
 
     private void updateText() {
         ColorScheme scheme = mColorScheme;
-        if (mTextSize > 0) {
+        if (mTextSize > 0 && mUseGlyphAtlas) {
+            mTextRenderer = new GlyphAtlasRenderer(mTextSize, scheme);
+        } else if (mTextSize > 0) {
             mTextRenderer = new PaintRenderer(mTextSize, scheme);
         }
         else {
@@ -1439,6 +1643,7 @@ private void updateText() {
         }
 
         mForegroundPaint.setColor(scheme.getForeColor());
+        mSelectionPaint.setColor((scheme.getCursorBackColor() & 0x00ffffff) | 0x80000000);
         mBackgroundPaint.setColor(scheme.getBackColor());
         mCharacterWidth = mTextRenderer.getCharacterWidth();
         mCharacterHeight = mTextRenderer.getCharacterHeight();
@@ -1446,6 +1651,22 @@ private void updateText() {
         updateSize(true);
     }
 
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+        mCursorLayer.measure(
+                MeasureSpec.makeMeasureSpec(getMeasuredWidth(), MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(getMeasuredHeight(), MeasureSpec.EXACTLY));
+    }
+
+    /**
+     * Lay out the cursor layer over the whole view.
+     */
+    @Override
+    protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+        mCursorLayer.layout(0, 0, right - left, bottom - top);
+    }
+
     /**
      * This is called during layout when the size of this view has changed. If
      * you were just added to the view hierarchy, you're called with the old
@@ -1480,7 +1701,7 @@ private void updateSize(int w, int h) {
         mTopRow = 0;
         mLeftColumn = 0;
 
-        invalidate();
+        redraw();
     }
 
     /**
@@ -1490,13 +1711,12 @@ private void updateSize(int w, int h) {
      *              view's size has not changed.
      */
     public void updateSize(boolean force) {
-        //Need to clear saved links on each display refresh
-        mLinkLayer.clear();
         if (mKnownSize) {
             int w = getWidth();
             int h = getHeight();
             // Log.w("Term", "(" + w + ", " + h + ")");
             if (force || w != mVisibleWidth || h != mVisibleHeight) {
+                mLinkLayer.clear();
                 mVisibleWidth = w;
                 mVisibleHeight = h;
                 updateSize(mVisibleWidth, mVisibleHeight);
@@ -1518,9 +1738,52 @@ protected void onDraw(Canvas canvas) {
             return;
         }
 
+        // The session may have thrown away scrollback which was showing
+        int firstRow = -mEmulator.getScreen().getActiveTranscriptRows();
+        if (mTopRow < firstRow) {
+            mTopRow = firstRow;
+        }
+
         int w = getWidth();
         int h = getHeight();
 
+        /* If only part of the view was invalidated (cursor blink, modifier
+         * key state, IME composition), only redraw the rows that intersect
+         * the dirty area.  This only happens with software rendering; with
+         * hardware acceleration those go to the cursor layer instead. */
+        int startLine = mTopRow;
+        int endLine = mTopRow + mRows;
+        Rect clip = mClipRect;
+        boolean fullRedraw = !canvas.getClipBounds(clip)
+                || (clip.left <= 0 && clip.top <= 0 && clip.right >= w && clip.bottom >= h);
+        if (fullRedraw) {
+            mFullRedrawCount++;
+            //Need to clear saved links on each display refresh
+            mLinkLayer.clear();
+        } else {
+            mPartialRedrawCount++;
+            int firstRow = (clip.top - mTopOfScreenMargin) / mCharacterHeight;
+            int lastRow = (clip.bottom - mTopOfScreenMargin + mCharacterHeight - 1) / mCharacterHeight;
+            startLine = mTopRow + Math.max(0, firstRow);
+            endLine = Math.min(endLine, mTopRow + lastRow);
+        }
+
+        /* With performance counters on, time the frame and count the
+         * renderer's draw calls by drawing through a counting wrapper */
+        PerformanceCounters counters = mTermSession.getPerformanceCounters();
+        TextRenderer<Canvas> renderer = mTextRenderer;
+        long frameStart = 0;
+        if (counters != null) {
+            frameStart = System.nanoTime();
+            if (mCountingRenderer == null
+                    || mCountingRenderer.getRenderer() != renderer
+                    || mCountingRenderer.getCounters() != counters) {
+                mCountingRenderer = new CountingTextRenderer<Canvas>(renderer, counters);
+            }
+            renderer = mCountingRenderer;
+        }
+
+        mTextRenderer.startFrame();
         boolean reverseVideo = mEmulator.getReverseVideo();
         mTextRenderer.setReverseVideo(reverseVideo);
 
@@ -1528,46 +1791,360 @@ protected void onDraw(Canvas canvas) {
                 reverseVideo ? mForegroundPaint : mBackgroundPaint;
         canvas.drawRect(0, 0, w, h, backgroundPaint);
         float x = -mLeftColumn * mCharacterWidth;
-        float y = mCharacterHeight + mTopOfScreenMargin;
-        int endLine = mTopRow + mRows;
+        float y = mCharacterHeight * (startLine - mTopRow + 1) + mTopOfScreenMargin;
+        mEmulator.getScreen().drawBackground(startLine, endLine, canvas, x, y, renderer);
         int cx = mEmulator.getCursorCol();
         int cy = mEmulator.getCursorRow();
-        boolean cursorVisible = mCursorVisible && mEmulator.getShowCursor();
-        String effectiveImeBuffer = mImeBuffer;
-        int combiningAccent = mKeyListener.getCombiningAccent();
-        if (combiningAccent != 0) {
-            effectiveImeBuffer += String.valueOf((char) combiningAccent);
+        mCursorOnLayer = ViewCompat.isHardwareAccelerated(canvas);
+        if (mCursorOnLayer) {
+            ViewCompat.setAlpha(mCursorLayer, mCursorVisible ? 1 : 0);
         }
+        boolean cursorVisible = mCursorVisible && mEmulator.getShowCursor()
+                && !mCursorOnLayer;
+        String effectiveImeBuffer = getEffectiveImeBuffer();
         int cursorStyle = mKeyListener.getCursorMode();
 
         int linkLinesToSkip = 0; //for multi-line links
 
-        for (int i = mTopRow; i < endLine; i++) {
+        for (int i = startLine; i < endLine; i++) {
             int cursorX = -1;
             if (i == cy && cursorVisible) {
                 cursorX = cx;
             }
-            int selx1 = -1;
-            int selx2 = -1;
-            if ( i >= mSelY1 && i <= mSelY2 ) {
-                if ( i == mSelY1 ) {
-                    selx1 = mSelX1;
-                }
-                if ( i == mSelY2 ) {
-                    selx2 = mSelX2;
+            // The selection is drawn over the text afterwards
+            mEmulator.getScreen().drawText(i, canvas, x, y, renderer, cursorX, -1, -1, effectiveImeBuffer, cursorStyle);
+            y += mCharacterHeight;
+            if (!fullRedraw) {
+                // The text didn't change, so the link layer is still valid
+                continue;
+            }
+            //if no lines to skip, create links for the line being drawn
+            if(linkLinesToSkip == 0) {
+                if (counters == null) {
+                    linkLinesToSkip = createLinks(i);
                 } else {
-                    selx2 = mColumns;
+                    long linksStart = System.nanoTime();
+                    linkLinesToSkip = createLinks(i);
+                    counters.mCreateLinksNanos += System.nanoTime() - linksStart;
                 }
             }
-            mEmulator.getScreen().drawText(i, canvas, x, y, mTextRenderer, cursorX, selx1, selx2, effectiveImeBuffer, cursorStyle);
-            y += mCharacterHeight;
-            //if no lines to skip, create links for the line being drawn
-            if(linkLinesToSkip == 0)
-                linkLinesToSkip = createLinks(i);
 
             //createLinks always returns at least 1
             --linkLinesToSkip;
         }
+
+        drawSelection(canvas, x, startLine, endLine);
+
+        if (counters != null) {
+            counters.countFrame(System.nanoTime() - frameStart, endLine - startLine);
+            if (mPerformanceHud) {
+                drawPerformanceHud(canvas, counters);
+            }
+        }
+    }
+
+    /**
+     * Draw the performance counters in the top left corner of the view,
+     * and arrange for them to be redrawn when they're next sampled.
+     */
+    private void drawPerformanceHud(Canvas canvas, PerformanceCounters counters) {
+        long now = SystemClock.uptimeMillis();
+        if (mHudLines == null || now - mHudSampleTime >= HUD_SAMPLE_PERIOD) {
+            mHudLines = formatPerformanceCounters(counters, now);
+        }
+        if (mHudPaint == null) {
+            mHudPaint = new Paint();
+            mHudPaint.setAntiAlias(true);
+            mHudPaint.setTypeface(Typeface.MONOSPACE);
+            mHudPaint.setColor(0xffffffff);
+            mHudBackgroundPaint = new Paint();
+            mHudBackgroundPaint.setColor(0xa0000000);
+        }
+        mHudPaint.setTextSize(12 * (mScaledDensity > 0 ? mScaledDensity : 1));
+
+        Paint.FontMetrics metrics = mHudPaint.getFontMetrics();
+        float lineHeight = metrics.descent - metrics.ascent;
+        float width = 0;
+        for (String line : mHudLines) {
+            width = Math.max(width, mHudPaint.measureText(line));
+        }
+        float padding = lineHeight / 4;
+        canvas.drawRect(0, 0, width + 2 * padding,
+                mHudLines.length * lineHeight + 2 * padding, mHudBackgroundPaint);
+        float y = padding - metrics.ascent;
+        for (String line : mHudLines) {
+            canvas.drawText(line, padding, y, mHudPaint);
+            y += lineHeight;
+        }
+
+        mHandler.removeCallbacks(mRefreshHud);
+        mHandler.postDelayed(mRefreshHud, HUD_SAMPLE_PERIOD - (now - mHudSampleTime));
+    }
+
+    private String[] formatPerformanceCounters(PerformanceCounters c, long now) {
+        float seconds = mHudLines == null ? 0 : (now - mHudSampleTime) / 1000f;
+        long updates = c.getUpdates() - mHudSampleUpdates;
+        long frames = c.getFrames() - mHudSampleFrames;
+        long frameNanos = c.getFrameNanos() - mHudSampleFrameNanos;
+        long rows = c.getRowsDrawn() - mHudSampleRowsDrawn;
+        long drawCalls = c.getDrawCalls() - mHudSampleDrawCalls;
+        long linksNanos = c.getCreateLinksNanos() - mHudSampleCreateLinksNanos;
+        mHudSampleTime = now;
+        mHudSampleUpdates = c.getUpdates();
+        mHudSampleFrames = c.getFrames();
+        mHudSampleFrameNanos = c.getFrameNanos();
+        mHudSampleRowsDrawn = c.getRowsDrawn();
+        mHudSampleDrawCalls = c.getDrawCalls();
+        mHudSampleCreateLinksNanos = c.getCreateLinksNanos();
+
+        // The three most common kinds of CSI sequence
+        StringBuilder csi = new StringBuilder();
+        csi.append("csi ").append(c.getCsiSequences());
+        char[] top = new char[3];
+        for (char f = '@'; f <= '~'; f++) {
+            for (int i = 0; i < top.length; i++) {
+                if (top[i] == 0 || c.getCsiSequences(f) > c.getCsiSequences(top[i])) {
+                    System.arraycopy(top, i, top, i + 1, top.length - i - 1);
+                    top[i] = f;
+                    break;
+                }
+            }
+        }
+        if (c.getCsiSequences(top[0]) > 0) {
+            csi.append(" (");
+            for (int i = 0; i < top.length && c.getCsiSequences(top[i]) > 0; i++) {
+                if (i > 0) {
+                    csi.append(", ");
+                }
+                csi.append(top[i]).append(' ').append(c.getCsiSequences(top[i]));
+            }
+            csi.append(')');
+        }
+
+        StringBuilder histogram = new StringBuilder("frame ms");
+        int[] buckets = PerformanceCounters.FRAME_TIME_BUCKETS_MS;
+        for (int i = 0; i <= buckets.length; i++) {
+            histogram.append(i < buckets.length ? " <" + buckets[i] : " >=" + buckets[i - 1])
+                .append(':').append(c.getFrameTimeHistogram(i));
+        }
+
+        return new String[] {
+            String.format("read %d KB, written %d KB, %.1f updates/s",
+                    c.getBytesRead() / 1024, c.getBytesWritten() / 1024,
+                    seconds > 0 ? updates / seconds : 0f),
+            String.format("parse %.1f ms/MB; queues %d/%d B max, %d/%d ms blocked",
+                    c.getParseNanosPerMegabyte() / 1e6,
+                    c.getInputQueueHighWaterMark(), c.getOutputQueueHighWaterMark(),
+                    c.getInputQueueBlockedNanos() / 1000000,
+                    c.getOutputQueueBlockedNanos() / 1000000),
+            String.format("ctl %d, esc %d, %s, osc %d, dcs %d",
+                    c.getControls(), c.getEscSequences(), csi,
+                    c.getOscSequences(), c.getDcsSequences()),
+            String.format("%.1f frames/s, per frame %.2f ms, %d rows, %d draws, links %.2f ms",
+                    seconds > 0 ? frames / seconds : 0f,
+                    frames > 0 ? frameNanos / 1e6 / frames : 0.0,
+                    frames > 0 ? rows / frames : 0,
+                    frames > 0 ? drawCalls / frames : 0,
+                    frames > 0 ? linksNanos / 1e6 / frames : 0.0),
+            histogram.toString()
+        };
+    }
+
+    /**
+     * Draw the text selection as a translucent layer over the rows from
+     * startLine to endLine (exclusive).
+     */
+    private void drawSelection(Canvas canvas, float x, int startLine, int endLine) {
+        if (mSelX1 < 0) {
+            // Nothing selected
+            return;
+        }
+        int firstRow = Math.max(startLine, mSelY1);
+        int lastRow = Math.min(endLine - 1, mSelY2);
+        for (int i = firstRow; i <= lastRow; i++) {
+            int selx1 = 0;
+            int selx2 = mColumns;
+            if (i == mSelY1) {
+                selx1 = mSelX1;
+            }
+            if (i == mSelY2) {
+                selx2 = Math.min(mSelX2 + 1, mColumns);
+            }
+            float top = mTopOfScreenMargin + (i - mTopRow) * mCharacterHeight;
+            canvas.drawRect(x + selx1 * mCharacterWidth, top,
+                    x + selx2 * mCharacterWidth, top + mCharacterHeight,
+                    mSelectionPaint);
+        }
+    }
+
+    /**
+     * Invalidate the whole view, unless the program is in the middle of a
+     * synchronized update; the session asks for a redraw once that's over
+     * (or has timed out), so drawing now would only show a half-updated
+     * screen.
+     */
+    private void redraw() {
+        if (canRedraw()) {
+            invalidate();
+            mCursorLayer.invalidate();
+        }
+    }
+
+    /**
+     * Invalidate part of the view, unless the program is in the middle of
+     * a synchronized update; see {@link #redraw()}.
+     */
+    private void redraw(int left, int top, int right, int bottom) {
+        if (canRedraw()) {
+            invalidate(left, top, right, bottom);
+            mCursorLayer.invalidate();
+        }
+    }
+
+    private boolean canRedraw() {
+        return mTermSession == null || !mTermSession.isSynchronizedUpdatePending();
+    }
+
+    /**
+     * Invalidate the rows from firstRow to lastRow (inclusive).
+     */
+    private void invalidateRows(int firstRow, int lastRow) {
+        int top = mTopOfScreenMargin + (firstRow - mTopRow) * mCharacterHeight;
+        int bottom = mTopOfScreenMargin + (lastRow - mTopRow + 1) * mCharacterHeight;
+        redraw(0, Math.max(0, top), getWidth(), bottom);
+    }
+
+    /**
+     * Invalidate only the cell under the cursor, along with any IME
+     * composing text (or pending combining accent) drawn over it.
+     */
+    private void invalidateCursor() {
+        invalidateCursorRegion(mImeBuffer.length() + 1);
+    }
+
+    /**
+     * Invalidate the part of the cursor row that the cursor and up to
+     * <code>imeLength</code> characters of IME text are drawn into.
+     */
+    private void invalidateCursorRegion(int imeLength) {
+        if (mEmulator == null || mCharacterHeight == 0) {
+            redraw();
+            return;
+        }
+        if (mCursorOnLayer) {
+            // Only the layer has the cursor and IME text on it
+            if (canRedraw()) {
+                mCursorLayer.invalidate();
+            }
+            return;
+        }
+        Rect region = mCursorRect;
+        if (getCursorRegion(imeLength, region)) {
+            redraw(region.left, region.top, region.right, region.bottom);
+        }
+    }
+
+    /**
+     * Get the part of the cursor row that the cursor and up to
+     * <code>imeLength</code> characters of IME text are drawn into.
+     *
+     * @return Whether the cursor is in view.
+     */
+    private boolean getCursorRegion(int imeLength, Rect region) {
+        int row = mEmulator.getCursorRow() - mTopRow;
+        if (row < 0 || row >= mRows) {
+            // Cursor is scrolled out of view
+            return false;
+        }
+        int columns = mColumns;
+        int cx = mEmulator.getCursorCol();
+        // This mirrors the placement of IME text in TranscriptScreen.drawText
+        imeLength = Math.min(columns, imeLength);
+        int startCol = Math.min(cx, columns - imeLength);
+        // A wide character under the cursor takes up two columns
+        int endCol = Math.min(columns, Math.max(cx + 2, startCol + imeLength));
+        int left = (int) ((startCol - mLeftColumn) * mCharacterWidth);
+        int right = (int) Math.ceil((endCol - mLeftColumn) * mCharacterWidth);
+        int top = mTopOfScreenMargin + row * mCharacterHeight;
+        region.set(left, top, right, top + mCharacterHeight);
+        return true;
+    }
+
+    /**
+     * The IME composing text, along with any pending combining accent.
+     */
+    private String getEffectiveImeBuffer() {
+        int combiningAccent = mKeyListener.getCombiningAccent();
+        if (combiningAccent != 0) {
+            return mImeBuffer + String.valueOf((char) combiningAccent);
+        }
+        return mImeBuffer;
+    }
+
+    /**
+     * Draw the cursor layer: the part of the cursor row which the cursor
+     * and IME text cover is drawn again, this time with them, over the
+     * text which onDraw drew without them.  Blinking the cursor then only
+     * shows or hides the layer.
+     */
+    private void drawCursorLayer(Canvas canvas) {
+        if (!mCursorOnLayer || mEmulator == null || mCharacterHeight == 0
+                || !mEmulator.getShowCursor()) {
+            return;
+        }
+        Rect region = mCursorRect;
+        if (!getCursorRegion(mImeBuffer.length() + 1, region)) {
+            return;
+        }
+        canvas.save();
+        canvas.clipRect(region);
+        boolean reverseVideo = mEmulator.getReverseVideo();
+        mTextRenderer.setReverseVideo(reverseVideo);
+        canvas.drawRect(region, reverseVideo ? mForegroundPaint : mBackgroundPaint);
+        int row = mEmulator.getCursorRow();
+        float x = -mLeftColumn * mCharacterWidth;
+        float y = mCharacterHeight * (row - mTopRow + 1) + mTopOfScreenMargin;
+        TranscriptScreen screen = mEmulator.getScreen();
+        screen.drawBackground(row, row + 1, canvas, x, y, mTextRenderer);
+        screen.drawText(row, canvas, x, y, mTextRenderer, mEmulator.getCursorCol(),
+                -1, -1, getEffectiveImeBuffer(), mKeyListener.getCursorMode());
+        drawSelection(canvas, x, row, row + 1);
+        canvas.restore();
+    }
+
+    /**
+     * A view over the whole of this one, which only draws the cursor; see
+     * {@link #mCursorLayer}.
+     */
+    private class CursorLayer extends View {
+        CursorLayer(Context context) {
+            super(context);
+        }
+
+        @Override
+        protected void onDraw(Canvas canvas) {
+            drawCursorLayer(canvas);
+        }
+
+        @Override
+        public boolean hasOverlappingRendering() {
+            return false;
+        }
+    }
+
+    /**
+     * Get the number of times the whole view has been redrawn.
+     */
+    public int getFullRedrawCount() {
+        return mFullRedrawCount;
+    }
+
+    /**
+     * Get the number of times only part of the view (the cursor row) has been
+     * redrawn.  On an idle terminal, only this count should be increasing.
+     */
+    public int getPartialRedrawCount() {
+        return mPartialRedrawCount;
     }
 
     private void ensureCursorVisible() {
@@ -1619,7 +2196,7 @@ public String getSelectedText() {
     public void sendControlKey() {
         mIsControlKeySent = true;
         mKeyListener.handleControlKey(true);
-        invalidate();
+        invalidateCursor();
     }
 
     /**
@@ -1629,7 +2206,7 @@ public void sendControlKey() {
     public void sendFnKey() {
         mIsFnKeySent = true;
         mKeyListener.handleFnKey(true);
-        invalidate();
+        invalidateCursor();
     }
 
     /**
@@ -1701,6 +2278,15 @@ public String getURLat(float x, float y)
         int row = (int)Math.floor(y_pos * mRows);
         int col = (int)Math.floor(x_pos * mColumns);
 
+        //Links set by the program come straight from the transcript
+        if (mEmulator != null && row < mRows && col < mColumns) {
+            String url = mEmulator.getScreen().getLinkUrl(col, row + mTopRow);
+            if (url != null
+                    && sHttpMatchFilter.acceptMatch(url, 0, url.length())) {
+                return url;
+            }
+        }
+
         //Grab row from link layer
         URLSpan [] linkRow = mLinkLayer.get(row);
         URLSpan link;
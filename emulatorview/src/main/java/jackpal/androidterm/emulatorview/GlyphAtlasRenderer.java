@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Typeface;
+import android.util.FloatMath;
+import android.util.SparseIntArray;
+
+/**
+ * Text renderer which rasterizes each glyph of the monospace typeface once
+ * into an alpha-only atlas bitmap, and then draws text by blitting glyphs
+ * out of the atlas.
+ *
+ * Glyphs are keyed by code point and boldness (italic is shown as inverse
+ * video, as in the other renderers).  The atlas has a fixed number of
+ * slots; when it is full, the least recently used glyph is evicted.  A
+ * glyph blitted earlier in the same frame is never evicted, though: with
+ * hardware acceleration the atlas is only uploaded once the frame is
+ * done, so the earlier blits would show the new glyph.  When every slot
+ * has been used in the frame, glyphs which aren't in the atlas are drawn
+ * with the paint instead.
+ * Because the atlas is an ALPHA_8 bitmap, the glyphs are tinted by the
+ * color of the blit paint and no color filters are needed.
+ */
+class GlyphAtlasRenderer extends BaseTextRenderer {
+    private static final int ATLAS_COLUMNS = 32;
+    private static final int ATLAS_ROWS = 16;
+    private static final int ATLAS_SLOTS = ATLAS_COLUMNS * ATLAS_ROWS;
+
+    public GlyphAtlasRenderer(int fontSize, ColorScheme scheme) {
+        super(scheme);
+        mTextPaint = new Paint();
+        mTextPaint.setTypeface(Typeface.MONOSPACE);
+        mTextPaint.setAntiAlias(true);
+        mTextPaint.setTextSize(fontSize);
+
+        mCharHeight = (int) FloatMath.ceil(mTextPaint.getFontSpacing());
+        mCharAscent = (int) FloatMath.ceil(mTextPaint.ascent());
+        mCharDescent = mCharHeight + mCharAscent;
+        mCharWidth = mTextPaint.measureText(EXAMPLE_CHAR, 0, 1);
+        mUnderlineHeight = Math.max(1, mCharHeight / 16);
+
+        mGlyphPaint = new Paint(mTextPaint);
+        mGlyphPaint.setColor(0xffffffff);
+        mBlitPaint = new Paint();
+
+        // Each slot is wide enough for an East Asian wide character
+        mSlotWidth = (int) FloatMath.ceil(2 * mCharWidth);
+        mSlotHeight = mCharHeight;
+        mAtlas = Bitmap.createBitmap(mSlotWidth * ATLAS_COLUMNS,
+                mSlotHeight * ATLAS_ROWS, Bitmap.Config.ALPHA_8);
+        mAtlasCanvas = new Canvas(mAtlas);
+    }
+
+    public void drawTextRun(Canvas canvas, float x, float y, int lineOffset,
+            int runWidth, char[] text, int index, int count,
+            boolean selectionStyle, int textStyle,
+            int cursorOffset, int cursorIndex, int cursorIncr, int cursorWidth, int cursorMode) {
+        int foreColor = TextStyle.decodeForeColor(textStyle);
+        int backColor = TextStyle.decodeBackColor(textStyle);
+        int effect = TextStyle.decodeEffect(textStyle);
+
+        boolean inverse =  mReverseVideo ^
+                (effect & (TextStyle.fxInverse | TextStyle.fxItalic)) != 0;
+        if (inverse) {
+            int temp = foreColor;
+            foreColor = backColor;
+            backColor = temp;
+        }
+
+        if (selectionStyle) {
+            backColor = TextStyle.ciCursorBackground;
+        }
+
+        boolean blink = (effect & TextStyle.fxBlink) != 0;
+        if (blink && backColor < 8) {
+            backColor += 8;
+        }
+        float left = x + lineOffset * mCharWidth;
+        if (!isBackgroundDrawn(backColor, selectionStyle)) {
+            mTextPaint.setColor(mPalette[backColor]);
+            canvas.drawRect(left, y + mCharAscent - mCharDescent,
+                    left + runWidth * mCharWidth, y,
+                    mTextPaint);
+        }
+
+        boolean cursorVisible = lineOffset <= cursorOffset && cursorOffset < (lineOffset + runWidth);
+        float cursorX = 0;
+        if (cursorVisible) {
+            cursorX = x + cursorOffset * mCharWidth;
+            drawCursorImp(canvas, (int) cursorX, y, cursorWidth * mCharWidth, mCharHeight, cursorMode);
+        }
+
+        boolean invisible = (effect & TextStyle.fxInvisible) != 0;
+        if (invisible) {
+            return;
+        }
+
+        boolean bold = (effect & TextStyle.fxBold) != 0;
+        int textPaintColor;
+        if (foreColor < 8 && bold) {
+            // In 16-color mode, bold also implies bright foreground colors
+            textPaintColor = mPalette[foreColor+8];
+        } else {
+            textPaintColor = mPalette[foreColor];
+        }
+        int cursorPaintColor = mPalette[TextStyle.ciCursorForeground];
+
+        int end = index + count;
+        if (hasZeroWidthChars(text, index, end)) {
+            // Combining characters can't be drawn from the atlas
+            drawTextRunWithPaint(canvas, left, y, text, index, count, bold,
+                    textPaintColor, cursorVisible, cursorX, cursorIndex,
+                    cursorIncr, cursorWidth, cursorPaintColor);
+        } else {
+            Paint blitPaint = mBlitPaint;
+            blitPaint.setColor(textPaintColor);
+            float glyphX = left;
+            float top = y - mCharHeight;
+            for (int i = index; i < end;) {
+                char c = text[i];
+                int codePoint;
+                int incr;
+                if (Character.isHighSurrogate(c) && i + 1 < end) {
+                    codePoint = Character.toCodePoint(c, text[i+1]);
+                    incr = 2;
+                } else {
+                    codePoint = c;
+                    incr = 1;
+                }
+                boolean atCursor = cursorVisible && i == cursorIndex;
+                if (atCursor) {
+                    blitPaint.setColor(cursorPaintColor);
+                }
+                if (codePoint != ' ') {
+                    int slot = getGlyphSlot(codePoint, bold);
+                    if (slot >= 0) {
+                        int srcX = (slot % ATLAS_COLUMNS) * mSlotWidth;
+                        int srcY = (slot / ATLAS_COLUMNS) * mSlotHeight;
+                        mSrcRect.set(srcX, srcY, srcX + mSlotWidth, srcY + mSlotHeight);
+                        float dstX = (int) (glyphX + 0.5f);
+                        mDstRect.set(dstX, top, dstX + mSlotWidth, y);
+                        canvas.drawBitmap(mAtlas, mSrcRect, mDstRect, blitPaint);
+                    } else {
+                        // The atlas is full of glyphs this frame still needs
+                        drawTextRunWithPaint(canvas, glyphX, y, text, i, incr, bold,
+                                blitPaint.getColor(), false, 0, 0, 0, 0, 0);
+                    }
+                }
+                if (atCursor) {
+                    blitPaint.setColor(textPaintColor);
+                }
+                glyphX += UnicodeTranscript.charWidth(codePoint) * mCharWidth;
+                i += incr;
+            }
+        }
+
+        if ((effect & TextStyle.fxUnderline) != 0) {
+            mTextPaint.setColor(textPaintColor);
+            float underlineY = y - mCharDescent + 1;
+            canvas.drawRect(left, underlineY, left + runWidth * mCharWidth,
+                    underlineY + mUnderlineHeight, mTextPaint);
+        }
+    }
+
+    private static boolean hasZeroWidthChars(char[] text, int index, int end) {
+        for (int i = index; i < end; ++i) {
+            char c = text[i];
+            if (c > 31 && c < 127) {
+                // Fast path for ASCII printable characters
+                continue;
+            }
+            if (Character.isHighSurrogate(c) && i + 1 < end) {
+                if (UnicodeTranscript.charWidth(c, text[i+1]) <= 0) {
+                    return true;
+                }
+                ++i;
+            } else if (UnicodeTranscript.charWidth(c) <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drawTextRunWithPaint(Canvas canvas, float left, float y,
+            char[] text, int index, int count, boolean bold, int textPaintColor,
+            boolean cursorVisible, float cursorX, int cursorIndex, int cursorIncr,
+            int cursorWidth, int cursorPaintColor) {
+        Paint paint = mTextPaint;
+        paint.setFakeBoldText(bold);
+        paint.setColor(textPaintColor);
+        float textOriginY = y - mCharDescent;
+        if (cursorVisible) {
+            int countBeforeCursor = cursorIndex - index;
+            int countAfterCursor = count - (countBeforeCursor + cursorIncr);
+            if (countBeforeCursor > 0){
+                canvas.drawText(text, index, countBeforeCursor, left, textOriginY, paint);
+            }
+            paint.setColor(cursorPaintColor);
+            canvas.drawText(text, cursorIndex, cursorIncr, cursorX, textOriginY, paint);
+            if (countAfterCursor > 0) {
+                paint.setColor(textPaintColor);
+                canvas.drawText(text, cursorIndex + cursorIncr, countAfterCursor,
+                        cursorX + cursorWidth * mCharWidth, textOriginY, paint);
+            }
+        } else {
+            canvas.drawText(text, index, count, left, textOriginY, paint);
+        }
+        paint.setFakeBoldText(false);
+    }
+
+    public void startFrame() {
+        mFrameStart = mClock;
+    }
+
+    /**
+     * Find the atlas slot holding the given glyph, rasterizing it (and
+     * evicting the least recently used glyph if the atlas is full) if it
+     * isn't there yet.
+     *
+     * @return The slot, or -1 if the glyph isn't in the atlas, and every
+     *         slot holds a glyph already drawn in this frame.
+     */
+    private int getGlyphSlot(int codePoint, boolean bold) {
+        int key = (codePoint << 1) | (bold ? 1 : 0);
+        long now = ++mClock;
+        int slot = mSlotForKey.get(key, -1);
+        if (slot >= 0) {
+            mSlotLastUse[slot] = now;
+            return slot;
+        }
+
+        if (mSlotsUsed < ATLAS_SLOTS) {
+            slot = mSlotsUsed++;
+        } else {
+            slot = 0;
+            long oldest = mSlotLastUse[0];
+            for (int i = 1; i < ATLAS_SLOTS; ++i) {
+                if (mSlotLastUse[i] < oldest) {
+                    oldest = mSlotLastUse[i];
+                    slot = i;
+                }
+            }
+            if (oldest > mFrameStart) {
+                // Used since the frame started, and so is every other slot
+                return -1;
+            }
+            mSlotForKey.delete(mSlotKey[slot]);
+        }
+        mSlotKey[slot] = key;
+        mSlotLastUse[slot] = now;
+        mSlotForKey.put(key, slot);
+        rasterizeGlyph(slot, codePoint, bold);
+        return slot;
+    }
+
+    private void rasterizeGlyph(int slot, int codePoint, boolean bold) {
+        int slotX = (slot % ATLAS_COLUMNS) * mSlotWidth;
+        int slotY = (slot / ATLAS_COLUMNS) * mSlotHeight;
+        Canvas atlasCanvas = mAtlasCanvas;
+        atlasCanvas.save();
+        atlasCanvas.clipRect(slotX, slotY, slotX + mSlotWidth, slotY + mSlotHeight);
+        atlasCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+        mGlyphPaint.setFakeBoldText(bold);
+        int charCount = Character.toChars(codePoint, mGlyphChars, 0);
+        atlasCanvas.drawText(mGlyphChars, 0, charCount, slotX,
+                slotY + mSlotHeight - mCharDescent, mGlyphPaint);
+        atlasCanvas.restore();
+    }
+
+    public int getCharacterHeight() {
+        return mCharHeight;
+    }
+
+    public float getCharacterWidth() {
+        return mCharWidth;
+    }
+
+    public int getTopMargin() {
+        return mCharDescent;
+    }
+
+    private Paint mTextPaint;
+    private Paint mGlyphPaint;
+    private Paint mBlitPaint;
+    private float mCharWidth;
+    private int mCharHeight;
+    private int mCharAscent;
+    private int mCharDescent;
+    private int mUnderlineHeight;
+
+    private final Bitmap mAtlas;
+    private final Canvas mAtlasCanvas;
+    private final int mSlotWidth;
+    private final int mSlotHeight;
+    private final SparseIntArray mSlotForKey = new SparseIntArray(ATLAS_SLOTS);
+    private final int[] mSlotKey = new int[ATLAS_SLOTS];
+    private final long[] mSlotLastUse = new long[ATLAS_SLOTS];
+    private int mSlotsUsed;
+    private long mClock;
+    /* mClock when the frame started; slots last used after it are in use */
+    private long mFrameStart;
+
+    private final Rect mSrcRect = new Rect();
+    private final RectF mDstRect = new RectF();
+    private final char[] mGlyphChars = new char[2];
+    private static final char[] EXAMPLE_CHAR = {'X'};
+}
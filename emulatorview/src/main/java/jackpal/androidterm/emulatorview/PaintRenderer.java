@@ -60,12 +60,13 @@ public void drawTextRun(Canvas canvas, float x, float y, int lineOffset,
         if (blink && backColor < 8) {
             backColor += 8;
         }
-        mTextPaint.setColor(mPalette[backColor]);
-
         float left = x + lineOffset * mCharWidth;
-        canvas.drawRect(left, y + mCharAscent - mCharDescent,
-                left + runWidth * mCharWidth, y,
-                mTextPaint);
+        if (!isBackgroundDrawn(backColor, selectionStyle)) {
+            mTextPaint.setColor(mPalette[backColor]);
+            canvas.drawRect(left, y + mCharAscent - mCharDescent,
+                    left + runWidth * mCharWidth, y,
+                    mTextPaint);
+        }
 
         boolean cursorVisible = lineOffset <= cursorOffset && cursorOffset < (lineOffset + runWidth);
         float cursorX = 0;
@@ -100,21 +101,21 @@ public void drawTextRun(Canvas canvas, float x, float y, int lineOffset,
                 int countBeforeCursor = cursorIndex - index;
                 int countAfterCursor = count - (countBeforeCursor + cursorIncr);
                 if (countBeforeCursor > 0){
-                    canvas.drawText(text, index, countBeforeCursor, left, textOriginY, mTextPaint);
+                    drawColumnText(canvas, text, index, countBeforeCursor, left, textOriginY);
                 }
                 // Text at cursor
                 mTextPaint.setColor(mPalette[TextStyle.ciCursorForeground]);
-                canvas.drawText(text, cursorIndex, cursorIncr, cursorX,
-                        textOriginY, mTextPaint);
+                drawColumnText(canvas, text, cursorIndex, cursorIncr, cursorX,
+                        textOriginY);
                 // Text after cursor
                 if (countAfterCursor > 0) {
                     mTextPaint.setColor(textPaintColor);
-                    canvas.drawText(text, cursorIndex + cursorIncr, countAfterCursor,
+                    drawColumnText(canvas, text, cursorIndex + cursorIncr, countAfterCursor,
                             cursorX + cursorWidth * mCharWidth,
-                            textOriginY, mTextPaint);
+                            textOriginY);
                 }
             } else {
-                canvas.drawText(text, index, count, left, textOriginY, mTextPaint);
+                drawColumnText(canvas, text, index, count, left, textOriginY);
             }
             if (bold) {
                 mTextPaint.setFakeBoldText(false);
@@ -125,6 +126,70 @@ public void drawTextRun(Canvas canvas, float x, float y, int lineOffset,
         }
     }
 
+    /**
+     * Draw text so that each character lines up with its screen columns.
+     *
+     * Runs of regular-width characters can be drawn with a single drawText
+     * call.  East Asian wide characters need to take up exactly two columns,
+     * which may not match the font's idea of their width, so runs containing
+     * them are drawn with one drawPosText call with explicit positions.  Runs
+     * with combining characters or characters outside the BMP are drawn one
+     * character (with its combining characters) at a time.
+     */
+    private void drawColumnText(Canvas canvas, char[] text, int index, int count,
+            float x, float y) {
+        int end = index + count;
+        boolean hasWideChars = false;
+        for (int i = index; i < end; ++i) {
+            char c = text[i];
+            if (c > 31 && c < 127) {
+                continue;
+            }
+            if (Character.isHighSurrogate(c)) {
+                drawTextPerChar(canvas, text, index, end, x, y);
+                return;
+            }
+            int width = UnicodeTranscript.charWidth(c);
+            if (width == 2) {
+                hasWideChars = true;
+            } else if (width != 1) {
+                drawTextPerChar(canvas, text, index, end, x, y);
+                return;
+            }
+        }
+        if (!hasWideChars) {
+            canvas.drawText(text, index, count, x, y, mTextPaint);
+            return;
+        }
+
+        if (mPositions == null || mPositions.length < 2 * count) {
+            mPositions = new float[2 * count];
+        }
+        float[] pos = mPositions;
+        for (int i = 0; i < count; ++i) {
+            pos[2*i] = x;
+            pos[2*i+1] = y;
+            x += UnicodeTranscript.charWidth(text[index + i]) * mCharWidth;
+        }
+        canvas.drawPosText(text, index, count, pos, mTextPaint);
+    }
+
+    private void drawTextPerChar(Canvas canvas, char[] text, int index, int end,
+            float x, float y) {
+        int i = index;
+        while (i < end) {
+            int start = i;
+            int width = UnicodeTranscript.charWidth(text, i);
+            i += Character.isHighSurrogate(text[i]) ? 2 : 1;
+            // Draw any combining characters along with their base character
+            while (i < end && UnicodeTranscript.charWidth(text, i) == 0) {
+                i += Character.isHighSurrogate(text[i]) ? 2 : 1;
+            }
+            canvas.drawText(text, start, i - start, x, y, mTextPaint);
+            x += width * mCharWidth;
+        }
+    }
+
     public int getCharacterHeight() {
         return mCharHeight;
     }
@@ -138,6 +203,7 @@ public int getTopMargin() {
     }
 
     private Paint mTextPaint;
+    private float[] mPositions;
     private float mCharWidth;
     private int mCharHeight;
     private int mCharAscent;
@@ -19,6 +19,7 @@
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
@@ -29,6 +30,8 @@
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.MessageQueue;
+import android.os.SystemClock;
 
 /**
  * A terminal session, consisting of a VT100 terminal emulator and its
@@ -55,7 +58,11 @@
  * This frees emulator data from memory, stops the reader and writer threads,
  * and closes the attached I/O streams.
  */
-public class TermSession {
+public class TermSession implements TerminalHost {
+    static {
+        AndroidPlatform.install();
+    }
+
     public void setKeyListener(TermKeyListener l) {
         mKeyListener = l;
     }
@@ -90,10 +97,32 @@ public void setKeyListener(TermKeyListener l) {
     // Number of rows in the transcript
     private static final int TRANSCRIPT_ROWS = 10000;
 
+    /**
+     * Returned by {@link #getPreviousPromptRow getPreviousPromptRow} and
+     * {@link #getNextPromptRow getNextPromptRow} if there is no such prompt.
+     */
+    public static final int NO_PROMPT = UnicodeTranscript.NO_MARK;
+
     private static final int NEW_INPUT = 1;
     private static final int NEW_OUTPUT = 2;
     private static final int FINISH = 3;
     private static final int EOF = 4;
+    private static final int RELEASE_ALT_BUFFER = 5;
+    private static final int SYNCHRONIZED_OUTPUT_TIMEOUT = 6;
+    private static final int CLIPBOARD_WRITE = 7;
+    // Does nothing, but gets the main thread to run the idle reader again
+    private static final int BACKGROUND_INPUT = 8;
+
+    // How long to keep an unused alternate screen buffer around, in ms
+    private static final long ALT_BUFFER_RELEASE_DELAY = 30 * 1000;
+
+    /* How long to wait for a program to finish a synchronized update before
+       showing the screen anyway, in ms */
+    private static final long SYNCHRONIZED_OUTPUT_TIMEOUT_DELAY = 150;
+
+    /* While the session isn't visible, how long the main thread may spend
+       on its input at a time, in ns */
+    private static final long BACKGROUND_SLICE_NANOS = 2 * 1000000L;
 
     /**
      * Callback to be invoked when a {@link TermSession} finishes.
@@ -110,6 +139,49 @@ public interface FinishCallback {
     }
     private FinishCallback mFinishCallback;
 
+    /**
+     * Callback to be invoked when a program running in the terminal sets the
+     * clipboard (with OSC 52).
+     *
+     * @see TermSession#setClipboardCallback
+     */
+    public interface ClipboardCallback {
+        /**
+         * Callback function to be invoked when a program running in the
+         * terminal sets the clipboard.
+         *
+         * @param session The <code>TermSession</code> the program is running in.
+         * @param text The new contents of the clipboard.
+         */
+        void onClipboardWrite(TermSession session, CharSequence text);
+    }
+    private ClipboardCallback mClipboardCallback;
+
+    /**
+     * The default for {@link #setClipboardSizeLimit setClipboardSizeLimit},
+     * in bytes.
+     */
+    public static final int DEFAULT_CLIPBOARD_SIZE_LIMIT = 4 * 1024 * 1024;
+
+    private int mClipboardSizeLimit = DEFAULT_CLIPBOARD_SIZE_LIMIT;
+
+    private SessionRecorder mRecorder;
+
+    private PerformanceCounters mCounters;
+
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    /* When the program last wrote anything, or was sent anything, or the
+       session was last shown or hidden */
+    private long mLastActiveTime = mStartTime;
+    /* When the user asked for the session, and when the program's first
+       output arrived (0 if it hasn't yet) */
+    private long mLaunchTime = mStartTime;
+    private long mFirstOutputTime;
+
+    private boolean mVisible = true;
+    private boolean mUpdatePending;
+    private boolean mIdleReaderQueued;
+
     private boolean mIsRunning = false;
     private Handler mMsgHandler = new Handler() {
         @Override
@@ -118,18 +190,60 @@ public void handleMessage(Message msg) {
                 return;
             }
             if (msg.what == NEW_INPUT) {
-                readFromProcess();
+                if (mVisible) {
+                    readFromProcess();
+                } else if (!mIdleReaderQueued) {
+                    mIdleReaderQueued = true;
+                    Looper.myQueue().addIdleHandler(mIdleReader);
+                }
             } else if (msg.what == EOF) {
+                /* A session which isn't visible may not have got to all of
+                   the program's output yet */
+                while (mByteQueue.getBytesAvailable() > 0) {
+                    readFromProcess();
+                }
                 new Handler(Looper.getMainLooper()).post(new Runnable() {
                     @Override
                     public void run() {
                         onProcessExit();
                     }
                 });
+            } else if (msg.what == RELEASE_ALT_BUFFER) {
+                mEmulator.releaseAltBuffer();
+            } else if (msg.what == SYNCHRONIZED_OUTPUT_TIMEOUT) {
+                // The program is taking too long; show what we have
+                notifyUpdate();
+            } else if (msg.what == CLIPBOARD_WRITE) {
+                writeClipboard((byte[]) msg.obj, msg.arg1);
             }
         }
     };
 
+    /**
+     * Reads input for a session which isn't visible, when the main thread
+     * has nothing else to do, a slice at a time.
+     */
+    private final MessageQueue.IdleHandler mIdleReader = new MessageQueue.IdleHandler() {
+        public boolean queueIdle() {
+            if (!mIsRunning || mVisible) {
+                mIdleReaderQueued = false;
+                return false;
+            }
+            long start = System.nanoTime();
+            do {
+                readFromProcess();
+            } while (mByteQueue.getBytesAvailable() > 0
+                    && System.nanoTime() - start < BACKGROUND_SLICE_NANOS);
+            if (mByteQueue.getBytesAvailable() > 0) {
+                // Let anything else waiting go first, then come back
+                mMsgHandler.sendEmptyMessage(BACKGROUND_INPUT);
+                return true;
+            }
+            mIdleReaderQueued = false;
+            return false;
+        }
+    };
+
     private UpdateCallback mTitleChangedListener;
 
     public TermSession() {
@@ -244,7 +358,10 @@ public void initializeEmulator(int columns, int rows) {
         mTranscriptScreen = new TranscriptScreen(columns, TRANSCRIPT_ROWS, rows, mColorScheme);
         mEmulator = new TerminalEmulator(this, mTranscriptScreen, columns, rows, mColorScheme);
         mEmulator.setDefaultUTF8Mode(mDefaultUTF8Mode);
-        mEmulator.setKeyListener(mKeyListener);
+        mEmulator.setPerformanceCounters(mCounters);
+        if (mRecorder != null) {
+            mRecorder.start(columns, rows);
+        }
 
         mIsRunning = true;
         mReaderThread.start();
@@ -268,6 +385,13 @@ public void initializeEmulator(int columns, int rows) {
      * @param count The number of bytes to be written.
      */
     public void write(byte[] data, int offset, int count) {
+        if (mRecorder != null) {
+            mRecorder.input(data, offset, count);
+        }
+        if (mCounters != null) {
+            mCounters.mBytesWritten += count;
+        }
+        mLastActiveTime = SystemClock.elapsedRealtime();
         try {
             while (count > 0) {
                 int written = mWriteQueue.write(data, offset, count);
@@ -406,13 +530,143 @@ public void setUpdateCallback(UpdateCallback notify) {
     /**
      * Notify the {@link UpdateCallback} registered by {@link
      * #setUpdateCallback setUpdateCallback} that the screen has changed.
+     * While the session isn't visible, this is put off until it is.
      */
     protected void notifyUpdate() {
+        if (!mVisible) {
+            mUpdatePending = true;
+            return;
+        }
+        mUpdatePending = false;
+        if (mCounters != null) {
+            ++mCounters.mUpdates;
+        }
         if (mNotify != null) {
             mNotify.onUpdate();
         }
     }
 
+    /**
+     * Tell the session whether its screen is being shown.  A session which
+     * isn't visible still gives everything the program writes to the
+     * emulator, but only when the main thread has nothing else to do, so
+     * that it doesn't hold up the visible session; and the {@link
+     * UpdateCallback} isn't called until the session is visible again, so
+     * that no drawing is done for it.  Sessions are visible to begin with.
+     * <p>
+     * {@link EmulatorView#onResume} and {@link EmulatorView#onPause} call
+     * this for the view's session.
+     */
+    public void setVisible(boolean visible) {
+        if (visible == mVisible) {
+            return;
+        }
+        mVisible = visible;
+        mLastActiveTime = SystemClock.elapsedRealtime();
+        if (visible && mIsRunning) {
+            // Catch up on anything waiting, then show it all at once
+            if (mByteQueue.getBytesAvailable() > 0) {
+                readFromProcess();
+            }
+            if (mUpdatePending) {
+                notifyUpdate();
+            }
+        }
+    }
+
+    public boolean isVisible() {
+        return mVisible;
+    }
+
+    /**
+     * Whether the program is in the middle of a synchronized update which
+     * hasn't timed out yet, so that what's on the screen is only partly
+     * redrawn and shouldn't be shown.  The {@link UpdateCallback} is
+     * called once this is no longer the case.
+     */
+    public boolean isSynchronizedUpdatePending() {
+        return mEmulator != null && mEmulator.getSynchronizedOutput()
+                && mMsgHandler.hasMessages(SYNCHRONIZED_OUTPUT_TIMEOUT);
+    }
+
+    /**
+     * How long it's been, in ms, since the program last wrote anything or
+     * was sent anything, or since the session was last shown or hidden.
+     */
+    public long getIdleTime() {
+        return SystemClock.elapsedRealtime() - mLastActiveTime;
+    }
+
+    /**
+     * Pack the session's scrollback into a compressed form, to save memory
+     * while nobody is looking at it; see {@link
+     * TerminalEmulator#compactTranscript}.  It's unpacked again as soon as
+     * it's needed, so this is only worth doing for a session which isn't
+     * visible and has been idle for a while.  Must be called on the main
+     * thread.
+     *
+     * @return Whether there was any scrollback to pack.
+     */
+    public boolean compactTranscript() {
+        return mEmulator != null && mEmulator.compactTranscript();
+    }
+
+    /**
+     * Set when the user asked for this session, in the {@link
+     * SystemClock#elapsedRealtime} time base, for {@link
+     * #getTimeToFirstOutput}.  Defaults to when the session was created.
+     */
+    public void setLaunchTime(long launchTime) {
+        mLaunchTime = launchTime;
+    }
+
+    /**
+     * Get how long, in ms, it took from when the user asked for the session
+     * until the first output from the program (usually the shell's prompt)
+     * was read, or -1 if there hasn't been any yet.
+     */
+    public long getTimeToFirstOutput() {
+        return mFirstOutputTime != 0 ? mFirstOutputTime - mLaunchTime : -1;
+    }
+
+    /**
+     * Whether the session's scrollback is packed by {@link
+     * #compactTranscript}.
+     */
+    public boolean isTranscriptCompacted() {
+        return mEmulator != null && mEmulator.isTranscriptCompacted();
+    }
+
+    /**
+     * Get how many rows of scrollback the session has, not counting the
+     * screen.
+     */
+    public int getTranscriptRows() {
+        return mTranscriptScreen != null ? mTranscriptScreen.getActiveTranscriptRows() : 0;
+    }
+
+    /**
+     * Throw away all but the newest keepRows rows of the session's
+     * scrollback, to free the memory the rest take up.  Must be called on
+     * the main thread.
+     *
+     * @return How many rows were thrown away.
+     */
+    public int truncateTranscript(int keepRows) {
+        return mEmulator != null ? mEmulator.truncateTranscript(keepRows) : 0;
+    }
+
+    /**
+     * Free whatever the session is only holding on to in case it's needed
+     * again soon, such as an alternate screen buffer the program isn't
+     * using any more.  Must be called on the main thread.
+     */
+    public void releaseCaches() {
+        if (mEmulator != null) {
+            mEmulator.releaseAltBuffer();
+        }
+    }
+
     /**
      * Get the terminal session's title (may be null).
      */
@@ -428,6 +682,17 @@ public void setTitle(String title) {
         notifyTitleChanged();
     }
 
+    /**
+     * Pass a change of cursor key mode made by the program on to the key
+     * listener, if any.
+     */
+    public void setCursorKeysApplicationMode(boolean enabled) {
+        TermKeyListener listener = mKeyListener;
+        if (listener != null) {
+            listener.setCursorKeysApplicationMode(enabled);
+        }
+    }
+
     /**
      * Set an {@link UpdateCallback} to be invoked when the terminal emulator's
      * title is changed.
@@ -466,6 +731,9 @@ public void updateSize(int columns, int rows) {
         if (mEmulator == null) {
             initializeEmulator(columns, rows);
         } else {
+            if (mRecorder != null) {
+                mRecorder.resize(columns, rows);
+            }
             mEmulator.updateSize(columns, rows);
         }
     }
@@ -480,6 +748,68 @@ public String getTranscriptText() {
         return mTranscriptScreen.getTranscriptText();
     }
 
+    /**
+     * Find the nearest prompt above a row of the transcript.  Prompts are
+     * only known if the shell marks them (with OSC 133).
+     *
+     * @param row A row of the transcript; 0 is the top row of the screen,
+     *            and rows in the scrollback are negative.
+     * @return The row where the prompt starts, or {@link #NO_PROMPT}.
+     */
+    public int getPreviousPromptRow(int row) {
+        return mTranscriptScreen.getPreviousMark(row, 'A');
+    }
+
+    /**
+     * Find the nearest prompt below a row of the transcript.
+     *
+     * @param row A row of the transcript, as for {@link
+     *            #getPreviousPromptRow getPreviousPromptRow}.
+     * @return The row where the prompt starts, or {@link #NO_PROMPT}.
+     */
+    public int getNextPromptRow(int row) {
+        return mTranscriptScreen.getNextMark(row, 'A');
+    }
+
+    /**
+     * Write the output of a command to out, one row at a time.  The command
+     * is the last one whose output starts at or above the given row, as
+     * marked by the shell (with OSC 133); if it is still running, the output
+     * so far is written.
+     *
+     * @param row A row of the transcript, as for {@link
+     *            #getPreviousPromptRow getPreviousPromptRow}.
+     * @param out Where to write the output.
+     * @return Whether a command was found.
+     */
+    public boolean writeCommandOutput(int row, Appendable out) throws IOException {
+        TranscriptScreen screen = mTranscriptScreen;
+        int start = screen.getPreviousMark(row + 1, 'C');
+        if (start == NO_PROMPT) {
+            return false;
+        }
+        // The output ends where the command finished or the next prompt starts
+        int end = screen.getNextMark(start - 1, 'D');
+        int nextPrompt = screen.getNextMark(start, 'A');
+        if (nextPrompt != NO_PROMPT && (end == NO_PROMPT || nextPrompt < end)) {
+            end = nextPrompt;
+        }
+        if (end == NO_PROMPT) {
+            end = mEmulator.getCursorRow() + 1;
+        }
+        screen.writeRows(start, end, out);
+        return true;
+    }
+
+    /**
+     * Write the output of the last command run to out, one row at a time.
+     *
+     * @see #writeCommandOutput
+     */
+    public boolean writeLastCommandOutput(Appendable out) throws IOException {
+        return writeCommandOutput(mEmulator.getCursorRow(), out);
+    }
+
     /**
      * Look for new input from the ptty, send it to the terminal emulator.
      */
@@ -492,10 +822,31 @@ private void readFromProcess() {
         } catch (InterruptedException e) {
             return;
         }
+        mLastActiveTime = SystemClock.elapsedRealtime();
+        if (mFirstOutputTime == 0 && bytesRead > 0) {
+            mFirstOutputTime = mLastActiveTime;
+        }
 
         // Give subclasses a chance to process the read data
         processInput(mReceiveBuffer, 0, bytesRead);
-        notifyUpdate();
+
+        /* While the program has synchronized output on, it is in the middle
+           of redrawing the screen, so hold off on updating the view until
+           it's done or the timeout expires */
+        if (!mEmulator.getSynchronizedOutput()) {
+            mMsgHandler.removeMessages(SYNCHRONIZED_OUTPUT_TIMEOUT);
+            notifyUpdate();
+        } else if (!mMsgHandler.hasMessages(SYNCHRONIZED_OUTPUT_TIMEOUT)) {
+            mMsgHandler.sendEmptyMessageDelayed(SYNCHRONIZED_OUTPUT_TIMEOUT,
+                    SYNCHRONIZED_OUTPUT_TIMEOUT_DELAY);
+        }
+
+        // Free the alternate screen some time after the program leaves it
+        if (mEmulator.hasUnusedAltBuffer()
+                && !mMsgHandler.hasMessages(RELEASE_ALT_BUFFER)) {
+            mMsgHandler.sendEmptyMessageDelayed(RELEASE_ALT_BUFFER,
+                    ALT_BUFFER_RELEASE_DELAY);
+        }
     }
 
     /**
@@ -512,7 +863,7 @@ private void readFromProcess() {
      * @param count The number of bytes read.
      */
     protected void processInput(byte[] data, int offset, int count) {
-        mEmulator.append(data, offset, count);
+        appendToEmulator(data, offset, count);
     }
 
     /**
@@ -525,7 +876,87 @@ protected void processInput(byte[] data, int offset, int count) {
      * @param count The length of the data to be written.
      */
     protected final void appendToEmulator(byte[] data, int offset, int count) {
+        if (mRecorder != null) {
+            mRecorder.output(data, offset, count);
+        }
+        PerformanceCounters counters = mCounters;
+        if (counters == null) {
+            mEmulator.append(data, offset, count);
+            return;
+        }
+        long start = System.nanoTime();
         mEmulator.append(data, offset, count);
+        counters.mParseNanos += System.nanoTime() - start;
+        counters.mBytesRead += count;
+    }
+
+    /**
+     * Start recording this session in asciicast v2 format: everything given
+     * to the terminal emulator, everything written to the terminal output,
+     * and changes in the screen size, with timestamps.  The recording can be
+     * played back with <code>SessionReplayer</code> in the terminal-core
+     * module.
+     * <p>
+     * To replay the session exactly, start recording before the emulator
+     * is initialized; otherwise the replay starts from a blank screen.
+     * Any recording in progress is stopped first.
+     *
+     * @param out Where to write the recording.  It is closed when recording
+     *            stops.
+     */
+    public void startRecording(OutputStream out) {
+        stopRecording();
+        mRecorder = new SessionRecorder(out);
+        if (mEmulator != null) {
+            mRecorder.start(mEmulator.getColumns(), mEmulator.getRows());
+        }
+    }
+
+    /**
+     * Stop recording this session, and close the stream the recording was
+     * written to.
+     */
+    public void stopRecording() {
+        if (mRecorder != null) {
+            mRecorder.close();
+            mRecorder = null;
+        }
+    }
+
+    public boolean isRecording() {
+        return mRecorder != null;
+    }
+
+    /**
+     * Turn the session's {@link PerformanceCounters} on or off.  Turning
+     * them on starts counting from zero (except for the queue high-water
+     * marks and blocked times, which cover the whole session); while
+     * they're off, nothing is counted.
+     */
+    public void setPerformanceCountersEnabled(boolean enabled) {
+        if (enabled == (mCounters != null)) {
+            return;
+        }
+        mCounters = enabled ? new PerformanceCounters() : null;
+        if (mEmulator != null) {
+            mEmulator.setPerformanceCounters(mCounters);
+        }
+    }
+
+    /**
+     * Get the session's {@link PerformanceCounters}, or null if they're off.
+     * The views showing this session add what they draw to the same
+     * counters.
+     */
+    public PerformanceCounters getPerformanceCounters() {
+        PerformanceCounters counters = mCounters;
+        if (counters != null) {
+            counters.mInputQueueHighWaterMark = mByteQueue.getHighWaterMark();
+            counters.mInputQueueBlockedNanos = mByteQueue.getBlockedNanos();
+            counters.mOutputQueueHighWaterMark = mWriteQueue.getHighWaterMark();
+            counters.mOutputQueueBlockedNanos = mWriteQueue.getBlockedNanos();
+        }
+        return counters;
     }
 
     /**
@@ -589,6 +1020,160 @@ public void setUTF8ModeUpdateCallback(UpdateCallback utf8ModeNotify) {
         }
     }
 
+    /**
+     * Set a {@link ClipboardCallback} to be invoked when a program running in
+     * the terminal sets the clipboard.  Programs can't set the clipboard
+     * unless a callback is set.
+     *
+     * @param callback The {@link ClipboardCallback} to be invoked, or null.
+     */
+    public void setClipboardCallback(ClipboardCallback callback) {
+        mClipboardCallback = callback;
+    }
+
+    /**
+     * Set the largest amount of data a program running in the terminal can
+     * put on the clipboard at once.  Larger writes are ignored, without the
+     * data ever being held in memory.
+     *
+     * @param limit The limit in bytes (of UTF-8 text), or 0 to ignore all
+     *              clipboard writes.
+     */
+    public void setClipboardSizeLimit(int limit) {
+        mClipboardSizeLimit = Math.max(limit, 0);
+    }
+
+    /**
+     * Get the limit set by {@link #setClipboardSizeLimit setClipboardSizeLimit}.
+     */
+    public int getClipboardSizeLimit() {
+        return mClipboardSizeLimit;
+    }
+
+    /**
+     * The most data the emulator should accept for a clipboard write; 0 if
+     * nobody would be told about it anyway.
+     */
+    public int getClipboardWriteLimit() {
+        return mClipboardCallback == null ? 0 : mClipboardSizeLimit;
+    }
+
+    /**
+     * Called by the emulator with the data of a clipboard write.  The text is
+     * decoded and handed on later, so that a large write doesn't hold up the
+     * processing of the rest of the input.  The emulator won't touch the
+     * array again.
+     */
+    public void onClipboardWrite(byte[] data, int length) {
+        mMsgHandler.sendMessage(
+                mMsgHandler.obtainMessage(CLIPBOARD_WRITE, length, 0, data));
+    }
+
+    private void writeClipboard(byte[] data, int length) {
+        ClipboardCallback callback = mClipboardCallback;
+        if (callback == null) {
+            return;
+        }
+        String text;
+        try {
+            text = new String(data, 0, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            text = new String(data, 0, length);
+        }
+        callback.onClipboardWrite(this, text);
+    }
+
+    /**
+     * Print the state of this session, for diagnosing problems: its size,
+     * how much memory its transcript takes up, the state of its reader and
+     * writer threads and the queues between them and the main thread, and
+     * its {@link PerformanceCounters} if they're on.  Must be called on the
+     * main thread.
+     *
+     * @param prefix A prefix for each line printed, such as indentation.
+     * @param pw Where to print the state.
+     */
+    public void dump(String prefix, PrintWriter pw) {
+        long uptime = SystemClock.elapsedRealtime() - mStartTime;
+        pw.println(prefix + "title=\"" + mTitle + "\" uptime=" + uptime / 1000 + "s"
+                + " running=" + mIsRunning + " visible=" + mVisible
+                + " idle=" + getIdleTime() / 1000 + "s"
+                + " firstOutput=" + getTimeToFirstOutput() + "ms"
+                + (isRecording() ? " recording" : ""));
+        if (mEmulator != null) {
+            TranscriptStatistics stats = new TranscriptStatistics();
+            getTranscriptStatistics(stats);
+            pw.println(prefix + "size=" + mEmulator.getColumns() + "x" + mEmulator.getRows()
+                    + " utf8=" + mEmulator.getUTF8Mode()
+                    + " altBuffer=" + (mEmulator.hasUnusedAltBuffer() ? "unused" : "-"));
+            pw.println(prefix + "transcript: " + stats);
+        } else {
+            pw.println(prefix + "emulator not initialized");
+        }
+        pw.println(prefix + "threads: reader=" + mReaderThread.getState()
+                + " writer=" + mWriterThread.getState());
+        pw.println(prefix + "input queue: " + dumpQueue(mByteQueue));
+        pw.println(prefix + "output queue: " + dumpQueue(mWriteQueue));
+
+        PerformanceCounters c = getPerformanceCounters();
+        if (c == null) {
+            pw.println(prefix + "performance counters off");
+            return;
+        }
+        long seconds = Math.max(1, c.getElapsedNanos() / 1000000000L);
+        pw.println(prefix + "counters: " + seconds + "s, read=" + c.getBytesRead()
+                + " written=" + c.getBytesWritten()
+                + " parse=" + c.getParseNanos() / 1000000 + "ms ("
+                + c.getParseNanosPerMegabyte() / 1000000 + "ms/MB)"
+                + " updates=" + c.getUpdates() + " (" + c.getUpdates() / seconds + "/s)");
+        pw.println(prefix + "sequences: controls=" + c.getControls()
+                + " esc=" + c.getEscSequences() + " csi=" + c.getCsiSequences()
+                + " osc=" + c.getOscSequences() + " dcs=" + c.getDcsSequences());
+        StringBuilder frames = new StringBuilder();
+        frames.append("frames=").append(c.getFrames())
+            .append(" time=").append(c.getFrameNanos() / 1000000).append("ms")
+            .append(" rows=").append(c.getRowsDrawn())
+            .append(" draws=").append(c.getDrawCalls())
+            .append(" links=").append(c.getCreateLinksNanos() / 1000000).append("ms")
+            .append(" histogram=");
+        for (int i = 0; i <= PerformanceCounters.FRAME_TIME_BUCKETS_MS.length; i++) {
+            frames.append(i == 0 ? "" : ",").append(c.getFrameTimeHistogram(i));
+        }
+        pw.println(prefix + frames);
+        int slowFrames = (int) Math.min(c.getSlowFrames(), PerformanceCounters.SLOW_FRAMES_KEPT);
+        pw.println(prefix + "slow frames: " + c.getSlowFrames());
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < slowFrames; i++) {
+            pw.println(prefix + "  " + (now - c.getSlowFrameTime(i)) / 1000 + "s ago: "
+                    + c.getSlowFrameNanos(i) / 100000 / 10.0 + "ms, "
+                    + c.getSlowFrameRows(i) + " rows");
+        }
+    }
+
+    /**
+     * Collect statistics about how much memory the session's screen buffers
+     * take up: the main one with its scrollback, and the alternate one if
+     * it has been allocated.  Looks at every row, so it isn't meant to be
+     * called often.
+     *
+     * @param stats Where to put the statistics; they're all zero if the
+     *              emulator hasn't been initialized.
+     */
+    public void getTranscriptStatistics(TranscriptStatistics stats) {
+        if (mEmulator == null) {
+            stats.clear();
+            return;
+        }
+        mEmulator.getStatistics(stats);
+    }
+
+    private static String dumpQueue(ByteQueue queue) {
+        return queue.getBytesAvailable() + " bytes waiting, "
+            + queue.getHighWaterMark() + " max, "
+            + queue.getTotalBytes() + " total, "
+            + queue.getBlockedNanos() / 1000000 + "ms writer blocked";
+    }
+
     /**
      * Reset the terminal emulator's state.
      */
@@ -614,7 +1199,11 @@ public void setFinishCallback(FinishCallback callback) {
      */
     public void finish() {
         mIsRunning = false;
-        mEmulator.finish();
+        stopRecording();
+        // A session may be finished before it was ever initialized
+        if (mEmulator != null) {
+            mEmulator.finish();
+        }
         if (mTranscriptScreen != null) {
             mTranscriptScreen.finish();
         }
@@ -0,0 +1,43 @@
+package jackpal.androidterm.emulatorview.compat;
+
+import android.annotation.SuppressLint;
+import android.graphics.Canvas;
+import android.view.View;
+
+/**
+ * Hardware accelerated drawing, which only exists from API 11 on.
+ */
+public class ViewCompat {
+    private ViewCompat() {
+        /* static methods only */
+    }
+
+    /**
+     * Whether the canvas records into a display list, rather than drawing
+     * into a bitmap.
+     */
+    public static boolean isHardwareAccelerated(Canvas canvas) {
+        return AndroidCompat.SDK >= 11
+                && ViewLevel11PlusCompat.isHardwareAccelerated(canvas);
+    }
+
+    /**
+     * Set the opacity of a view, which with hardware acceleration doesn't
+     * record its display list again.  Only call this once {@link
+     * #isHardwareAccelerated} has returned true.
+     */
+    public static void setAlpha(View view, float alpha) {
+        ViewLevel11PlusCompat.setAlpha(view, alpha);
+    }
+}
+
+@SuppressLint("NewApi")
+class ViewLevel11PlusCompat {
+    static boolean isHardwareAccelerated(Canvas canvas) {
+        return canvas.isHardwareAccelerated();
+    }
+
+    static void setAlpha(View view, float alpha) {
+        view.setAlpha(alpha);
+    }
+}
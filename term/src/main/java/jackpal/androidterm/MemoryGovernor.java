@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm;
+
+import android.content.ComponentCallbacks2;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.util.Log;
+
+import jackpal.androidterm.emulatorview.TermSession;
+import jackpal.androidterm.emulatorview.TranscriptStatistics;
+import jackpal.androidterm.util.SessionList;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Keeps the memory the sessions take up in check, so that Android has less
+ * reason to kill the service, and every shell with it, when memory runs
+ * short.
+ * <p>
+ * A session's footprint is estimated from its {@link TranscriptStatistics}:
+ * the rows of its screen and scrollback, their styles, and its alternate
+ * screen buffer.  When Android says memory is short, or the sessions
+ * together go over the budget, the governor does what it must, starting
+ * with what costs the user least:
+ * <ol>
+ * <li>it drops what sessions only keep in case it's needed again, such as
+ *     alternate screen buffers nothing is using;
+ * <li>it compacts the scrollback of sessions which aren't being shown (see
+ *     {@link TermSession#compactTranscript});
+ * <li>as a last resort, it throws away the older half of the scrollback of
+ *     the largest session, hidden sessions first, until the sessions fit.
+ * </ol>
+ * Sessions which are hidden and have been idle for a while are compacted
+ * even when there's memory to spare.
+ * <p>
+ * Compacting or truncating a long scrollback takes a while, so it's done a
+ * session at a time, whenever the main thread has nothing else to do.
+ * Everything here must be done on the main thread.
+ */
+final class MemoryGovernor implements MessageQueue.IdleHandler {
+    /** Scrollback is never truncated to fewer rows than this. */
+    static final int MIN_TRANSCRIPT_ROWS = 100;
+
+    private final SessionList mSessions;
+    private final Handler mHandler = new Handler();
+    private final TranscriptStatistics mStats = new TranscriptStatistics();
+
+    private long mBudget;
+    private long mHibernateDelay;
+
+    /* Work waiting to be done: sessions to compact, and the footprint to
+       truncate scrollback down to (-1 if none needs truncating) */
+    private final ArrayList<TermSession> mCompactQueue = new ArrayList<TermSession>();
+    private long mTarget = -1;
+    private boolean mWorking;
+
+    /* What's been done since the work started, for the log */
+    private String mReason;
+    private long mFootprintBefore;
+    private long mHeapBefore;
+    private int mCompacted;
+    private int mTruncatedRows;
+
+    /* What's been done since the service started, for dump() */
+    private int mTotalCompacted;
+    private long mTotalTruncatedRows;
+
+    MemoryGovernor(SessionList sessions) {
+        mSessions = sessions;
+    }
+
+    /**
+     * Set how much memory, in bytes, the sessions together should take up
+     * at most; 0 for no limit.
+     */
+    void setBudget(long budget) {
+        mBudget = budget;
+    }
+
+    long getBudget() {
+        return mBudget;
+    }
+
+    /**
+     * Set how long, in ms, a hidden session must have been idle before its
+     * scrollback is compacted; 0 if it never should be.
+     */
+    void setHibernateDelay(long delay) {
+        mHibernateDelay = delay;
+    }
+
+    /**
+     * Add up the estimated footprints of all the sessions.  This looks at
+     * every row of every session, so it isn't meant to be called often.
+     */
+    long getFootprint() {
+        long footprint = 0;
+        for (TermSession session : mSessions) {
+            session.getTranscriptStatistics(mStats);
+            footprint += mStats.getEstimatedBytes();
+        }
+        return footprint;
+    }
+
+    /**
+     * Compact sessions which have been idle long enough, and make sure the
+     * sessions fit in the budget.  Meant to be called every minute or so.
+     */
+    void check() {
+        if (mHibernateDelay > 0) {
+            queueCompaction(mHibernateDelay);
+        }
+        long target = -1;
+        if (mBudget > 0 && !mWorking && getFootprint() > mBudget) {
+            releaseCaches();
+            queueCompaction(0);
+            target = mBudget;
+        }
+        start("check", target);
+    }
+
+    /**
+     * React to {@link ComponentCallbacks2#onTrimMemory onTrimMemory}.
+     * {@link ComponentCallbacks2#TRIM_MEMORY_UI_HIDDEN UI_HIDDEN} only
+     * means the user left the app, which is no reason to do anything.
+     * Caches are dropped at any other level; hidden sessions are compacted
+     * once the system is running low, or the app is on the background list;
+     * and only as a last resort (see {@link #isLastResort}) is scrollback
+     * truncated until the sessions take up half of what they did (and half
+     * of the budget at most).
+     */
+    void onTrimMemory(int level) {
+        if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return;
+        }
+        releaseCaches();
+        if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+                || level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            queueCompaction(0);
+        }
+        long target = -1;
+        if (isLastResort(level)) {
+            /* Measured before compacting, so that if compacting frees
+               enough, nothing is truncated */
+            target = getFootprint() / 2;
+            if (mBudget > 0) {
+                target = Math.min(target, mBudget / 2);
+            }
+        }
+        start("onTrimMemory(" + level + ")", target);
+    }
+
+    /**
+     * Whether memory is so short at this onTrimMemory level that Android
+     * is about to kill processes, ours included: it's running critically
+     * low while we're in the foreground, or we're next to go.
+     */
+    static boolean isLastResort(int level) {
+        return level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+                || level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE;
+    }
+
+    private void releaseCaches() {
+        for (TermSession session : mSessions) {
+            session.releaseCaches();
+        }
+    }
+
+    /**
+     * Queue every hidden session which has been idle for at least
+     * minIdleTime ms, and has scrollback to compact.
+     */
+    private void queueCompaction(long minIdleTime) {
+        for (TermSession session : mSessions) {
+            if (!session.isVisible() && session.getIdleTime() >= minIdleTime
+                    && session.getTranscriptRows() > 0
+                    && !session.isTranscriptCompacted()
+                    && !mCompactQueue.contains(session)) {
+                mCompactQueue.add(session);
+            }
+        }
+    }
+
+    private void start(String reason, long target) {
+        if (target >= 0 && (mTarget < 0 || target < mTarget)) {
+            mTarget = target;
+        }
+        if (mWorking || (mCompactQueue.isEmpty() && mTarget < 0)) {
+            return;
+        }
+        mWorking = true;
+        mReason = reason;
+        Runtime runtime = Runtime.getRuntime();
+        mHeapBefore = runtime.totalMemory() - runtime.freeMemory();
+        mFootprintBefore = getFootprint();
+        mCompacted = 0;
+        mTruncatedRows = 0;
+        Looper.myQueue().addIdleHandler(this);
+    }
+
+    /**
+     * Do the next piece of the work, and log what was done once there's
+     * none left.
+     */
+    public boolean queueIdle() {
+        if (!mCompactQueue.isEmpty()) {
+            TermSession session = mCompactQueue.remove(0);
+            // It may have been closed or shown since it was queued
+            if (mSessions.contains(session) && !session.isVisible()
+                    && session.compactTranscript()) {
+                ++mCompacted;
+            }
+            return more();
+        }
+        if (mTarget >= 0 && truncateLargest()) {
+            return more();
+        }
+
+        mWorking = false;
+        mTotalCompacted += mCompacted;
+        mTotalTruncatedRows += mTruncatedRows;
+        if (mCompacted > 0 || mTruncatedRows > 0) {
+            Runtime runtime = Runtime.getRuntime();
+            long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+            Log.i(TermDebug.LOG_TAG, "Memory governor (" + mReason + "): compacted "
+                    + mCompacted + " of " + mSessions.size() + " sessions, dropped "
+                    + mTruncatedRows + " rows of scrollback; transcripts ~"
+                    + mFootprintBefore / 1024 + " KB -> ~" + getFootprint() / 1024
+                    + " KB (budget " + (mBudget > 0 ? mBudget / 1024 + " KB" : "none")
+                    + "), heap " + mHeapBefore / 1024 + " KB -> " + heapAfter / 1024
+                    + " KB used before the next GC");
+        }
+        return false;
+    }
+
+    private boolean more() {
+        // Let anything else waiting go first, then come back
+        mHandler.sendEmptyMessage(0);
+        return true;
+    }
+
+    /**
+     * Halve the scrollback of the largest session which has more than
+     * MIN_TRANSCRIPT_ROWS, hidden sessions first, if the sessions don't
+     * fit in mTarget yet.
+     *
+     * @return Whether there may be more to do.
+     */
+    private boolean truncateLargest() {
+        long footprint = 0;
+        TermSession largest = null;
+        long largestBytes = 0;
+        for (TermSession session : mSessions) {
+            session.getTranscriptStatistics(mStats);
+            long bytes = mStats.getEstimatedBytes();
+            footprint += bytes;
+            if (session.getTranscriptRows() <= MIN_TRANSCRIPT_ROWS) {
+                continue;
+            }
+            if (largest == null
+                    || (largest.isVisible() && !session.isVisible())
+                    || (largest.isVisible() == session.isVisible() && bytes > largestBytes)) {
+                largest = session;
+                largestBytes = bytes;
+            }
+        }
+        if (footprint <= mTarget || largest == null) {
+            mTarget = -1;
+            return false;
+        }
+        int keepRows = Math.max(MIN_TRANSCRIPT_ROWS, largest.getTranscriptRows() / 2);
+        mTruncatedRows += largest.truncateTranscript(keepRows);
+        return true;
+    }
+
+    void dump(String prefix, PrintWriter pw) {
+        pw.println(prefix + "budget=" + (mBudget > 0 ? mBudget / 1024 + " KB" : "none")
+                + " compact idle after " + (mHibernateDelay > 0 ? mHibernateDelay / 1000 + "s" : "never")
+                + (mWorking ? " working (" + mReason + ")" : "")
+                + " compacted=" + mTotalCompacted + " truncated rows=" + mTotalTruncatedRows);
+    }
+}
@@ -160,7 +160,7 @@ protected String openNewWindow(String iInitialCommand) {
         }
 
         try {
-            TermSession session = Term.createTermSession(this, mSettings, initialCommand);
+            TermSession session = service.getShellPool().take(mSettings, initialCommand);
 
             session.setFinishCallback(service);
             service.getSessions().add(session);
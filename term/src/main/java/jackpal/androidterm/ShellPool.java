@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.util.Log;
+
+import jackpal.androidterm.emulatorview.TermSession;
+import jackpal.androidterm.util.TermSettings;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Shells started ahead of time, so that a new window doesn't have to wait
+ * for /dev/ptmx to be opened, the PATH to be checked and the shell to be
+ * forked: it gets a shell which is already running, and which has most
+ * likely printed its prompt already.
+ * <p>
+ * A shell in the pool has no emulator and no reader thread yet; whatever
+ * it prints waits in the pty until the session is handed out and
+ * initialized.  Each shell is started with the settings last given to
+ * {@link #update}, and is only handed out for settings which would start
+ * the same shell (see {@link ShellTermSession.Launch}).  The pool is
+ * refilled a shell at a time, once the main thread has nothing else to
+ * do.  The shell is started on a thread of its own; only attaching a
+ * session to it is done on the main thread, since sessions handle their
+ * messages there.  Everything here must be done on the main thread.
+ */
+final class ShellPool implements MessageQueue.IdleHandler {
+    private final Context mContext;
+    private final Handler mHandler = new Handler();
+    private final ArrayList<ShellTermSession> mSessions = new ArrayList<ShellTermSession>();
+
+    private TermSettings mSettings;
+    private ShellTermSession.Launch mLaunch;
+    private int mSize;
+
+    /* Whether a shell is waiting to be started or being started, whether
+       the pool should be refilled once it has been, and how many times the
+       pool has been cleared (shells started before then are thrown away) */
+    private boolean mFilling;
+    private boolean mRefill;
+    private int mGeneration;
+
+    /* For dump() */
+    private int mHits;
+    private int mMisses;
+    private int mStarted;
+    private long mStartNanos;
+
+    ShellPool(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Start shells with these settings from now on, keeping as many as the
+     * settings ask for.  Shells started with settings which would start a
+     * different shell are thrown away.
+     */
+    void update(TermSettings settings) {
+        ShellTermSession.Launch launch = new ShellTermSession.Launch(settings);
+        if (!launch.startsSameShellAs(mLaunch)) {
+            if (!mSessions.isEmpty()) {
+                Log.i(TermDebug.LOG_TAG, "Settings changed; discarding "
+                        + mSessions.size() + " shells started ahead");
+            }
+            clear();
+            mLaunch = launch;
+        }
+        mSettings = settings;
+        mSize = settings.getShellPoolSize();
+        while (mSessions.size() > mSize) {
+            mSessions.remove(mSessions.size() - 1).finish();
+        }
+        fill();
+    }
+
+    /**
+     * Get a session for a new window: a shell started with settings which
+     * would start the same shell as these, if there's one, or else one
+     * started now.  Either way, the session's launch time (see
+     * {@link TermSession#setLaunchTime}) is the time this was called.  The
+     * pool is refilled later.
+     *
+     * @param initialCommand The command to send the shell once the session
+     *                       is initialized.
+     */
+    TermSession take(TermSettings settings, String initialCommand) throws IOException {
+        long launchTime = SystemClock.elapsedRealtime();
+        TermSession session;
+        if (mSessions.isEmpty()
+                || !new ShellTermSession.Launch(settings).startsSameShellAs(mLaunch)) {
+            ++mMisses;
+            session = Term.createTermSession(mContext, settings, initialCommand);
+        } else {
+            ++mHits;
+            ShellTermSession started = mSessions.remove(0);
+            started.updatePrefs(settings);
+            started.onTakenFromPool(initialCommand);
+            session = started;
+        }
+        session.setLaunchTime(launchTime);
+        fill();
+        return session;
+    }
+
+    /**
+     * Stop every shell in the pool, and any being started.  The pool isn't
+     * refilled until a shell is next asked for, or the settings are updated.
+     */
+    void clear() {
+        for (ShellTermSession session : mSessions) {
+            session.finish();
+        }
+        mSessions.clear();
+        mRefill = false;
+        ++mGeneration;
+    }
+
+    private void fill() {
+        mRefill = true;
+        if (!mFilling && mSettings != null && mSessions.size() < mSize) {
+            mFilling = true;
+            Looper.myQueue().addIdleHandler(this);
+        }
+    }
+
+    /**
+     * Start one shell on a thread of its own; {@link #onShellStarted} comes
+     * back for the next if more are needed.
+     */
+    public boolean queueIdle() {
+        if (!mRefill || mSettings == null || mSessions.size() >= mSize) {
+            mFilling = false;
+            return false;
+        }
+        // The settings may have been changed since update() was called
+        ShellTermSession.Launch launch = new ShellTermSession.Launch(mSettings);
+        if (!launch.startsSameShellAs(mLaunch)) {
+            clear();
+            mRefill = true;
+            mLaunch = launch;
+        }
+
+        final ShellTermSession.Launch startLaunch = mLaunch;
+        final int generation = mGeneration;
+        Thread starter = new Thread() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                ShellTermSession.Shell shell = null;
+                try {
+                    shell = startLaunch.start();
+                } catch (IOException e) {
+                    Log.w(TermDebug.LOG_TAG, "Couldn't start a shell ahead: " + e);
+                }
+                final ShellTermSession.Shell started = shell;
+                final long nanos = System.nanoTime() - start;
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        onShellStarted(started, generation, nanos);
+                    }
+                });
+            }
+        };
+        starter.setName("Shell pool");
+        starter.start();
+        return false;
+    }
+
+    /**
+     * Attach a session to a shell started by queueIdle(), and keep it if
+     * it's still wanted.
+     */
+    private void onShellStarted(ShellTermSession.Shell shell, int generation, long nanos) {
+        mFilling = false;
+        if (shell == null) {
+            // Don't try again until a shell is next asked for
+            mRefill = false;
+            return;
+        }
+        mStartNanos += nanos;
+        ++mStarted;
+
+        ShellTermSession session = new ShellTermSession(mSettings, "", shell);
+        // XXX We should really be able to fetch this from within TermSession
+        session.setProcessExitMessage(mContext.getString(R.string.process_exit_message));
+        if (generation != mGeneration || mSessions.size() >= mSize) {
+            // Not wanted any more; finishing it still reaps the process
+            session.finish();
+        } else {
+            mSessions.add(session);
+        }
+
+        if (mRefill) {
+            fill();
+        }
+    }
+
+    void dump(String prefix, PrintWriter pw) {
+        pw.println(prefix + mSessions.size() + " of " + mSize + " ready"
+                + (mFilling ? ", filling" : "") + "; hits=" + mHits + " misses=" + mMisses
+                + " started=" + mStarted
+                + (mStarted > 0 ? " (" + mStartNanos / mStarted / 1000 + " us each)" : ""));
+    }
+}
@@ -37,6 +37,10 @@ public class ShellTermSession extends GenericTermSession {
 
     private String mInitialCommand;
 
+    /* Whether the shell was started ahead of time by a ShellPool */
+    private boolean mPrespawned;
+    private boolean mFirstOutputLogged;
+
     private static final int PROCESS_EXITED = 1;
     private Handler mMsgHandler = new Handler() {
         @Override
@@ -51,10 +55,17 @@ public void handleMessage(Message msg) {
     };
 
     public ShellTermSession(TermSettings settings, String initialCommand) throws IOException {
-        super(ParcelFileDescriptor.open(new File("/dev/ptmx"), ParcelFileDescriptor.MODE_READ_WRITE),
-                settings, false);
+        this(settings, initialCommand, new Launch(settings).start());
+    }
+
+    /**
+     * Attach a session to a shell which has already been started (by a
+     * ShellPool, on another thread).  Must be called on the main thread.
+     */
+    ShellTermSession(TermSettings settings, String initialCommand, Shell shell) {
+        super(shell.mTermFd, settings, false);
 
-        initializeSession();
+        mProcId = shell.mProcId;
 
         setTermOut(new ParcelFileDescriptor.AutoCloseOutputStream(mTermFd));
         setTermIn(new ParcelFileDescriptor.AutoCloseInputStream(mTermFd));
@@ -73,35 +84,100 @@ public void run() {
         mWatcherThread.setName("Process watcher");
     }
 
-    private void initializeSession() throws IOException {
-        TermSettings settings = mSettings;
+    /**
+     * Everything in the settings which goes into starting the shell.  It's
+     * read from the settings on the main thread, so that the shell can be
+     * started on another, and so that a shell started ahead of time can be
+     * told apart from one which would be started with the current settings.
+     */
+    static final class Launch {
+        private final String mShell;
+        private final String mFailsafeShell;
+        private final String mTermType;
+        private final String mHomePath;
+        private final String mPath;
+        private final boolean mVerifyPath;
+        private final String mKey;
 
-        String path = System.getenv("PATH");
-        if (settings.doPathExtensions()) {
-            String appendPath = settings.getAppendPath();
-            if (appendPath != null && appendPath.length() > 0) {
-                path = path + ":" + appendPath;
-            }
+        Launch(TermSettings settings) {
+            mShell = settings.getShell();
+            mFailsafeShell = settings.getFailsafeShell();
+            mTermType = settings.getTermType();
+            mHomePath = settings.getHomePath();
+            mVerifyPath = settings.verifyPath();
 
-            if (settings.allowPathPrepend()) {
-                String prependPath = settings.getPrependPath();
-                if (prependPath != null && prependPath.length() > 0) {
-                    path = prependPath + ":" + path;
+            String path = System.getenv("PATH");
+            if (settings.doPathExtensions()) {
+                String appendPath = settings.getAppendPath();
+                if (appendPath != null && appendPath.length() > 0) {
+                    path = path + ":" + appendPath;
                 }
+
+                if (settings.allowPathPrepend()) {
+                    String prependPath = settings.getPrependPath();
+                    if (prependPath != null && prependPath.length() > 0) {
+                        path = prependPath + ":" + path;
+                    }
+                }
+            }
+            mPath = path;
+
+            mKey = mShell + '\0' + mFailsafeShell + '\0' + mTermType + '\0' + mHomePath
+                    + '\0' + mVerifyPath + '\0' + mPath;
+        }
+
+        /**
+         * Whether this would start the same shell as another launch.
+         */
+        boolean startsSameShellAs(Launch other) {
+            return other != null && mKey.equals(other.mKey);
+        }
+
+        /**
+         * Open a pty and start the shell on it.  This checks the PATH and
+         * forks, so it may be called on any thread.
+         */
+        Shell start() throws IOException {
+            ParcelFileDescriptor termFd = ParcelFileDescriptor.open(new File("/dev/ptmx"),
+                    ParcelFileDescriptor.MODE_READ_WRITE);
+            try {
+                String path = mVerifyPath ? checkPath(mPath) : mPath;
+                String[] env = new String[3];
+                env[0] = "TERM=" + mTermType;
+                env[1] = "PATH=" + path;
+                env[2] = "HOME=" + mHomePath;
+
+                return new Shell(termFd, createSubprocess(termFd, mShell, mFailsafeShell, env));
+            } catch (IOException e) {
+                termFd.close();
+                throw e;
             }
         }
-        if (settings.verifyPath()) {
-            path = checkPath(path);
+    }
+
+    /**
+     * A shell which has been started, but has no session attached yet.
+     */
+    static final class Shell {
+        final ParcelFileDescriptor mTermFd;
+        final int mProcId;
+
+        Shell(ParcelFileDescriptor termFd, int procId) {
+            mTermFd = termFd;
+            mProcId = procId;
         }
-        String[] env = new String[3];
-        env[0] = "TERM=" + settings.getTermType();
-        env[1] = "PATH=" + path;
-        env[2] = "HOME=" + settings.getHomePath();
+    }
 
-        mProcId = createSubprocess(settings.getShell(), env);
+    /**
+     * Called by a ShellPool when it hands out this session, which it
+     * started with no initial command.
+     */
+    void onTakenFromPool(String initialCommand) {
+        mInitialCommand = initialCommand;
+        mPrespawned = true;
     }
 
-    private String checkPath(String path) {
+    private static String checkPath(String path) {
         String[] dirs = path.split(":");
         StringBuilder checkedPath = new StringBuilder(path.length());
         for (String dirname : dirs) {
@@ -122,13 +198,25 @@ public void initializeEmulator(int columns, int rows) {
         sendInitialCommand(mInitialCommand);
     }
 
+    @Override
+    protected void processInput(byte[] data, int offset, int count) {
+        super.processInput(data, offset, count);
+        if (!mFirstOutputLogged && count > 0) {
+            mFirstOutputLogged = true;
+            Log.i(TermDebug.LOG_TAG, "First output " + getTimeToFirstOutput()
+                    + " ms after the window was asked for ("
+                    + (mPrespawned ? "shell started ahead" : "shell started on demand") + ")");
+        }
+    }
+
     private void sendInitialCommand(String initialCommand) {
         if (initialCommand.length() > 0) {
             write(initialCommand + '\r');
         }
     }
 
-    private int createSubprocess(String shell, String[] env) throws IOException {
+    private static int createSubprocess(ParcelFileDescriptor termFd, String shell,
+            String failsafeShell, String[] env) throws IOException {
         ArrayList<String> argList = parse(shell);
         String arg0;
         String[] args;
@@ -145,15 +233,15 @@ private int createSubprocess(String shell, String[] env) throws IOException {
             }
             args = argList.toArray(new String[1]);
         } catch (Exception e) {
-            argList = parse(mSettings.getFailsafeShell());
+            argList = parse(failsafeShell);
             arg0 = argList.get(0);
             args = argList.toArray(new String[1]);
         }
 
-        return TermExec.createSubprocess(mTermFd, arg0, args, env);
+        return TermExec.createSubprocess(termFd, arg0, args, env);
     }
 
-    private ArrayList<String> parse(String cmd) {
+    private static ArrayList<String> parse(String cmd) {
         final int PLAIN = 0;
         final int WHITESPACE = 1;
         final int INQUOTE = 2;
@@ -208,6 +296,10 @@ private void onProcessExit(int result) {
     @Override
     public void finish() {
         hangupProcessGroup();
+        if (mWatcherThread.getState() == Thread.State.NEW) {
+            // Never initialized (a shell started ahead); still reap it
+            mWatcherThread.start();
+        }
         super.finish();
     }
 
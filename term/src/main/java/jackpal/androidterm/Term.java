@@ -31,6 +31,8 @@
 import jackpal.androidterm.util.TermSettings;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.text.Collator;
 import java.util.Arrays;
 import java.util.List;
@@ -167,6 +169,9 @@ public void onServiceDisconnected(ComponentName arg0) {
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String s) {
         mSettings.readPrefs(sharedPreferences);
+        if (mTermService != null && mPendingPathBroadcasts <= 0) {
+            mTermService.getShellPool().update(mSettings);
+        }
     }
 
     private class WindowListActionBarAdapter extends WindowListAdapter implements UpdateCallback {
@@ -434,6 +439,10 @@ private void populateViewFlipper() {
         if (mTermService != null) {
             mTermSessions = mTermService.getSessions();
 
+            /* The PATH from other apps is known by now, so shells can be
+               started ahead for new windows */
+            mTermService.getShellPool().update(mSettings);
+
             if (mTermSessions.size() == 0) {
                 try {
                     mTermSessions.add(createTermSession());
@@ -516,7 +525,7 @@ protected static TermSession createTermSession(Context context, TermSettings set
 
     private TermSession createTermSession() throws IOException {
         TermSettings settings = mSettings;
-        TermSession session = createTermSession(this, settings, settings.getInitialCommand());
+        TermSession session = mTermService.getShellPool().take(settings, settings.getInitialCommand());
         session.setFinishCallback(mTermService);
         return session;
     }
@@ -692,6 +701,8 @@ public boolean onOptionsItemSelected(MenuItem item) {
             toast.show();
         } else if (id == R.id.menu_send_email) {
             doEmailTranscript();
+        } else if (id == R.id.menu_export_diagnostics) {
+            doExportDiagnostics();
         } else if (id == R.id.menu_special_keys) {
             doDocumentKeys();
         } else if (id == R.id.menu_toggle_soft_keyboard) {
@@ -1006,6 +1017,26 @@ private void doEmailTranscript() {
         }
     }
 
+    private void doExportDiagnostics() {
+        if (mTermService == null) {
+            return;
+        }
+        StringWriter diagnostics = new StringWriter();
+        mTermService.dumpSessions(new PrintWriter(diagnostics));
+
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("text/plain");
+        intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.diagnostics_subject));
+        intent.putExtra(Intent.EXTRA_TEXT, diagnostics.toString());
+        try {
+            startActivity(Intent.createChooser(intent,
+                    getString(R.string.diagnostics_chooser_title)));
+        } catch (ActivityNotFoundException e) {
+            Toast.makeText(this, R.string.diagnostics_no_activity_found,
+                    Toast.LENGTH_LONG).show();
+        }
+    }
+
     private void doCopyAll() {
         ClipboardManagerCompat clip = ClipboardManagerCompatFactory
                 .getManager(getApplicationContext());
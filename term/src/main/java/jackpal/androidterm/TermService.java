@@ -17,6 +17,7 @@
 package jackpal.androidterm;
 
 import android.app.Service;
+import android.content.ComponentCallbacks2;
 import android.content.IntentSender;
 import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
@@ -32,13 +33,19 @@
 import android.app.PendingIntent;
 
 import jackpal.androidterm.emulatorview.TermSession;
+import jackpal.androidterm.emulatorview.TranscriptStatistics;
 
 import jackpal.androidterm.compat.ServiceForegroundCompat;
 import jackpal.androidterm.libtermexec.v1.*;
 import jackpal.androidterm.util.SessionList;
 import jackpal.androidterm.util.TermSettings;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class TermService extends Service implements TermSession.FinishCallback
 {
@@ -50,6 +57,28 @@ public class TermService extends Service implements TermSession.FinishCallback
 
     private SessionList mTermSessions;
 
+    /* How often the memory governor checks on the sessions, in ms */
+    private static final long MEMORY_CHECK_INTERVAL = 60 * 1000;
+
+    private final Handler mHandler = new Handler();
+    private MemoryGovernor mGovernor;
+    private ShellPool mShellPool;
+
+    /**
+     * Gives the memory governor the user's latest settings, and has it
+     * compact idle sessions and check the sessions fit in the budget.
+     */
+    private final Runnable mMemoryCheck = new Runnable() {
+        public void run() {
+            TermSettings settings = new TermSettings(getResources(),
+                    PreferenceManager.getDefaultSharedPreferences(getApplicationContext()));
+            mGovernor.setHibernateDelay(settings.getHibernateDelay() * 60 * 1000L);
+            mGovernor.setBudget(settings.getMemoryBudget() * 1024L * 1024);
+            mGovernor.check();
+            mHandler.postDelayed(this, MEMORY_CHECK_INTERVAL);
+        }
+    };
+
     public class TSBinder extends Binder {
         TermService getService() {
             Log.i("TermService", "Activity binding to service");
@@ -92,6 +121,8 @@ public void onCreate() {
 
         compat = new ServiceForegroundCompat(this);
         mTermSessions = new SessionList();
+        mGovernor = new MemoryGovernor(mTermSessions);
+        mShellPool = new ShellPool(this);
 
         /* Put the service in the foreground. */
         Notification notification = new Notification(R.drawable.ic_stat_service_notification_icon, getText(R.string.service_notify_text), System.currentTimeMillis());
@@ -102,12 +133,16 @@ public void onCreate() {
         notification.setLatestEventInfo(this, getText(R.string.application_terminal), getText(R.string.service_notify_text), pendingIntent);
         compat.startForeground(RUNNING_NOTIFICATION, notification);
 
+        mHandler.postDelayed(mMemoryCheck, MEMORY_CHECK_INTERVAL);
+
         Log.d(TermDebug.LOG_TAG, "TermService started");
         return;
     }
 
     @Override
     public void onDestroy() {
+        mHandler.removeCallbacks(mMemoryCheck);
+        mShellPool.clear();
         compat.stopForeground(true);
         for (TermSession session : mTermSessions) {
             /* Don't automatically remove from list of sessions -- we clear the
@@ -128,6 +163,93 @@ public void onSessionFinish(TermSession session) {
         mTermSessions.remove(session);
     }
 
+    /**
+     * Get the shells started ahead of time for new windows.  Must be used
+     * on the main thread.
+     */
+    ShellPool getShellPool() {
+        return mShellPool;
+    }
+
+    /* This should be @Override if building with API Level >=14 */
+    public void onTrimMemory(int level) {
+        if (MemoryGovernor.isLastResort(level)) {
+            // Idle shells are the cheapest thing to give up
+            mShellPool.clear();
+        }
+        mGovernor.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    /* How long dump() waits for the main thread before giving up */
+    private static final long DUMP_TIMEOUT = 5;
+
+    /**
+     * Print the state of every session, for "adb shell dumpsys activity
+     * service TermService".  Sessions may only be looked at on the main
+     * thread, so the dump is made there.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            dumpSessions(pw);
+            return;
+        }
+        final StringWriter out = new StringWriter();
+        final CountDownLatch done = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            public void run() {
+                try {
+                    dumpSessions(new PrintWriter(out));
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        try {
+            if (!done.await(DUMP_TIMEOUT, TimeUnit.SECONDS)) {
+                pw.println("Timed out waiting for the main thread; it may be stuck");
+                return;
+            }
+        } catch (InterruptedException e) {
+            return;
+        }
+        pw.print(out.toString());
+    }
+
+    /**
+     * Print the state of every session, and totals for all of them.  Must
+     * be called on the main thread.
+     */
+    public void dumpSessions(PrintWriter pw) {
+        Runtime runtime = Runtime.getRuntime();
+        pw.println("Terminal sessions: " + mTermSessions.size());
+        pw.println("  heap: " + (runtime.totalMemory() - runtime.freeMemory()) / 1024
+                + " KB used, " + runtime.maxMemory() / 1024 + " KB max");
+        TranscriptStatistics total = new TranscriptStatistics();
+        TranscriptStatistics stats = new TranscriptStatistics();
+        for (int i = 0; i < mTermSessions.size(); i++) {
+            TermSession session = mTermSessions.get(i);
+            String handle = null;
+            if (session instanceof GenericTermSession) {
+                handle = ((GenericTermSession) session).getHandle();
+            }
+            pw.println("  Session #" + i + ": " + session.getClass().getSimpleName()
+                    + (handle != null ? " handle=" + handle : ""));
+            session.dump("    ", pw);
+            session.getTranscriptStatistics(stats);
+            total.add(stats);
+        }
+        pw.println("  All transcripts: " + total);
+        mGovernor.dump("  Memory governor: ", pw);
+        mShellPool.dump("  Shell pool: ", pw);
+        pw.flush();
+    }
+
     private final class RBinder extends ITerminal.Stub {
         @Override
         public IntentSender startSession(final ParcelFileDescriptor pseudoTerminalMultiplexerFd,
@@ -35,6 +35,7 @@ public void updatePrefs(TermSettings settings, ColorScheme scheme) {
             scheme = new ColorScheme(settings.getColorScheme());
         }
 
+        setUseGlyphAtlas(settings.getUseGlyphAtlasFlag());
         setTextSize(settings.getFontSize());
         setUseCookedIME(settings.useCookedIME());
         setColorScheme(scheme);
@@ -44,6 +45,8 @@ public void updatePrefs(TermSettings settings, ColorScheme scheme) {
         setFnKeyCode(settings.getFnKeyCode());
         setTermType(settings.getTermType());
         setMouseTracking(settings.getMouseTrackingFlag());
+        setPerformanceHudEnabled(settings.getShowPerformanceHudFlag());
+        setLinkifyRowsWithLinks(settings.getLinkifyRowsWithLinksFlag());
     }
 
     public void updatePrefs(TermSettings settings) {
@@ -213,14 +213,27 @@ public void setDisplayedChild(int position) {
 
     @Override
     public void addView(View v, int index) {
+        hideSession(v);
         super.addView(v, index, mChildParams);
     }
 
     @Override
     public void addView(View v) {
+        hideSession(v);
         super.addView(v, mChildParams);
     }
 
+    /**
+     * Views start out hidden; the one shown is told so by {@link
+     * #resumeCurrentView}.
+     */
+    private void hideSession(View v) {
+        TermSession session = ((EmulatorView) v).getTermSession();
+        if (session != null) {
+            session.setVisible(false);
+        }
+    }
+
     private void updateVisibleRect() {
         Rect visible = mVisibleRect;
         Rect window = mWindowRect;
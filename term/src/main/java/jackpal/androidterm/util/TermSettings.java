@@ -46,6 +46,9 @@ public class TermSettings {
     private String mInitialCommand;
     private String mTermType;
     private boolean mCloseOnExit;
+    private int mHibernateDelay;
+    private int mMemoryBudget;
+    private int mShellPoolSize;
     private boolean mVerifyPath;
     private boolean mDoPathExtensions;
     private boolean mAllowPathPrepend;
@@ -60,6 +63,12 @@ public class TermSettings {
 
     private boolean mUseKeyboardShortcuts;
 
+    private boolean mShowPerformanceHud;
+
+    private boolean mUseGlyphAtlas;
+
+    private boolean mLinkifyRowsWithLinks;
+
     private static final String STATUSBAR_KEY = "statusbar";
     private static final String ACTIONBAR_KEY = "actionbar";
     private static final String ORIENTATION_KEY = "orientation";
@@ -74,6 +83,9 @@ public class TermSettings {
     private static final String INITIALCOMMAND_KEY = "initialcommand";
     private static final String TERMTYPE_KEY = "termtype";
     private static final String CLOSEONEXIT_KEY = "close_window_on_process_exit";
+    private static final String HIBERNATEDELAY_KEY = "hibernate_delay";
+    private static final String MEMORYBUDGET_KEY = "memory_budget";
+    private static final String SHELLPOOLSIZE_KEY = "shell_pool_size";
     private static final String VERIFYPATH_KEY = "verify_path";
     private static final String PATHEXTENSIONS_KEY = "do_path_extensions";
     private static final String PATHPREPEND_KEY = "allow_prepend_path";
@@ -81,6 +93,9 @@ public class TermSettings {
     private static final String ALT_SENDS_ESC = "alt_sends_esc";
     private static final String MOUSE_TRACKING = "mouse_tracking";
     private static final String USE_KEYBOARD_SHORTCUTS = "use_keyboard_shortcuts";
+    private static final String SHOW_PERFORMANCE_HUD = "show_performance_hud";
+    private static final String USE_GLYPH_ATLAS = "use_glyph_atlas";
+    private static final String LINKIFY_ROWS_WITH_LINKS = "linkify_rows_with_links";
 
     public static final int WHITE               = 0xffffffff;
     public static final int BLACK               = 0xff000000;
@@ -175,6 +190,9 @@ private void readDefaultPrefs(Resources res) {
         mInitialCommand = res.getString(R.string.pref_initialcommand_default);
         mTermType = res.getString(R.string.pref_termtype_default);
         mCloseOnExit = res.getBoolean(R.bool.pref_close_window_on_process_exit_default);
+        mHibernateDelay = Integer.parseInt(res.getString(R.string.pref_hibernate_delay_default));
+        mMemoryBudget = Integer.parseInt(res.getString(R.string.pref_memory_budget_default));
+        mShellPoolSize = Integer.parseInt(res.getString(R.string.pref_shell_pool_size_default));
         mVerifyPath = res.getBoolean(R.bool.pref_verify_path_default);
         mDoPathExtensions = res.getBoolean(R.bool.pref_do_path_extensions_default);
         mAllowPathPrepend = res.getBoolean(R.bool.pref_allow_prepend_path_default);
@@ -182,6 +200,9 @@ private void readDefaultPrefs(Resources res) {
         mAltSendsEsc = res.getBoolean(R.bool.pref_alt_sends_esc_default);
         mMouseTracking = res.getBoolean(R.bool.pref_mouse_tracking_default);
         mUseKeyboardShortcuts = res.getBoolean(R.bool.pref_use_keyboard_shortcuts_default);
+        mShowPerformanceHud = res.getBoolean(R.bool.pref_show_performance_hud_default);
+        mUseGlyphAtlas = res.getBoolean(R.bool.pref_use_glyph_atlas_default);
+        mLinkifyRowsWithLinks = res.getBoolean(R.bool.pref_linkify_rows_with_links_default);
     }
 
     public void readPrefs(SharedPreferences prefs) {
@@ -204,6 +225,9 @@ public void readPrefs(SharedPreferences prefs) {
         mInitialCommand = readStringPref(INITIALCOMMAND_KEY, mInitialCommand);
         mTermType = readStringPref(TERMTYPE_KEY, mTermType);
         mCloseOnExit = readBooleanPref(CLOSEONEXIT_KEY, mCloseOnExit);
+        mHibernateDelay = readIntPref(HIBERNATEDELAY_KEY, mHibernateDelay, 24 * 60);
+        mMemoryBudget = readIntPref(MEMORYBUDGET_KEY, mMemoryBudget, 1024);
+        mShellPoolSize = readIntPref(SHELLPOOLSIZE_KEY, mShellPoolSize, 4);
         mVerifyPath = readBooleanPref(VERIFYPATH_KEY, mVerifyPath);
         mDoPathExtensions = readBooleanPref(PATHEXTENSIONS_KEY, mDoPathExtensions);
         mAllowPathPrepend = readBooleanPref(PATHPREPEND_KEY, mAllowPathPrepend);
@@ -212,6 +236,11 @@ public void readPrefs(SharedPreferences prefs) {
         mMouseTracking = readBooleanPref(MOUSE_TRACKING, mMouseTracking);
         mUseKeyboardShortcuts = readBooleanPref(USE_KEYBOARD_SHORTCUTS,
                 mUseKeyboardShortcuts);
+        mShowPerformanceHud = readBooleanPref(SHOW_PERFORMANCE_HUD,
+                mShowPerformanceHud);
+        mUseGlyphAtlas = readBooleanPref(USE_GLYPH_ATLAS, mUseGlyphAtlas);
+        mLinkifyRowsWithLinks = readBooleanPref(LINKIFY_ROWS_WITH_LINKS,
+                mLinkifyRowsWithLinks);
         mPrefs = null;  // we leak a Context if we hold on to this
     }
 
@@ -287,6 +316,18 @@ public boolean getUseKeyboardShortcutsFlag() {
         return mUseKeyboardShortcuts;
     }
 
+    public boolean getShowPerformanceHudFlag() {
+        return mShowPerformanceHud;
+    }
+
+    public boolean getUseGlyphAtlasFlag() {
+        return mUseGlyphAtlas;
+    }
+
+    public boolean getLinkifyRowsWithLinksFlag() {
+        return mLinkifyRowsWithLinks;
+    }
+
     public int getBackKeyCharacter() {
         switch (mBackKeyAction) {
             case BACK_KEY_SENDS_ESC: return 27;
@@ -335,6 +376,30 @@ public boolean closeWindowOnProcessExit() {
         return mCloseOnExit;
     }
 
+    /**
+     * How long, in minutes, a window which isn't being shown must have been
+     * idle before its scrollback is compacted; 0 if it never should be.
+     */
+    public int getHibernateDelay() {
+        return mHibernateDelay;
+    }
+
+    /**
+     * How much memory, in MB, the scrollback of all the windows together
+     * should take up at most; 0 if there's no limit.
+     */
+    public int getMemoryBudget() {
+        return mMemoryBudget;
+    }
+
+    /**
+     * How many shells to start ahead of time, so that new windows open
+     * without waiting for one.
+     */
+    public int getShellPoolSize() {
+        return mShellPoolSize;
+    }
+
     public boolean verifyPath() {
         return mVerifyPath;
     }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long {@link TerminalEmulator#append} takes to process each corpus,
+ * fed in the same size chunks as TermSession reads from the process.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class AppendBenchmark {
+    private static final int COLUMNS = 80;
+    private static final int ROWS = 24;
+    private static final int TRANSCRIPT_ROWS = 10000;
+    private static final int CHUNK_SIZE = 4096;
+
+    @Param({Corpus.ASCII, Corpus.CJK, Corpus.EMOJI, Corpus.HTOP, Corpus.SGR,
+            Corpus.TMUX, Corpus.UTF8_DEMO})
+    public String corpus;
+
+    private byte[] mData;
+    private TerminalEmulator mEmulator;
+
+    @Setup
+    public void setUp() throws IOException {
+        mData = Corpus.get(corpus);
+        ColorScheme scheme = new ColorScheme(0xffffffff, 0xff000000);
+        TranscriptScreen screen = new TranscriptScreen(COLUMNS, TRANSCRIPT_ROWS, ROWS, scheme);
+        mEmulator = new TerminalEmulator(new NullHost(), screen, COLUMNS, ROWS, scheme);
+        mEmulator.setDefaultUTF8Mode(true);
+    }
+
+    @Benchmark
+    public TerminalEmulator append() {
+        byte[] data = mData;
+        for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+            mEmulator.append(data, offset, Math.min(CHUNK_SIZE, data.length - offset));
+        }
+        return mEmulator;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Moving data through a {@link ByteQueue} of the size TermSession uses, one
+ * chunk per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class ByteQueueBenchmark {
+    private static final int QUEUE_SIZE = 4096;
+
+    /* Chunk sizes which don't divide the queue size make the data wrap
+       around the end of the buffer */
+    @Param({"100", "1000", "4096"})
+    public int chunkSize;
+
+    private ByteQueue mQueue;
+    private byte[] mChunk;
+    private Thread mProducer;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        mQueue = new ByteQueue(QUEUE_SIZE);
+        mChunk = new byte[chunkSize];
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws InterruptedException {
+        if (mProducer != null) {
+            mProducer.interrupt();
+            mProducer.join();
+            mProducer = null;
+        }
+    }
+
+    /** Writing a chunk and reading it back on the same thread. */
+    @Benchmark
+    public byte[] writeThenRead() throws InterruptedException {
+        byte[] chunk = mChunk;
+        for (int offset = 0; offset < chunk.length; ) {
+            offset += mQueue.write(chunk, offset, chunk.length - offset);
+        }
+        for (int offset = 0; offset < chunk.length; ) {
+            offset += mQueue.read(chunk, offset, chunk.length - offset);
+        }
+        return chunk;
+    }
+
+    /**
+     * Reading a chunk written by another thread, which keeps the queue as
+     * full as it can, like the reader thread of a busy session.
+     */
+    @Benchmark
+    public byte[] readFromProducer() throws InterruptedException {
+        if (mProducer == null) {
+            mProducer = startProducer(mQueue);
+        }
+        byte[] chunk = mChunk;
+        for (int offset = 0; offset < chunk.length; ) {
+            offset += mQueue.read(chunk, offset, chunk.length - offset);
+        }
+        return chunk;
+    }
+
+    private static Thread startProducer(final ByteQueue queue) {
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[QUEUE_SIZE];
+                try {
+                    while (true) {
+                        queue.write(buffer, 0, buffer.length);
+                    }
+                } catch (InterruptedException e) {
+                    // Done
+                }
+            }
+        };
+        producer.setDaemon(true);
+        producer.start();
+        return producer;
+    }
+}
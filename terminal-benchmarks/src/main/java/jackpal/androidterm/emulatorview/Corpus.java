@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+
+/**
+ * Input for the benchmarks: terminal output of various kinds, built from the
+ * test files in the tree (copied into the benchmark resources by the build)
+ * or generated from a fixed seed.  Each corpus is repeated to at least
+ * {@link #SIZE} bytes, so that results for different corpora are comparable.
+ */
+final class Corpus {
+    static final int SIZE = 64 * 1024;
+
+    /** The names accepted by {@link #get}. */
+    static final String ASCII = "ascii";
+    static final String CJK = "cjk";
+    static final String EMOJI = "emoji";
+    static final String HTOP = "htop";
+    static final String SGR = "sgr";
+    static final String TMUX = "tmux";
+    static final String UTF8_DEMO = "utf8demo";
+
+    private static final String[] WIDE_CHARS_FILES = {
+        "combining-chars.txt", "last-column-wrapping.txt", "linkification.txt",
+        "overwriting1.txt", "overwriting2.txt", "overwriting3.txt",
+        "overwriting4.txt"
+    };
+
+    private Corpus() {
+    }
+
+    static byte[] get(String name) throws IOException {
+        StringBuilder text = new StringBuilder();
+        if (ASCII.equals(name)) {
+            appendAscii(text);
+        } else if (CJK.equals(name)) {
+            for (String file : WIDE_CHARS_FILES) {
+                text.append(load("wideChars/" + file));
+            }
+            appendCjk(text);
+        } else if (EMOJI.equals(name)) {
+            text.append(load("UTF-8-SMP-chars-demo.txt"));
+            appendEmoji(text);
+        } else if (HTOP.equals(name)) {
+            appendHtop(text);
+        } else if (SGR.equals(name)) {
+            text.append(load("controlSequences/textStyle.txt"));
+            text.append(load("controlSequences/256color.txt"));
+            appendSgr(text);
+        } else if (TMUX.equals(name)) {
+            appendTmux(text);
+        } else if (UTF8_DEMO.equals(name)) {
+            text.append(load("UTF-8-demo.txt"));
+        } else {
+            throw new IllegalArgumentException("No corpus named " + name);
+        }
+        return repeat(text.toString().replace("\n", "\r\n"));
+    }
+
+    private static byte[] repeat(String text) throws UnsupportedEncodingException {
+        byte[] once = text.getBytes("UTF-8");
+        int copies = (SIZE + once.length - 1) / once.length;
+        byte[] result = new byte[copies * once.length];
+        for (int i = 0; i < copies; i++) {
+            System.arraycopy(once, 0, result, i * once.length, once.length);
+        }
+        return result;
+    }
+
+    private static String load(String name) throws IOException {
+        InputStream in = Corpus.class.getResourceAsStream("/corpus/" + name);
+        if (in == null) {
+            throw new IOException("Missing corpus file " + name);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Something like the output of ls -l. */
+    private static void appendAscii(StringBuilder text) {
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            text.append(String.format("-rw-r--r--  1 user group %8d Jan %2d 12:%02d file%d.txt\n",
+                    random.nextInt(1 << 20), 1 + random.nextInt(31),
+                    random.nextInt(60), random.nextInt(100000)));
+        }
+    }
+
+    private static void appendCjk(StringBuilder text) {
+        Random random = new Random(2);
+        for (int i = 0; i < 100; i++) {
+            int length = 10 + random.nextInt(60);
+            for (int j = 0; j < length; j++) {
+                text.append((char) (0x4e00 + random.nextInt(0x5000)));
+            }
+            text.append('\n');
+        }
+    }
+
+    private static void appendEmoji(StringBuilder text) {
+        Random random = new Random(3);
+        for (int i = 0; i < 100; i++) {
+            int length = 5 + random.nextInt(30);
+            for (int j = 0; j < length; j++) {
+                text.appendCodePoint(0x1f600 + random.nextInt(0x50));
+                if (random.nextInt(4) == 0) {
+                    text.append(' ');
+                }
+            }
+            text.append('\n');
+        }
+    }
+
+    /** Colored output as produced by ls --color, compilers and prompts. */
+    private static void appendSgr(StringBuilder text) {
+        Random random = new Random(4);
+        for (int i = 0; i < 200; i++) {
+            for (int j = 0; j < 6; j++) {
+                switch (random.nextInt(3)) {
+                case 0:
+                    text.append("\033[01;").append(30 + random.nextInt(8)).append('m');
+                    break;
+                case 1:
+                    text.append("\033[38;5;").append(random.nextInt(256)).append('m');
+                    break;
+                default:
+                    text.append("\033[38;2;").append(random.nextInt(256)).append(';')
+                            .append(random.nextInt(256)).append(';')
+                            .append(random.nextInt(256)).append('m');
+                    break;
+                }
+                text.append("word").append(random.nextInt(1000)).append("\033[0m ");
+            }
+            text.append('\n');
+        }
+    }
+
+    /**
+     * Something like htop on an 80x24 screen: every few frames a full
+     * redraw of the meters and the process list, and in between only the
+     * cells which changed, each reached with CUP and drawn in its own
+     * colors.  Nearly every few bytes are an escape sequence.
+     */
+    private static void appendHtop(StringBuilder text) {
+        Random random = new Random(6);
+        text.append("\033[?1049h\033[?25l");
+        for (int frame = 0; frame < 40; frame++) {
+            if (frame % 8 == 0) {
+                text.append("\033[H\033[2J");
+            }
+            for (int cpu = 0; cpu < 4; cpu++) {
+                int used = random.nextInt(30);
+                text.append("\033[").append(cpu + 1).append(";3H\033[1;36m").append(cpu + 1)
+                        .append("\033[0;1m[\033[32m");
+                for (int i = 0; i < used; i++) {
+                    text.append(i < 20 ? '|' : ' ');
+                }
+                text.append("\033[31m").append(String.format("%4.1f%%", used * 3.3f))
+                        .append("\033[0;1m]\033[K\033[0m");
+            }
+            for (int row = 6; row < 23; row++) {
+                boolean full = frame % 8 == 0;
+                if (!full && random.nextInt(3) != 0) {
+                    continue;
+                }
+                if (full) {
+                    text.append("\033[").append(row).append(";1H")
+                            .append(row == 6 ? "\033[30;46m" : "\033[0m")
+                            .append(String.format("%5d user      20   0  %5dM  %4dM  %4dM S ",
+                                    1000 + row * 37, random.nextInt(9000),
+                                    random.nextInt(900), random.nextInt(90)));
+                }
+                // The CPU% and TIME+ columns change from frame to frame
+                text.append("\033[").append(row).append(";48H\033[").append(row == 6 ? "30;46" : "32")
+                        .append('m').append(String.format("%4.1f", random.nextInt(1000) / 10f))
+                        .append("\033[").append(row).append(";60H\033[")
+                        .append(row == 6 ? "30;46" : "0").append('m')
+                        .append(String.format("%2d:%02d.%02d", random.nextInt(60),
+                                random.nextInt(60), random.nextInt(100)));
+                if (full) {
+                    text.append(" \033[1m/usr/bin/process").append(row).append("\033[K\033[0m");
+                }
+            }
+            text.append("\033[24;1H\033[30;46mF1\033[0mHelp  \033[30;46mF10\033[0mQuit\033[K");
+        }
+        text.append("\033[?25h\033[?1049l");
+    }
+
+    /**
+     * A tmux-like 80x24 layout: a status line pinned to the bottom row, and
+     * output scrolling in the region above it.  Most lines are text, but
+     * there are runs of blank lines and of index (IND), which scroll the
+     * region several lines with nothing written in between.
+     */
+    private static void appendTmux(StringBuilder text) {
+        Random random = new Random(5);
+        text.append("\033[1;23r\033[23;1H");
+        for (int i = 0; i < 400; i++) {
+            switch (random.nextInt(8)) {
+            case 0:
+                // Blank lines, e.g. from a pager or a program clearing its output
+                for (int j = 2 + random.nextInt(10); j > 0; j--) {
+                    text.append('\n');
+                }
+                break;
+            case 1:
+                // A program scrolling the region up with IND
+                for (int j = 2 + random.nextInt(6); j > 0; j--) {
+                    text.append("\033D");
+                }
+                break;
+            case 2:
+                // Redraw the status line, leaving the cursor where it was
+                text.append("\0337\033[24;1H\033[42;30m[0] 0:bash* 1:vim  ")
+                        .append(String.format("%02d:%02d", random.nextInt(24), random.nextInt(60)))
+                        .append("\033[K\033[0m\0338");
+                break;
+            default:
+                text.append(String.format("%5d  make[%d]: Building CXX object src/file%d.cc.o",
+                        i, 1 + random.nextInt(3), random.nextInt(1000)));
+                text.append('\n');
+                break;
+            }
+        }
+        text.append("\033[r");
+    }
+}
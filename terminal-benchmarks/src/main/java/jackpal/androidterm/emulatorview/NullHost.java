@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+/**
+ * A {@link TerminalHost} which ignores everything the emulator tells it.
+ */
+final class NullHost implements TerminalHost {
+    public void write(byte[] data, int offset, int count) {
+    }
+
+    public void setTitle(String title) {
+    }
+
+    public void setCursorKeysApplicationMode(boolean enabled) {
+    }
+
+    public int getClipboardWriteLimit() {
+        return 0;
+    }
+
+    public void onClipboardWrite(byte[] data, int length) {
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long a recorded session takes to replay as fast as possible.  Pass a
+ * recording made with <code>TermSession.startRecording</code> with
+ * <code>-p recording=/path/to/file.cast</code>; by default, a recording of
+ * the SGR corpus is used.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplayBenchmark {
+    private static final int COLUMNS = 80;
+    private static final int ROWS = 24;
+    private static final int CHUNK_SIZE = 4096;
+
+    @Param({""})
+    public String recording;
+
+    private SessionReplayer mReplayer;
+
+    @Setup
+    public void setUp() throws IOException {
+        Reader in;
+        if (recording.length() == 0) {
+            in = new StringReader(recordCorpus(Corpus.SGR));
+        } else {
+            in = new InputStreamReader(new FileInputStream(recording), "UTF-8");
+        }
+        try {
+            mReplayer = new SessionReplayer(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String recordCorpus(String name) throws IOException {
+        byte[] data = Corpus.get(name);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(out);
+        recorder.start(COLUMNS, ROWS);
+        for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+            recorder.output(data, offset, Math.min(CHUNK_SIZE, data.length - offset));
+        }
+        recorder.close();
+        return out.toString("UTF-8");
+    }
+
+    @Benchmark
+    public SessionReplayer.Result replay() throws InterruptedException {
+        return mReplayer.replay(false);
+    }
+}
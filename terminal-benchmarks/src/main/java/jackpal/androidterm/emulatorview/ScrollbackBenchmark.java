@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Operations whose cost grows with the amount of scrollback: reflowing the
+ * text for a new width, getting the text of the whole transcript, and
+ * compacting the transcript of an idle session and unpacking it again.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class ScrollbackBenchmark {
+    private static final int COLUMNS = 80;
+    private static final int WIDE_COLUMNS = 100;
+    private static final int ROWS = 24;
+
+    @Param({"100", "1000", "10000"})
+    public int transcriptRows;
+
+    private TerminalEmulator mEmulator;
+    private boolean mWide;
+
+    @Setup
+    public void setUp() throws IOException {
+        ColorScheme scheme = new ColorScheme(0xffffffff, 0xff000000);
+        TranscriptScreen screen = new TranscriptScreen(COLUMNS, transcriptRows, ROWS, scheme);
+        mEmulator = new TerminalEmulator(new NullHost(), screen, COLUMNS, ROWS, scheme);
+        mEmulator.setDefaultUTF8Mode(true);
+
+        // Fill the transcript
+        byte[] data = Corpus.get(Corpus.UTF8_DEMO);
+        while (screen.getActiveTranscriptRows() < transcriptRows - ROWS) {
+            mEmulator.append(data, 0, data.length);
+        }
+    }
+
+    /** Alternates between two widths, so that every call reflows. */
+    @Benchmark
+    public TerminalEmulator updateSize() {
+        mWide = !mWide;
+        mEmulator.updateSize(mWide ? WIDE_COLUMNS : COLUMNS, ROWS);
+        return mEmulator;
+    }
+
+    @Benchmark
+    public String getTranscriptText() {
+        return mEmulator.getScreen().getTranscriptText();
+    }
+
+    /** Packs the scrollback, then reads a row of it, which unpacks it. */
+    @Benchmark
+    public char[] compactAndExpand() {
+        mEmulator.compactTranscript();
+        return mEmulator.getScreen().getScriptLine(-1);
+    }
+}
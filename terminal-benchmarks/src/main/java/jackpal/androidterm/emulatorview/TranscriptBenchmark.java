@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The {@link UnicodeTranscript} operations the emulator is built on, on a
+ * full 80x24 screen with a full transcript behind it.  The rows hold either
+ * plain ASCII, or ASCII with a wide character every few columns, which
+ * makes each of them a {@link FullUnicodeLine}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class TranscriptBenchmark {
+    private static final int COLUMNS = 80;
+    private static final int ROWS = 24;
+    private static final int TOTAL_ROWS = 1000;
+    private static final int WIDE_CHAR_SPACING = 8;
+    private static final int SCROLL_LINES = 8;
+
+    static final String BASIC = "basic";
+    static final String WIDE = "wide";
+
+    @Param({BASIC, WIDE})
+    public String rows;
+
+    private UnicodeTranscript mTranscript;
+
+    @Setup
+    public void setUp() {
+        mTranscript = new UnicodeTranscript(COLUMNS, TOTAL_ROWS, ROWS, 0);
+        for (int i = 0; i < TOTAL_ROWS; i++) {
+            fillRow(ROWS - 1, 'a' + i % 26);
+            mTranscript.scroll(0, ROWS, 0);
+        }
+        for (int row = 0; row < ROWS; row++) {
+            fillRow(row, 'x');
+        }
+    }
+
+    private void fillRow(int row, int c) {
+        mTranscript.blockSet(0, row, COLUMNS, 1, c, 0);
+        if (WIDE.equals(rows)) {
+            for (int column = 0; column < COLUMNS - 1; column += WIDE_CHAR_SPACING) {
+                mTranscript.setChar(column, row, 0x4e00, 0);
+            }
+        }
+    }
+
+    /** Scrolling the whole screen, as when output arrives at the bottom. */
+    @Benchmark
+    public void scroll() {
+        mTranscript.scroll(0, ROWS, 0);
+    }
+
+    /** Scrolling between margins, e.g. above a status line. */
+    @Benchmark
+    public void scrollRegion() {
+        mTranscript.scroll(1, ROWS - 1, 0);
+    }
+
+    /** The same, a line at a time, as a run of line feeds used to be. */
+    @Benchmark
+    public void scrollRegionLineByLine() {
+        for (int i = 0; i < SCROLL_LINES; i++) {
+            mTranscript.scroll(1, ROWS - 1, 0);
+        }
+    }
+
+    /** The same lines in one go, as a run of line feeds is now. */
+    @Benchmark
+    public void scrollRegionLines() {
+        mTranscript.scroll(1, ROWS - 1, 0, SCROLL_LINES);
+    }
+
+    /** Shifting part of a row, as for inserting characters. */
+    @Benchmark
+    public void blockCopyRow() {
+        mTranscript.blockCopy(10, 5, COLUMNS - 11, 1, 11, 5);
+    }
+
+    /** Copying part of every row, as a split window does. */
+    @Benchmark
+    public void blockCopyRect() {
+        mTranscript.blockCopy(0, 1, COLUMNS / 2, ROWS - 1, COLUMNS / 2, 0);
+    }
+
+    /** Copying whole rows, as for inserting or deleting lines. */
+    @Benchmark
+    public void blockCopyLines() {
+        mTranscript.blockCopy(0, 1, COLUMNS, ROWS - 1, 0, 0);
+    }
+
+    @Benchmark
+    public void blockSetRect() {
+        mTranscript.blockSet(10, 5, COLUMNS / 2, ROWS / 2, 'y', 0);
+    }
+
+    /** Clearing the screen. */
+    @Benchmark
+    public void blockSetScreen() {
+        mTranscript.blockSet(0, 0, COLUMNS, ROWS, ' ', 0);
+    }
+}
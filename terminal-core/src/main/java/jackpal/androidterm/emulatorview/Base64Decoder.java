@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.util.Arrays;
+
+/**
+ * A base64 decoder which is fed one byte at a time, as the encoded data
+ * arrives from the terminal, so that the encoded text never has to be
+ * buffered.  Uses the same alphabet as android.util.Base64's DEFAULT mode;
+ * padding, whitespace and other bytes outside the alphabet are skipped.
+ * <p>
+ * The decoded bytes are collected in an array which grows as needed, up to
+ * a limit given to the constructor; once the limit is exceeded, the rest of
+ * the data is ignored and {@link #hasOverflowed} returns true.
+ */
+class Base64Decoder {
+    /**
+     * Lookup table for turning bytes into their position in the base64
+     * alphabet, or -1 for bytes which aren't part of it.
+     */
+    private static final byte[] DECODE = new byte[256];
+
+    static {
+        Arrays.fill(DECODE, (byte) -1);
+        String alphabet =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); ++i) {
+            DECODE[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    private static final int INITIAL_OUTPUT_LENGTH = 256;
+
+    private byte[] mOutput;
+    private int mLength;
+    private final int mLimit;
+    private boolean mOverflowed;
+
+    /* Bits decoded but not yet output; at most 12 are ever held */
+    private int mBits;
+    private int mBitCount;
+
+    /**
+     * @param limit The maximum number of decoded bytes to accept.
+     */
+    public Base64Decoder(int limit) {
+        mLimit = limit;
+    }
+
+    public void decode(byte b) {
+        int value = DECODE[b & 0xff];
+        if (value < 0 || mOverflowed) {
+            return;
+        }
+        mBits = (mBits << 6) | value;
+        mBitCount += 6;
+        if (mBitCount >= 8) {
+            mBitCount -= 8;
+            put((byte) (mBits >> mBitCount));
+            mBits &= (1 << mBitCount) - 1;
+        }
+    }
+
+    private void put(byte b) {
+        if (mLength == mLimit) {
+            mOverflowed = true;
+            mOutput = null;
+            mLength = 0;
+            return;
+        }
+        if (mOutput == null) {
+            mOutput = new byte[Math.min(INITIAL_OUTPUT_LENGTH, mLimit)];
+        } else if (mLength == mOutput.length) {
+            byte[] output = new byte[(int) Math.min(2L * mLength, mLimit)];
+            System.arraycopy(mOutput, 0, output, 0, mLength);
+            mOutput = output;
+        }
+        mOutput[mLength++] = b;
+    }
+
+    public boolean hasOverflowed() {
+        return mOverflowed;
+    }
+
+    /**
+     * Get the decoded bytes.  Only the first {@link #getLength} bytes are
+     * valid, and the array may be null if nothing was decoded.
+     */
+    public byte[] getOutput() {
+        return mOutput;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+}
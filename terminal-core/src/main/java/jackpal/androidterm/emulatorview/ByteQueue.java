@@ -32,6 +32,34 @@ public int getBytesAvailable() {
         }
     }
 
+    /**
+     * Get the most bytes which have been waiting in the queue at once.
+     */
+    public int getHighWaterMark() {
+        synchronized(this) {
+            return mHighWaterMark;
+        }
+    }
+
+    /**
+     * Get the total number of bytes which have been written to the queue.
+     */
+    public long getTotalBytes() {
+        synchronized(this) {
+            return mTotalBytes;
+        }
+    }
+
+    /**
+     * Get the total time write() has spent waiting for room in the queue,
+     * in nanoseconds.
+     */
+    public long getBlockedNanos() {
+        synchronized(this) {
+            return mBlockedNanos;
+        }
+    }
+
     public int read(byte[] buffer, int offset, int length)
         throws InterruptedException {
         if (length + offset > buffer.length) {
@@ -95,10 +123,19 @@ public int write(byte[] buffer, int offset, int length)
         }
         synchronized(this) {
             int bufferLength = mBuffer.length;
-            boolean wasEmpty = mStoredBytes == 0;
-            while(bufferLength == mStoredBytes) {
-                wait();
+            if (bufferLength == mStoredBytes) {
+                long start = System.nanoTime();
+                try {
+                    while(bufferLength == mStoredBytes) {
+                        wait();
+                    }
+                } finally {
+                    mBlockedNanos += System.nanoTime() - start;
+                }
             }
+            /* Only check this once there's room: the reader may have emptied
+               the queue and gone to sleep while we waited */
+            boolean wasEmpty = mStoredBytes == 0;
             int tail = mHead + mStoredBytes;
             int oneRun;
             if (tail >= bufferLength) {
@@ -111,6 +148,10 @@ public int write(byte[] buffer, int offset, int length)
             System.arraycopy(buffer, offset, mBuffer, tail, bytesToCopy);
             offset += bytesToCopy;
             mStoredBytes += bytesToCopy;
+            mTotalBytes += bytesToCopy;
+            if (mStoredBytes > mHighWaterMark) {
+                mHighWaterMark = mStoredBytes;
+            }
             if (wasEmpty) {
                 notify();
             }
@@ -121,4 +162,7 @@ public int write(byte[] buffer, int offset, int length)
     private byte[] mBuffer;
     private int mHead;
     private int mStoredBytes;
+    private int mHighWaterMark;
+    private long mBlockedNanos;
+    private long mTotalBytes;
 }
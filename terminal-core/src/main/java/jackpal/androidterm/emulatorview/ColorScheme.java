@@ -17,18 +17,16 @@
 package jackpal.androidterm.emulatorview;
 
 /**
- * A class describing a color scheme for an {@link EmulatorView}.
+ * A class describing a color scheme for an <code>EmulatorView</code>.
  * <p>
  * <code>EmulatorView</code> supports changing its default foreground,
  * background, and cursor colors.  Passing a <code>ColorScheme</code> to
- * {@link EmulatorView#setColorScheme setColorScheme} will cause the
+ * <code>EmulatorView.setColorScheme</code> will cause the
  * <code>EmulatorView</code> to use the specified colors as its defaults.
  * <p>
  * Cursor colors can be omitted when specifying a color scheme; if no cursor
  * colors are specified, <code>ColorScheme</code> will automatically select
  * suitable cursor colors for you.
- *
- * @see EmulatorView#setColorScheme
  */
 
 public class ColorScheme {
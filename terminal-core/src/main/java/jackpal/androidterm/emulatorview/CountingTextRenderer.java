@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+/**
+ * A {@link TextRenderer} which counts the draw calls made to another one.
+ * Only used while performance counters are on, so that the renderers
+ * themselves don't need to check.
+ */
+class CountingTextRenderer<C> implements TextRenderer<C> {
+    private final TextRenderer<C> mRenderer;
+    private final PerformanceCounters mCounters;
+
+    public CountingTextRenderer(TextRenderer<C> renderer, PerformanceCounters counters) {
+        mRenderer = renderer;
+        mCounters = counters;
+    }
+
+    public TextRenderer<C> getRenderer() {
+        return mRenderer;
+    }
+
+    public PerformanceCounters getCounters() {
+        return mCounters;
+    }
+
+    public void startFrame() {
+        mRenderer.startFrame();
+    }
+
+    public void setReverseVideo(boolean reverseVideo) {
+        mRenderer.setReverseVideo(reverseVideo);
+    }
+
+    public float getCharacterWidth() {
+        return mRenderer.getCharacterWidth();
+    }
+
+    public int getCharacterHeight() {
+        return mRenderer.getCharacterHeight();
+    }
+
+    public int getTopMargin() {
+        return mRenderer.getTopMargin();
+    }
+
+    public void drawTextRun(C canvas, float x, float y,
+            int lineOffset, int runWidth, char[] text,
+            int index, int count, boolean selectionStyle, int textStyle,
+            int cursorOffset, int cursorIndex, int cursorIncr, int cursorWidth, int cursorMode) {
+        ++mCounters.mDrawCalls;
+        mRenderer.drawTextRun(canvas, x, y, lineOffset, runWidth, text,
+                index, count, selectionStyle, textStyle,
+                cursorOffset, cursorIndex, cursorIncr, cursorWidth, cursorMode);
+    }
+
+    public void drawBackground(C canvas, float x, float y,
+            int lineOffset, int runWidth, int rows, int textStyle) {
+        ++mCounters.mDrawCalls;
+        mRenderer.drawBackground(canvas, x, y, lineOffset, runWidth, rows, textStyle);
+    }
+
+    public void setDrawnBackground(int textStyle) {
+        mRenderer.setDrawnBackground(textStyle);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+/**
+ * Logging for the terminal engine, which also runs outside Android and so
+ * can't use android.util.Log directly.  Messages go to System.err unless
+ * another {@link Logger} is set; on Android, <code>TermSession</code> sends
+ * them to the Android log.
+ */
+public final class EmulatorLog {
+    /**
+     * Receives the engine's log messages.
+     */
+    public interface Logger {
+        void d(String tag, String msg);
+        void w(String tag, String msg);
+        /**
+         * @param tr The exception which caused the error, or null.
+         */
+        void e(String tag, String msg, Throwable tr);
+    }
+
+    private static volatile Logger sLogger = new Logger() {
+        public void d(String tag, String msg) {
+            System.err.println("D/" + tag + ": " + msg);
+        }
+
+        public void w(String tag, String msg) {
+            System.err.println("W/" + tag + ": " + msg);
+        }
+
+        public void e(String tag, String msg, Throwable tr) {
+            System.err.println("E/" + tag + ": " + msg);
+            if (tr != null) {
+                tr.printStackTrace();
+            }
+        }
+    };
+
+    private EmulatorLog() {
+    }
+
+    /**
+     * Send the engine's log messages to a different {@link Logger}.
+     */
+    public static void setLogger(Logger logger) {
+        sLogger = logger;
+    }
+
+    static void d(String tag, String msg) {
+        sLogger.d(tag, msg);
+    }
+
+    static void w(String tag, String msg) {
+        sLogger.w(tag, msg);
+    }
+
+    static void e(String tag, String msg) {
+        sLogger.e(tag, msg, null);
+    }
+
+    static void e(String tag, String msg, Throwable tr) {
+        sLogger.e(tag, msg, tr);
+    }
+}
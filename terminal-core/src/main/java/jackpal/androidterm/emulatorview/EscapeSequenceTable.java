@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+/**
+ * State transition table for the escape sequence parser, after Paul
+ * Williams' parser for DEC VT500-series terminals
+ * (http://vt100.net/emu/dec_ansi_parser).
+ *
+ * For every parser state and input byte, the table gives the action to
+ * perform and, for bytes which cause a transition, the next state.  When the
+ * state changes, the exit action of the old state and the entry action of
+ * the new state are performed as well.
+ *
+ * The differences from the original are:
+ * - C1 controls never reach the parser; the emulator turns them into the
+ *   equivalent two-byte escape sequences first.  In UTF-8 mode, text in the
+ *   ground state is decoded before it reaches the parser, so bytes 0xa0..0xff
+ *   in the ground state are characters from the upper half of an 8-bit
+ *   character set.
+ * - ':' separates sub-parameters in control sequences, as in
+ *   ESC [ 38:2::r:g:b m, instead of making the sequence invalid.
+ * - DEL is ignored in the ground state.
+ */
+final class EscapeSequenceTable {
+    // Parser states
+    static final int GROUND = 0;
+    static final int ESCAPE = 1;
+    static final int ESCAPE_INTERMEDIATE = 2;
+    static final int CSI_ENTRY = 3;
+    static final int CSI_PARAM = 4;
+    static final int CSI_INTERMEDIATE = 5;
+    static final int CSI_IGNORE = 6;
+    static final int DCS_ENTRY = 7;
+    static final int DCS_PARAM = 8;
+    static final int DCS_INTERMEDIATE = 9;
+    static final int DCS_PASSTHROUGH = 10;
+    static final int DCS_IGNORE = 11;
+    static final int OSC_STRING = 12;
+    static final int SOS_PM_APC_STRING = 13;
+    private static final int STATE_COUNT = 14;
+
+    // Parser actions
+    static final int NONE = 0;
+    static final int PRINT = 1;
+    static final int EXECUTE = 2;
+    static final int CLEAR = 3;
+    static final int COLLECT = 4;
+    static final int PARAM = 5;
+    static final int ESC_DISPATCH = 6;
+    static final int CSI_DISPATCH = 7;
+    static final int HOOK = 8;
+    static final int PUT = 9;
+    static final int UNHOOK = 10;
+    static final int OSC_START = 11;
+    static final int OSC_PUT = 12;
+    static final int OSC_END = 13;
+
+    /*
+     * Layout of a table entry: the action in the low four bits, the next
+     * state in the next four, and TRANSITION if the byte changes the state
+     * (even to the same state, which performs the entry action again).
+     */
+    static final int ACTION_MASK = 0xf;
+    static final int STATE_SHIFT = 4;
+    static final int STATE_MASK = 0xf;
+    static final int TRANSITION = 0x100;
+
+    /** Transitions, indexed by (state << 8) | (b & 0xff) */
+    static final short[] TRANSITIONS = new short[STATE_COUNT << 8];
+
+    /** The action performed on entering each state */
+    static final int[] ENTRY_ACTIONS = new int[STATE_COUNT];
+
+    /** The action performed on leaving each state */
+    static final int[] EXIT_ACTIONS = new int[STATE_COUNT];
+
+    private EscapeSequenceTable() {
+    }
+
+    private static void stay(int state, int first, int last, int action) {
+        for (int b = first; b <= last; ++b) {
+            TRANSITIONS[(state << 8) | b] = (short) (action | (state << STATE_SHIFT));
+        }
+    }
+
+    private static void move(int state, int first, int last, int action, int next) {
+        for (int b = first; b <= last; ++b) {
+            TRANSITIONS[(state << 8) | b] =
+                (short) (action | (next << STATE_SHIFT) | TRANSITION);
+        }
+    }
+
+    /** C0 controls other than CAN, SUB and ESC, which are handled everywhere */
+    private static void c0(int state, int action) {
+        stay(state, 0x00, 0x17, action);
+        stay(state, 0x19, 0x19, action);
+        stay(state, 0x1c, 0x1f, action);
+    }
+
+    static {
+        for (int state = 0; state < STATE_COUNT; ++state) {
+            // Everything not mentioned below is ignored
+            stay(state, 0x00, 0xff, NONE);
+
+            // Transitions from anywhere
+            move(state, 0x18, 0x18, EXECUTE, GROUND);
+            move(state, 0x1a, 0x1a, EXECUTE, GROUND);
+            move(state, 0x1b, 0x1b, NONE, ESCAPE);
+        }
+
+        c0(GROUND, EXECUTE);
+        stay(GROUND, 0x20, 0x7e, PRINT);
+        stay(GROUND, 0xa0, 0xff, PRINT);
+
+        ENTRY_ACTIONS[ESCAPE] = CLEAR;
+        c0(ESCAPE, EXECUTE);
+        move(ESCAPE, 0x20, 0x2f, COLLECT, ESCAPE_INTERMEDIATE);
+        move(ESCAPE, 0x30, 0x7e, ESC_DISPATCH, GROUND);
+        move(ESCAPE, 0x50, 0x50, NONE, DCS_ENTRY);
+        move(ESCAPE, 0x58, 0x58, NONE, SOS_PM_APC_STRING);
+        move(ESCAPE, 0x5b, 0x5b, NONE, CSI_ENTRY);
+        move(ESCAPE, 0x5d, 0x5d, NONE, OSC_STRING);
+        move(ESCAPE, 0x5e, 0x5f, NONE, SOS_PM_APC_STRING);
+
+        c0(ESCAPE_INTERMEDIATE, EXECUTE);
+        stay(ESCAPE_INTERMEDIATE, 0x20, 0x2f, COLLECT);
+        move(ESCAPE_INTERMEDIATE, 0x30, 0x7e, ESC_DISPATCH, GROUND);
+
+        ENTRY_ACTIONS[CSI_ENTRY] = CLEAR;
+        c0(CSI_ENTRY, EXECUTE);
+        move(CSI_ENTRY, 0x20, 0x2f, COLLECT, CSI_INTERMEDIATE);
+        move(CSI_ENTRY, 0x30, 0x3b, PARAM, CSI_PARAM);
+        move(CSI_ENTRY, 0x3c, 0x3f, COLLECT, CSI_PARAM);
+        move(CSI_ENTRY, 0x40, 0x7e, CSI_DISPATCH, GROUND);
+
+        c0(CSI_PARAM, EXECUTE);
+        stay(CSI_PARAM, 0x30, 0x3b, PARAM);
+        move(CSI_PARAM, 0x3c, 0x3f, NONE, CSI_IGNORE);
+        move(CSI_PARAM, 0x20, 0x2f, COLLECT, CSI_INTERMEDIATE);
+        move(CSI_PARAM, 0x40, 0x7e, CSI_DISPATCH, GROUND);
+
+        c0(CSI_INTERMEDIATE, EXECUTE);
+        stay(CSI_INTERMEDIATE, 0x20, 0x2f, COLLECT);
+        move(CSI_INTERMEDIATE, 0x30, 0x3f, NONE, CSI_IGNORE);
+        move(CSI_INTERMEDIATE, 0x40, 0x7e, CSI_DISPATCH, GROUND);
+
+        c0(CSI_IGNORE, EXECUTE);
+        move(CSI_IGNORE, 0x40, 0x7e, NONE, GROUND);
+
+        ENTRY_ACTIONS[DCS_ENTRY] = CLEAR;
+        move(DCS_ENTRY, 0x20, 0x2f, COLLECT, DCS_INTERMEDIATE);
+        move(DCS_ENTRY, 0x30, 0x39, PARAM, DCS_PARAM);
+        move(DCS_ENTRY, 0x3a, 0x3a, NONE, DCS_IGNORE);
+        move(DCS_ENTRY, 0x3b, 0x3b, PARAM, DCS_PARAM);
+        move(DCS_ENTRY, 0x3c, 0x3f, COLLECT, DCS_PARAM);
+        move(DCS_ENTRY, 0x40, 0x7e, NONE, DCS_PASSTHROUGH);
+
+        stay(DCS_PARAM, 0x30, 0x39, PARAM);
+        stay(DCS_PARAM, 0x3b, 0x3b, PARAM);
+        move(DCS_PARAM, 0x3a, 0x3a, NONE, DCS_IGNORE);
+        move(DCS_PARAM, 0x3c, 0x3f, NONE, DCS_IGNORE);
+        move(DCS_PARAM, 0x20, 0x2f, COLLECT, DCS_INTERMEDIATE);
+        move(DCS_PARAM, 0x40, 0x7e, NONE, DCS_PASSTHROUGH);
+
+        stay(DCS_INTERMEDIATE, 0x20, 0x2f, COLLECT);
+        move(DCS_INTERMEDIATE, 0x30, 0x3f, NONE, DCS_IGNORE);
+        move(DCS_INTERMEDIATE, 0x40, 0x7e, NONE, DCS_PASSTHROUGH);
+
+        ENTRY_ACTIONS[DCS_PASSTHROUGH] = HOOK;
+        EXIT_ACTIONS[DCS_PASSTHROUGH] = UNHOOK;
+        c0(DCS_PASSTHROUGH, PUT);
+        stay(DCS_PASSTHROUGH, 0x20, 0x7e, PUT);
+        stay(DCS_PASSTHROUGH, 0x80, 0xff, PUT);
+
+        ENTRY_ACTIONS[OSC_STRING] = OSC_START;
+        EXIT_ACTIONS[OSC_STRING] = OSC_END;
+        stay(OSC_STRING, 0x20, 0x7f, OSC_PUT);
+        stay(OSC_STRING, 0x80, 0xff, OSC_PUT);
+        // xterm also accepts BEL as the string terminator
+        move(OSC_STRING, 0x07, 0x07, NONE, GROUND);
+    }
+}
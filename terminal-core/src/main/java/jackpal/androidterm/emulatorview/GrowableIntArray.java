@@ -24,6 +24,10 @@ int at(int index) {
         return mData[index];
     }
 
+    void set(int index, int value) {
+        mData[index] = value;
+    }
+
     int[] mData;
     int mLength;
 }
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+/**
+ * Counts where a terminal session spends its time: how much data goes
+ * through it, how long the emulator takes to parse it, which escape
+ * sequences it contains, and how long the view takes to draw it.
+ * <p>
+ * Counting is off unless a session has been given a set of counters, and
+ * the code which counts checks for that once per call (or once per escape
+ * sequence), so turning it off costs nothing measurable.  The counters are
+ * only updated and read on the main thread, and so aren't synchronized.
+ */
+public final class PerformanceCounters {
+    /**
+     * The upper bounds of the frame time histogram buckets, in milliseconds;
+     * the last bucket holds all longer frames.
+     */
+    public static final int[] FRAME_TIME_BUCKETS_MS = { 1, 2, 4, 8, 16, 32 };
+
+    /** Frames taking at least this long are logged as slow. */
+    public static final long SLOW_FRAME_NANOS = 16 * 1000000L;
+
+    /** The number of most recent slow frames kept. */
+    public static final int SLOW_FRAMES_KEPT = 16;
+
+    private static final int FIRST_CSI_FINAL = 0x40;
+    private static final int LAST_CSI_FINAL = 0x7e;
+
+    private final long mStartTime = System.nanoTime();
+
+    long mBytesRead;
+    long mBytesWritten;
+    long mParseNanos;
+
+    long mControls;
+    long mEscSequences;
+    long mCsiSequences;
+    long mOscSequences;
+    long mDcsSequences;
+    private final long[] mCsiByFinal = new long[LAST_CSI_FINAL - FIRST_CSI_FINAL + 1];
+
+    long mUpdates;
+
+    int mInputQueueHighWaterMark;
+    long mInputQueueBlockedNanos;
+    int mOutputQueueHighWaterMark;
+    long mOutputQueueBlockedNanos;
+
+    long mFrames;
+    long mFrameNanos;
+    private final long[] mFrameTimeHistogram = new long[FRAME_TIME_BUCKETS_MS.length + 1];
+    long mRowsDrawn;
+    long mCreateLinksNanos;
+    long mDrawCalls;
+
+    /** The last slow frames, in a circular buffer */
+    private long mSlowFrames;
+    private final long[] mSlowFrameTimes = new long[SLOW_FRAMES_KEPT];
+    private final long[] mSlowFrameNanos = new long[SLOW_FRAMES_KEPT];
+    private final int[] mSlowFrameRows = new int[SLOW_FRAMES_KEPT];
+
+    void countCsi(byte b) {
+        ++mCsiSequences;
+        if (b >= FIRST_CSI_FINAL && b <= LAST_CSI_FINAL) {
+            ++mCsiByFinal[b - FIRST_CSI_FINAL];
+        }
+    }
+
+    void countFrame(long nanos, int rows) {
+        ++mFrames;
+        mFrameNanos += nanos;
+        mRowsDrawn += rows;
+        long millis = nanos / 1000000;
+        int bucket = 0;
+        while (bucket < FRAME_TIME_BUCKETS_MS.length
+                && millis >= FRAME_TIME_BUCKETS_MS[bucket]) {
+            ++bucket;
+        }
+        ++mFrameTimeHistogram[bucket];
+        if (nanos >= SLOW_FRAME_NANOS) {
+            int index = (int) (mSlowFrames++ % SLOW_FRAMES_KEPT);
+            mSlowFrameTimes[index] = System.currentTimeMillis();
+            mSlowFrameNanos[index] = nanos;
+            mSlowFrameRows[index] = rows;
+        }
+    }
+
+    private int slowFrameIndex(int i) {
+        if (i < 0 || i >= Math.min(mSlowFrames, SLOW_FRAMES_KEPT)) {
+            throw new IndexOutOfBoundsException("No slow frame " + i);
+        }
+        return (int) ((mSlowFrames - 1 - i) % SLOW_FRAMES_KEPT);
+    }
+
+    /** The time since counting started, in nanoseconds. */
+    public long getElapsedNanos() {
+        return System.nanoTime() - mStartTime;
+    }
+
+    /** Bytes read from the program and given to the emulator. */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /** Bytes written to the program. */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /** Time spent in the emulator parsing what was read, in nanoseconds. */
+    public long getParseNanos() {
+        return mParseNanos;
+    }
+
+    /**
+     * The parse time per megabyte read, in nanoseconds, or 0 if nothing
+     * has been read.
+     */
+    public long getParseNanosPerMegabyte() {
+        if (mBytesRead == 0) {
+            return 0;
+        }
+        return (long) (mParseNanos * (1024.0 * 1024.0) / mBytesRead);
+    }
+
+    /** C0 control characters executed. */
+    public long getControls() {
+        return mControls;
+    }
+
+    /** ESC sequences other than CSI, OSC and DCS. */
+    public long getEscSequences() {
+        return mEscSequences;
+    }
+
+    public long getCsiSequences() {
+        return mCsiSequences;
+    }
+
+    /**
+     * CSI sequences ending in a given final character (such as 'm' for
+     * SGR), whatever their parameters and intermediate characters.
+     */
+    public long getCsiSequences(char finalChar) {
+        if (finalChar < FIRST_CSI_FINAL || finalChar > LAST_CSI_FINAL) {
+            return 0;
+        }
+        return mCsiByFinal[finalChar - FIRST_CSI_FINAL];
+    }
+
+    public long getOscSequences() {
+        return mOscSequences;
+    }
+
+    public long getDcsSequences() {
+        return mDcsSequences;
+    }
+
+    /** Times the session told its view to update. */
+    public long getUpdates() {
+        return mUpdates;
+    }
+
+    /**
+     * The most bytes waiting at once in the queue from the reader thread
+     * to the main thread.
+     */
+    public int getInputQueueHighWaterMark() {
+        return mInputQueueHighWaterMark;
+    }
+
+    /**
+     * Time the reader thread spent waiting for room in the queue to the
+     * main thread, in nanoseconds.
+     */
+    public long getInputQueueBlockedNanos() {
+        return mInputQueueBlockedNanos;
+    }
+
+    /**
+     * The most bytes waiting at once in the queue from the main thread to
+     * the writer thread.
+     */
+    public int getOutputQueueHighWaterMark() {
+        return mOutputQueueHighWaterMark;
+    }
+
+    /**
+     * Time the main thread spent waiting for room in the queue to the
+     * writer thread, in nanoseconds.
+     */
+    public long getOutputQueueBlockedNanos() {
+        return mOutputQueueBlockedNanos;
+    }
+
+    /** Frames drawn by the view. */
+    public long getFrames() {
+        return mFrames;
+    }
+
+    /** Time spent drawing frames, in nanoseconds. */
+    public long getFrameNanos() {
+        return mFrameNanos;
+    }
+
+    /**
+     * The number of frames which took less than
+     * <code>FRAME_TIME_BUCKETS_MS[bucket]</code> milliseconds (and at least
+     * as long as the bucket before); the bucket after the last one counts
+     * all slower frames.
+     */
+    public long getFrameTimeHistogram(int bucket) {
+        return mFrameTimeHistogram[bucket];
+    }
+
+    /** Rows of text drawn, over all frames. */
+    public long getRowsDrawn() {
+        return mRowsDrawn;
+    }
+
+    /** Time spent looking for URLs in the text, in nanoseconds. */
+    public long getCreateLinksNanos() {
+        return mCreateLinksNanos;
+    }
+
+    /** Calls made to the text renderer to draw text or backgrounds. */
+    public long getDrawCalls() {
+        return mDrawCalls;
+    }
+
+    /**
+     * Frames which took at least {@link #SLOW_FRAME_NANOS}.  Only the last
+     * {@link #SLOW_FRAMES_KEPT} of them can be looked at.
+     */
+    public long getSlowFrames() {
+        return mSlowFrames;
+    }
+
+    /**
+     * When a slow frame was drawn, as from {@link System#currentTimeMillis}.
+     *
+     * @param i Which slow frame: 0 for the most recent one, up to the
+     *          smaller of {@link #getSlowFrames} and {@link
+     *          #SLOW_FRAMES_KEPT}, exclusive.
+     */
+    public long getSlowFrameTime(int i) {
+        return mSlowFrameTimes[slowFrameIndex(i)];
+    }
+
+    /** How long a slow frame took, in nanoseconds. */
+    public long getSlowFrameNanos(int i) {
+        return mSlowFrameNanos[slowFrameIndex(i)];
+    }
+
+    /** How many rows a slow frame drew. */
+    public int getSlowFrameRows(int i) {
+        return mSlowFrameRows[slowFrameIndex(i)];
+    }
+}
@@ -59,6 +59,17 @@ interface Screen {
      */
     void scroll(int topMargin, int bottomMargin, int style);
 
+    /**
+     * Scroll the screen down several lines at once.
+     *
+     * @param topMargin First line that is scrolled.
+     * @param bottomMargin One line after the last line that is scrolled.
+     * @param style the style for the newly exposed lines.
+     * @param lines The number of lines to scroll, at most the height of the
+     *        scrolled region.
+     */
+    void scroll(int topMargin, int bottomMargin, int style, int lines);
+
     /**
      * Block copy characters from one position in the screen to another. The two
      * positions can overlap. All characters of the source and destination must
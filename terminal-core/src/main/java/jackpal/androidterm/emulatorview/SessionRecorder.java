@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+
+/**
+ * Records what a terminal session sends to and receives from the emulator,
+ * in asciicast v2 format: a header line with the screen size, then one
+ * line for each event, <code>[time, "o", text]</code> for output from the
+ * program, <code>[time, "i", text]</code> for input to it and
+ * <code>[time, "r", "COLSxROWS"]</code> for a resize.  Times are seconds
+ * since the recording started, from {@link System#nanoTime}.
+ * <p>
+ * asciicast events hold text, not bytes, so the data is decoded as UTF-8.
+ * A character split between two reads is written with the second one, so
+ * UTF-8 output replays exactly; bytes which aren't valid UTF-8 are recorded
+ * as U+FFFD.
+ * <p>
+ * If writing fails, the error is logged and the rest of the recording is
+ * dropped, rather than interrupting the session.
+ */
+class SessionRecorder {
+    private static final String TAG = "SessionRecorder";
+
+    private Writer mOut;
+    private boolean mStarted;
+    private long mStartTime;
+    private final Utf8Splitter mOutput = new Utf8Splitter();
+    private final Utf8Splitter mInput = new Utf8Splitter();
+    private final StringBuilder mLine = new StringBuilder();
+
+    public SessionRecorder(OutputStream out) {
+        try {
+            mOut = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            // Every JVM supports UTF-8
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Write the header.  Events before this are dropped, since the screen
+     * size isn't known yet.
+     */
+    public void start(int columns, int rows) {
+        mStarted = true;
+        mStartTime = System.nanoTime();
+        mLine.setLength(0);
+        mLine.append("{\"version\": 2, \"width\": ").append(columns)
+            .append(", \"height\": ").append(rows)
+            .append(", \"timestamp\": ").append(System.currentTimeMillis() / 1000)
+            .append("}\n");
+        writeLine();
+    }
+
+    /**
+     * Record data sent by the program to the emulator.
+     */
+    public void output(byte[] data, int offset, int count) {
+        event('o', mOutput.decode(data, offset, count));
+    }
+
+    /**
+     * Record data sent by the user to the program.
+     */
+    public void input(byte[] data, int offset, int count) {
+        event('i', mInput.decode(data, offset, count));
+    }
+
+    public void resize(int columns, int rows) {
+        event('r', columns + "x" + rows);
+    }
+
+    /**
+     * Finish the recording and close the stream.
+     */
+    public void close() {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            EmulatorLog.e(TAG, "Error closing recording", e);
+        }
+        mOut = null;
+    }
+
+    private void event(char type, String data) {
+        if (mOut == null || !mStarted || data.length() == 0) {
+            return;
+        }
+        long time = (System.nanoTime() - mStartTime) / 1000;
+        StringBuilder line = mLine;
+        line.setLength(0);
+        line.append('[').append(time / 1000000).append('.');
+        String micros = Long.toString(time % 1000000);
+        for (int i = micros.length(); i < 6; ++i) {
+            line.append('0');
+        }
+        line.append(micros).append(", \"").append(type).append("\", \"");
+        appendJsonString(line, data);
+        line.append("\"]\n");
+        writeLine();
+    }
+
+    private void writeLine() {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.append(mLine);
+        } catch (IOException e) {
+            EmulatorLog.e(TAG, "Error writing recording, stopping", e);
+            close();
+        }
+    }
+
+    private static void appendJsonString(StringBuilder out, String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                out.append("\\\"");
+                break;
+            case '\\':
+                out.append("\\\\");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            case '\r':
+                out.append("\\r");
+                break;
+            case '\t':
+                out.append("\\t");
+                break;
+            default:
+                if (c < 0x20 || c == 0x7f) {
+                    String hex = Integer.toHexString(c);
+                    out.append("\\u00");
+                    if (hex.length() < 2) {
+                        out.append('0');
+                    }
+                    out.append(hex);
+                } else {
+                    out.append(c);
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Decodes a stream of UTF-8 in chunks, holding back a character which
+     * is split across the end of a chunk until the rest of it arrives.
+     */
+    private static class Utf8Splitter {
+        private byte[] mBuffer = new byte[4096];
+        private int mPending;
+
+        public String decode(byte[] data, int offset, int count) {
+            int length = mPending + count;
+            if (length > mBuffer.length) {
+                byte[] newBuffer = new byte[Math.max(length, 2 * mBuffer.length)];
+                System.arraycopy(mBuffer, 0, newBuffer, 0, mPending);
+                mBuffer = newBuffer;
+            }
+            byte[] buffer = mBuffer;
+            System.arraycopy(data, offset, buffer, mPending, count);
+
+            // Find the start of the last character, if it's incomplete
+            int end = length;
+            for (int i = length - 1; i >= 0 && i >= length - 3; --i) {
+                int b = buffer[i] & 0xff;
+                if ((b & 0xc0) == 0x80) {
+                    // Continuation byte
+                    continue;
+                }
+                int needed;
+                if ((b & 0xe0) == 0xc0) {
+                    needed = 2;
+                } else if ((b & 0xf0) == 0xe0) {
+                    needed = 3;
+                } else if ((b & 0xf8) == 0xf0) {
+                    needed = 4;
+                } else {
+                    needed = 1;
+                }
+                if (length - i < needed) {
+                    end = i;
+                }
+                break;
+            }
+
+            String text;
+            try {
+                text = new String(buffer, 0, end, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+            mPending = length - end;
+            System.arraycopy(buffer, end, buffer, 0, mPending);
+            return text;
+        }
+    }
+}
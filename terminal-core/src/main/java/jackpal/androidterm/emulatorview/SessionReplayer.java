@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * Plays a recording made by {@link SessionRecorder} (or any asciicast v2
+ * file) back into a new {@link TerminalEmulator}, either as fast as
+ * possible or at the speed it was recorded, and reports how long the
+ * emulator spent parsing it.
+ * <p>
+ * Only output and resize events affect the emulator; input events are
+ * what the user typed, which went to the program, not the terminal.
+ * <p>
+ * From the command line:
+ * <pre>
+ * java -cp terminal-core.jar jackpal.androidterm.emulatorview.SessionReplayer [--realtime] recording.cast
+ * </pre>
+ */
+public class SessionReplayer {
+    private static final int TRANSCRIPT_ROWS = 10000;
+
+    /**
+     * What happened during a replay.
+     */
+    public static class Result {
+        /** The number of output events given to the emulator. */
+        public int outputEvents;
+        /** The number of bytes given to the emulator. */
+        public long outputBytes;
+        /** The number of resize events. */
+        public int resizes;
+        /**
+         * The number of times a session would have updated the screen:
+         * once for each output event, except while synchronized output
+         * is on.
+         */
+        public int frames;
+        /** Time spent in the emulator, in nanoseconds. */
+        public long parseNanos;
+        /** Time the whole replay took, in nanoseconds. */
+        public long elapsedNanos;
+
+        @Override
+        public String toString() {
+            return outputEvents + " output events (" + outputBytes + " bytes), "
+                + resizes + " resizes, " + frames + " frames; parse "
+                + (parseNanos / 1000000.0) + " ms, elapsed "
+                + (elapsedNanos / 1000000.0) + " ms";
+        }
+    }
+
+    private static final class Event {
+        final long time;
+        final char type;
+        final byte[] data;
+        final int columns;
+        final int rows;
+
+        Event(long time, char type, byte[] data, int columns, int rows) {
+            this.time = time;
+            this.type = type;
+            this.data = data;
+            this.columns = columns;
+            this.rows = rows;
+        }
+    }
+
+    private int mColumns;
+    private int mRows;
+    private final ArrayList<Event> mEvents = new ArrayList<Event>();
+    private TerminalEmulator mEmulator;
+
+    /**
+     * Read a recording.
+     *
+     * @throws IOException If reading fails or the recording isn't valid
+     *                     asciicast v2.
+     */
+    public SessionReplayer(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        String line = reader.readLine();
+        if (line == null) {
+            throw new IOException("Empty recording");
+        }
+        parseHeader(new Parser(line));
+        int lineNumber = 1;
+        while ((line = reader.readLine()) != null) {
+            ++lineNumber;
+            if (line.trim().length() == 0) {
+                continue;
+            }
+            try {
+                parseEvent(new Parser(line));
+            } catch (IOException e) {
+                throw new IOException("Line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public int getColumns() {
+        return mColumns;
+    }
+
+    public int getRows() {
+        return mRows;
+    }
+
+    /**
+     * The emulator used by the last call to {@link #replay}, to look at
+     * the screen it left behind.
+     */
+    public TerminalEmulator getEmulator() {
+        return mEmulator;
+    }
+
+    /**
+     * Play the recording into a new emulator.
+     *
+     * @param realTime Whether to wait between events as long as the
+     *                 recording did, rather than going as fast as possible.
+     */
+    public Result replay(boolean realTime) throws InterruptedException {
+        ColorScheme scheme = new ColorScheme(0xffffffff, 0xff000000);
+        TranscriptScreen screen = new TranscriptScreen(mColumns, TRANSCRIPT_ROWS, mRows, scheme);
+        TerminalEmulator emulator = new TerminalEmulator(new ReplayHost(), screen, mColumns, mRows, scheme);
+        emulator.setDefaultUTF8Mode(true);
+        mEmulator = emulator;
+
+        Result result = new Result();
+        long start = System.nanoTime();
+        for (Event event : mEvents) {
+            if (realTime) {
+                long wait = event.time * 1000 - (System.nanoTime() - start);
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+            }
+            long parseStart = System.nanoTime();
+            switch (event.type) {
+            case 'o':
+                emulator.append(event.data, 0, event.data.length);
+                result.parseNanos += System.nanoTime() - parseStart;
+                ++result.outputEvents;
+                result.outputBytes += event.data.length;
+                if (!emulator.getSynchronizedOutput()) {
+                    ++result.frames;
+                }
+                break;
+            case 'r':
+                emulator.updateSize(event.columns, event.rows);
+                result.parseNanos += System.nanoTime() - parseStart;
+                ++result.resizes;
+                break;
+            }
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private void parseHeader(Parser parser) throws IOException {
+        parser.expect('{');
+        int version = -1;
+        if (!parser.consume('}')) {
+            do {
+                String key = parser.string();
+                parser.expect(':');
+                if (key.equals("version")) {
+                    version = (int) parser.number();
+                } else if (key.equals("width")) {
+                    mColumns = (int) parser.number();
+                } else if (key.equals("height")) {
+                    mRows = (int) parser.number();
+                } else {
+                    parser.skipValue();
+                }
+            } while (parser.consume(','));
+            parser.expect('}');
+        }
+        if (version != 2) {
+            throw new IOException("Not an asciicast v2 recording");
+        }
+        if (mColumns <= 0 || mRows <= 0) {
+            throw new IOException("Bad screen size " + mColumns + "x" + mRows);
+        }
+    }
+
+    private void parseEvent(Parser parser) throws IOException {
+        parser.expect('[');
+        long time = (long) (parser.number() * 1000000);
+        parser.expect(',');
+        String type = parser.string();
+        parser.expect(',');
+        String data = parser.string();
+        parser.expect(']');
+        if (type.equals("o")) {
+            mEvents.add(new Event(time, 'o', data.getBytes("UTF-8"), 0, 0));
+        } else if (type.equals("r")) {
+            int x = data.indexOf('x');
+            try {
+                int columns = Integer.parseInt(data.substring(0, x));
+                int rows = Integer.parseInt(data.substring(x + 1));
+                mEvents.add(new Event(time, 'r', null, columns, rows));
+            } catch (RuntimeException e) {
+                throw new IOException("Bad resize event \"" + data + "\"");
+            }
+        }
+    }
+
+    /**
+     * Just enough of a JSON parser for asciicast.
+     */
+    private static final class Parser {
+        private final String mText;
+        private int mPos;
+
+        Parser(String text) {
+            mText = text;
+        }
+
+        private void skipSpace() {
+            while (mPos < mText.length() && Character.isWhitespace(mText.charAt(mPos))) {
+                ++mPos;
+            }
+        }
+
+        boolean consume(char c) {
+            skipSpace();
+            if (mPos < mText.length() && mText.charAt(mPos) == c) {
+                ++mPos;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(char c) throws IOException {
+            if (!consume(c)) {
+                throw new IOException("Expected '" + c + "' at column " + (mPos + 1));
+            }
+        }
+
+        double number() throws IOException {
+            skipSpace();
+            int start = mPos;
+            while (mPos < mText.length() && "+-.eE0123456789".indexOf(mText.charAt(mPos)) >= 0) {
+                ++mPos;
+            }
+            try {
+                return Double.parseDouble(mText.substring(start, mPos));
+            } catch (NumberFormatException e) {
+                throw new IOException("Expected a number at column " + (start + 1));
+            }
+        }
+
+        String string() throws IOException {
+            expect('"');
+            StringBuilder out = new StringBuilder();
+            while (true) {
+                if (mPos >= mText.length()) {
+                    throw new IOException("Unterminated string");
+                }
+                char c = mText.charAt(mPos++);
+                if (c == '"') {
+                    return out.toString();
+                } else if (c != '\\') {
+                    out.append(c);
+                    continue;
+                }
+                if (mPos >= mText.length()) {
+                    throw new IOException("Unterminated string");
+                }
+                c = mText.charAt(mPos++);
+                switch (c) {
+                case 'b': out.append('\b'); break;
+                case 'f': out.append('\f'); break;
+                case 'n': out.append('\n'); break;
+                case 'r': out.append('\r'); break;
+                case 't': out.append('\t'); break;
+                case 'u':
+                    if (mPos + 4 > mText.length()) {
+                        throw new IOException("Bad \\u escape");
+                    }
+                    try {
+                        out.append((char) Integer.parseInt(mText.substring(mPos, mPos + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Bad \\u escape");
+                    }
+                    mPos += 4;
+                    break;
+                default:
+                    out.append(c);
+                    break;
+                }
+            }
+        }
+
+        void skipValue() throws IOException {
+            skipSpace();
+            if (mPos >= mText.length()) {
+                throw new IOException("Expected a value");
+            }
+            char c = mText.charAt(mPos);
+            if (c == '"') {
+                string();
+            } else if (c == '{' || c == '[') {
+                char close = c == '{' ? '}' : ']';
+                ++mPos;
+                if (consume(close)) {
+                    return;
+                }
+                do {
+                    if (c == '{') {
+                        string();
+                        expect(':');
+                    }
+                    skipValue();
+                } while (consume(','));
+                expect(close);
+            } else if (mText.startsWith("true", mPos) || mText.startsWith("null", mPos)) {
+                mPos += 4;
+            } else if (mText.startsWith("false", mPos)) {
+                mPos += 5;
+            } else {
+                number();
+            }
+        }
+    }
+
+    /**
+     * Nobody is on the other end during a replay, so replies from the
+     * emulator and clipboard writes go nowhere.
+     */
+    private static final class ReplayHost implements TerminalHost {
+        public void write(byte[] data, int offset, int count) {
+        }
+
+        public void setTitle(String title) {
+        }
+
+        public void setCursorKeysApplicationMode(boolean enabled) {
+        }
+
+        public int getClipboardWriteLimit() {
+            return 0;
+        }
+
+        public void onClipboardWrite(byte[] data, int length) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean realTime = false;
+        String path = null;
+        for (String arg : args) {
+            if (arg.equals("--realtime")) {
+                realTime = true;
+            } else {
+                path = arg;
+            }
+        }
+        if (path == null) {
+            System.err.println("Usage: SessionReplayer [--realtime] recording.cast");
+            System.exit(2);
+        }
+        SessionReplayer replayer;
+        Reader in = new InputStreamReader(new FileInputStream(path), "UTF-8");
+        try {
+            replayer = new SessionReplayer(in);
+        } finally {
+            in.close();
+        }
+        System.out.println(replayer.replay(realTime));
+    }
+}
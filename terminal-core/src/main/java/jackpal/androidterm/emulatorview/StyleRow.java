@@ -0,0 +1,247 @@
+package jackpal.androidterm.emulatorview;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Utility class for dealing with text style lines.
+ *
+ * We pack color and formatting information for a particular character into an
+ * int -- see the TextStyle class for details.  The simplest way of storing
+ * that information for a screen row would be to use an array of int -- but
+ * given that we only use the lower three bytes of the int to store information,
+ * that effectively wastes one byte per character -- nearly 8 KB per 100 lines
+ * with an 80-column transcript.
+ *
+ * Instead, we use an array of bytes and store the bytes of each int
+ * consecutively in big-endian order.
+ *
+ * Each column can also carry the id of an explicit hyperlink (see
+ * UnicodeTranscript.internLink).  Few rows have any, so the ids are kept in
+ * a separate array which is only allocated for rows that do.
+ */
+final class StyleRow {
+    private int mStyle;
+    private int mColumns;
+    /** Initially null, will be allocated when needed. */
+    private byte[] mData;
+    /** Hyperlink ids, or null if no column of the row has a link. */
+    private short[] mLinks;
+
+    StyleRow(int style, int columns) {
+        mStyle = style;
+        mColumns = columns;
+    }
+
+    void set(int column, int style) {
+        if (mLinks != null) {
+            mLinks[column] = 0;
+        }
+        restyle(column, style);
+    }
+
+    /**
+     * Set the style of a column, leaving its hyperlink as it is.
+     */
+    void restyle(int column, int style) {
+        if (style == mStyle && mData == null) {
+            return;
+        }
+        ensureData();
+        setStyle(column, style);
+    }
+
+    int get(int column) {
+        if (mData == null) {
+            return mStyle;
+        }
+        return getStyle(column);
+    }
+
+    /**
+     * Set the style of count columns starting at column.
+     */
+    void fill(int column, int count, int style) {
+        if (mLinks != null) {
+            Arrays.fill(mLinks, column, column + count, (short) 0);
+        }
+        if (mData == null) {
+            if (style == mStyle) {
+                return;
+            } else if (column == 0 && count == mColumns) {
+                mStyle = style;
+                return;
+            }
+        }
+        ensureData();
+        for (int i = column; i < column + count; i++) {
+            setStyle(i, style);
+        }
+    }
+
+    /**
+     * Make every column of the row have the given style.
+     */
+    void reset(int style) {
+        mStyle = style;
+        mData = null;
+        mLinks = null;
+    }
+
+    /**
+     * Set the hyperlink id of a column, 0 for no link.
+     */
+    void setLink(int column, int link) {
+        if (mLinks == null) {
+            if (link == 0) {
+                return;
+            }
+            mLinks = new short[mColumns];
+        }
+        mLinks[column] = (short) link;
+    }
+
+    int getLink(int column) {
+        if (mLinks == null) {
+            return 0;
+        }
+        return mLinks[column] & 0xffff;
+    }
+
+    boolean hasLinks() {
+        return mLinks != null;
+    }
+
+    /**
+     * Set used[id] for every hyperlink id in the row.
+     */
+    void markLinks(boolean[] used) {
+        short[] links = mLinks;
+        if (links == null) {
+            return;
+        }
+        for (int i = 0; i < links.length; i++) {
+            used[links[i] & 0xffff] = true;
+        }
+    }
+
+    boolean isSolidStyle() {
+        return mData == null;
+    }
+
+    int getSolidStyle() {
+        if (mData != null) {
+            throw new IllegalArgumentException("Not a solid style");
+        }
+        return mStyle;
+    }
+
+    void copy(int start, StyleRow dst, int offset, int len) {
+        if (mLinks != null) {
+            if (dst.mLinks == null) {
+                dst.mLinks = new short[dst.mColumns];
+            }
+            System.arraycopy(mLinks, start, dst.mLinks, offset, len);
+        } else if (dst.mLinks != null) {
+            Arrays.fill(dst.mLinks, offset, offset + len, (short) 0);
+        }
+        // fast case
+        if (mData == null && dst.mData == null && start == 0 && offset == 0
+                && len == mColumns) {
+            dst.mStyle = mStyle;
+            return;
+        }
+        // There are other potentially fast cases, but let's just treat them
+        // all the same for simplicity.
+        ensureData();
+        dst.ensureData();
+        System.arraycopy(mData, 3*start, dst.mData, 3*offset, 3*len);
+
+    }
+
+    void ensureData() {
+        if (mData == null) {
+            allocate();
+        }
+    }
+
+    /**
+     * Whether the columns of the row have their own styles, rather than
+     * all sharing one.
+     */
+    boolean isStyled() {
+        return mData != null;
+    }
+
+    /** Roughly how many bytes this row takes up. */
+    long estimateBytes() {
+        long bytes = TranscriptStatistics.objectBytes(8 + 2 * TranscriptStatistics.REFERENCE_BYTES);
+        if (mData != null) {
+            bytes += TranscriptStatistics.arrayBytes(mData.length, 1);
+        }
+        if (mLinks != null) {
+            bytes += TranscriptStatistics.arrayBytes(mLinks.length, 2);
+        }
+        return bytes;
+    }
+
+    /**
+     * Write the row for UnicodeTranscript.compact(), to be read back with
+     * read().
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(mStyle);
+        out.writeBoolean(mData != null);
+        if (mData != null) {
+            out.write(mData);
+        }
+        out.writeBoolean(mLinks != null);
+        if (mLinks != null) {
+            for (short link : mLinks) {
+                out.writeShort(link);
+            }
+        }
+    }
+
+    static StyleRow read(DataInputStream in, int columns) throws IOException {
+        StyleRow row = new StyleRow(in.readInt(), columns);
+        if (in.readBoolean()) {
+            row.mData = new byte[3*columns];
+            in.readFully(row.mData);
+        }
+        if (in.readBoolean()) {
+            short[] links = new short[columns];
+            for (int i = 0; i < columns; i++) {
+                links[i] = in.readShort();
+            }
+            row.mLinks = links;
+        }
+        return row;
+    }
+
+    private void allocate() {
+        mData = new byte[3*mColumns];
+        for (int i = 0; i < mColumns; i++) {
+            setStyle(i, mStyle);
+        }
+    }
+
+    private int getStyle(int column) {
+        int index = 3 * column;
+        byte[] line = mData;
+        return line[index] & 0xff | (line[index+1] & 0xff) << 8
+                | (line[index+2] & 0xff) << 16;
+    }
+
+    private void setStyle(int column, int value) {
+        int index = 3 * column;
+        byte[] line = mData;
+        line[index] = (byte) (value & 0xff);
+        line[index+1] = (byte) ((value >> 8) & 0xff);
+        line[index+2] = (byte) ((value >> 16) & 0xff);
+    }
+
+
+}
@@ -24,8 +24,6 @@
 import java.nio.charset.CodingErrorAction;
 import java.util.Locale;
 
-import android.util.Log;
-
 /**
  * Renders text into a screen. Contains all the terminal-specific knowledge and
  * state. Emulates a subset of the X Window System xterm terminal, which in turn
@@ -33,11 +31,7 @@
  * terminal. Missing functionality: text attributes (bold, underline, reverse
  * video, color) alternate screen cursor key and keypad escape sequences.
  */
-class TerminalEmulator {
-    public void setKeyListener(TermKeyListener l) {
-        mKeyListener = l;
-    }
-    private TermKeyListener mKeyListener;
+public class TerminalEmulator {
     /**
      * The cursor row. Numbered 0..mRows-1.
      */
@@ -62,13 +56,17 @@ public void setKeyListener(TermKeyListener l) {
      * Stores the characters that appear on the screen of the emulated terminal.
      */
     private TranscriptScreen mMainBuffer;
+    /**
+     * The alternate screen buffer, or null if no program has used it
+     * recently.
+     */
     private TranscriptScreen mAltBuffer;
     private TranscriptScreen mScreen;
 
     /**
      * The terminal session this emulator is bound to.
      */
-    private TermSession mSession;
+    private TerminalHost mSession;
 
     /**
      * Keeps track of the current argument of the current escape sequence.
@@ -88,82 +86,64 @@ public void setKeyListener(TermKeyListener l) {
     private int[] mArgs = new int[MAX_ESCAPE_PARAMETERS];
 
     /**
-     * Holds OSC arguments, which can be strings.
+     * Holds OSC arguments, which can be strings.  Grown as needed, up to
+     * MAX_OSC_STRING_LENGTH.
      */
-    private byte[] mOSCArg = new byte[MAX_OSC_STRING_LENGTH];
+    private byte[] mOSCArg = new byte[INITIAL_OSC_STRING_LENGTH];
 
     private int mOSCArgLength;
 
     private int mOSCArgTokenizerIndex;
 
-    /**
-     * Don't know what the actual limit is, this seems OK for now.
-     */
-    private static final int MAX_OSC_STRING_LENGTH = 512;
-
-    // Escape processing states:
-
-    /**
-     * Escape processing state: Not currently in an escape sequence.
-     */
-    private static final int ESC_NONE = 0;
+    private static final int INITIAL_OSC_STRING_LENGTH = 512;
 
     /**
-     * Escape processing state: Have seen an ESC character
+     * Don't know what the actual limit is, but this leaves room for a
+     * hyperlink (OSC 8) with a long URL.
      */
-    private static final int ESC = 1;
+    private static final int MAX_OSC_STRING_LENGTH = 8192;
 
     /**
-     * Escape processing state: Have seen ESC POUND
+     * Decodes the data of a clipboard write (OSC 52) as it arrives, instead
+     * of collecting it in mOSCArg.  Null unless such a string is being
+     * received.
      */
-    private static final int ESC_POUND = 2;
+    private Base64Decoder mClipboardDecoder;
 
     /**
-     * Escape processing state: Have seen ESC and a character-set-select char
+     * The URL of the hyperlink (OSC 8) the text being written is part of, or
+     * null if it isn't part of a link.
      */
-    private static final int ESC_SELECT_LEFT_PAREN = 3;
+    private String mLinkUrl;
 
     /**
-     * Escape processing state: Have seen ESC and a character-set-select char
+     * The largest value accepted for a numeric parameter; longer strings of
+     * digits are clamped to it instead of overflowing.
      */
-    private static final int ESC_SELECT_RIGHT_PAREN = 4;
-
+    private static final int MAX_ESCAPE_PARAMETER_VALUE = 65535;
     /**
-     * Escape processing state: ESC [
+     * Bit i is set if argument i was separated from the one before it by a
+     * ':' rather than a ';', which makes it a sub-parameter of that argument.
      */
-    private static final int ESC_LEFT_SQUARE_BRACKET = 5;
+    private int mArgSubParameters;
 
     /**
-     * Escape processing state: ESC [ ?
+     * The private marker and intermediate characters of the current escape
+     * sequence, one per byte, the last one in the lowest byte.
      */
-    private static final int ESC_LEFT_SQUARE_BRACKET_QUESTION_MARK = 6;
+    private int mCollected;
 
     /**
-     * Escape processing state: ESC %
+     * Set by getExtendedColor() to the number of arguments it used after the
+     * 38 or 48.
      */
-    private static final int ESC_PERCENT = 7;
+    private int mExtendedColorArgs;
 
     /**
-     * Escape processing state: ESC ] (AKA OSC - Operating System Controls)
+     * The current state of the escape sequence parser, one of the states in
+     * {@link EscapeSequenceTable}.
      */
-    private static final int ESC_RIGHT_SQUARE_BRACKET = 8;
-
-    /**
-     * Escape processing state: ESC ] (AKA OSC - Operating System Controls)
-     */
-    private static final int ESC_RIGHT_SQUARE_BRACKET_ESC = 9;
-
-    /**
-     * True if the current escape sequence should continue, false if the current
-     * escape sequence should be terminated. Used when parsing a single
-     * character.
-     */
-    private boolean mContinueSequence;
-
-    /**
-     * The current state of the escape sequence state machine.
-     */
-    private int mEscapeState;
+    private int mParserState;
 
     /**
      * Saved state of the cursor row, Used to implement the save/restore cursor
@@ -239,6 +219,13 @@ public void setKeyListener(TermKeyListener l) {
      */
     private int mMouseTrackingMode;
 
+    /**
+     * True while the program has synchronized output (DECSET 2026) turned on,
+     * which means the screen is in the middle of being redrawn and shouldn't
+     * be displayed yet.
+     */
+    private boolean mSynchronizedOutput;
+
     // Modes set with Set Mode / Reset Mode
 
     /**
@@ -281,6 +268,12 @@ public void setKeyListener(TermKeyListener l) {
      */
     private int mLastEmittedCharWidth = 0;
 
+    /**
+     * The last spacing character emitted, which is what REP repeats; -1 if
+     * there is none.
+     */
+    private int mLastEmittedChar = -1;
+
     /**
      * True if we just auto-wrapped and no character has been emitted on this
      * line yet.  Used to ensure combining characters following a character
@@ -305,6 +298,11 @@ public void setKeyListener(TermKeyListener l) {
     private int mBackColor;
     private int mDefaultBackColor;
 
+    /**
+     * The color scheme, kept for creating the alternate screen buffer.
+     */
+    private ColorScheme mColorScheme;
+
     /**
      * Current TextStyle effect
      */
@@ -382,6 +380,22 @@ public void setKeyListener(TermKeyListener l) {
      */
     private int mScrollCounter = 0;
 
+    /**
+     * Where to count the escape sequences processed, or null if they
+     * aren't being counted.
+     */
+    private PerformanceCounters mCounters;
+
+    /**
+     * Scrolls which haven't been applied to the screen yet.  Consecutive
+     * scrolls of the same region are batched up and applied as a single
+     * multi-line scroll before anything else touches the screen.
+     */
+    private int mPendingScrollLines;
+    private int mPendingScrollTop;
+    private int mPendingScrollBottom;
+    private int mPendingScrollStyle;
+
     /**
      * UTF-8 support
      */
@@ -409,11 +423,10 @@ public void setKeyListener(TermKeyListener l) {
      * @param rows the number of rows to emulate
      * @param scheme the default color scheme of this emulator
      */
-    public TerminalEmulator(TermSession session, TranscriptScreen screen, int columns, int rows, ColorScheme scheme) {
+    public TerminalEmulator(TerminalHost session, TranscriptScreen screen, int columns, int rows, ColorScheme scheme) {
         mSession = session;
         mMainBuffer = screen;
         mScreen = mMainBuffer;
-        mAltBuffer = new TranscriptScreen(columns, rows, rows, scheme);
         mRows = rows;
         mColumns = columns;
         mTabStop = new boolean[mColumns];
@@ -437,6 +450,7 @@ public void updateSize(int columns, int rows) {
         if (mRows == rows && mColumns == columns) {
             return;
         }
+        flushScroll();
         if (columns <= 0) {
             throw new IllegalArgumentException("rows:" + columns);
         }
@@ -450,7 +464,10 @@ public void updateSize(int columns, int rows) {
         if (screen != mMainBuffer) {
             altScreen = mMainBuffer;
         } else {
-            altScreen = mAltBuffer;
+            /* Don't bother resizing an alternate screen which isn't in use;
+               it'll be created again at the new size if it's needed */
+            releaseAltBuffer();
+            altScreen = null;
         }
 
         // Try to resize the screen without getting the transcript
@@ -460,6 +477,8 @@ public void updateSize(int columns, int rows) {
         GrowableIntArray cursorColor = null;
         String charAtCursor = null;
         GrowableIntArray colors = null;
+        GrowableIntArray rowStarts = null;
+        GrowableIntArray marks = null;
         String transcriptText = null;
         if (!fastResize) {
             /* Save the character at the cursor (if one exists) and store an
@@ -471,7 +490,15 @@ public void updateSize(int columns, int rows) {
             screen.set(mCursorCol, mCursorRow, 27, 0);
 
             colors = new GrowableIntArray(1024);
-            transcriptText = screen.getTranscriptText(colors);
+            rowStarts = new GrowableIntArray(screen.getActiveRows());
+            marks = new GrowableIntArray(16);
+            screen.getMarks(marks);
+            int firstRow = -screen.getActiveTranscriptRows();
+            transcriptText = screen.getTranscriptText(colors, rowStarts);
+            // Find where in the text each marked row starts
+            for (int i = 0; i < marks.length(); i += 2) {
+                marks.set(i, rowStarts.at(marks.at(i) - firstRow));
+            }
             screen.resize(columns, rows, getStyle());
         }
 
@@ -564,8 +591,15 @@ public void updateSize(int columns, int rows) {
         }
         char c, cLow;
         int colorOffset = 0;
+        int nextMark = 0;
         for(int i = 0; i <= end; i++) {
             c = transcriptText.charAt(i);
+            // Put back the marks of the rows which start here
+            while (nextMark < marks.length() && marks.at(nextMark) <= i) {
+                flushScroll();
+                screen.addMark(mCursorRow, marks.at(nextMark + 1));
+                nextMark += 2;
+            }
             int style = colors.at(i-colorOffset);
             if (Character.isHighSurrogate(c)) {
                 cLow = transcriptText.charAt(++i);
@@ -608,6 +642,14 @@ public void updateSize(int columns, int rows) {
         }
     }
 
+    public final int getColumns() {
+        return mColumns;
+    }
+
+    public final int getRows() {
+        return mRows;
+    }
+
     /**
      * Get the cursor's current row.
      *
@@ -647,6 +689,16 @@ public final int getMouseTrackingMode() {
         return mMouseTrackingMode;
     }
 
+    /**
+     * Get whether synchronized output (DECSET 2026) is on, in which case the
+     * screen contents are incomplete and shouldn't be drawn.
+     *
+     * @return whether synchronized output is on.
+     */
+    public final boolean getSynchronizedOutput() {
+        return mSynchronizedOutput;
+    }
+
     private void setDefaultTabStops() {
         for (int i = 0; i < mColumns; i++) {
             mTabStop[i] = (i & 7) == 0 && i != 0;
@@ -662,19 +714,77 @@ private void setDefaultTabStops() {
      */
     public void append(byte[] buffer, int base, int length) {
         if (EmulatorDebug.LOG_CHARACTERS_FLAG) {
-            Log.d(EmulatorDebug.LOG_TAG, "In: '" + EmulatorDebug.bytesToString(buffer, base, length) + "'");
+            EmulatorLog.d(EmulatorDebug.LOG_TAG, "In: '" + EmulatorDebug.bytesToString(buffer, base, length) + "'");
         }
         for (int i = 0; i < length; i++) {
             byte b = buffer[base + i];
             try {
+                if (mInsertMode && b >= 0x20 && b < 0x7f) {
+                    int count = insertRun(buffer, base + i, length - i);
+                    if (count > 0) {
+                        i += count - 1;
+                        mProcessedCharCount += count;
+                        continue;
+                    }
+                }
                 process(b);
                 mProcessedCharCount++;
             } catch (Exception e) {
-                Log.e(EmulatorDebug.LOG_TAG, "Exception while processing character "
+                EmulatorLog.e(EmulatorDebug.LOG_TAG, "Exception while processing character "
                         + Integer.toString(mProcessedCharCount) + " code "
                         + Integer.toString(b), e);
             }
         }
+        flushScroll();
+    }
+
+    /**
+     * In insert mode, print a run of ASCII characters which fits on the rest
+     * of the cursor row by making room for the whole run at once, instead of
+     * shifting the rest of the row once per character.
+     *
+     * @return the number of bytes printed, or 0 if the run can't be handled
+     *         this way
+     */
+    private int insertRun(byte[] buffer, int offset, int length) {
+        if (mParserState != EscapeSequenceTable.GROUND || mUTF8ToFollow != 0
+                || mAboutToAutoWrap) {
+            return 0;
+        }
+        int end = offset;
+        int limit = offset + Math.min(length, mColumns - mCursorCol);
+        while (end < limit && buffer[end] >= 0x20 && buffer[end] < 0x7f) {
+            end++;
+        }
+        int count = end - offset;
+        if (count < 2) {
+            return 0;
+        }
+        flushScroll();
+        insertColumns(count);
+        // The room has been made, so print the run as if in replace mode
+        mInsertMode = false;
+        try {
+            for (int i = offset; i < end; i++) {
+                emit(buffer[i]);
+            }
+        } finally {
+            mInsertMode = true;
+        }
+        return count;
+    }
+
+    /**
+     * Shift the characters from the cursor to the end of the cursor row
+     * right by count columns; those pushed past the end are lost.  The
+     * columns vacated keep their old contents.
+     */
+    private void insertColumns(int count) {
+        int destCol = mCursorCol + count;
+        if (destCol < mColumns) {
+            mScreen.blockCopy(mCursorCol, mCursorRow, mColumns - destCol, 1,
+                    destCol, mCursorRow);
+        }
     }
 
     private void process(byte b) {
@@ -682,13 +792,15 @@ private void process(byte b) {
     }
 
     private void process(byte b, boolean doUTF8) {
-        // Let the UTF-8 decoder try to handle it if we're in UTF-8 mode
-        if (doUTF8 && mUTF8Mode && handleUTF8Sequence(b)) {
-            return;
-        }
-
-        // Handle C1 control characters
-        if ((b & 0x80) == 0x80 && (b & 0x7f) <= 0x1f) {
+        if (doUTF8 && mUTF8Mode) {
+            /* Let the UTF-8 decoder try to handle it.  Inside escape sequences
+               and strings, bytes above 0x7f go to the parser undecoded. */
+            if (mParserState == EscapeSequenceTable.GROUND
+                    && handleUTF8Sequence(b)) {
+                return;
+            }
+        } else if ((b & 0x80) == 0x80 && (b & 0x7f) <= 0x1f) {
+            // Handle C1 control characters
             /* ESC ((code & 0x7f) + 0x40) is the two-byte escape sequence
                corresponding to a particular C1 code */
             process((byte) 27, false);
@@ -696,116 +808,191 @@ private void process(byte b, boolean doUTF8) {
             return;
         }
 
-        switch (b) {
-        case 0: // NUL
-            // Do nothing
+        int transition = EscapeSequenceTable.TRANSITIONS[(mParserState << 8) | (b & 0xff)];
+        if ((transition & EscapeSequenceTable.TRANSITION) == 0) {
+            int action = transition & EscapeSequenceTable.ACTION_MASK;
+            // Printing is by far the most common action
+            if (action == EscapeSequenceTable.PRINT) {
+                emit(b);
+            } else {
+                doAction(action, b);
+            }
+        } else {
+            int oldState = mParserState;
+            int nextState = (transition >> EscapeSequenceTable.STATE_SHIFT)
+                    & EscapeSequenceTable.STATE_MASK;
+            // Change state first, so that a failing action can't leave the
+            // parser stuck in the middle of a sequence
+            mParserState = nextState;
+            int exitAction = EscapeSequenceTable.EXIT_ACTIONS[oldState];
+            if (exitAction != EscapeSequenceTable.NONE) {
+                doAction(exitAction, b);
+            }
+            doAction(transition & EscapeSequenceTable.ACTION_MASK, b);
+            int entryAction = EscapeSequenceTable.ENTRY_ACTIONS[nextState];
+            if (entryAction != EscapeSequenceTable.NONE) {
+                doAction(entryAction, b);
+            }
+        }
+    }
+
+    private void doAction(int action, byte b) {
+        switch (action) {
+        case EscapeSequenceTable.NONE:
             break;
 
-        case 7: // BEL
-            /* If in an OSC sequence, BEL may terminate a string; otherwise do
-             * nothing */
-            if (mEscapeState == ESC_RIGHT_SQUARE_BRACKET) {
-                doEscRightSquareBracket(b);
-            }
+        case EscapeSequenceTable.PRINT:
+            emit(b);
             break;
 
-        case 8: // BS
-            setCursorCol(Math.max(0, mCursorCol - 1));
+        case EscapeSequenceTable.EXECUTE:
+            doControl(b);
             break;
 
-        case 9: // HT
-            // Move to next tab stop, but not past edge of screen
-            setCursorCol(nextTabStop(mCursorCol));
+        case EscapeSequenceTable.CLEAR:
+            startEscapeSequence();
             break;
 
-        case 13:
-            setCursorCol(0);
+        case EscapeSequenceTable.COLLECT:
+            mCollected = (mCollected << 8) | b;
             break;
 
-        case 10: // CR
-        case 11: // VT
-        case 12: // LF
-            doLinefeed();
+        case EscapeSequenceTable.PARAM:
+            parseArg(b);
             break;
 
-        case 14: // SO:
-            setAltCharSet(true);
+        case EscapeSequenceTable.ESC_DISPATCH:
+            dispatchEsc(b);
             break;
 
-        case 15: // SI:
-            setAltCharSet(false);
+        case EscapeSequenceTable.CSI_DISPATCH:
+            dispatchCsi(b);
             break;
 
+        case EscapeSequenceTable.OSC_START:
+            startCollectingOSCArgs();
+            break;
+
+        case EscapeSequenceTable.OSC_PUT:
+            collectOSCArgs(b);
+            break;
 
-        case 24: // CAN
-        case 26: // SUB
-            if (mEscapeState != ESC_NONE) {
-                mEscapeState = ESC_NONE;
-                emit((byte) 127);
+        case EscapeSequenceTable.OSC_END:
+            // CAN and SUB abort the string instead of terminating it
+            if (b != 0x18 && b != 0x1a) {
+                doOSC();
             }
+            mClipboardDecoder = null;
             break;
 
-        case 27: // ESC
-            // Starts an escape sequence unless we're parsing a string
-            if (mEscapeState != ESC_RIGHT_SQUARE_BRACKET) {
-                startEscapeSequence(ESC);
-            } else {
-                doEscRightSquareBracket(b);
+        case EscapeSequenceTable.HOOK:
+            if (mCounters != null) {
+                ++mCounters.mDcsSequences;
             }
+            // No device control strings are implemented; drop the contents
             break;
 
-        default:
-            mContinueSequence = false;
-            switch (mEscapeState) {
-            case ESC_NONE:
-                if (b >= 32) {
-                    emit(b);
-                }
-                break;
+        case EscapeSequenceTable.PUT:
+        case EscapeSequenceTable.UNHOOK:
+            break;
 
-            case ESC:
-                doEsc(b);
-                break;
+        default:
+            break;
+        }
+    }
 
-            case ESC_POUND:
-                doEscPound(b);
-                break;
+    private void dispatchEsc(byte b) {
+        if (mCounters != null) {
+            ++mCounters.mEscSequences;
+        }
+        switch (mCollected) {
+        case 0:
+            doEsc(b);
+            break;
+        case '#':
+            doEscPound(b);
+            break;
+        case '(':
+            doEscSelectLeftParen(b);
+            break;
+        case ')':
+            doEscSelectRightParen(b);
+            break;
+        case '%':
+            doEscPercent(b);
+            break;
+        default:
+            unknownSequence(b);
+            break;
+        }
+    }
 
-            case ESC_SELECT_LEFT_PAREN:
-                doEscSelectLeftParen(b);
-                break;
+    private void dispatchCsi(byte b) {
+        if (mCounters != null) {
+            mCounters.countCsi(b);
+        }
+        if (mArgIndex >= MAX_ESCAPE_PARAMETERS) {
+            // Further parameters were dropped
+            mArgIndex = MAX_ESCAPE_PARAMETERS - 1;
+        }
+        switch (mCollected) {
+        case 0:
+            doEscLeftSquareBracket(b); // CSI
+            break;
+        case '?':
+            doEscLSBQuest(b); // CSI ?
+            break;
+        case ('?' << 8) | '$':
+            if (b == 'p') { // CSI ? Pn $ p - DECRQM
+                reportDecMode(getArg0(0));
+            } else {
+                unknownSequence(b);
+            }
+            break;
+        default:
+            unknownSequence(b);
+            break;
+        }
+    }
 
-            case ESC_SELECT_RIGHT_PAREN:
-                doEscSelectRightParen(b);
-                break;
+    /**
+     * Execute a C0 control character.
+     */
+    private void doControl(byte b) {
+        if (mCounters != null) {
+            ++mCounters.mControls;
+        }
+        switch (b) {
+        case 8: // BS
+            setCursorCol(Math.max(0, mCursorCol - 1));
+            break;
 
-            case ESC_LEFT_SQUARE_BRACKET:
-                doEscLeftSquareBracket(b); // CSI
-                break;
+        case 9: // HT
+            // Move to next tab stop, but not past edge of screen
+            setCursorCol(nextTabStop(mCursorCol));
+            break;
 
-            case ESC_LEFT_SQUARE_BRACKET_QUESTION_MARK:
-                doEscLSBQuest(b); // CSI ?
-                break;
+        case 13:
+            setCursorCol(0);
+            break;
 
-            case ESC_PERCENT:
-                doEscPercent(b);
-                break;
+        case 10: // CR
+        case 11: // VT
+        case 12: // LF
+            doLinefeed();
+            break;
 
-            case ESC_RIGHT_SQUARE_BRACKET:
-                doEscRightSquareBracket(b);
-                break;
+        case 14: // SO:
+            setAltCharSet(true);
+            break;
 
-            case ESC_RIGHT_SQUARE_BRACKET_ESC:
-                doEscRightSquareBracketEsc(b);
-                break;
+        case 15: // SI:
+            setAltCharSet(false);
+            break;
 
-            default:
-                unknownSequence(b);
-                break;
-            }
-            if (!mContinueSequence) {
-                mEscapeState = ESC_NONE;
-            }
+        default:
+            // NUL, BEL, and CAN and SUB (which cancel any escape sequence
+            // in progress) have no effect on the screen
             break;
         }
     }
@@ -842,6 +1029,11 @@ private boolean handleUTF8Sequence(byte b) {
                 decoder.decode(byteBuf, charBuf, true);
                 decoder.flush(charBuf);
 
+                /* Ready the buffers for the next sequence before going on, so
+                   that an exception from what follows can't leave them full */
+                byteBuf.clear();
+                charBuf.clear();
+
                 char[] chars = charBuf.array();
                 if (chars[0] >= 0x80 && chars[0] <= 0x9f) {
                     /* Sequence decoded to a C1 control character which needs
@@ -850,9 +1042,6 @@ to be sent through process() again */
                 } else {
                     emit(chars);
                 }
-
-                byteBuf.clear();
-                charBuf.clear();
             }
         } else {
             if ((b & 0xe0) == 0xc0) { // 0b110 -- two-byte sequence
@@ -925,36 +1114,45 @@ private void doEscLSBQuest(byte b) {
             mDecFlags |= mask;
             switch (arg) {
             case 1:
-                mKeyListener.setCursorKeysApplicationMode(true);
+                mSession.setCursorKeysApplicationMode(true);
                 break;
             case 47:
             case 1047:
             case 1049:
-                if (mAltBuffer != null) {
-                    mScreen = mAltBuffer;
+                flushScroll();
+                if (mAltBuffer == null) {
+                    mAltBuffer = new TranscriptScreen(mColumns, mRows, mRows, mColorScheme);
                 }
+                mScreen = mAltBuffer;
                 break;
             }
             if (arg >= 1000 && arg <= 1003) {
                 mMouseTrackingMode = arg;
             }
+            if (arg == 2026) {
+                mSynchronizedOutput = true;
+            }
             break;
 
         case 'l': // Esc [ ? Pn l - DECRST
             mDecFlags &= ~mask;
             switch (arg) {
             case 1:
-                mKeyListener.setCursorKeysApplicationMode(false);
+                mSession.setCursorKeysApplicationMode(false);
                 break;
             case 47:
             case 1047:
             case 1049:
+                flushScroll();
                 mScreen = mMainBuffer;
                 break;
             }
             if (arg >= 1000 && arg <= 1003) {
                 mMouseTrackingMode = 0;
             }
+            if (arg == 2026) {
+                mSynchronizedOutput = false;
+            }
             break;
 
         case 'r': // Esc [ ? Pn r - restore
@@ -966,7 +1164,7 @@ private void doEscLSBQuest(byte b) {
             break;
 
         default:
-            parseArg(b);
+            unknownSequence(b);
             break;
         }
 
@@ -988,6 +1186,45 @@ private void doEscLSBQuest(byte b) {
         }
     }
 
+    /**
+     * Answer a DECRQM request for a DEC private mode with
+     * ESC [ ? Pn ; Ps $ y, where Ps is 1 if the mode is set, 2 if it is
+     * reset, and 0 if we don't recognize it.
+     */
+    private void reportDecMode(int mode) {
+        int state;
+        switch (mode) {
+        case 1:
+        case 3:
+        case 5:
+        case 6:
+        case 7:
+        case 25:
+            state = (mDecFlags & getDecFlagsMask(mode)) != 0 ? 1 : 2;
+            break;
+        case 47:
+        case 1047:
+        case 1049:
+            state = (mAltBuffer != null && mScreen == mAltBuffer) ? 1 : 2;
+            break;
+        case 1000:
+        case 1001:
+        case 1002:
+        case 1003:
+            state = mMouseTrackingMode == mode ? 1 : 2;
+            break;
+        case 2026:
+            state = mSynchronizedOutput ? 1 : 2;
+            break;
+        default:
+            state = 0;
+            break;
+        }
+        byte[] report = String.format(Locale.US, "\033[?%d;%d$y",
+                mode, state).getBytes();
+        mSession.write(report, 0, report.length);
+    }
+
     private int getDecFlagsMask(int argument) {
         if (argument >= 1 && argument <= 32) {
             return (1 << argument);
@@ -996,12 +1233,12 @@ private int getDecFlagsMask(int argument) {
         return 0;
     }
 
-    private void startEscapeSequence(int escapeState) {
-        mEscapeState = escapeState;
+    private void startEscapeSequence() {
+        // Arguments after mArgIndex are cleared as the parser reaches them
         mArgIndex = 0;
-        for (int j = 0; j < MAX_ESCAPE_PARAMETERS; j++) {
-            mArgs[j] = -1;
-        }
+        mArgs[0] = -1;
+        mArgSubParameters = 0;
+        mCollected = 0;
     }
 
     private void doLinefeed() {
@@ -1013,15 +1250,6 @@ private void doLinefeed() {
         setCursorRow(newCursorRow);
     }
 
-    private void continueSequence() {
-        mContinueSequence = true;
-    }
-
-    private void continueSequence(int state) {
-        mEscapeState = state;
-        mContinueSequence = true;
-    }
-
     private void doEscSelectLeftParen(byte b) {
         doSelectCharSet(0, b);
     }
@@ -1059,6 +1287,7 @@ private void doSelectCharSet(int charSetIndex, byte b) {
     private void doEscPound(byte b) {
         switch (b) {
         case '8': // Esc # 8 - DECALN alignment test
+            flushScroll();
             mScreen.blockSet(0, 0, mColumns, mRows, 'E',
                     getStyle());
             break;
@@ -1071,18 +1300,6 @@ private void doEscPound(byte b) {
 
     private void doEsc(byte b) {
         switch (b) {
-        case '#':
-            continueSequence(ESC_POUND);
-            break;
-
-        case '(':
-            continueSequence(ESC_SELECT_LEFT_PAREN);
-            break;
-
-        case ')':
-            continueSequence(ESC_SELECT_RIGHT_PAREN);
-            break;
-
         case '7': // DECSC save cursor
             mSavedCursorRow = mCursorRow;
             mSavedCursorCol = mCursorCol;
@@ -1116,6 +1333,7 @@ private void doEsc(byte b) {
 
         case 'M': // Reverse index
             if (mCursorRow <= mTopMargin) {
+                flushScroll();
                 mScreen.blockCopy(0, mTopMargin, mColumns, mBottomMargin
                         - (mTopMargin + 1), 0, mTopMargin + 1);
                 blockClear(0, mTopMargin, mColumns);
@@ -1133,31 +1351,21 @@ private void doEsc(byte b) {
             unimplementedSequence(b);
             break;
 
-        case 'P': // Device control string
-            unimplementedSequence(b);
-            break;
-
         case 'Z': // return terminal ID
             sendDeviceAttributes();
             break;
 
-        case '[':
-            continueSequence(ESC_LEFT_SQUARE_BRACKET);
-            break;
-
         case '=': // DECKPAM
             mbKeypadApplicationMode = true;
             break;
 
-        case ']': // OSC
-            startCollectingOSCArgs();
-            continueSequence(ESC_RIGHT_SQUARE_BRACKET);
-            break;
-
         case '>' : // DECKPNM
             mbKeypadApplicationMode = false;
             break;
 
+        case '\\': // ST, which ends a string that has already been handled
+            break;
+
         default:
             unknownSequence(b);
             break;
@@ -1169,11 +1377,9 @@ private void doEscLeftSquareBracket(byte b) {
         switch (b) {
         case '@': // ESC [ Pn @ - ICH Insert Characters
         {
-            int charsAfterCursor = mColumns - mCursorCol;
-            int charsToInsert = Math.min(getArg0(1), charsAfterCursor);
-            int charsToMove = charsAfterCursor - charsToInsert;
-            mScreen.blockCopy(mCursorCol, mCursorRow, charsToMove, 1,
-                    mCursorCol + charsToInsert, mCursorRow);
+            int charsToInsert = Math.min(getArg0(1), mColumns - mCursorCol);
+            flushScroll();
+            insertColumns(charsToInsert);
             blockClear(mCursorCol, mCursorRow, charsToInsert);
         }
             break;
@@ -1251,6 +1457,7 @@ private void doEscLeftSquareBracket(byte b) {
             int linesAfterCursor = mBottomMargin - mCursorRow;
             int linesToInsert = Math.min(getArg0(1), linesAfterCursor);
             int linesToMove = linesAfterCursor - linesToInsert;
+            flushScroll();
             mScreen.blockCopy(0, mCursorRow, mColumns, linesToMove, 0,
                     mCursorRow + linesToInsert);
             blockClear(0, mCursorRow, mColumns, linesToInsert);
@@ -1262,6 +1469,7 @@ private void doEscLeftSquareBracket(byte b) {
             int linesAfterCursor = mBottomMargin - mCursorRow;
             int linesToDelete = Math.min(getArg0(1), linesAfterCursor);
             int linesToMove = linesAfterCursor - linesToDelete;
+            flushScroll();
             mScreen.blockCopy(0, mCursorRow + linesToDelete, mColumns,
                     linesToMove, 0, mCursorRow);
             blockClear(0, mCursorRow + linesToMove, mColumns, linesToDelete);
@@ -1273,26 +1481,40 @@ private void doEscLeftSquareBracket(byte b) {
             int charsAfterCursor = mColumns - mCursorCol;
             int charsToDelete = Math.min(getArg0(1), charsAfterCursor);
             int charsToMove = charsAfterCursor - charsToDelete;
+            flushScroll();
             mScreen.blockCopy(mCursorCol + charsToDelete, mCursorRow,
                     charsToMove, 1, mCursorCol, mCursorRow);
             blockClear(mCursorCol + charsToMove, mCursorRow, charsToDelete);
         }
             break;
 
+        case 'S': // Scroll up
+        {
+            int linesToScroll = Math.min(getArg0(1), mBottomMargin - mTopMargin);
+            for (int i = 0; i < linesToScroll; i++) {
+                scroll();
+            }
+        }
+            break;
+
         case 'T': // Mouse tracking
             unimplementedSequence(b);
             break;
 
         case 'X': // Erase characters
-            blockClear(mCursorCol, mCursorRow, getArg0(0));
+            flushScroll();
+            blockClear(mCursorCol, mCursorRow,
+                    Math.min(getArg0(1), mColumns - mCursorCol));
             break;
 
         case 'Z': // Back tab
             setCursorCol(prevTabStop(mCursorCol));
             break;
 
-        case '?': // Esc [ ? -- start of a private mode set
-            continueSequence(ESC_LEFT_SQUARE_BRACKET_QUESTION_MARK);
+        case 'b': // ESC [ Pn b - REP Repeat the preceding character
+            if (mLastEmittedChar >= 0) {
+                repeat(mLastEmittedChar, getArg0(1));
+            }
             break;
 
         case 'c': // Send device attributes
@@ -1387,7 +1609,7 @@ private void doEscLeftSquareBracket(byte b) {
             break;
 
         default:
-            parseArg(b);
+            unknownSequence(b);
             break;
         }
     }
@@ -1396,8 +1618,11 @@ private void selectGraphicRendition() {
         // SGR
         for (int i = 0; i <= mArgIndex; i++) {
             int code = mArgs[i];
+            // Sub-parameters (":"-separated) belong to the parameter before them
+            int subParameters = countSubParameters(i);
             if ( code < 0) {
                 if (mArgIndex > 0) {
+                    i += subParameters;
                     continue;
                 } else {
                     code = 0;
@@ -1415,7 +1640,11 @@ private void selectGraphicRendition() {
             } else if (code == 3) { // italics, but rarely used as such; "standout" (inverse colors) with TERM=screen
                 mEffect |= TextStyle.fxItalic;
             } else if (code == 4) { // underscore
-                mEffect |= TextStyle.fxUnderline;
+                if (subParameters > 0 && mArgs[i+1] == 0) { // 4:0 -- no underline
+                    mEffect &= ~TextStyle.fxUnderline;
+                } else {
+                    mEffect |= TextStyle.fxUnderline;
+                }
             } else if (code == 5) { // blink
                 mEffect |= TextStyle.fxBlink;
             } else if (code == 7) { // inverse
@@ -1441,23 +1670,22 @@ private void selectGraphicRendition() {
                 mEffect &= ~TextStyle.fxInvisible;
             } else if (code >= 30 && code <= 37) { // foreground color
                 mForeColor = code - 30;
-            } else if (code == 38 && i+2 <= mArgIndex && mArgs[i+1] == 5) { // foreground 256 color
-                int color = mArgs[i+2];
+            } else if (code == 38) { // foreground 256 color or RGB
+                int color = getExtendedColor(i, subParameters);
                 if (checkColor(color)) {
                     mForeColor = color;
                 }
-                i += 2;
+                i += mExtendedColorArgs;
             } else if (code == 39) { // set default text color
                 mForeColor = mDefaultForeColor;
             } else if (code >= 40 && code <= 47) { // background color
                 mBackColor = code - 40;
-            } else if (code == 48 && i+2 <= mArgIndex && mArgs[i+1] == 5) { // background 256 color
-                mBackColor = mArgs[i+2];
-                int color = mArgs[i+2];
+            } else if (code == 48) { // background 256 color or RGB
+                int color = getExtendedColor(i, subParameters);
                 if (checkColor(color)) {
                     mBackColor = color;
                 }
-                i += 2;
+                i += mExtendedColorArgs;
             } else if (code == 49) { // set default background color
                 mBackColor = mDefaultBackColor;
             } else if (code >= 90 && code <= 97) { // bright foreground color
@@ -1466,17 +1694,114 @@ private void selectGraphicRendition() {
                 mBackColor = code - 100 + 8;
             } else {
                 if (EmulatorDebug.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
-                    Log.w(EmulatorDebug.LOG_TAG, String.format("SGR unknown code %d", code));
+                    EmulatorLog.w(EmulatorDebug.LOG_TAG, String.format("SGR unknown code %d", code));
                 }
             }
+            if (code != 38 && code != 48) {
+                i += subParameters;
+            }
+        }
+    }
+
+    /**
+     * The number of sub-parameters following argument i.
+     */
+    private int countSubParameters(int i) {
+        int count = 0;
+        while (i + count < mArgIndex
+                && (mArgSubParameters & (1 << (i + count + 1))) != 0) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Parse the color of an SGR 38 or 48, which is either 5;n for color n of
+     * the 256-color palette, or 2;r;g;b for an RGB color, which is mapped to
+     * the nearest palette color.  In the ':'-separated form of ITU T.416 the
+     * RGB color is 2:colorspace:r:g:b, but 2:r:g:b is accepted as well.
+     *
+     * @param i The index of the 38 or 48 argument.
+     * @param subParameters The number of sub-parameters following it.
+     * @return The color, or -1 if the arguments are missing or invalid.
+     */
+    private int getExtendedColor(int i, int subParameters) {
+        int available = subParameters > 0 ? subParameters : mArgIndex - i;
+        int type = available > 0 ? mArgs[i+1] : -1;
+        int color = -1;
+        int first;
+        if (type == 5 && available >= 2) {
+            color = mArgs[i+2];
+            mExtendedColorArgs = 2;
+        } else if (type == 2 && available >= 4) {
+            // Skip the color space identifier, if any
+            first = (subParameters >= 5) ? i + 3 : i + 2;
+            color = nearestColor(mArgs[first], mArgs[first+1], mArgs[first+2]);
+            mExtendedColorArgs = first + 2 - i;
+        } else if (type == 5 || type == 2) {
+            // Missing arguments; ignore the rest of the sequence
+            mExtendedColorArgs = available;
+        } else {
+            // Unknown color type; the arguments after it are ordinary codes
+            mExtendedColorArgs = 0;
+        }
+        if (subParameters > 0) {
+            mExtendedColorArgs = subParameters;
+        }
+        return color;
+    }
+
+    private static final int[] COLOR_CUBE_LEVELS = {
+        0x00, 0x5f, 0x87, 0xaf, 0xd7, 0xff
+    };
+
+    /**
+     * Find the color of the 256-color palette nearest to an RGB color, from
+     * the 6x6x6 color cube or the gray ramp.
+     */
+    static int nearestColor(int r, int g, int b) {
+        r = Math.max(0, Math.min(r, 255));
+        g = Math.max(0, Math.min(g, 255));
+        b = Math.max(0, Math.min(b, 255));
+        int ri = nearestCubeLevel(r);
+        int gi = nearestCubeLevel(g);
+        int bi = nearestCubeLevel(b);
+        int cubeDistance = colorDistance(r, g, b, COLOR_CUBE_LEVELS[ri],
+                COLOR_CUBE_LEVELS[gi], COLOR_CUBE_LEVELS[bi]);
+
+        // Gray ramp: 232..255 are the levels 8, 18, ..., 238
+        int average = (r + g + b) / 3;
+        int grayIndex = Math.max(0, Math.min((average - 3) / 10, 23));
+        int gray = 8 + 10 * grayIndex;
+        int grayDistance = colorDistance(r, g, b, gray, gray, gray);
+
+        if (grayDistance < cubeDistance) {
+            return 232 + grayIndex;
         }
+        return 16 + 36 * ri + 6 * gi + bi;
+    }
+
+    private static int nearestCubeLevel(int value) {
+        if (value < 48) {
+            return 0;
+        } else if (value < 115) {
+            return 1;
+        }
+        return Math.min((value - 35) / 40, 5);
+    }
+
+    private static int colorDistance(int r1, int g1, int b1, int r2, int g2, int b2) {
+        int dr = r1 - r2;
+        int dg = g1 - g2;
+        int db = b1 - b2;
+        return dr * dr + dg * dg + db * db;
     }
 
     private boolean checkColor(int color) {
         boolean result = isValidColor(color);
         if (!result) {
             if (EmulatorDebug.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
-                Log.w(EmulatorDebug.LOG_TAG,
+                EmulatorLog.w(EmulatorDebug.LOG_TAG,
                         String.format("Invalid color %d", color));
             }
         }
@@ -1487,37 +1812,10 @@ private boolean isValidColor(int color) {
         return color >= 0 && color < TextStyle.ciColorLength;
     }
 
-    private void doEscRightSquareBracket(byte b) {
-        switch (b) {
-        case 0x7:
-            doOSC();
-            break;
-        case 0x1b: // Esc, probably start of Esc \ sequence
-            continueSequence(ESC_RIGHT_SQUARE_BRACKET_ESC);
-            break;
-        default:
-            collectOSCArgs(b);
-            break;
-        }
-    }
-
-    private void doEscRightSquareBracketEsc(byte b) {
-        switch (b) {
-        case '\\':
-            doOSC();
-            break;
-
-        default:
-            // The ESC character was not followed by a \, so insert the ESC and
-            // the current character in arg buffer.
-            collectOSCArgs((byte) 0x1b);
-            collectOSCArgs(b);
-            continueSequence(ESC_RIGHT_SQUARE_BRACKET);
-            break;
-        }
-    }
-
     private void doOSC() { // Operating System Controls
+        if (mCounters != null) {
+            ++mCounters.mOscSequences;
+        }
         startTokenizingOSC();
         int ps = nextOSCInt(';');
         switch (ps) {
@@ -1526,11 +1824,34 @@ private void doOSC() { // Operating System Controls
         case 2: // Change window title to T
             changeTitle(ps, nextOSCString(-1));
             break;
+        case 8: // Hyperlink: OSC 8 ; params ; URI, or an empty URI to end it
+            nextOSCString(';'); // Parameters such as id=, not needed here
+            String url = nextOSCString(-1);
+            mLinkUrl = url.length() > 0 ? url : null;
+            break;
+        case 133: // Shell integration: OSC 133 ; A/B/C/D [; options]
+            String mark = nextOSCString(';');
+            if (mark.length() == 1 && mark.charAt(0) >= 'A' && mark.charAt(0) <= 'D') {
+                flushScroll();
+                mScreen.addMark(mCursorRow, mark.charAt(0));
+            } else {
+                unknownParameter(ps);
+            }
+            break;
+        case 52: // Set clipboard: OSC 52 ; Pc ; base64 data
+            /* The data was decoded as it arrived.  Requests to read the
+               clipboard ("?" instead of data) decode to nothing and are
+               deliberately ignored, as are writes over the size limit. */
+            Base64Decoder decoder = mClipboardDecoder;
+            if (decoder != null && !decoder.hasOverflowed()
+                    && decoder.getLength() > 0) {
+                mSession.onClipboardWrite(decoder.getOutput(), decoder.getLength());
+            }
+            break;
         default:
             unknownParameter(ps);
             break;
         }
-        finishSequence();
     }
 
     private void changeTitle(int parameter, String title) {
@@ -1544,6 +1865,7 @@ private void blockClear(int sx, int sy, int w) {
     }
 
     private void blockClear(int sx, int sy, int w, int h) {
+        flushScroll();
         mScreen.blockSet(sx, sy, w, h, ' ', getStyle());
     }
 
@@ -1626,11 +1948,36 @@ private void sendDeviceAttributes() {
     private void scroll() {
         //System.out.println("Scroll(): mTopMargin " + mTopMargin + " mBottomMargin " + mBottomMargin);
         mScrollCounter ++;
-        mScreen.scroll(mTopMargin, mBottomMargin, getStyle());
+        int style = getStyle();
+        if (mPendingScrollLines > 0 && (mPendingScrollTop != mTopMargin
+                || mPendingScrollBottom != mBottomMargin
+                || mPendingScrollStyle != style)) {
+            flushScroll();
+        }
+        mPendingScrollTop = mTopMargin;
+        mPendingScrollBottom = mBottomMargin;
+        mPendingScrollStyle = style;
+        if (++mPendingScrollLines >= mBottomMargin - mTopMargin) {
+            // Every line in the region has scrolled off already
+            flushScroll();
+        }
+    }
+
+    /**
+     * Apply any scrolls batched up by {@link #scroll()} to the screen.
+     */
+    private void flushScroll() {
+        if (mPendingScrollLines > 0) {
+            int lines = mPendingScrollLines;
+            mPendingScrollLines = 0;
+            mScreen.scroll(mPendingScrollTop, mPendingScrollBottom,
+                    mPendingScrollStyle, lines);
+        }
     }
 
     /**
-     * Process the next ASCII character of a parameter.
+     * Process the next character of a parameter: a digit, or a ';' or ':'
+     * which starts the next parameter or sub-parameter.
      *
      * @param b The next ASCII character of the paramater sequence.
      */
@@ -1641,20 +1988,24 @@ private void parseArg(byte b) {
                 int thisDigit = b - '0';
                 int value;
                 if (oldValue >= 0) {
-                    value = oldValue * 10 + thisDigit;
+                    value = Math.min(oldValue * 10 + thisDigit,
+                            MAX_ESCAPE_PARAMETER_VALUE);
                 } else {
                     value = thisDigit;
                 }
                 mArgs[mArgIndex] = value;
             }
-            continueSequence();
-        } else if (b == ';') {
+        } else {
+            // ';' or ':'
             if (mArgIndex < mArgs.length) {
                 mArgIndex++;
+                if (mArgIndex < mArgs.length) {
+                    mArgs[mArgIndex] = -1;
+                    if (b == ':') {
+                        mArgSubParameters |= 1 << mArgIndex;
+                    }
+                }
             }
-            continueSequence();
-        } else {
-            unknownSequence(b);
         }
     }
 
@@ -1668,7 +2019,7 @@ private int getArg1(int defaultValue) {
 
     private int getArg(int index, int defaultValue,
             boolean treatZeroAsDefault) {
-        int result = mArgs[index];
+        int result = index <= mArgIndex ? mArgs[index] : -1;
         if (result < 0 || (result == 0 && treatZeroAsDefault)) {
             result = defaultValue;
         }
@@ -1677,14 +2028,28 @@ private int getArg(int index, int defaultValue,
 
     private void startCollectingOSCArgs() {
         mOSCArgLength = 0;
+        mClipboardDecoder = null;
     }
 
     private void collectOSCArgs(byte b) {
-        if (mOSCArgLength < MAX_OSC_STRING_LENGTH) {
+        if (mClipboardDecoder != null) {
+            mClipboardDecoder.decode(b);
+            return;
+        }
+        if (mOSCArgLength == mOSCArg.length
+                && mOSCArgLength < MAX_OSC_STRING_LENGTH) {
+            byte[] arg = new byte[Math.min(2 * mOSCArgLength, MAX_OSC_STRING_LENGTH)];
+            System.arraycopy(mOSCArg, 0, arg, 0, mOSCArgLength);
+            mOSCArg = arg;
+        }
+        if (mOSCArgLength < mOSCArg.length) {
             mOSCArg[mOSCArgLength++] = b;
-            continueSequence();
-        } else {
-            unknownSequence(b);
+        }
+        /* After "52;Pc;" comes the clipboard data, which may be far longer
+           than mOSCArg can hold; decode it on the fly */
+        if (b == ';' && mOSCArgLength > 3 && mOSCArg[0] == '5'
+                && mOSCArg[1] == '2' && mOSCArg[2] == ';') {
+            mClipboardDecoder = new Base64Decoder(mSession.getClipboardWriteLimit());
         }
     }
 
@@ -1734,14 +2099,12 @@ private void unimplementedSequence(byte b) {
         if (EmulatorDebug.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
             logError("unimplemented", b);
         }
-        finishSequence();
     }
 
     private void unknownSequence(byte b) {
         if (EmulatorDebug.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
             logError("unknown", b);
         }
-        finishSequence();
     }
 
     private void unknownParameter(int parameter) {
@@ -1758,8 +2121,8 @@ private void logError(String errorType, byte b) {
             StringBuilder buf = new StringBuilder();
             buf.append(errorType);
             buf.append(" sequence ");
-            buf.append(" EscapeState: ");
-            buf.append(mEscapeState);
+            buf.append(" ParserState: ");
+            buf.append(mParserState);
             buf.append(" char: '");
             buf.append((char) b);
             buf.append("' (");
@@ -1782,13 +2145,8 @@ private void logError(String errorType, byte b) {
 
     private void logError(String error) {
         if (EmulatorDebug.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
-            Log.e(EmulatorDebug.LOG_TAG, error);
+            EmulatorLog.e(EmulatorDebug.LOG_TAG, error);
         }
-        finishSequence();
-    }
-
-    private void finishSequence() {
-        mEscapeState = ESC_NONE;
     }
 
     private boolean autoWrapEnabled() {
@@ -1805,6 +2163,8 @@ private boolean autoWrapEnabled() {
     private void emit(int c, int style) {
         boolean autoWrap = autoWrapEnabled();
         int width = UnicodeTranscript.charWidth(c);
+        // The row the cursor is on must be where it is before it's marked
+        flushScroll();
 
         if (autoWrap) {
             if (mCursorCol == mColumns - 1 && (mAboutToAutoWrap || width == 2)) {
@@ -1818,22 +2178,28 @@ private void emit(int c, int style) {
                 }
             }
         }
+        flushScroll();
 
         if (mInsertMode & width != 0) { // Move character to right one space
-            int destCol = mCursorCol + width;
-            if (destCol < mColumns) {
-                mScreen.blockCopy(mCursorCol, mCursorRow, mColumns - destCol,
-                        1, destCol, mCursorRow);
-            }
+            insertColumns(width);
         }
 
         if (width == 0) {
             // Combining character -- store along with character it modifies
+            int col = mCursorCol - mLastEmittedCharWidth;
+            int row = mCursorRow;
             if (mJustWrapped) {
-                mScreen.set(mColumns - mLastEmittedCharWidth, mCursorRow - 1, c, style);
-            } else {
-                mScreen.set(mCursorCol - mLastEmittedCharWidth, mCursorRow, c, style);
+                col = mColumns - mLastEmittedCharWidth;
+                row = mCursorRow - 1;
+            }
+            // There may be nothing to combine with (say, just after a CR)
+            if (col >= 0 && row >= 0) {
+                mScreen.set(col, row, c, style);
             }
+        } else if (mLinkUrl != null) {
+            mScreen.set(mCursorCol, mCursorRow, c, style,
+                    mScreen.internLink(mLinkUrl), width);
+            mJustWrapped = false;
         } else {
             mScreen.set(mCursorCol, mCursorRow, c, style);
             mJustWrapped = false;
@@ -1850,6 +2216,44 @@ private void emit(int c, int style) {
         mCursorCol = Math.min(mCursorCol + width, mColumns - 1);
         if (width > 0) {
             mLastEmittedCharWidth = width;
+            mLastEmittedChar = c;
+        }
+    }
+
+    /**
+     * Emit a character count times.  Instead of emitting the characters one
+     * by one, the part of each row they cover is filled in one go.
+     */
+    private void repeat(int c, int count) {
+        int style = getStyle();
+        if (UnicodeTranscript.charWidth(c) != 1 || mLinkUrl != null) {
+            // Uncommon, and each character needs more than a plain fill
+            for (int i = 0; i < count; i++) {
+                emit(c, style);
+            }
+            return;
+        }
+        boolean autoWrap = autoWrapEnabled();
+        while (count > 0) {
+            // Wrapping to the next row, if it's time, is left to emit()
+            emit(c, style);
+            --count;
+            if (mAboutToAutoWrap || count == 0) {
+                continue;
+            }
+            int n = Math.min(count, mColumns - mCursorCol);
+            if (mInsertMode) {
+                insertColumns(n);
+            }
+            mScreen.blockSet(mCursorCol, mCursorRow, n, 1, c, style);
+            // Without autowrap, the characters past the end all land in the last column
+            count = autoWrap ? count - n : 0;
+            int lastCol = mCursorCol + n - 1;
+            mCursorCol = Math.min(lastCol + 1, mColumns - 1);
+            if (autoWrap && lastCol == mColumns - 1) {
+                mAboutToAutoWrap = true;
+                mScreen.setLineWrap(mCursorRow);
+            }
         }
     }
 
@@ -1928,8 +2332,7 @@ public void reset() {
         mCursorRow = 0;
         mCursorCol = 0;
         mArgIndex = 0;
-        mContinueSequence = false;
-        mEscapeState = ESC_NONE;
+        mParserState = EscapeSequenceTable.GROUND;
         mSavedCursorRow = 0;
         mSavedCursorCol = 0;
         mSavedEffect = 0;
@@ -1940,6 +2343,9 @@ public void reset() {
         }
         mDecFlags |= K_SHOW_CURSOR_MASK;
         mSavedDecFlags = 0;
+        mSynchronizedOutput = false;
+        mLinkUrl = null;
+        mLastEmittedChar = -1;
         mInsertMode = false;
         mTopMargin = 0;
         mBottomMargin = mRows;
@@ -1989,7 +2395,16 @@ public void setUTF8ModeUpdateCallback(UpdateCallback utf8ModeNotify) {
         mUTF8ModeNotify = utf8ModeNotify;
     }
 
+    /**
+     * Count the control characters and escape sequences processed in
+     * counters, or stop counting them if counters is null.
+     */
+    public void setPerformanceCounters(PerformanceCounters counters) {
+        mCounters = counters;
+    }
+
     public void setColorScheme(ColorScheme scheme) {
+        mColorScheme = scheme;
         mDefaultForeColor = TextStyle.ciForeground;
         mDefaultBackColor = TextStyle.ciBackground;
         mMainBuffer.setColorScheme(scheme);
@@ -1999,9 +2414,74 @@ public void setColorScheme(ColorScheme scheme) {
     }
 
     public String getSelectedText(int x1, int y1, int x2, int y2) {
+        flushScroll();
         return mScreen.getSelectedText(x1, y1, x2, y2);
     }
 
+    /**
+     * Collect statistics about how much room the screen buffers take up:
+     * the main one with its scrollback, and the alternate one if it has
+     * been allocated.
+     */
+    public void getStatistics(TranscriptStatistics stats) {
+        mMainBuffer.getStatistics(stats);
+        if (mAltBuffer != null) {
+            TranscriptStatistics alt = new TranscriptStatistics();
+            mAltBuffer.getStatistics(alt);
+            stats.add(alt);
+        }
+    }
+
+    /**
+     * Pack the scrollback of the main screen buffer into a compressed form,
+     * leaving just the screen itself as it was.  The scrollback is unpacked
+     * again as soon as anything needs it: reading it, scrolling the screen,
+     * or resizing it.
+     *
+     * @return Whether there was any scrollback to pack.
+     */
+    public boolean compactTranscript() {
+        flushScroll();
+        return mMainBuffer.compactTranscript();
+    }
+
+    /**
+     * Whether the scrollback is packed by {@link #compactTranscript}.
+     */
+    public boolean isTranscriptCompacted() {
+        return mMainBuffer.isTranscriptCompacted();
+    }
+
+    /**
+     * Throw away all but the newest keepRows rows of the main screen
+     * buffer's scrollback, to free the memory they take up.
+     *
+     * @return How many rows were thrown away.
+     */
+    public int truncateTranscript(int keepRows) {
+        flushScroll();
+        return mMainBuffer.truncateTranscript(keepRows);
+    }
+
+    /**
+     * Whether the alternate screen buffer has been allocated, but isn't
+     * being displayed.
+     */
+    public boolean hasUnusedAltBuffer() {
+        return mAltBuffer != null && mScreen != mAltBuffer;
+    }
+
+    /**
+     * Free the alternate screen buffer if it isn't being displayed.  It
+     * will be allocated again the next time a program switches to it.
+     */
+    public void releaseAltBuffer() {
+        if (hasUnusedAltBuffer()) {
+            mAltBuffer.finish();
+            mAltBuffer = null;
+        }
+    }
+
     public void finish() {
         if (mAltBuffer != null) {
             mAltBuffer.finish();
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+/**
+ * What a {@link TerminalEmulator} is running in: where its replies to the
+ * program go, and who it tells about changes to the title and clipboard.
+ * On Android, this is the <code>TermSession</code>.
+ */
+public interface TerminalHost {
+    /**
+     * Send data to the program running in the terminal, as if it had been
+     * typed.  Used for replies to status requests.
+     *
+     * @param data The array containing the data to send.
+     * @param offset The offset into the array of the first byte to send.
+     * @param count The number of bytes to send.
+     */
+    void write(byte[] data, int offset, int count);
+
+    /**
+     * Change the terminal's title.
+     */
+    void setTitle(String title);
+
+    /**
+     * Called when the program switches the cursor keys between sending
+     * normal and application mode sequences (DECCKM).
+     */
+    void setCursorKeysApplicationMode(boolean enabled);
+
+    /**
+     * The most data the emulator should accept when the program sets the
+     * clipboard (with OSC 52).
+     *
+     * @return The limit in bytes, or 0 to ignore clipboard writes.
+     */
+    int getClipboardWriteLimit();
+
+    /**
+     * Called with the data the program puts on the clipboard, as UTF-8.
+     * The emulator won't touch the array again.
+     *
+     * @param data The array containing the data.
+     * @param length The number of bytes of data, from the start of the array.
+     */
+    void onClipboardWrite(byte[] data, int length);
+}
@@ -16,13 +16,13 @@
 
 package jackpal.androidterm.emulatorview;
 
-import android.graphics.Canvas;
-
 /**
  * Text renderer interface
+ *
+ * @param <C> The type of canvas the renderer draws on.
  */
 
-interface TextRenderer {
+interface TextRenderer<C> {
     public static final int MODE_OFF = 0;
     public static final int MODE_ON = 1;
     public static final int MODE_LOCKED = 2;
@@ -33,6 +33,11 @@ interface TextRenderer {
     public static final int MODE_CTRL_SHIFT = 4;
     public static final int MODE_FN_SHIFT = 6;
 
+    /**
+     * Called before anything is drawn in a frame, so that renderers which
+     * cache what they draw know what the frame still needs.
+     */
+    void startFrame();
     void setReverseVideo(boolean reverseVideo);
     float getCharacterWidth();
     int getCharacterHeight();
@@ -56,8 +61,29 @@ interface TextRenderer {
      * @param cursorWidth The width of the cursor in screen columns (1 or 2)
      * @param cursorMode The cursor mode (used to show state of shift/control/alt/fn locks.
      */
-    void drawTextRun(Canvas canvas, float x, float y,
+    void drawTextRun(C canvas, float x, float y,
             int lineOffset, int runWidth, char[] text,
             int index, int count, boolean selectionStyle, int textStyle,
             int cursorOffset, int cursorIndex, int cursorIncr, int cursorWidth, int cursorMode);
+    /**
+     * Fill the background of a block of cells, which may span several rows.
+     * Nothing is drawn if the background color is the default one.
+     * @param canvas The canvas to draw into.
+     * @param x Canvas coordinate of the left edge of the whole line.
+     * @param y Canvas coordinate of the bottom edge of the last row of the block.
+     * @param lineOffset The screen character offset of the block.
+     * @param runWidth The width of the block in screen columns.
+     * @param rows The height of the block in rows.
+     * @param textStyle The style whose background color is used.
+     */
+    void drawBackground(C canvas, float x, float y,
+            int lineOffset, int runWidth, int rows, int textStyle);
+    /**
+     * Tell the renderer which style's background has already been drawn
+     * (by drawBackground) under the line about to be drawn, so that text runs
+     * with the same background color don't need to draw it again.
+     * @param textStyle The style, or -1 if only the default background has
+     *        been drawn.
+     */
+    void setDrawnBackground(int textStyle);
 }
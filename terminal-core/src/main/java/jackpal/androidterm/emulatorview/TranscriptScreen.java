@@ -16,16 +16,17 @@
 
 package jackpal.androidterm.emulatorview;
 
+import java.io.IOException;
 import java.util.Arrays;
-import android.graphics.Canvas;
 
 /**
  * A TranscriptScreen is a screen that remembers data that's been scrolled. The
  * old data is stored in a ring buffer to minimize the amount of copying that
  * needs to be done. The transcript does its own drawing, to avoid having to
- * expose its internal data structures.
+ * expose its internal data structures; what it draws on is up to the
+ * {@link TextRenderer}.
  */
-class TranscriptScreen implements Screen {
+public class TranscriptScreen implements Screen {
     /**
      * The width of the transcript, in characters. Fixed at initialization.
      */
@@ -103,6 +104,27 @@ public void set(int x, int y, byte b, int style) {
         mData.setChar(x, y, b, style);
     }
 
+    /**
+     * Store a Unicode code point which is part of an explicit hyperlink into
+     * the screen at location (x, y).
+     *
+     * @param link The link id, from {@link #internLink internLink}.
+     * @param width The number of columns the link covers.
+     */
+    public void set(int x, int y, int codePoint, int style, int link, int width) {
+        mData.setChar(x, y, codePoint, style);
+        for (int i = 0; i < width && x + i < mColumns; i++) {
+            mData.setLink(x + i, y, link);
+        }
+    }
+
+    /**
+     * Get the id under which to store a hyperlink to a URL in this screen.
+     */
+    int internLink(String url) {
+        return mData.internLink(url);
+    }
+
     /**
      * Scroll the screen down one line. To scroll the whole screen of a 24 line
      * screen, the arguments would be (0, 24).
@@ -115,6 +137,19 @@ public void scroll(int topMargin, int bottomMargin, int style) {
         mData.scroll(topMargin, bottomMargin, style);
     }
 
+    /**
+     * Scroll the screen down several lines at once.
+     *
+     * @param topMargin First line that is scrolled.
+     * @param bottomMargin One line after the last line that is scrolled.
+     * @param style the style for the newly exposed lines.
+     * @param lines The number of lines to scroll, at most the height of the
+     *        scrolled region.
+     */
+    public void scroll(int topMargin, int bottomMargin, int style, int lines) {
+        mData.scroll(topMargin, bottomMargin, style, lines);
+    }
+
     /**
      * Block copy characters from one position in the screen to another. The two
      * positions can overlap. All characters of the source and destination must
@@ -149,6 +184,63 @@ public void blockSet(int sx, int sy, int w, int h, int val,
         mData.blockSet(sx, sy, w, h, val, style);
     }
 
+    /**
+     * Draw the backgrounds of the rows which are entirely one style, merging
+     * consecutive rows with the same style into one block.  This must be
+     * called before drawing the text of the rows with drawText, which relies
+     * on these backgrounds already being there.
+     *
+     * @param startRow The first row to draw.
+     * @param endRow One past the last row to draw.
+     * @param canvas The canvas to draw to.
+     * @param x The x coordinate origin of the drawing
+     * @param y The y coordinate origin of the drawing of the first row
+     * @param renderer The renderer to use to draw the backgrounds
+     */
+    public final <C> void drawBackground(int startRow, int endRow, C canvas,
+            float x, float y, TextRenderer<C> renderer) {
+        int charHeight = renderer.getCharacterHeight();
+        int columns = mColumns;
+        int blockStyle = -1;
+        int blockRows = 0;
+        for (int row = startRow; row < endRow; row++) {
+            int style = getSolidStyle(row);
+            if (style != blockStyle) {
+                if (blockStyle != -1) {
+                    renderer.drawBackground(canvas, x, y - charHeight, 0, columns,
+                            blockRows, blockStyle);
+                }
+                blockStyle = style;
+                blockRows = 0;
+            }
+            blockRows++;
+            y += charHeight;
+        }
+        if (blockStyle != -1) {
+            renderer.drawBackground(canvas, x, y - charHeight, 0, columns,
+                    blockRows, blockStyle);
+        }
+    }
+
+    /**
+     * @return the style of a row which is entirely one style, or -1 if the
+     * row has more than one style or doesn't exist.
+     */
+    private int getSolidStyle(int row) {
+        try {
+            StyleRow color = mData.getLineColor(row);
+            if (color == null || !color.isSolidStyle()) {
+                return -1;
+            }
+            return color.getSolidStyle();
+        } catch (IllegalArgumentException e) {
+            return -1;
+        } catch (NullPointerException e) {
+            // Finished transcript
+            return -1;
+        }
+    }
+
     /**
      * Draw a row of text. Out-of-bounds rows are blank, not errors.
      *
@@ -163,8 +255,8 @@ public void blockSet(int sx, int sy, int w, int h, int val,
      * @param imeText current IME text, to be rendered at cursor
      * @param cursorMode the cursor mode. See TextRenderer.
      */
-    public final void drawText(int row, Canvas canvas, float x, float y,
-            TextRenderer renderer, int cx, int selx1, int selx2, String imeText, int cursorMode) {
+    public final <C> void drawText(int row, C canvas, float x, float y,
+            TextRenderer<C> renderer, int cx, int selx1, int selx2, String imeText, int cursorMode) {
         char[] line;
         StyleRow color;
         int cursorWidth = 1;
@@ -180,6 +272,8 @@ public final void drawText(int row, Canvas canvas, float x, float y,
             return;
         }
         int defaultStyle = mData.getDefaultStyle();
+        renderer.setDrawnBackground(color != null && color.isSolidStyle() ?
+                color.getSolidStyle() : -1);
 
         if (line == null) {
             // Line is blank.
@@ -210,7 +304,6 @@ public final void drawText(int row, Canvas canvas, float x, float y,
         int runWidth = 0;
         int lastRunStart = -1;
         int lastRunStartIndex = -1;
-        boolean forceFlushRun = false;
         int column = 0;
         int nextColumn = 0;
         int displayCharWidth = 0;
@@ -239,8 +332,7 @@ public final void drawText(int row, Canvas canvas, float x, float y,
                 selectionStyle = true;
             }
             if (style != lastStyle
-                    || selectionStyle != lastSelectionStyle
-                    || (width > 0 && forceFlushRun)) {
+                    || selectionStyle != lastSelectionStyle) {
                 if (lastRunStart >= 0) {
                     renderer.drawTextRun(canvas, x, y, lastRunStart, runWidth,
                             line,
@@ -253,7 +345,6 @@ public final void drawText(int row, Canvas canvas, float x, float y,
                 runWidth = 0;
                 lastRunStart = column;
                 lastRunStartIndex = index;
-                forceFlushRun = false;
             }
             if (cx == column) {
                 if (width > 0) {
@@ -268,13 +359,6 @@ public final void drawText(int row, Canvas canvas, float x, float y,
             runWidth += width;
             nextColumn += width;
             index += incr;
-            if (width > 1) {
-                /* We cannot draw two or more East Asian wide characters in the
-                   same run, because we need to make each wide character take
-                   up two columns, which may not match the font's idea of the
-                   character width */
-                forceFlushRun = true;
-            }
         }
         if (lastRunStart >= 0) {
             renderer.drawTextRun(canvas, x, y, lastRunStart, runWidth,
@@ -303,6 +387,44 @@ public int getActiveRows() {
         return mData.getActiveRows();
     }
 
+    /**
+     * Collect statistics about how much room the transcript takes up.
+     */
+    public void getStatistics(TranscriptStatistics stats) {
+        if (mData == null) {
+            stats.clear();
+            return;
+        }
+        mData.getStatistics(stats);
+    }
+
+    /**
+     * Pack the transcript rows into a compressed form, to save memory while
+     * nobody is looking at them.  They're unpacked again as soon as they're
+     * needed.
+     *
+     * @return Whether any rows were packed.
+     */
+    public boolean compactTranscript() {
+        return mData != null && mData.compact();
+    }
+
+    /**
+     * Whether the transcript rows are packed by {@link #compactTranscript}.
+     */
+    public boolean isTranscriptCompacted() {
+        return mData != null && mData.isCompacted();
+    }
+
+    /**
+     * Throw away all but the newest keepRows rows of the transcript.
+     *
+     * @return How many rows were thrown away.
+     */
+    public int truncateTranscript(int keepRows) {
+        return mData != null ? mData.truncate(keepRows) : 0;
+    }
+
     /**
      * Get the count of active transcript rows.
      *
@@ -313,22 +435,44 @@ public int getActiveTranscriptRows() {
     }
 
     public String getTranscriptText() {
-        return internalGetTranscriptText(null, 0, -mData.getActiveTranscriptRows(), mColumns, mScreenRows);
+        return internalGetTranscriptText(null, null, 0, -mData.getActiveTranscriptRows(), mColumns, mScreenRows);
     }
 
     public String getTranscriptText(GrowableIntArray colors) {
-        return internalGetTranscriptText(colors, 0, -mData.getActiveTranscriptRows(), mColumns, mScreenRows);
+        return internalGetTranscriptText(colors, null, 0, -mData.getActiveTranscriptRows(), mColumns, mScreenRows);
+    }
+
+    /**
+     * Get the text of the transcript, along with the offset in the text at
+     * which each row of the transcript starts.
+     */
+    String getTranscriptText(GrowableIntArray colors, GrowableIntArray rowStarts) {
+        return internalGetTranscriptText(colors, rowStarts, 0, -mData.getActiveTranscriptRows(), mColumns, mScreenRows);
     }
 
     public String getSelectedText(int selX1, int selY1, int selX2, int selY2) {
-        return internalGetTranscriptText(null, selX1, selY1, selX2, selY2);
+        return internalGetTranscriptText(null, null, selX1, selY1, selX2, selY2);
     }
 
     public String getSelectedText(GrowableIntArray colors, int selX1, int selY1, int selX2, int selY2) {
-        return internalGetTranscriptText(colors, selX1, selY1, selX2, selY2);
+        return internalGetTranscriptText(colors, null, selX1, selY1, selX2, selY2);
+    }
+
+    /**
+     * Write the text of rows from startRow up to (but not including) endRow
+     * to out, one row at a time, so that only one row of text is held in
+     * memory at once.
+     */
+    void writeRows(int startRow, int endRow, Appendable out) throws IOException {
+        for (int row = startRow; row < endRow; row++) {
+            out.append(internalGetTranscriptText(null, null, 0, row, mColumns, row));
+            if (!mData.getLineWrap(row)) {
+                out.append('\n');
+            }
+        }
     }
 
-    private String internalGetTranscriptText(GrowableIntArray colors, int selX1, int selY1, int selX2, int selY2) {
+    private String internalGetTranscriptText(GrowableIntArray colors, GrowableIntArray rowStarts, int selX1, int selY1, int selX2, int selY2) {
         StringBuilder builder = new StringBuilder();
         UnicodeTranscript data = mData;
         int columns = mColumns;
@@ -341,6 +485,9 @@ private String internalGetTranscriptText(GrowableIntArray colors, int selX1, int
             selY2 = mScreenRows - 1;
         }
         for (int row = selY1; row <= selY2; row++) {
+            if (rowStarts != null) {
+                rowStarts.append(builder.length());
+            }
             int x1 = 0;
             int x2;
             if ( row == selY1 ) {
@@ -372,28 +519,25 @@ private String internalGetTranscriptText(GrowableIntArray colors, int selX1, int
             int lineLen = line.length;
             int i;
             int column = 0;
+            int style = defaultColor;
             for (i = 0; i < lineLen; ++i) {
                 char c = line[i];
                 if (c == 0) {
                     break;
                 }
-                
-                int style = defaultColor;
-                try {
-                    if (rowColorBuffer != null) {
-                        style = rowColorBuffer.get(column);
-                    }
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    // XXX This probably shouldn't happen ...
-                    style = defaultColor;
+
+                int width = Character.isLowSurrogate(c) ? 0 : UnicodeTranscript.charWidth(line, i);
+                /* A combining character (or the low half of a surrogate pair)
+                   has the style of the character it's part of, whose column
+                   has already been passed */
+                if (width > 0 && rowColorBuffer != null) {
+                    style = rowColorBuffer.get(column);
                 }
 
                 if (c != ' ' || style != defaultColor) {
                     lastPrintingChar = i;
                 }
-                if (!Character.isLowSurrogate(c)) {
-                    column += UnicodeTranscript.charWidth(line, i);
-                }
+                column += width;
             }
             if (data.getLineWrap(row) && lastPrintingChar > -1 && x2 == columns) {
                 // If the line was wrapped, we shouldn't lose trailing space
@@ -403,9 +547,15 @@ private String internalGetTranscriptText(GrowableIntArray colors, int selX1, int
             if (colors != null) {
                 if (rowColorBuffer != null) {
                     column = 0;
+                    style = defaultColor;
                     for (int j = 0; j <= lastPrintingChar; ++j) {
-                        colors.append(rowColorBuffer.get(column));
-                        column += UnicodeTranscript.charWidth(line, j);
+                        int width = UnicodeTranscript.charWidth(line, j);
+                        // As above, combining characters share their base's style
+                        if (width > 0) {
+                            style = rowColorBuffer.get(column);
+                        }
+                        colors.append(style);
+                        column += width;
                         if (Character.isHighSurrogate(line[j])) {
                             ++j;
                         }
@@ -484,6 +634,63 @@ boolean getScriptLineWrap(int row)
         return mData.getLineWrap(row);
     }
 
+    /**
+     * Get the URL of the explicit hyperlink at a location, or null if there
+     * is none.
+     */
+    String getLinkUrl(int column, int row) {
+        if (mData != null) {
+            return mData.getLinkUrl(column, row);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Mark a row with a shell integration (OSC 133) mark.
+     */
+    void addMark(int row, int type) {
+        mData.addMark(row, type);
+    }
+
+    /**
+     * Find the nearest mark of a type above a row.
+     *
+     * @param type The kind of mark, or 0 for any mark.
+     * @return The row of the mark, or UnicodeTranscript.NO_MARK.
+     */
+    int getPreviousMark(int row, int type) {
+        return mData.getPreviousMark(row, type);
+    }
+
+    /**
+     * Find the nearest mark of a type below a row.
+     *
+     * @param type The kind of mark, or 0 for any mark.
+     * @return The row of the mark, or UnicodeTranscript.NO_MARK.
+     */
+    int getNextMark(int row, int type) {
+        return mData.getNextMark(row, type);
+    }
+
+    /**
+     * Get the marks on all rows of the transcript, as (row, type) pairs.
+     */
+    void getMarks(GrowableIntArray marks) {
+        mData.getMarks(-mData.getActiveTranscriptRows(), mScreenRows - 1, marks);
+    }
+
+    /**
+     * Get whether the line at this index contains explicit hyperlinks.
+     */
+    boolean hasLinks(int row) {
+        if (mData != null) {
+            return mData.hasLinks(row);
+        } else {
+            return false;
+        }
+    }
+
     /**
      * Get whether the line at this index is "basic" (contains only BMP
      * characters of width 1).
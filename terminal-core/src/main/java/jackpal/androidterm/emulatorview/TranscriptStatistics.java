@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+/**
+ * How much room a transcript (the screen and its scrollback) takes up, and
+ * how its rows are stored: as a plain char array ("basic"), as a
+ * FullUnicodeLine for rows with wide or combining characters ("full"), or
+ * not at all for rows which have never been written to.
+ * <p>
+ * The memory estimate assumes a typical 32-bit VM (8-byte object headers,
+ * 4-byte references, objects padded to 8 bytes).  It is meant for comparing
+ * sessions, not for exact accounting.
+ */
+public final class TranscriptStatistics {
+    int mRows;
+    int mActiveRows;
+    int mMaxRows;
+    int mBasicRows;
+    int mFullRows;
+    int mStyledRows;
+    int mCompactedRows;
+    long mEstimatedBytes;
+
+    /** Clear the statistics, to collect them again. */
+    public void clear() {
+        mRows = 0;
+        mActiveRows = 0;
+        mMaxRows = 0;
+        mBasicRows = 0;
+        mFullRows = 0;
+        mStyledRows = 0;
+        mCompactedRows = 0;
+        mEstimatedBytes = 0;
+    }
+
+    /** Add another transcript's statistics to these. */
+    public void add(TranscriptStatistics other) {
+        mRows += other.mRows;
+        mActiveRows += other.mActiveRows;
+        mMaxRows += other.mMaxRows;
+        mBasicRows += other.mBasicRows;
+        mFullRows += other.mFullRows;
+        mStyledRows += other.mStyledRows;
+        mCompactedRows += other.mCompactedRows;
+        mEstimatedBytes += other.mEstimatedBytes;
+    }
+
+    /** The rows there is currently room for. */
+    public int getRows() {
+        return mRows;
+    }
+
+    /** The rows in use: the screen and the scrollback so far. */
+    public int getActiveRows() {
+        return mActiveRows;
+    }
+
+    /** The rows the transcript may grow to. */
+    public int getMaxRows() {
+        return mMaxRows;
+    }
+
+    /** Rows stored as plain char arrays. */
+    public int getBasicRows() {
+        return mBasicRows;
+    }
+
+    /** Rows stored as FullUnicodeLines. */
+    public int getFullRows() {
+        return mFullRows;
+    }
+
+    /** Rows with more than one style, which need a style for each column. */
+    public int getStyledRows() {
+        return mStyledRows;
+    }
+
+    /**
+     * Transcript rows which have been packed into a compressed byte array
+     * by {@link TerminalEmulator#compactTranscript}; they aren't counted as
+     * basic, full or styled rows.
+     */
+    public int getCompactedRows() {
+        return mCompactedRows;
+    }
+
+    /** Roughly how many bytes the transcript takes up. */
+    public long getEstimatedBytes() {
+        return mEstimatedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return mActiveRows + "/" + mRows + "/" + mMaxRows + " rows (active/allocated/max), "
+            + mBasicRows + " basic, " + mFullRows + " full, " + mStyledRows + " styled, "
+            + mCompactedRows + " compacted, ~"
+            + (mEstimatedBytes + 1023) / 1024 + " KB";
+    }
+
+    static final int OBJECT_HEADER_BYTES = 8;
+    static final int REFERENCE_BYTES = 4;
+
+    /** The estimated size of an object with the given size of fields. */
+    static long objectBytes(long fieldBytes) {
+        return (OBJECT_HEADER_BYTES + fieldBytes + 7) & ~7L;
+    }
+
+    /** The estimated size of an array; arrays also store their length. */
+    static long arrayBytes(int length, int elementBytes) {
+        return objectBytes(4 + (long) length * elementBytes);
+    }
+}
@@ -0,0 +1,2080 @@
+/*
+ * Copyright (C) 2011 Steven Luo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A backing store for a TranscriptScreen.
+ *
+ * The text is stored as a circular buffer of rows, which starts out with
+ * room for the screen and a little transcript, and is grown as lines scroll
+ * into the transcript.  There are two types of row:
+ * - "basic", which is a char[] array used to store lines which consist
+ *   entirely of regular-width characters (no combining characters, zero-width
+ *   characters, East Asian double-width characters, etc.) in the BMP; and
+ * - "full", a FullUnicodeLine, which stores one code point per column with
+ *   extra trappings, and can be used to store a line containing any valid
+ *   Unicode sequence.
+ *
+ * Style information is stored in a separate circular buffer of StyleRows.
+ * The StyleRows also hold the ids of explicit (OSC 8) hyperlinks, whose URLs
+ * are interned in a table here.  Table entries are reclaimed once no row
+ * refers to them any more, which is found out by sweeping the active rows
+ * when the table fills up.
+ *
+ * Rows can also carry shell integration marks (OSC 133), which record where
+ * prompts, commands and their output start.  The marks are kept in order of
+ * their absolute row number, which counts rows from the start of the session
+ * and so doesn't change as rows scroll, allowing the previous or next mark
+ * from a row to be found by binary search.
+ *
+ * Rows are allocated on demand, when a character is first stored into them.
+ * A "basic" row is allocated unless the store which triggers the allocation
+ * requires a "full" row.  "Basic" rows are converted to "full" rows when
+ * needed.  There is no conversion in the other direction -- a "full" row
+ * stays that way even if it contains only regular-width BMP characters.
+ *
+ * The transcript rows of a session nobody is looking at can be compacted:
+ * packed into a compressed byte array, leaving just the screen in the
+ * buffers.  They are unpacked again the first time anything needs them --
+ * reading a transcript row, scrolling, or resizing.
+ */
+class UnicodeTranscript {
+    private static final String TAG = "UnicodeTranscript";
+
+    /**
+     * The number of transcript rows to allocate room for at first, in
+     * addition to the screen.
+     */
+    private static final int INITIAL_TRANSCRIPT_ROWS = 128;
+
+    /**
+     * The number of hyperlink URLs to make room for at first.  The table is
+     * grown as needed, up to the largest id a StyleRow can hold.
+     */
+    private static final int INITIAL_LINK_TABLE_SIZE = 16;
+    private static final int MAX_LINK_TABLE_SIZE = 0x10000;
+
+    private Object[] mLines;
+    private StyleRow[] mColor;
+    private boolean[] mLineWrap;
+    private int mTotalRows;
+    /** The number of rows the buffers may grow to */
+    private int mMaxTotalRows;
+    private int mScreenRows;
+    private int mColumns;
+    private int mActiveTranscriptRows = 0;
+    private int mDefaultStyle = 0;
+
+    private int mScreenFirstRow = 0;
+
+    /**
+     * The mActiveTranscriptRows transcript rows, oldest first, packed by
+     * compact(); null if they're in the buffers as usual.  While the rows
+     * are packed, the buffers hold just the screen.
+     */
+    private byte[] mCompactedRows;
+
+    /* How compact() packs a row: one of PACKED_BLANK, PACKED_BASIC or
+       PACKED_FULL, plus the flags for the rest of the row */
+    private static final int PACKED_BLANK = 0;
+    private static final int PACKED_BASIC = 1;
+    private static final int PACKED_FULL = 2;
+    private static final int PACKED_LINE_MASK = 3;
+    private static final int PACKED_HAS_COLOR = 4;
+    private static final int PACKED_LINE_WRAP = 8;
+    private static final int PACK_BUFFER_SIZE = 8192;
+
+    private char[] tmpLine;
+    private StyleRow tmpColor;
+    private char[] tmpSpan;
+    private Object[] tmpRowLines;
+    private StyleRow[] tmpRowColors;
+    private boolean[] tmpRowLineWrap;
+
+    /** Hyperlink URLs by id; id 0 means no link */
+    private String[] mLinkUrls;
+    private HashMap<String, Integer> mLinkIds;
+    private int mLinkCount;
+    /** Where to start looking for a free link id */
+    private int mNextLink = 1;
+    private String mLastLinkUrl;
+    private int mLastLinkId;
+
+    /**
+     * The number of rows which have scrolled off the top of the screen; the
+     * absolute row number of external row r is mScrolledRows + r.
+     */
+    private long mScrolledRows;
+
+    /**
+     * Shell integration marks, sorted by absolute row number.  The marks in
+     * use are those from mMarkStart to mMarkStart + mMarkCount - 1.
+     */
+    private long[] mMarkRows;
+    private byte[] mMarkTypes;
+    private int mMarkStart;
+    private int mMarkCount;
+
+    /** Returned by getPreviousMark and getNextMark if there's no such mark */
+    public static final int NO_MARK = Integer.MIN_VALUE;
+
+    public UnicodeTranscript(int columns, int totalRows, int screenRows, int defaultStyle) {
+        mColumns = columns;
+        mMaxTotalRows = totalRows;
+        totalRows = Math.min(totalRows, screenRows + INITIAL_TRANSCRIPT_ROWS);
+        mTotalRows = totalRows;
+        mScreenRows = screenRows;
+        mLines = new Object[totalRows];
+        mColor = new StyleRow[totalRows];
+        mLineWrap = new boolean[totalRows];
+        tmpColor = new StyleRow(defaultStyle, mColumns);
+
+        mDefaultStyle = defaultStyle;
+    }
+
+    public void setDefaultStyle(int defaultStyle) {
+        mDefaultStyle = defaultStyle;
+    }
+
+    public int getDefaultStyle() {
+        return mDefaultStyle;
+    }
+
+    public int getActiveTranscriptRows() {
+        return mActiveTranscriptRows;
+    }
+
+    public int getActiveRows() {
+        return mActiveTranscriptRows + mScreenRows;
+    }
+
+    /**
+     * Convert a row value from the public external coordinate system to our
+     * internal private coordinate system.
+     * External coordinate system:
+     * -mActiveTranscriptRows to mScreenRows-1, with the screen being
+     * 0..mScreenRows-1
+     * Internal coordinate system: the mScreenRows lines starting at
+     * mScreenFirstRow comprise the screen, while the mActiveTranscriptRows
+     * lines ending at mScreenRows-1 form the transcript (as a circular
+     * buffer).
+     *
+     * @param extRow a row in the external coordinate system.
+     * @return The row corresponding to the input argument in the private
+     *         coordinate system.
+     */
+    private int externalToInternalRow(int extRow) {
+        if (extRow < -mActiveTranscriptRows || extRow > mScreenRows) {
+            String errorMessage = "externalToInternalRow "+ extRow +
+                " " + mScreenRows + " " + mActiveTranscriptRows;
+            EmulatorLog.e(TAG, errorMessage);
+            throw new IllegalArgumentException(errorMessage);
+        }
+
+        if (extRow >= 0) {
+            return (mScreenFirstRow + extRow) % mTotalRows;
+        } else {
+            if (mCompactedRows != null) {
+                expand(0);
+            }
+            if (-extRow > mScreenFirstRow) {
+                return mTotalRows + mScreenFirstRow + extRow;
+            } else {
+                return mScreenFirstRow + extRow;
+            }
+        }
+    }
+
+    /**
+     * Make sure the buffers have room for at least rows rows, growing them
+     * (up to mMaxTotalRows) if necessary.
+     */
+    private void ensureTotalRows(int rows) {
+        int totalRows = mTotalRows;
+        if (rows <= totalRows || totalRows >= mMaxTotalRows) {
+            return;
+        }
+
+        setTotalRows(Math.min(mMaxTotalRows, Math.max(rows, 2 * totalRows)));
+    }
+
+    /**
+     * Reallocate the buffers with room for newTotalRows rows, which must be
+     * at least the number of active rows.
+     */
+    private void setTotalRows(int newTotalRows) {
+        int totalRows = mTotalRows;
+        Object[] lines = new Object[newTotalRows];
+        StyleRow[] color = new StyleRow[newTotalRows];
+        boolean[] lineWrap = new boolean[newTotalRows];
+
+        // Unroll the circular buffer, so that the oldest row is at index 0
+        int activeRows = mActiveTranscriptRows + mScreenRows;
+        int first = externalToInternalRow(-mActiveTranscriptRows);
+        int firstPart = Math.min(activeRows, totalRows - first);
+        System.arraycopy(mLines, first, lines, 0, firstPart);
+        System.arraycopy(mLines, 0, lines, firstPart, activeRows - firstPart);
+        System.arraycopy(mColor, first, color, 0, firstPart);
+        System.arraycopy(mColor, 0, color, firstPart, activeRows - firstPart);
+        System.arraycopy(mLineWrap, first, lineWrap, 0, firstPart);
+        System.arraycopy(mLineWrap, 0, lineWrap, firstPart, activeRows - firstPart);
+
+        mLines = lines;
+        mColor = color;
+        mLineWrap = lineWrap;
+        mScreenFirstRow = mActiveTranscriptRows;
+        mTotalRows = newTotalRows;
+    }
+
+    public void setLineWrap(int row) {
+        int internalRow = externalToInternalRow(row);
+        mLineWrap[internalRow] = true;
+    }
+
+    public boolean getLineWrap(int row) {
+        int internalRow = externalToInternalRow(row);
+        return mLineWrap[internalRow];
+    }
+
+    /**
+     * Resize the screen which this transcript backs.  Currently, this
+     * only works if the number of columns does not change.
+     *
+     * @param newColumns The number of columns the screen should have.
+     * @param newRows The number of rows the screen should have.
+     * @param cursor An int[2] containing the current cursor location; if the
+     *        resize succeeds, this will be updated with the new cursor
+     *        location.  If null, don't do cursor-position-dependent tasks such
+     *        as trimming blank lines during the resize.
+     * @return Whether or not the resize succeeded.  If the resize failed,
+     *         the caller may "resize" the screen by copying out all the data
+     *         and placing it into a new transcript of the correct size.
+     */
+    public boolean resize(int newColumns, int newRows, int[] cursor) {
+        if (newColumns != mColumns || newRows > mMaxTotalRows) {
+            return false;
+        }
+        if (mCompactedRows != null) {
+            expand(0);
+        }
+        ensureTotalRows(newRows);
+
+        int screenRows = mScreenRows;
+        int activeTranscriptRows = mActiveTranscriptRows;
+        int shift = screenRows - newRows;
+        if (shift < -activeTranscriptRows) {
+            // We want to add blank lines at the bottom instead of at the top
+            Object[] lines = mLines;
+            Object[] color = mColor;
+            boolean[] lineWrap = mLineWrap;
+            int screenFirstRow = mScreenFirstRow;
+            int totalRows = mTotalRows;
+            for (int i = 0; i < activeTranscriptRows - shift; ++i) {
+                int index = (screenFirstRow + screenRows + i) % totalRows;
+                lines[index] = null;
+                color[index] = null;
+                lineWrap[index] = false;
+            }
+            shift = -activeTranscriptRows;
+        } else if (shift > 0 && cursor != null && cursor[1] != screenRows - 1) {
+            /* When shrinking the screen, we want to hide blank lines at the
+               bottom in preference to lines at the top of the screen */
+            Object[] lines = mLines;
+            for (int i = screenRows - 1; i > cursor[1]; --i) {
+                int index = externalToInternalRow(i);
+                if (lines[index] == null) {
+                    // Line is blank
+                    --shift;
+                    if (shift == 0) {
+                        break;
+                    } else {
+                        continue;
+                    }
+                }
+
+                char[] line;
+                if (lines[index] instanceof char[]) {
+                    line = (char[]) lines[index];
+                } else {
+                    line = ((FullUnicodeLine) lines[index]).getLine();
+                }
+
+                int len = line.length;
+                int j;
+                for (j = 0; j < len; ++j) {
+                    if (line[j] == 0) {
+                        // We've reached the end of the line
+                        j = len;
+                        break;
+                    } else if (line[j] != ' ') {
+                        // Line is not blank
+                        break;
+                    }
+                }
+
+                if (j == len) {
+                    // Line is blank
+                    --shift;
+                    if (shift == 0) {
+                        break;
+                    } else {
+                        continue;
+                    }
+                } else {
+                    // Line not blank -- we keep it and everything above
+                    break;
+                }
+            }
+        }
+
+        mScrolledRows += shift;
+        if (shift > 0 || (shift < 0 && mScreenFirstRow >= -shift)) {
+            // All we're doing is moving the top of the screen.
+            mScreenFirstRow = (mScreenFirstRow + shift) % mTotalRows;
+        } else if (shift < 0) {
+            // The new top of the screen wraps around the top of the array.
+            mScreenFirstRow = mTotalRows + mScreenFirstRow + shift;
+        }
+
+        if (mActiveTranscriptRows + shift < 0) {
+            mActiveTranscriptRows = 0;
+        } else {
+            mActiveTranscriptRows += shift;
+        }
+        if (cursor != null) {
+            cursor[1] -= shift;
+        }
+        mScreenRows = newRows;
+
+        return true;
+    }
+
+    /**
+     * Block copy lines and associated metadata from one location to another
+     * in the circular buffer, taking wraparound into account.
+     *
+     * @param src The first line to be copied.
+     * @param len The number of lines to be copied.
+     * @param shift The offset of the destination from the source.
+     */
+    private void blockCopyLines(int src, int len, int shift) {
+        int totalRows = mTotalRows;
+
+        int dst;
+        if (src + shift >= 0) {
+            dst = (src + shift) % totalRows;
+        } else {
+            dst = totalRows + src + shift;
+        }
+
+        if (src + len <= totalRows && dst + len <= totalRows) {
+            // Fast path -- no wraparound
+            System.arraycopy(mLines, src, mLines, dst, len);
+            System.arraycopy(mColor, src, mColor, dst, len);
+            System.arraycopy(mLineWrap, src, mLineWrap, dst, len);
+            return;
+        }
+
+        if (shift < 0) {
+            // Do the copy from top to bottom
+            for (int i = 0; i < len; ++i) {
+                mLines[(dst + i) % totalRows] = mLines[(src + i) % totalRows];
+                mColor[(dst + i) % totalRows] = mColor[(src + i) % totalRows];
+                mLineWrap[(dst + i) % totalRows] = mLineWrap[(src + i) % totalRows];
+            }
+        } else {
+            // Do the copy from bottom to top
+            for (int i = len - 1; i >= 0; --i) {
+                mLines[(dst + i) % totalRows] = mLines[(src + i) % totalRows];
+                mColor[(dst + i) % totalRows] = mColor[(src + i) % totalRows];
+                mLineWrap[(dst + i) % totalRows] = mLineWrap[(src + i) % totalRows];
+            }
+        }
+    }
+
+    /**
+     * Scroll the screen down one line. To scroll the whole screen of a 24 line
+     * screen, the arguments would be (0, 24).
+     *
+     * @param topMargin First line that is scrolled.
+     * @param bottomMargin One line after the last line that is scrolled.
+     * @param style the style for the newly exposed line.
+     */
+    public void scroll(int topMargin, int bottomMargin, int style) {
+        scroll(topMargin, bottomMargin, style, 1);
+    }
+
+    /**
+     * Scroll the screen down several lines at once.  This has the same effect
+     * as scrolling one line at a time, but the lines are moved at most once.
+     *
+     * @param topMargin First line that is scrolled.
+     * @param bottomMargin One line after the last line that is scrolled.
+     * @param style the style for the newly exposed lines.
+     * @param lines The number of lines to scroll, at most the height of the
+     *        scrolled region.
+     */
+    public void scroll(int topMargin, int bottomMargin, int style, int lines) {
+        // Separate out reasons so that stack crawls help us
+        // figure out which condition was violated.
+        if (topMargin > bottomMargin - 1) {
+            throw new IllegalArgumentException();
+        }
+
+        if (topMargin < 0)  {
+            throw new IllegalArgumentException();
+        }
+
+        if (bottomMargin > mScreenRows) {
+            throw new IllegalArgumentException();
+        }
+
+        if (lines < 1 || lines > bottomMargin - topMargin) {
+            throw new IllegalArgumentException();
+        }
+
+        if (mCompactedRows != null) {
+            expand(0);
+        }
+        int screenRows = mScreenRows;
+        ensureTotalRows(mActiveTranscriptRows + screenRows + lines);
+        int totalRows = mTotalRows;
+
+        if (topMargin == 0 && bottomMargin == screenRows) {
+            // Fast path -- scroll the entire screen
+            mScreenFirstRow = (mScreenFirstRow + lines) % totalRows;
+            mScrolledRows += lines;
+            mActiveTranscriptRows = Math.min(mActiveTranscriptRows + lines,
+                    totalRows - screenRows);
+
+            // Blank the bottom margin
+            blankRows(bottomMargin - lines, lines, style);
+            return;
+        }
+
+        if (totalRows - screenRows < lines && totalRows > screenRows) {
+            // Scroll in pieces that fit into the transcript
+            int maxLines = totalRows - screenRows;
+            while (lines > 0) {
+                int n = Math.min(lines, maxLines);
+                scroll(topMargin, bottomMargin, style, n);
+                lines -= n;
+            }
+            return;
+        }
+
+        if (totalRows == screenRows) {
+            /* There is no transcript to put the scrolled lines into (as in
+               the alternate screen) -- just move the rows within the
+               scrolled region */
+            int height = bottomMargin - topMargin;
+            moveRows(topMargin + lines, height - lines, topMargin);
+            boolean[] lineWrap = mLineWrap;
+            for (int i = topMargin; i < bottomMargin - lines; ++i) {
+                lineWrap[externalToInternalRow(i)] = lineWrap[externalToInternalRow(i + lines)];
+            }
+            blankRows(bottomMargin - lines, lines, style);
+            return;
+        }
+
+        int screenFirstRow = mScreenFirstRow;
+        int bottomMarginInt = externalToInternalRow(bottomMargin);
+
+        /* Save the scrolled lines, move the lines above them on the screen
+           down, move the lines on screen below the bottom margin down, then
+           insert the scrolled lines into the transcript */
+        Object[] scrollLines = tmpRowLines;
+        StyleRow[] scrollColors = tmpRowColors;
+        if (scrollLines == null || scrollLines.length < lines) {
+            tmpRowLines = scrollLines = new Object[screenRows];
+            tmpRowColors = scrollColors = new StyleRow[screenRows];
+        }
+        boolean[] scrollLineWrap = tmpRowLineWrap;
+        if (scrollLineWrap == null || scrollLineWrap.length < lines) {
+            tmpRowLineWrap = scrollLineWrap = new boolean[screenRows];
+        }
+        Object[] text = mLines;
+        StyleRow[] color = mColor;
+        boolean[] lineWrap = mLineWrap;
+        for (int i = 0; i < lines; ++i) {
+            int row = externalToInternalRow(topMargin + i);
+            scrollLines[i] = text[row];
+            scrollColors[i] = color[row];
+            scrollLineWrap[i] = lineWrap[row];
+        }
+        blockCopyLines(screenFirstRow, topMargin, lines);
+        blockCopyLines(bottomMarginInt, screenRows - bottomMargin, lines);
+        for (int i = 0; i < lines; ++i) {
+            int row = (screenFirstRow + i) % totalRows;
+            text[row] = scrollLines[i];
+            color[row] = scrollColors[i];
+            lineWrap[row] = scrollLineWrap[i];
+            scrollLines[i] = null;
+            scrollColors[i] = null;
+        }
+
+        // Update the screen location
+        mScreenFirstRow = (screenFirstRow + lines) % totalRows;
+        mScrolledRows += lines;
+        mActiveTranscriptRows = Math.min(mActiveTranscriptRows + lines,
+                totalRows - screenRows);
+
+        // Blank the bottom margin
+        blankRows(bottomMargin - lines, lines, style);
+    }
+
+    /**
+     * Make count rows starting at row blank, with the given style.
+     */
+    private void blankRows(int row, int count, int style) {
+        for (int i = 0; i < count; ++i) {
+            int blankRow = externalToInternalRow(row + i);
+            mLines[blankRow] = null;
+            mColor[blankRow] = new StyleRow(style, mColumns);
+            mLineWrap[blankRow] = false;
+        }
+    }
+
+    /**
+     * Block copy characters from one position in the screen to another. The two
+     * positions can overlap. All characters of the source and destination must
+     * be within the bounds of the screen, or else an InvalidParameterException
+     * will be thrown.
+     *
+     * Copies of whole rows are done by moving the rows rather than copying
+     * their contents.  In this case, the source rows which aren't also
+     * destination rows are left holding the old contents of the destination
+     * rows, instead of their own contents; callers are expected to clear
+     * them, as the terminal does when inserting and deleting lines.
+     *
+     * @param sx source X coordinate
+     * @param sy source Y coordinate
+     * @param w width
+     * @param h height
+     * @param dx destination X coordinate
+     * @param dy destination Y coordinate
+     */
+    public void blockCopy(int sx, int sy, int w, int h, int dx, int dy) {
+        if (sx < 0 || sx + w > mColumns || sy < 0 || sy + h > mScreenRows
+                || dx < 0 || dx + w > mColumns || dy < 0
+                || dy + h > mScreenRows) {
+            throw new IllegalArgumentException();
+        }
+        if ((sy == dy && sx == dx) || w == 0) {
+            return;
+        }
+        if (sx == 0 && dx == 0 && w == mColumns) {
+            moveRows(sy, h, dy);
+            return;
+        }
+        if (sy > dy) {
+            // Move in increasing order
+            for (int y = 0; y < h; y++) {
+                copySpan(sx, sy + y, w, dx, dy + y);
+            }
+        } else {
+            // Move in decreasing order
+            for (int y = h - 1; y >= 0; y--) {
+                copySpan(sx, sy + y, w, dx, dy + y);
+            }
+        }
+    }
+
+    /**
+     * Move h whole rows starting at row sy to row dy, by moving references to
+     * the rows instead of copying characters.  The rows which are overwritten
+     * are moved into the source rows left behind.
+     */
+    private void moveRows(int sy, int h, int dy) {
+        Object[] lines = mLines;
+        StyleRow[] color = mColor;
+        int count = Math.min(Math.abs(dy - sy), h);
+
+        // Save the destination rows which aren't also source rows
+        int saved = dy > sy ? Math.max(dy, sy + h) : dy;
+        Object[] tmpLines = tmpRowLines;
+        StyleRow[] tmpColors = tmpRowColors;
+        if (tmpLines == null || tmpLines.length < count) {
+            tmpRowLines = tmpLines = new Object[mScreenRows];
+            tmpRowColors = tmpColors = new StyleRow[mScreenRows];
+        }
+        for (int i = 0; i < count; i++) {
+            int row = externalToInternalRow(saved + i);
+            tmpLines[i] = lines[row];
+            tmpColors[i] = color[row];
+        }
+
+        if (dy > sy) {
+            for (int i = h - 1; i >= 0; i--) {
+                int srcRow = externalToInternalRow(sy + i);
+                int dstRow = externalToInternalRow(dy + i);
+                lines[dstRow] = lines[srcRow];
+                color[dstRow] = color[srcRow];
+            }
+        } else {
+            for (int i = 0; i < h; i++) {
+                int srcRow = externalToInternalRow(sy + i);
+                int dstRow = externalToInternalRow(dy + i);
+                lines[dstRow] = lines[srcRow];
+                color[dstRow] = color[srcRow];
+            }
+        }
+
+        // Put the saved rows into the source rows which were vacated
+        int vacated = dy > sy ? sy : Math.max(sy, dy + h);
+        for (int i = 0; i < count; i++) {
+            int row = externalToInternalRow(vacated + i);
+            lines[row] = tmpLines[i];
+            color[row] = tmpColors[i];
+            tmpLines[i] = null;
+            tmpColors[i] = null;
+        }
+    }
+
+    /**
+     * Copy w columns starting at (sx, sy) to (dx, dy), on one row.
+     */
+    private void copySpan(int sx, int sy, int w, int dx, int dy) {
+        Object[] lines = mLines;
+        StyleRow[] color = mColor;
+        int srcRow = externalToInternalRow(sy);
+        int dstRow = externalToInternalRow(dy);
+        Object src = lines[srcRow];
+        Object dst = lines[dstRow];
+        if (src == null) {
+            /* Source line was blank, but its styles (such as the background
+               color it was erased with) are still copied below */
+            if (dst instanceof char[]) {
+                Arrays.fill((char[]) dst, dx, dx + w, ' ');
+            } else if (dst != null) {
+                char[] span = getSpanBuffer(w);
+                Arrays.fill(span, 0, w, ' ');
+                ((FullUnicodeLine) dst).replaceColumns(dx, w, span, 0, w);
+            }
+        } else if (src instanceof char[]) {
+            if (dst == null) {
+                dst = allocateBasicLine(dstRow, mColumns);
+            }
+            if (dst instanceof char[]) {
+                System.arraycopy(src, sx, dst, dx, w);
+            } else {
+                ((FullUnicodeLine) dst).replaceColumns(dx, w, (char[]) src, sx, w);
+            }
+        } else {
+            FullUnicodeLine srcLine = (FullUnicodeLine) src;
+            if (dst == null) {
+                dst = allocateFullLine(dstRow, mColumns);
+            } else if (dst instanceof char[]) {
+                dst = new FullUnicodeLine((char[]) dst);
+                lines[dstRow] = dst;
+            }
+            char[] span = getSpanBuffer(srcLine.getSpaceUsed() + 2);
+            int length = srcLine.getColumns(sx, w, span);
+            ((FullUnicodeLine) dst).replaceColumns(dx, w, span, 0, length);
+        }
+        // Rows added when the screen grows have no styles yet
+        if (color[dstRow] == null) {
+            color[dstRow] = new StyleRow(mDefaultStyle, mColumns);
+        }
+        if (color[srcRow] == null) {
+            color[dstRow].fill(dx, w, mDefaultStyle);
+        } else {
+            color[srcRow].copy(sx, color[dstRow], dx, w);
+        }
+    }
+
+    private char[] getSpanBuffer(int length) {
+        if (tmpSpan == null || tmpSpan.length < length) {
+            tmpSpan = new char[length];
+        }
+        return tmpSpan;
+    }
+
+    /**
+     * Block set characters. All characters must be within the bounds of the
+     * screen, or else and InvalidParemeterException will be thrown. Typically
+     * this is called with a "val" argument of 32 to clear a block of
+     * characters.
+     *
+     * @param sx source X
+     * @param sy source Y
+     * @param w width
+     * @param h height
+     * @param val value to set.
+     */
+    public void blockSet(int sx, int sy, int w, int h, int val, int style) {
+        if (sx < 0 || sx + w > mColumns || sy < 0 || sy + h > mScreenRows) {
+            EmulatorLog.e(TAG, "illegal arguments! " + sx + " " + sy + " " + w + " " + h + " " + val + " " + mColumns + " " + mScreenRows);
+            throw new IllegalArgumentException();
+        }
+
+        Object[] lines = mLines;
+        StyleRow[] color = mColor;
+        boolean basicChar = isBasicChar(val);
+        for (int y = 0; y < h; y++) {
+            int row = externalToInternalRow(sy + y);
+            Object line = lines[row];
+            if (val == ' ' && (line == null || (sx == 0 && w == mColumns))) {
+                // Clearing a blank line, or a whole line: the line is blank
+                lines[row] = null;
+            } else if (line instanceof char[] && basicChar) {
+                Arrays.fill((char[]) line, sx, sx + w, (char) val);
+            } else if (line instanceof FullUnicodeLine && basicChar) {
+                char[] span = getSpanBuffer(w);
+                Arrays.fill(span, 0, w, (char) val);
+                ((FullUnicodeLine) line).replaceColumns(sx, w, span, 0, w);
+            } else {
+                for (int x = 0; x < w; x++) {
+                    setChar(sx + x, sy + y, val);
+                }
+            }
+
+            if (color[row] == null) {
+                color[row] = new StyleRow(0, mColumns);
+            }
+            if (sx == 0 && w == mColumns) {
+                color[row].reset(style);
+            } else {
+                color[row].fill(sx, w, style);
+            }
+        }
+    }
+
+    /**
+     * The character data charWidth() needs which plain Java doesn't have,
+     * and which should match what the text renderer does.
+     */
+    interface CharacterWidths {
+        /**
+         * @return Whether the BMP character c is East Asian wide or
+         *         fullwidth.
+         */
+        boolean isWide(char c);
+
+        /**
+         * @return Whether conjoining Hangul jamo are rendered composed into
+         *         syllable blocks, rather than as separate wide characters.
+         */
+        boolean composesHangulJamo();
+    }
+
+    /**
+     * Used outside Android: the East Asian wide and fullwidth ranges of the
+     * BMP, as in Markus Kuhn's wcwidth().
+     */
+    private static final CharacterWidths DEFAULT_CHARACTER_WIDTHS = new CharacterWidths() {
+        public boolean isWide(char c) {
+            return c >= 0x1100 && (c <= 0x115f || c == 0x2329 || c == 0x232a
+                    || (c >= 0x2e80 && c <= 0xa4cf && c != 0x303f)
+                    || (c >= 0xac00 && c <= 0xd7a3)
+                    || (c >= 0xf900 && c <= 0xfaff)
+                    || (c >= 0xfe10 && c <= 0xfe19)
+                    || (c >= 0xfe30 && c <= 0xfe6f)
+                    || (c >= 0xff00 && c <= 0xff60)
+                    || (c >= 0xffe0 && c <= 0xffe6));
+        }
+
+        public boolean composesHangulJamo() {
+            return true;
+        }
+    };
+
+    private static CharacterWidths sCharacterWidths = DEFAULT_CHARACTER_WIDTHS;
+
+    /**
+     * Replace the character data used by charWidth().  Must be done before
+     * any text is stored, since changing widths would corrupt stored rows.
+     */
+    static void setCharacterWidths(CharacterWidths widths) {
+        sCharacterWidths = widths;
+    }
+
+    /**
+     * Gives the display width of the code point in a monospace font.
+     *
+     * Nonspacing combining marks, format characters, and control characters
+     * have display width zero.  East Asian fullwidth and wide characters
+     * have display width two.  All other characters have display width one.
+     *
+     * Known issues:
+     * - Proper support for East Asian wide characters requires API >= 8 on
+     *   Android; elsewhere, a fixed table of wide ranges is used.
+     * - Assigning all East Asian "ambiguous" characters a width of 1 may not
+     *   be correct if Android renders those characters as wide in East Asian
+     *   context (as the Unicode standard permits).
+     * - Isolated Hangul conjoining medial vowels and final consonants are
+     *   treated as combining characters (they should only be combining when
+     *   part of a Korean syllable block).
+     *
+     * @param codePoint A Unicode code point.
+     * @return The display width of the Unicode code point.
+     */
+    public static int charWidth(int codePoint) {
+        // Early out for ASCII printable characters
+        if (codePoint > 31 && codePoint < 127) {
+            return 1;
+        }
+
+        /* HACK: We're using ASCII ESC to save the location of the cursor
+           across screen resizes, so we need to pretend that it has width 1 */
+        if (codePoint == 27) {
+            return 1;
+        }
+
+        switch (Character.getType(codePoint)) {
+        case Character.CONTROL:
+        case Character.FORMAT:
+        case Character.NON_SPACING_MARK:
+        case Character.ENCLOSING_MARK:
+            return 0;
+        }
+
+        if ((codePoint >= 0x1160 && codePoint <= 0x11FF) ||
+            (codePoint >= 0xD7B0 && codePoint <= 0xD7FF)) {
+            if (sCharacterWidths.composesHangulJamo()) {
+                /* Treat Hangul jamo medial vowels and final consonants as
+                 * combining characters with width 0 to make jamo composition
+                 * work correctly.
+                 *
+                 * XXX: This is wrong for medials/finals outside a Korean
+                 * syllable block, but there's no easy solution to that
+                 * problem, and we may as well at least get the common case
+                 * right. */
+                return 0;
+            } else {
+                /* Older versions of Android don't compose Hangul jamo, but
+                 * instead rendered them as individual East Asian wide
+                 * characters (despite Unicode defining medial vowels and final
+                 * consonants as East Asian neutral/narrow).  Treat them as
+                 * width 2 characters to match the rendering. */
+                return 2;
+            }
+        }
+        if (Character.charCount(codePoint) == 1) {
+            // Android's getEastAsianWidth() only works for BMP characters
+            if (sCharacterWidths.isWide((char) codePoint)) {
+                return 2;
+            }
+        } else {
+            // Outside the BMP, only the ideographic planes contain wide chars
+            switch ((codePoint >> 16) & 0xf) {
+            case 2: // Supplementary Ideographic Plane
+            case 3: // Tertiary Ideographic Plane
+                return 2;
+            }
+        }
+
+        return 1;
+    }
+
+    public static int charWidth(char cHigh, char cLow) {
+        return charWidth(Character.toCodePoint(cHigh, cLow));
+    }
+
+    /**
+     * Gives the display width of a code point in a char array
+     * in a monospace font.
+     *
+     * @param chars The array containing the code point in question.
+     * @param index The index into the array at which the code point starts.
+     * @return The display width of the Unicode code point.
+     */
+    public static int charWidth(char[] chars, int index) {
+        char c = chars[index];
+        if (Character.isHighSurrogate(c)) {
+            return charWidth(c, chars[index+1]);
+        } else {
+            return charWidth(c);
+        }
+    }
+
+    /**
+     * Get the contents of a line (or part of a line) of the transcript.
+     *
+     * The char[] array returned may be part of the internal representation
+     * of the line -- make a copy first if you want to modify it.  The returned
+     * array may be longer than the requested portion of the transcript; in
+     * this case, the last character requested will be followed by a NUL, and
+     * the contents of the rest of the array could potentially be garbage.
+     *
+     * @param row The row number to get (-mActiveTranscriptRows..mScreenRows-1)
+     * @param x1 The first screen position that's wanted
+     * @param x2 One after the last screen position that's wanted
+     * @return A char[] array containing the requested contents
+     */
+    public char[] getLine(int row, int x1, int x2) {
+        return getLine(row, x1, x2, false);
+    }
+
+    /**
+     * Get the whole contents of a line of the transcript.
+     */
+    public char[] getLine(int row) {
+        return getLine(row, 0, mColumns, true);
+    }
+
+    private char[] getLine(int row, int x1, int x2, boolean strictBounds) {
+        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+            throw new IllegalArgumentException();
+        }
+
+        int columns = mColumns;
+        row = externalToInternalRow(row);
+        if (mLines[row] == null) {
+            // Line is blank
+            return null;
+        }
+        if (mLines[row] instanceof char[]) {
+            // Line contains only regular-width BMP characters
+            if (x1 == 0 && x2 == columns) {
+                // Want the whole row? Easy.
+                return (char[]) mLines[row];
+            } else {
+                if (tmpLine == null || tmpLine.length < columns + 1) {
+                    tmpLine = new char[columns+1];
+                }
+                int length = x2 - x1;
+                System.arraycopy(mLines[row], x1, tmpLine, 0, length);
+                tmpLine[length] = 0;
+                return tmpLine;
+            }
+        }
+
+        // Figure out how long the array needs to be
+        FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+        char[] rawLine = line.getLine();
+
+        if (x1 == 0 && x2 == columns) {
+            /* We can return the raw line after ensuring it's NUL-terminated at
+             * the appropriate place */
+            int spaceUsed = line.getSpaceUsed();
+            if (spaceUsed < rawLine.length) {
+                rawLine[spaceUsed] = 0;
+            }
+            return rawLine;
+        }
+
+        x1 = line.findStartOfColumn(x1);
+        if (x2 < columns) {
+            int endCol = x2;
+            x2 = line.findStartOfColumn(endCol);
+            if (!strictBounds && endCol > 0 && endCol < columns - 1) {
+                /* If the end column is the middle of an East Asian wide
+                 * character, include that character in the bounds */
+                if (x2 == line.findStartOfColumn(endCol - 1)) {
+                    x2 = line.findStartOfColumn(endCol + 1);
+                }
+            }
+        } else {
+            x2 = line.getSpaceUsed();
+        }
+        int length = x2 - x1;
+
+        if (tmpLine == null || tmpLine.length < length + 1) {
+            tmpLine = new char[length+1];
+        }
+        System.arraycopy(rawLine, x1, tmpLine, 0, length);
+        tmpLine[length] = 0;
+        return tmpLine;
+    }
+
+    /**
+     * Get color/formatting information for a particular line.
+     * The returned object may be a pointer to a temporary buffer, only good
+     * until the next call to getLineColor.
+     */
+    public StyleRow getLineColor(int row, int x1, int x2) {
+        return getLineColor(row, x1, x2, false);
+    }
+
+    public StyleRow getLineColor(int row) {
+        return getLineColor(row, 0, mColumns, true);
+    }
+
+    private StyleRow getLineColor(int row, int x1, int x2, boolean strictBounds) {
+        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+            throw new IllegalArgumentException();
+        }
+
+        row = externalToInternalRow(row);
+        StyleRow color = mColor[row];
+        StyleRow tmp = tmpColor;
+        if (color != null) {
+            int columns = mColumns;
+            if (!strictBounds && mLines[row] != null &&
+                    mLines[row] instanceof FullUnicodeLine) {
+                FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+                /* If either the start or the end column is in the middle of
+                 * an East Asian wide character, include the appropriate column
+                 * of style information */
+                if (x1 > 0 && line.findStartOfColumn(x1-1) == line.findStartOfColumn(x1)) {
+                    --x1;
+                }
+                if (x2 < columns - 1 && line.findStartOfColumn(x2+1) == line.findStartOfColumn(x2)) {
+                    ++x2;
+                }
+            }
+            if (x1 == 0 && x2 == columns) {
+                return color;
+            }
+            color.copy(x1, tmp, 0, x2-x1);
+            return tmp;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Get the id to store in the transcript for a hyperlink to a URL, adding
+     * the URL to the link table if necessary.
+     *
+     * @param url The URL the link points to.
+     * @return The link id, or 0 if the link table is full.
+     */
+    public int internLink(String url) {
+        // Programs usually emit a run of text with the same link
+        if (url == mLastLinkUrl) {
+            return mLastLinkId;
+        }
+        if (mLinkUrls == null) {
+            mLinkUrls = new String[INITIAL_LINK_TABLE_SIZE];
+            mLinkIds = new HashMap<String, Integer>();
+        }
+        Integer id = mLinkIds.get(url);
+        int link;
+        if (id != null) {
+            link = id;
+        } else {
+            link = allocateLink(url);
+        }
+        mLastLinkUrl = url;
+        mLastLinkId = link;
+        return link;
+    }
+
+    private int allocateLink(String url) {
+        String[] urls = mLinkUrls;
+        if (mLinkCount == urls.length - 1) {
+            sweepLinks();
+            urls = mLinkUrls;
+            if (mLinkCount >= urls.length / 2 && urls.length < MAX_LINK_TABLE_SIZE) {
+                // Mostly still in use; make more room
+                urls = new String[Math.min(2 * urls.length, MAX_LINK_TABLE_SIZE)];
+                System.arraycopy(mLinkUrls, 0, urls, 0, mLinkUrls.length);
+                mLinkUrls = urls;
+            }
+            if (mLinkCount == urls.length - 1) {
+                return 0;
+            }
+        }
+        int link = mNextLink;
+        while (urls[link] != null) {
+            link = (link + 1) % urls.length;
+            if (link == 0) {
+                link = 1;
+            }
+        }
+        mNextLink = link + 1 < urls.length ? link + 1 : 1;
+        urls[link] = url;
+        mLinkIds.put(url, link);
+        mLinkCount++;
+        return link;
+    }
+
+    /**
+     * Free the link table entries which no active row refers to any more.
+     */
+    private void sweepLinks() {
+        if (mCompactedRows != null) {
+            expand(0);
+        }
+        String[] urls = mLinkUrls;
+        boolean[] used = new boolean[urls.length];
+        StyleRow[] color = mColor;
+        int activeRows = mActiveTranscriptRows + mScreenRows;
+        for (int i = 0; i < activeRows; i++) {
+            StyleRow row = color[externalToInternalRow(i - mActiveTranscriptRows)];
+            if (row != null) {
+                row.markLinks(used);
+            }
+        }
+        // The emulator may not have written the latest link out yet
+        used[mLastLinkId] = true;
+        for (int i = 1; i < urls.length; i++) {
+            if (!used[i] && urls[i] != null) {
+                mLinkIds.remove(urls[i]);
+                urls[i] = null;
+                mLinkCount--;
+            }
+        }
+    }
+
+    /**
+     * Set the hyperlink id of a cell.
+     */
+    public void setLink(int column, int row, int link) {
+        int internalRow = externalToInternalRow(row);
+        mColor[internalRow].setLink(column, link);
+    }
+
+    /**
+     * Get the URL of the explicit hyperlink in a cell.
+     *
+     * @return The URL, or null if the cell isn't part of a link.
+     */
+    public String getLinkUrl(int column, int row) {
+        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+            throw new IllegalArgumentException();
+        }
+        int internalRow = externalToInternalRow(row);
+        StyleRow color = mColor[internalRow];
+        if (color == null) {
+            return null;
+        }
+        int link = color.getLink(column);
+        return link != 0 ? mLinkUrls[link] : null;
+    }
+
+    /**
+     * Get whether any cell of a row is part of an explicit hyperlink.
+     */
+    public boolean hasLinks(int row) {
+        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+            throw new IllegalArgumentException();
+        }
+        int internalRow = externalToInternalRow(row);
+        StyleRow color = mColor[internalRow];
+        return color != null && color.hasLinks();
+    }
+
+    /**
+     * Mark a row with a shell integration mark.  Marks on later rows, and
+     * marks on the same row which would come after this one, are removed:
+     * those rows have been written over, as when a prompt is drawn again
+     * after the screen is cleared.
+     *
+     * @param row The row to mark.
+     * @param type The kind of mark: 'A' (prompt start), 'B' (command
+     *        start), 'C' (output start) or 'D' (command finished).
+     */
+    public void addMark(int row, int type) {
+        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+            throw new IllegalArgumentException();
+        }
+        trimMarks();
+        long absRow = mScrolledRows + row;
+        int rank = markRank(type);
+        long[] rows = mMarkRows;
+        byte[] types = mMarkTypes;
+        int end = mMarkStart + mMarkCount;
+        while (mMarkCount > 0 && (rows[end-1] > absRow
+                || (rows[end-1] == absRow && markRank(types[end-1]) >= rank))) {
+            --end;
+            --mMarkCount;
+        }
+
+        if (rows == null || end == rows.length) {
+            // Out of room: move the marks to the start, growing the arrays
+            // if they're more than half full
+            int capacity = rows == null ? 16 : rows.length;
+            if (mMarkCount > capacity / 2) {
+                capacity *= 2;
+            }
+            long[] newRows = new long[capacity];
+            byte[] newTypes = new byte[capacity];
+            if (mMarkCount > 0) {
+                System.arraycopy(rows, mMarkStart, newRows, 0, mMarkCount);
+                System.arraycopy(types, mMarkStart, newTypes, 0, mMarkCount);
+            }
+            mMarkRows = rows = newRows;
+            mMarkTypes = types = newTypes;
+            mMarkStart = 0;
+            end = mMarkCount;
+        }
+        rows[end] = absRow;
+        types[end] = (byte) type;
+        ++mMarkCount;
+    }
+
+    /**
+     * The order of marks within a row: a command's end is marked on the row
+     * where the next prompt starts, before the prompt.
+     */
+    private static int markRank(int type) {
+        return type == 'D' ? 0 : type - 'A' + 1;
+    }
+
+    /**
+     * Forget the marks on rows which are no longer in the transcript.
+     */
+    private void trimMarks() {
+        long firstRow = mScrolledRows - mActiveTranscriptRows;
+        while (mMarkCount > 0 && mMarkRows[mMarkStart] < firstRow) {
+            ++mMarkStart;
+            --mMarkCount;
+        }
+    }
+
+    /**
+     * Find the index of the first mark on a row after the given one.
+     */
+    private int findMarkAfter(long absRow) {
+        int low = mMarkStart;
+        int high = mMarkStart + mMarkCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mMarkRows[mid] <= absRow) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Find the nearest mark of a type on a row before the given row.
+     *
+     * @param row The row to search from.
+     * @param type The kind of mark to look for, or 0 for any mark.
+     * @return The row of the mark, or NO_MARK if there is none.
+     */
+    public int getPreviousMark(int row, int type) {
+        trimMarks();
+        int i = findMarkAfter(mScrolledRows + row - 1) - 1;
+        for (; i >= mMarkStart; --i) {
+            if (type == 0 || mMarkTypes[i] == type) {
+                return (int) (mMarkRows[i] - mScrolledRows);
+            }
+        }
+        return NO_MARK;
+    }
+
+    /**
+     * Find the nearest mark of a type on a row after the given row.
+     *
+     * @param row The row to search from.
+     * @param type The kind of mark to look for, or 0 for any mark.
+     * @return The row of the mark, or NO_MARK if there is none.
+     */
+    public int getNextMark(int row, int type) {
+        trimMarks();
+        int end = mMarkStart + mMarkCount;
+        for (int i = findMarkAfter(mScrolledRows + row); i < end; ++i) {
+            if (type == 0 || mMarkTypes[i] == type) {
+                return (int) (mMarkRows[i] - mScrolledRows);
+            }
+        }
+        return NO_MARK;
+    }
+
+    /**
+     * Get all the marks on rows from firstRow to lastRow, as pairs of
+     * (row, type) appended to marks.
+     */
+    void getMarks(int firstRow, int lastRow, GrowableIntArray marks) {
+        trimMarks();
+        int end = mMarkStart + mMarkCount;
+        long lastAbsRow = mScrolledRows + lastRow;
+        for (int i = findMarkAfter(mScrolledRows + firstRow - 1);
+                i < end && mMarkRows[i] <= lastAbsRow; ++i) {
+            marks.append((int) (mMarkRows[i] - mScrolledRows));
+            marks.append(mMarkTypes[i]);
+        }
+    }
+
+    /**
+     * Add up how the rows are stored and roughly how much memory they take.
+     * This looks at every row, so it isn't meant to be called often.
+     */
+    public void getStatistics(TranscriptStatistics stats) {
+        stats.clear();
+        stats.mRows = mTotalRows;
+        stats.mActiveRows = getActiveRows();
+        stats.mMaxRows = mMaxTotalRows;
+        long bytes = 2 * TranscriptStatistics.arrayBytes(mTotalRows, TranscriptStatistics.REFERENCE_BYTES)
+            + TranscriptStatistics.arrayBytes(mTotalRows, 1);
+        Object[] lines = mLines;
+        StyleRow[] color = mColor;
+        for (int i = 0; i < mTotalRows; ++i) {
+            Object line = lines[i];
+            if (line instanceof char[]) {
+                ++stats.mBasicRows;
+                bytes += TranscriptStatistics.arrayBytes(((char[]) line).length, 2);
+            } else if (line != null) {
+                ++stats.mFullRows;
+                bytes += ((FullUnicodeLine) line).estimateBytes();
+            }
+            if (color[i] != null) {
+                if (color[i].isStyled()) {
+                    ++stats.mStyledRows;
+                }
+                bytes += color[i].estimateBytes();
+            }
+        }
+        if (mLinkUrls != null) {
+            bytes += TranscriptStatistics.arrayBytes(mLinkUrls.length, TranscriptStatistics.REFERENCE_BYTES);
+            for (String url : mLinkUrls) {
+                if (url != null) {
+                    // The String, its chars, and its entry in mLinkIds
+                    bytes += TranscriptStatistics.objectBytes(16)
+                        + TranscriptStatistics.arrayBytes(url.length(), 2)
+                        + TranscriptStatistics.objectBytes(32);
+                }
+            }
+        }
+        if (mMarkRows != null) {
+            bytes += TranscriptStatistics.arrayBytes(mMarkRows.length, 8)
+                + TranscriptStatistics.arrayBytes(mMarkTypes.length, 1);
+        }
+        if (mCompactedRows != null) {
+            stats.mCompactedRows = mActiveTranscriptRows;
+            bytes += TranscriptStatistics.arrayBytes(mCompactedRows.length, 1);
+        }
+        stats.mEstimatedBytes = bytes;
+    }
+
+    /**
+     * Pack the transcript rows into a compressed byte array, leaving just
+     * the screen in the buffers.  This saves most of the memory a long
+     * transcript takes up, but the rows have to be unpacked again the next
+     * time one of them is wanted or the screen scrolls or is resized, so
+     * it's meant for sessions which nobody is looking at and which have
+     * been quiet for a while.
+     *
+     * @return Whether any rows were packed; false if there's no transcript
+     *         or it's packed already.
+     */
+    public boolean compact() {
+        int transcriptRows = mActiveTranscriptRows;
+        if (mCompactedRows != null || transcriptRows == 0) {
+            return false;
+        }
+
+        int columns = mColumns;
+        Object[] lines = mLines;
+        StyleRow[] color = mColor;
+        boolean[] lineWrap = mLineWrap;
+        ByteArrayOutputStream packed = new ByteArrayOutputStream();
+        // This runs on the main thread, so speed matters more than size
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new DeflaterOutputStream(packed, deflater), PACK_BUFFER_SIZE));
+            for (int i = -transcriptRows; i < 0; ++i) {
+                int row = externalToInternalRow(i);
+                Object line = lines[row];
+                int flags;
+                if (line == null) {
+                    flags = PACKED_BLANK;
+                } else if (line instanceof char[]) {
+                    flags = PACKED_BASIC;
+                } else {
+                    flags = PACKED_FULL;
+                }
+                if (color[row] != null) {
+                    flags |= PACKED_HAS_COLOR;
+                }
+                if (lineWrap[row]) {
+                    flags |= PACKED_LINE_WRAP;
+                }
+                out.writeByte(flags);
+                if (line instanceof char[]) {
+                    char[] chars = (char[]) line;
+                    for (int j = 0; j < columns; ++j) {
+                        out.writeChar(chars[j]);
+                    }
+                } else if (line != null) {
+                    ((FullUnicodeLine) line).write(out);
+                }
+                if (color[row] != null) {
+                    color[row].write(out);
+                }
+            }
+            out.close();
+        } catch (IOException e) {
+            // Can't happen; the rows are only written to memory
+            throw new IllegalStateException(e);
+        } finally {
+            deflater.end();
+        }
+
+        // Keep just the screen, at the start of the buffers
+        int screenRows = mScreenRows;
+        Object[] screenLines = new Object[screenRows];
+        StyleRow[] screenColor = new StyleRow[screenRows];
+        boolean[] screenLineWrap = new boolean[screenRows];
+        for (int i = 0; i < screenRows; ++i) {
+            int row = externalToInternalRow(i);
+            screenLines[i] = lines[row];
+            screenColor[i] = color[row];
+            screenLineWrap[i] = lineWrap[row];
+        }
+        mLines = screenLines;
+        mColor = screenColor;
+        mLineWrap = screenLineWrap;
+        mTotalRows = screenRows;
+        mScreenFirstRow = 0;
+        mCompactedRows = packed.toByteArray();
+        tmpLine = null;
+        tmpSpan = null;
+        return true;
+    }
+
+    /**
+     * Whether the transcript rows are packed by compact().
+     */
+    public boolean isCompacted() {
+        return mCompactedRows != null;
+    }
+
+    /**
+     * Unpack the transcript rows packed by compact(), putting them back in
+     * the buffers above the screen.
+     *
+     * @param dropRows How many of the oldest rows to throw away instead.
+     */
+    private void expand(int dropRows) {
+        byte[] packed = mCompactedRows;
+        mCompactedRows = null;
+
+        int columns = mColumns;
+        int packedRows = mActiveTranscriptRows;
+        int transcriptRows = packedRows - dropRows;
+        int screenRows = mScreenRows;
+        int totalRows = Math.min(mMaxTotalRows,
+                transcriptRows + screenRows + INITIAL_TRANSCRIPT_ROWS);
+        Object[] lines = new Object[totalRows];
+        StyleRow[] color = new StyleRow[totalRows];
+        boolean[] lineWrap = new boolean[totalRows];
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new InflaterInputStream(new ByteArrayInputStream(packed)),
+                    PACK_BUFFER_SIZE));
+            for (int i = 0; i < packedRows; ++i) {
+                int flags = in.readUnsignedByte();
+                Object line = null;
+                switch (flags & PACKED_LINE_MASK) {
+                case PACKED_BASIC:
+                    char[] chars = new char[columns];
+                    for (int j = 0; j < columns; ++j) {
+                        chars[j] = in.readChar();
+                    }
+                    line = chars;
+                    break;
+                case PACKED_FULL:
+                    line = FullUnicodeLine.read(in, columns);
+                    break;
+                }
+                StyleRow rowColor = null;
+                if ((flags & PACKED_HAS_COLOR) != 0) {
+                    rowColor = StyleRow.read(in, columns);
+                }
+                int row = i - dropRows;
+                if (row >= 0) {
+                    lines[row] = line;
+                    color[row] = rowColor;
+                    lineWrap[row] = (flags & PACKED_LINE_WRAP) != 0;
+                }
+            }
+            in.close();
+        } catch (IOException e) {
+            // Can't happen; compact() wrote the rows
+            throw new IllegalStateException(e);
+        }
+
+        // While packed, the screen is at the start of the buffers
+        System.arraycopy(mLines, 0, lines, transcriptRows, screenRows);
+        System.arraycopy(mColor, 0, color, transcriptRows, screenRows);
+        System.arraycopy(mLineWrap, 0, lineWrap, transcriptRows, screenRows);
+        mLines = lines;
+        mColor = color;
+        mLineWrap = lineWrap;
+        mTotalRows = totalRows;
+        mScreenFirstRow = transcriptRows;
+        mActiveTranscriptRows = transcriptRows;
+    }
+
+    /**
+     * Throw away all but the newest keepRows rows of the transcript, to
+     * free the memory the rest take up.  The screen is left alone.  If the
+     * transcript is packed by compact(), the rows kept are packed again.
+     *
+     * @return How many rows were thrown away.
+     */
+    public int truncate(int keepRows) {
+        int dropRows = mActiveTranscriptRows - Math.max(keepRows, 0);
+        if (dropRows <= 0) {
+            return 0;
+        }
+
+        if (mCompactedRows != null) {
+            expand(dropRows);
+            compact();
+        } else {
+            for (int i = 0; i < dropRows; ++i) {
+                int row = externalToInternalRow(i - mActiveTranscriptRows);
+                mLines[row] = null;
+                mColor[row] = null;
+                mLineWrap[row] = false;
+            }
+            mActiveTranscriptRows -= dropRows;
+            // Give back the room the dropped rows took in the buffers
+            int totalRows = mActiveTranscriptRows + mScreenRows + INITIAL_TRANSCRIPT_ROWS;
+            if (totalRows < mTotalRows) {
+                setTotalRows(totalRows);
+            }
+        }
+        trimMarks();
+        return dropRows;
+    }
+
+    boolean isBasicLine(int row) {
+        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+            throw new IllegalArgumentException();
+        }
+
+        int internalRow = externalToInternalRow(row);
+        return (mLines[internalRow] instanceof char[]);
+    }
+
+    public boolean getChar(int row, int column) {
+        return getChar(row, column, 0);
+    }
+
+    public boolean getChar(int row, int column, int charIndex) {
+        return getChar(row, column, charIndex, new char[1], 0);
+    }
+
+    /**
+     * Get a character at a specific position in the transcript.
+     *
+     * @param row The row of the character to get.
+     * @param column The column of the character to get.
+     * @param charIndex The index of the character in the column to get
+     *  (0 for the first character, 1 for the next, etc.)
+     * @param out The char[] array into which the character will be placed.
+     * @param offset The offset in the array at which the character will be placed.
+     * @return Whether or not there are characters following this one in the column.
+     */
+    public boolean getChar(int row, int column, int charIndex, char[] out, int offset) {
+        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+            throw new IllegalArgumentException();
+        }
+        row = externalToInternalRow(row);
+
+        if (mLines[row] instanceof char[]) {
+            // Fast path: all regular-width BMP chars in the row
+            char[] line = (char[]) mLines[row];
+            out[offset] = line[column];
+            return false;
+        }
+
+        FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+        return line.getChar(column, charIndex, out, offset);
+    }
+
+    private boolean isBasicChar(int codePoint) {
+        return !(charWidth(codePoint) != 1 || Character.charCount(codePoint) != 1);
+    }
+
+    private char[] allocateBasicLine(int row, int columns) {
+        char[] line = new char[columns];
+
+        // Fill the line with blanks
+        for (int i = 0; i < columns; ++i) {
+            line[i] = ' ';
+        }
+
+        mLines[row] = line;
+        if (mColor[row] == null) {
+            mColor[row] = new StyleRow(0, columns);
+        }
+        return line;
+    }
+
+    private FullUnicodeLine allocateFullLine(int row, int columns) {
+        FullUnicodeLine line = new FullUnicodeLine(columns);
+
+        mLines[row] = line;
+        if (mColor[row] == null) {
+            mColor[row] = new StyleRow(0, columns);
+        }
+        return line;
+    }
+
+    public boolean setChar(int column, int row, int codePoint, int style) {
+        if (!setChar(column, row, codePoint)) {
+            return false;
+        }
+
+        row = externalToInternalRow(row);
+        if (charWidth(codePoint) == 0) {
+            // Part of the character already there, hyperlink and all
+            mColor[row].restyle(column, style);
+        } else {
+            mColor[row].set(column, style);
+        }
+
+        return true;
+    }
+
+    public boolean setChar(int column, int row, int codePoint) {
+        if (row >= mScreenRows || column >= mColumns) {
+            EmulatorLog.e(TAG, "illegal arguments! " + row + " " + column + " " + mScreenRows + " " + mColumns);
+            throw new IllegalArgumentException();
+        }
+        row = externalToInternalRow(row);
+
+        /*
+         * Whether data contains non-BMP or characters with charWidth != 1
+         * 0 - false; 1 - true; -1 - undetermined
+         */
+        int basicMode = -1;
+
+        // Allocate a row on demand
+        if (mLines[row] == null) {
+            if (isBasicChar(codePoint)) {
+                allocateBasicLine(row, mColumns);
+                basicMode = 1;
+            } else {
+                allocateFullLine(row, mColumns);
+                basicMode = 0;
+            }
+        }
+
+        if (mLines[row] instanceof char[]) {
+            char[] line = (char[]) mLines[row];
+
+            if (basicMode == -1) {
+                if (isBasicChar(codePoint)) {
+                    basicMode = 1;
+                } else {
+                    basicMode = 0;
+                }
+            }
+
+            if (basicMode == 1) {
+                // Fast path -- just put the char in the array
+                line[column] = (char) codePoint;
+                return true;
+            }
+
+            // Need to switch to the full-featured mode
+            mLines[row] = new FullUnicodeLine(line);
+        }
+
+        FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+        line.setChar(column, codePoint);
+        return true;
+    }
+}
+
+/*
+ * A representation of a line that's capable of handling non-BMP characters,
+ * East Asian wide characters, and combining characters.
+ *
+ * Each column of the line is stored as one element of an int[] array,
+ * holding the code point displayed in that column, or
+ * WIDE_CHAR_CONTINUATION if the column is the second half of an East Asian
+ * wide character.  Combining characters are kept in a separate table with
+ * a char[] for each column, which is only allocated once the line has any
+ * combining characters at all; each column keeps at most
+ * MAX_COMBINING_CHARS chars of them, and any more are dropped.  Writing to
+ * a column therefore never has to move the rest of the line around.
+ *
+ * The text of the line is also available as a char[] array, allowing easy
+ * conversion to a String and/or reuse by other string-handling functions.
+ * This array is rebuilt on demand after the line has been modified, along
+ * with an array of short[] which keeps track of the difference between a
+ * column and the starting index corresponding to its contents in the char[]
+ * array (so if column 42 starts at index 45 in the char[] array, the offset
+ * stored is 3).  Column 0 always starts at index 0 in the char[] array, so
+ * we use that element of the array to keep track of how much of the char[]
+ * array we're using at the moment.
+ */
+class FullUnicodeLine {
+    private static final float SPARE_CAPACITY_FACTOR = 1.5f;
+
+    private static final int WIDE_CHAR_CONTINUATION = -1;
+
+    /**
+     * The largest number of chars of combining characters kept for a single
+     * column.
+     */
+    static final int MAX_COMBINING_CHARS = 16;
+
+    private int[] mCodePoints;
+    private char[][] mCombining;
+    private int mColumns;
+
+    private char[] mText;
+    private short[] mOffset;
+    private boolean mTextValid;
+
+    public FullUnicodeLine(int columns) {
+        mColumns = columns;
+        mCodePoints = new int[columns];
+        // Fill in the line with blanks
+        Arrays.fill(mCodePoints, ' ');
+    }
+
+    public FullUnicodeLine(char[] basicLine) {
+        int columns = basicLine.length;
+        mColumns = columns;
+        int[] codePoints = new int[columns];
+        for (int i = 0; i < columns; ++i) {
+            codePoints[i] = basicLine[i];
+        }
+        mCodePoints = codePoints;
+    }
+
+    /**
+     * Rebuild the char[] representation of the line, if the line has been
+     * modified since it was last built.
+     */
+    private void updateText() {
+        if (mTextValid) {
+            return;
+        }
+
+        int columns = mColumns;
+        int[] codePoints = mCodePoints;
+        char[][] combining = mCombining;
+
+        int length = 0;
+        for (int i = 0; i < columns; ++i) {
+            int codePoint = codePoints[i];
+            if (codePoint != WIDE_CHAR_CONTINUATION) {
+                length += Character.charCount(codePoint);
+            }
+            if (combining != null && combining[i] != null) {
+                length += combining[i].length;
+            }
+        }
+
+        char[] text = mText;
+        if (text == null || text.length < length + 1) {
+            text = new char[Math.max(length + 1, (int)(SPARE_CAPACITY_FACTOR*columns))];
+            mText = text;
+        }
+        short[] offset = mOffset;
+        if (offset == null) {
+            offset = new short[columns];
+            mOffset = offset;
+        }
+
+        int pos = 0;
+        int start = 0;
+        for (int i = 0; i < columns; ++i) {
+            int codePoint = codePoints[i];
+            if (codePoint == WIDE_CHAR_CONTINUATION) {
+                // Both columns of a wide character start at the same index
+                offset[i] = (short) (start - i);
+                continue;
+            }
+            start = pos;
+            if (i > 0) {
+                offset[i] = (short) (pos - i);
+            }
+            pos += Character.toChars(codePoint, text, pos);
+            if (combining != null && combining[i] != null) {
+                char[] chars = combining[i];
+                System.arraycopy(chars, 0, text, pos, chars.length);
+                pos += chars.length;
+            }
+        }
+        text[pos] = 0;
+        offset[0] = (short) pos;
+        mTextValid = true;
+    }
+
+    public int getSpaceUsed() {
+        updateText();
+        return mOffset[0];
+    }
+
+    /** Roughly how many bytes this line takes up. */
+    long estimateBytes() {
+        long bytes = TranscriptStatistics.objectBytes(
+                4 * TranscriptStatistics.REFERENCE_BYTES + 4 + 1)
+            + TranscriptStatistics.arrayBytes(mCodePoints.length, 4);
+        if (mCombining != null) {
+            bytes += TranscriptStatistics.arrayBytes(mCombining.length, TranscriptStatistics.REFERENCE_BYTES);
+            for (char[] combining : mCombining) {
+                if (combining != null) {
+                    bytes += TranscriptStatistics.arrayBytes(combining.length, 2);
+                }
+            }
+        }
+        if (mText != null) {
+            bytes += TranscriptStatistics.arrayBytes(mText.length, 2);
+        }
+        if (mOffset != null) {
+            bytes += TranscriptStatistics.arrayBytes(mOffset.length, 2);
+        }
+        return bytes;
+    }
+
+    /**
+     * Write the contents of the line for UnicodeTranscript.compact(), to be
+     * read back with read().
+     */
+    void write(DataOutputStream out) throws IOException {
+        int columns = mColumns;
+        int[] codePoints = mCodePoints;
+        for (int i = 0; i < columns; ++i) {
+            out.writeInt(codePoints[i]);
+        }
+        char[][] combining = mCombining;
+        out.writeBoolean(combining != null);
+        if (combining != null) {
+            for (int i = 0; i < columns; ++i) {
+                char[] chars = combining[i];
+                int length = chars != null ? chars.length : 0;
+                out.writeByte(length);
+                for (int j = 0; j < length; ++j) {
+                    out.writeChar(chars[j]);
+                }
+            }
+        }
+    }
+
+    static FullUnicodeLine read(DataInputStream in, int columns) throws IOException {
+        FullUnicodeLine line = new FullUnicodeLine(columns);
+        int[] codePoints = line.mCodePoints;
+        for (int i = 0; i < columns; ++i) {
+            codePoints[i] = in.readInt();
+        }
+        if (in.readBoolean()) {
+            char[][] combining = new char[columns][];
+            for (int i = 0; i < columns; ++i) {
+                int length = in.readUnsignedByte();
+                if (length == 0) {
+                    continue;
+                }
+                char[] chars = new char[length];
+                for (int j = 0; j < length; ++j) {
+                    chars[j] = in.readChar();
+                }
+                combining[i] = chars;
+            }
+            line.mCombining = combining;
+        }
+        return line;
+    }
+
+    public char[] getLine() {
+        updateText();
+        return mText;
+    }
+
+    public int findStartOfColumn(int column) {
+        if (column == 0) {
+            return 0;
+        } else {
+            updateText();
+            return column + mOffset[column];
+        }
+    }
+
+    /**
+     * Copy the contents of count columns starting at column into out.  If
+     * the span begins or ends in the middle of an East Asian wide character,
+     * that half of the character is copied as a space.  out must have room
+     * for getSpaceUsed() + 2 chars.
+     *
+     * @return The number of chars copied.
+     */
+    public int getColumns(int column, int count, char[] out) {
+        int[] codePoints = mCodePoints;
+        char[][] combining = mCombining;
+        int end = column + count;
+        int length = 0;
+        for (int i = column; i < end; ++i) {
+            int codePoint = codePoints[i];
+            if (codePoint == WIDE_CHAR_CONTINUATION) {
+                if (i == column) {
+                    // Span starts with the second half of a wide character
+                    out[length++] = ' ';
+                }
+                continue;
+            }
+            if (i + 1 == end && end < mColumns
+                    && codePoints[end] == WIDE_CHAR_CONTINUATION) {
+                // Span ends with the first half of a wide character
+                out[length++] = ' ';
+                break;
+            }
+            length += Character.toChars(codePoint, out, length);
+            if (combining != null && combining[i] != null) {
+                char[] chars = combining[i];
+                System.arraycopy(chars, 0, out, length, chars.length);
+                length += chars.length;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Replace the contents of count columns starting at column with the
+     * given chars, which must take up exactly count columns.  If this cuts
+     * an East Asian wide character in half, the other half is replaced with
+     * a space.
+     */
+    public void replaceColumns(int column, int count, char[] src, int srcStart, int srcLength) {
+        int end = column + count;
+        if (count > 0) {
+            clearColumn(column);
+            clearColumn(end - 1);
+        }
+
+        int col = column;
+        int lastCol = -1;
+        int srcEnd = srcStart + srcLength;
+        for (int i = srcStart; i < srcEnd; ) {
+            int codePoint = Character.codePointAt(src, i, srcEnd);
+            i += Character.charCount(codePoint);
+            int width = UnicodeTranscript.charWidth(codePoint);
+            if (width == 0) {
+                if (lastCol >= 0) {
+                    addCombiningChar(lastCol, codePoint);
+                }
+                continue;
+            }
+            if (col + width > end) {
+                break;
+            }
+            putChar(col, codePoint);
+            if (width == 2) {
+                putChar(col + 1, WIDE_CHAR_CONTINUATION);
+            }
+            lastCol = col;
+            col += width;
+        }
+        for (; col < end; ++col) {
+            putChar(col, ' ');
+        }
+        mTextValid = false;
+    }
+
+    public boolean getChar(int column, int charIndex, char[] out, int offset) {
+        int pos = findStartOfColumn(column);
+        int length;
+        if (column + 1 < mColumns) {
+            length = findStartOfColumn(column + 1) - pos;
+        } else {
+            length = getSpaceUsed() - pos;
+        }
+        if (charIndex >= length) {
+            throw new IllegalArgumentException();
+        }
+        out[offset] = mText[pos + charIndex];
+        return (charIndex + 1 < length);
+    }
+
+    public void setChar(int column, int codePoint) {
+        int columns = mColumns;
+        if (column < 0 || column >= columns) {
+            throw new IllegalArgumentException();
+        }
+
+        int charWidth = UnicodeTranscript.charWidth(codePoint);
+        if (charWidth == 0) {
+            /* Combining characters are added to the contents of the column
+               instead of overwriting them, so that they modify the existing
+               contents */
+            if (mCodePoints[column] == WIDE_CHAR_CONTINUATION) {
+                --column;
+            }
+            addCombiningChar(column, codePoint);
+            return;
+        }
+
+        if (charWidth == 2 && column == columns - 1) {
+            // A width 2 character doesn't fit in the last column.
+            codePoint = ' ';
+            charWidth = 1;
+        }
+
+        clearColumn(column);
+        if (charWidth == 2) {
+            clearColumn(column + 1);
+        }
+        putChar(column, codePoint);
+        if (charWidth == 2) {
+            putChar(column + 1, WIDE_CHAR_CONTINUATION);
+        }
+        mTextValid = false;
+    }
+
+    /**
+     * Prepare a column to be overwritten: if it holds half of an East Asian
+     * wide character, the other half is replaced with a space.
+     */
+    private void clearColumn(int column) {
+        int[] codePoints = mCodePoints;
+        if (codePoints[column] == WIDE_CHAR_CONTINUATION) {
+            putChar(column - 1, ' ');
+        } else if (column + 1 < mColumns
+                && codePoints[column + 1] == WIDE_CHAR_CONTINUATION) {
+            putChar(column + 1, ' ');
+        }
+    }
+
+    private void putChar(int column, int codePoint) {
+        mCodePoints[column] = codePoint;
+        if (mCombining != null) {
+            mCombining[column] = null;
+        }
+    }
+
+    private void addCombiningChar(int column, int codePoint) {
+        char[][] combining = mCombining;
+        if (combining == null) {
+            combining = new char[mColumns][];
+            mCombining = combining;
+        }
+        char[] oldChars = combining[column];
+        int oldLength = (oldChars == null) ? 0 : oldChars.length;
+        int length = oldLength + Character.charCount(codePoint);
+        if (length > MAX_COMBINING_CHARS) {
+            // Don't let a single column grow without bound
+            return;
+        }
+        char[] chars = new char[length];
+        if (oldChars != null) {
+            System.arraycopy(oldChars, 0, chars, 0, oldLength);
+        }
+        Character.toChars(codePoint, chars, oldLength);
+        combining[column] = chars;
+        mTextValid = false;
+    }
+}
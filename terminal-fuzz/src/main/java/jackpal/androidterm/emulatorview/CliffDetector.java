@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Decides whether an input is a performance cliff: whether the emulator
+ * takes longer per byte on it than {@link #getMaxNanosPerByte}.
+ * <p>
+ * Timing is noisy (the JIT, the garbage collector and the fuzzer's own
+ * instrumentation all get in the way), so an input which is over the limit
+ * is played again, over and over for a few milliseconds at a time, and is
+ * only called a cliff if it stays over the limit every time.  Inputs which
+ * do too little work to time are never cliffs.
+ */
+final class CliffDetector {
+    /** The default limit; override with -Dfuzz.maxNanosPerByte. */
+    static final long DEFAULT_MAX_NANOS_PER_BYTE = 2000;
+
+    /** Inputs doing less work than this are too quick to time. */
+    static final long MIN_UNITS = 4096;
+
+    /** How long each of the runs which confirm a cliff must last. */
+    private static final long MIN_NANOS = 5 * 1000000L;
+
+    private static final int RUNS = 3;
+    private static final int WARM_UP_RUNS = 200;
+
+    private final long mMaxNanosPerByte;
+
+    CliffDetector() {
+        this(Long.getLong("fuzz.maxNanosPerByte", DEFAULT_MAX_NANOS_PER_BYTE));
+    }
+
+    CliffDetector(long maxNanosPerByte) {
+        mMaxNanosPerByte = maxNanosPerByte;
+    }
+
+    long getMaxNanosPerByte() {
+        return mMaxNanosPerByte;
+    }
+
+    /**
+     * Give the JIT a chance before timing anything, so that the first few
+     * inputs checked aren't all cliffs.
+     */
+    static void warmUp() {
+        byte[] output;
+        try {
+            output = "Hello, \033[1;31mworld\033[m\t\u00e9\u4e2d\u0301\r\n".getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        byte[] data = FuzzInput.make(80, 24, 7, output);
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            measure(data);
+        }
+    }
+
+    /** The cost of one run of an input, or null if it is too short. */
+    static FuzzInput.Cost measure(byte[] data) {
+        FuzzInput.Cost cost = new FuzzInput.Cost();
+        return new FuzzInput(data).run(cost) ? cost : null;
+    }
+
+    /**
+     * Check an input, running it again if it looks like a cliff.
+     *
+     * @return The cheapest of the runs, if the input is a cliff, or null if
+     *         it isn't.
+     */
+    FuzzInput.Cost check(byte[] data) {
+        return check(data, measure(data));
+    }
+
+    /**
+     * Check an input which has already been run once.
+     *
+     * @param first The cost of the run.
+     */
+    FuzzInput.Cost check(byte[] data, FuzzInput.Cost first) {
+        if (first == null || first.units < MIN_UNITS
+                || first.nanosPerUnit() <= mMaxNanosPerByte) {
+            return null;
+        }
+        FuzzInput.Cost best = null;
+        for (int i = 0; i < RUNS; i++) {
+            FuzzInput.Cost cost = measureCarefully(data);
+            if (cost.nanosPerUnit() <= mMaxNanosPerByte) {
+                return null;
+            }
+            if (best == null || cost.nanosPerUnit() < best.nanosPerUnit()) {
+                best = cost;
+            }
+        }
+        return best;
+    }
+
+    /** Play an input over and over, for long enough to time it. */
+    private static FuzzInput.Cost measureCarefully(byte[] data) {
+        FuzzInput.Cost cost = new FuzzInput.Cost();
+        FuzzInput input = new FuzzInput(data);
+        do {
+            input.run(cost);
+        } while (cost.nanos < MIN_NANOS);
+        return cost;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Shrinks performance cliffs found by {@link EmulatorFuzzTarget} to the
+ * smallest input which is still a cliff, and saves them in the regression
+ * corpus checked by {@link CliffRegression}:
+ * <pre>
+ * CliffMinimizer [--out tests/perfCliffs] crash-1234abcd...
+ * </pre>
+ * The output is shrunk by repeatedly cutting pieces out of it, halving the
+ * size of the pieces whenever none of them can go; the header is kept as
+ * it is.
+ */
+public final class CliffMinimizer {
+    private final CliffDetector mDetector;
+
+    CliffMinimizer(CliffDetector detector) {
+        mDetector = detector;
+    }
+
+    /**
+     * The smallest input found which is still a cliff, or null if the
+     * input isn't a cliff to start with.
+     */
+    byte[] minimize(byte[] data) {
+        if (mDetector.check(data) == null) {
+            return null;
+        }
+        int chunk = (data.length - FuzzInput.HEADER_SIZE) / 2;
+        while (chunk > 0) {
+            boolean removed = false;
+            int start = FuzzInput.HEADER_SIZE;
+            while (start < data.length) {
+                int end = Math.min(start + chunk, data.length);
+                byte[] candidate = new byte[data.length - (end - start)];
+                System.arraycopy(data, 0, candidate, 0, start);
+                System.arraycopy(data, end, candidate, start, data.length - end);
+                if (mDetector.check(candidate) != null) {
+                    data = candidate;
+                    removed = true;
+                } else {
+                    start = end;
+                }
+            }
+            if (!removed) {
+                chunk /= 2;
+            }
+        }
+        return data;
+    }
+
+    /** A name for an input which depends only on its contents. */
+    static String name(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder name = new StringBuilder("cliff-");
+            for (int i = 0; i < 8; i++) {
+                name.append(String.format("%02x", digest[i] & 0xff));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        File out = new File("tests/perfCliffs");
+        int first = 0;
+        if (args.length >= 2 && args[0].equals("--out")) {
+            out = new File(args[1]);
+            first = 2;
+        }
+        if (first == args.length) {
+            System.err.println("Usage: CliffMinimizer [--out dir] input...");
+            System.exit(2);
+        }
+        // Errors are often what makes an input slow, so they mustn't stop it
+        FuzzInput.setErrorsFatal(false);
+        CliffDetector detector = new CliffDetector();
+        CliffDetector.warmUp();
+        CliffMinimizer minimizer = new CliffMinimizer(detector);
+        for (int i = first; i < args.length; i++) {
+            byte[] data = CliffRegression.read(new File(args[i]));
+            byte[] minimized = minimizer.minimize(data);
+            if (minimized == null) {
+                System.out.println(args[i] + ": not a cliff");
+                continue;
+            }
+            File file = new File(out, name(minimized));
+            CliffRegression.write(file, minimized);
+            System.out.println(args[i] + ": " + data.length + " -> " + minimized.length
+                    + " bytes, " + CliffDetector.measure(minimized) + ", saved as " + file);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Plays every input in the given directories (such as the regression
+ * corpus in tests/perfCliffs) and fails if any of them is still a
+ * performance cliff, or makes the emulator log an error:
+ * <pre>
+ * CliffRegression tests/perfCliffs
+ * </pre>
+ * Files whose names end in .md are skipped.
+ */
+public final class CliffRegression {
+    private CliffRegression() {
+    }
+
+    static byte[] read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    static void write(File file, byte[] data) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: CliffRegression dir...");
+            System.exit(2);
+        }
+        FuzzInput.setErrorsFatal(true);
+        CliffDetector detector = new CliffDetector();
+        CliffDetector.warmUp();
+        int inputs = 0;
+        int failures = 0;
+        for (String arg : args) {
+            File[] files = new File(arg).listFiles();
+            if (files == null) {
+                System.err.println(arg + ": not a directory");
+                System.exit(2);
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                if (!file.isFile() || file.getName().endsWith(".md")) {
+                    continue;
+                }
+                byte[] data = read(file);
+                FuzzInput.Cost cost;
+                FuzzInput.Cost cliff;
+                try {
+                    cost = CliffDetector.measure(data);
+                    if (cost == null) {
+                        System.out.println("skip  " + file + ": too short");
+                        continue;
+                    }
+                    cliff = detector.check(data, cost);
+                } catch (RuntimeException e) {
+                    ++inputs;
+                    ++failures;
+                    System.out.print("ERROR " + file + ": ");
+                    e.printStackTrace(System.out);
+                    continue;
+                }
+                ++inputs;
+                if (cliff != null) {
+                    ++failures;
+                    System.out.println("CLIFF " + file + ": " + cliff);
+                } else {
+                    System.out.println("ok    " + file + ": " + cost);
+                }
+            }
+        }
+        System.out.println(inputs + " inputs, " + failures + " failures (limit "
+                + detector.getMaxNanosPerByte() + " ns/byte)");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A fuzz target for Jazzer, the coverage-guided fuzzer for the JVM.  Each
+ * input is played into a new emulator (see {@link FuzzInput} for the
+ * format).  Inputs which make the emulator log an error are reported to
+ * Jazzer as crashes.  Inputs which take too long per byte (see {@link
+ * CliffDetector}) are saved in the directory named by the fuzz.findingsDir
+ * property, and fuzzing goes on: they would all throw from the same place,
+ * so Jazzer would take them for the same crash and keep only the first.
+ * <p>
+ * Run it with <code>./gradlew :terminal-fuzz:fuzz</code>.  Findings are
+ * written to terminal-fuzz/build/fuzz-findings; {@link CliffMinimizer}
+ * shrinks the slow ones and adds them to the regression corpus.
+ */
+public final class EmulatorFuzzTarget {
+    private static CliffDetector sDetector;
+    private static File sFindingsDir;
+
+    private EmulatorFuzzTarget() {
+    }
+
+    public static void fuzzerInitialize() {
+        FuzzInput.setErrorsFatal(true);
+        sDetector = new CliffDetector();
+        sFindingsDir = new File(System.getProperty("fuzz.findingsDir", "."));
+        CliffDetector.warmUp();
+    }
+
+    public static void fuzzerTestOneInput(byte[] data) throws IOException {
+        if (sDetector == null) {
+            fuzzerInitialize();
+        }
+        FuzzInput.Cost cost = CliffDetector.measure(data);
+        if (cost == null) {
+            return;
+        }
+        FuzzInput.Cost cliff = sDetector.check(data, cost);
+        if (cliff != null) {
+            File file = new File(sFindingsDir, CliffMinimizer.name(data));
+            if (!file.exists()) {
+                CliffRegression.write(file, data);
+                System.err.println("Performance cliff: " + cliff + ", saved as " + file);
+            }
+        }
+    }
+}
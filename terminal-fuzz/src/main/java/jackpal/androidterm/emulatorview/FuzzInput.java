@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+/**
+ * Turns a fuzzer's input into calls to {@link TerminalEmulator#append} and
+ * {@link TerminalEmulator#updateSize} on a new emulator.
+ * <p>
+ * The input is a three-byte header followed by terminal output:
+ * <ul>
+ * <li>byte 0: the number of columns, 1 + (b % {@link #MAX_COLUMNS})</li>
+ * <li>byte 1: the number of rows, 1 + (b % {@link #MAX_ROWS})</li>
+ * <li>byte 2: how many times to play the output, 1 &lt;&lt; (b % 8)</li>
+ * </ul>
+ * In the output, 0xff followed by two bytes resizes the screen (the two
+ * bytes being the new columns and rows, as in the header).  0xff never
+ * appears in UTF-8, so any text file can be turned into an input by putting
+ * a header in front of it.
+ * <p>
+ * Playing the output several times lets a short input produce a long run
+ * of, say, combining characters, which is where costs which grow faster
+ * than the input show up.
+ */
+final class FuzzInput {
+    static final int HEADER_SIZE = 3;
+    static final int MAX_COLUMNS = 132;
+    static final int MAX_ROWS = 60;
+    static final int TRANSCRIPT_ROWS = 500;
+    static final byte RESIZE = (byte) 0xff;
+
+    /** Inputs are played at most this many bytes' worth, to keep runs short. */
+    static final int MAX_UNITS = 256 * 1024;
+
+    private final byte[] mData;
+
+    FuzzInput(byte[] data) {
+        mData = data;
+    }
+
+    /** Make an input from some terminal output. */
+    static byte[] make(int columns, int rows, int repeatShift, byte[] output) {
+        byte[] data = new byte[HEADER_SIZE + output.length];
+        data[0] = (byte) (columns - 1);
+        data[1] = (byte) (rows - 1);
+        data[2] = (byte) repeatShift;
+        System.arraycopy(output, 0, data, HEADER_SIZE, output.length);
+        return data;
+    }
+
+    /**
+     * Set how errors the emulator logs (it catches everything thrown while
+     * it processes a byte, logs it and goes on) are handled.
+     *
+     * @param fatal Whether to throw them out of {@link #run} as an
+     *              {@link IllegalStateException}, or to drop them.
+     */
+    static void setErrorsFatal(final boolean fatal) {
+        EmulatorLog.setLogger(new EmulatorLog.Logger() {
+            public void d(String tag, String msg) {
+            }
+
+            public void w(String tag, String msg) {
+            }
+
+            public void e(String tag, String msg, Throwable tr) {
+                if (fatal) {
+                    throw new IllegalStateException(msg, tr);
+                }
+            }
+        });
+    }
+
+    static int columns(byte b) {
+        return 1 + (b & 0xff) % MAX_COLUMNS;
+    }
+
+    static int rows(byte b) {
+        return 1 + (b & 0xff) % MAX_ROWS;
+    }
+
+    /**
+     * Play the input into a new emulator.
+     *
+     * @param cost If not null, the time spent in the emulator and the work
+     *             done are added to it.
+     * @return False if the input is too short to have a header.
+     */
+    boolean run(Cost cost) {
+        byte[] data = mData;
+        if (data.length < HEADER_SIZE) {
+            return false;
+        }
+        int columns = columns(data[0]);
+        int rows = rows(data[1]);
+        int repeat = 1 << (data[2] & 7);
+
+        ColorScheme scheme = new ColorScheme(0xffffffff, 0xff000000);
+        TranscriptScreen screen = new TranscriptScreen(columns, TRANSCRIPT_ROWS, rows, scheme);
+        TerminalEmulator emulator = new TerminalEmulator(new NullHost(), screen, columns, rows, scheme);
+        emulator.setDefaultUTF8Mode(true);
+
+        long units = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < repeat && units < MAX_UNITS; i++) {
+            int offset = HEADER_SIZE;
+            while (offset < data.length && units < MAX_UNITS) {
+                int end = offset;
+                while (end < data.length && data[end] != RESIZE) {
+                    ++end;
+                }
+                if (end > offset) {
+                    emulator.append(data, offset, end - offset);
+                    units += end - offset;
+                }
+                if (end + 2 < data.length) {
+                    /* A resize costs in proportion to the text which has to
+                       be moved around, not to the bytes which asked for it */
+                    int newColumns = columns(data[end + 1]);
+                    units += (long) emulator.getScreen().getActiveRows()
+                        * Math.max(emulator.getColumns(), newColumns);
+                    emulator.updateSize(newColumns, rows(data[end + 2]));
+                }
+                offset = end + 3;
+            }
+        }
+        if (cost != null) {
+            cost.nanos += System.nanoTime() - start;
+            cost.units += units;
+        }
+        return true;
+    }
+
+    /**
+     * Time spent in the emulator, and the work it was asked to do: a unit
+     * for each byte of output, and one for each cell moved by a resize.
+     */
+    static final class Cost {
+        long nanos;
+        long units;
+
+        long nanosPerUnit() {
+            return units == 0 ? 0 : nanos / units;
+        }
+
+        @Override
+        public String toString() {
+            return nanosPerUnit() + " ns/byte (" + units + " bytes in "
+                + (nanos / 1000000.0) + " ms)";
+        }
+    }
+
+    /**
+     * A {@link TerminalHost} which ignores everything the emulator tells it.
+     */
+    private static final class NullHost implements TerminalHost {
+        public void write(byte[] data, int offset, int count) {
+        }
+
+        public void setTitle(String title) {
+        }
+
+        public void setCursorKeysApplicationMode(boolean enabled) {
+        }
+
+        public int getClipboardWriteLimit() {
+            return 0;
+        }
+
+        public void onClipboardWrite(byte[] data, int length) {
+        }
+    }
+}
@@ -0,0 +1,30 @@
+// Generate worst-case input for combining character handling: every
+// column of every line gets a long run of combining characters.
+
+package main
+
+import (
+	"bufio"
+	"flag"
+	"os"
+)
+
+func main() {
+	columns := flag.Int("columns", 80, "columns per line")
+	lines := flag.Int("lines", 100, "number of lines")
+	marks := flag.Int("marks", 100, "combining characters per column")
+	flag.Parse()
+
+	w := bufio.NewWriter(os.Stdout)
+	defer w.Flush()
+	for l := 0; l < *lines; l++ {
+		for c := 0; c < *columns; c++ {
+			w.WriteRune('a' + rune(c%26))
+			for m := 0; m < *marks; m++ {
+				// Cycle through the combining diacritical marks block
+				w.WriteRune(0x300 + rune(m%0x70))
+			}
+		}
+		w.WriteString("\r\n")
+	}
+}
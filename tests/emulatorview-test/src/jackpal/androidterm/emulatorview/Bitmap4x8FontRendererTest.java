@@ -0,0 +1,61 @@
+package jackpal.androidterm.emulatorview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+
+public class Bitmap4x8FontRendererTest extends AndroidTestCase {
+    private static final char[] TEXT = "Hello, world! 0123456789".toCharArray();
+
+    private Bitmap4x8FontRenderer mRenderer;
+    private Bitmap mBitmap;
+    private Canvas mCanvas;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRenderer = new Bitmap4x8FontRenderer(getContext().getResources(),
+                new ColorScheme(0xffffffff, 0xff000000));
+        mBitmap = Bitmap.createBitmap(4 * TEXT.length, 8 * 16, Bitmap.Config.ARGB_8888);
+        mCanvas = new Canvas(mBitmap);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBitmap.recycle();
+        super.tearDown();
+    }
+
+    /** Draw a row in each of the 16 colors, with the cursor on it. */
+    private void drawScreen() {
+        for (int row = 0; row < 16; row++) {
+            int style = TextStyle.encode(row, (row + 3) % 16,
+                    row % 2 == 0 ? TextStyle.fxNormal : TextStyle.fxBold);
+            mRenderer.drawTextRun(mCanvas, 0, 8 * (row + 1), 0, TEXT.length, TEXT,
+                    0, TEXT.length, false, style, row, row, 1, 1, TextRenderer.MODE_OFF);
+        }
+    }
+
+    public void testDrawingSeenColorsMakesNoFilters() {
+        drawScreen();
+        int filters = mRenderer.getAllocationCount();
+        assertTrue(filters > 0);
+        drawScreen();
+        drawScreen();
+        assertEquals(filters, mRenderer.getAllocationCount());
+    }
+
+    public void testDrawingSeenColorsAllocatesNothing() {
+        drawScreen();
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            drawScreen();
+            drawScreen();
+            assertEquals(0, Debug.getThreadAllocCount());
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package jackpal.androidterm.emulatorview;
+
+import android.test.AndroidTestCase;
+
+public class ByteQueueTest extends AndroidTestCase {
+    private static final int QUEUE_SIZE = 64;
+    private static final int TOTAL_BYTES = 1024 * 1024;
+
+    public ByteQueueTest() {
+        super();
+    }
+
+    public void testWriteThenRead() throws Exception {
+        ByteQueue queue = new ByteQueue(QUEUE_SIZE);
+        byte[] in = "hello, world".getBytes("UTF-8");
+        queue.write(in, 0, in.length);
+        assertEquals(in.length, queue.getBytesAvailable());
+
+        byte[] out = new byte[QUEUE_SIZE];
+        assertEquals(in.length, queue.read(out, 0, out.length));
+        assertEquals("hello, world", new String(out, 0, in.length, "UTF-8"));
+        assertEquals(0, queue.getBytesAvailable());
+        assertEquals(in.length, queue.getHighWaterMark());
+        assertEquals(0, queue.getBlockedNanos());
+    }
+
+    /**
+     * A writer blocked on a full queue must still wake the reader if the
+     * reader drains the queue and goes back to sleep before the writer runs.
+     */
+    public void testProducerConsumer() throws Exception {
+        final ByteQueue queue = new ByteQueue(QUEUE_SIZE);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[QUEUE_SIZE / 2 + 1];
+                int written = 0;
+                try {
+                    while (written < TOTAL_BYTES) {
+                        int count = Math.min(buffer.length, TOTAL_BYTES - written);
+                        for (int i = 0; i < count; i++) {
+                            buffer[i] = (byte) (written + i);
+                        }
+                        written += queue.write(buffer, 0, count);
+                    }
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        producer.setDaemon(true);
+        producer.start();
+
+        byte[] buffer = new byte[QUEUE_SIZE / 3];
+        int read = 0;
+        while (read < TOTAL_BYTES) {
+            int count = queue.read(buffer, 0, buffer.length);
+            for (int i = 0; i < count; i++) {
+                assertEquals((byte) (read + i), buffer[i]);
+            }
+            read += count;
+        }
+        producer.join(10000);
+        assertFalse(producer.isAlive());
+    }
+}
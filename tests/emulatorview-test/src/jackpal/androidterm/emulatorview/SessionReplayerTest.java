@@ -0,0 +1,101 @@
+package jackpal.androidterm.emulatorview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+
+import android.test.AndroidTestCase;
+
+public class SessionReplayerTest extends AndroidTestCase {
+    private static final int COLUMNS = 20;
+    private static final int ROWS = 5;
+
+    public SessionReplayerTest() {
+        super();
+    }
+
+    private String record(String... outputs) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(out);
+        recorder.output("before start".getBytes("UTF-8"), 0, 12);
+        recorder.start(COLUMNS, ROWS);
+        for (String output : outputs) {
+            byte[] bytes = output.getBytes("UTF-8");
+            recorder.output(bytes, 0, bytes.length);
+        }
+        recorder.close();
+        return out.toString("UTF-8");
+    }
+
+    private String getRow(SessionReplayer replayer, int row) {
+        return replayer.getEmulator().getScreen().getSelectedText(0, row, COLUMNS, row).trim();
+    }
+
+    public void testRoundTrip() throws Exception {
+        String recording = record("Hello \"world\"\r\n", "\033[1mbold\033[m\ttab\\");
+        String[] lines = recording.split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].startsWith("{\"version\": 2, \"width\": 20, \"height\": 5"));
+        assertTrue(lines[1].endsWith(", \"o\", \"Hello \\\"world\\\"\\r\\n\"]"));
+        assertTrue(lines[2].endsWith(", \"o\", \"\\u001b[1mbold\\u001b[m\\ttab\\\\\"]"));
+
+        SessionReplayer replayer = new SessionReplayer(new StringReader(recording));
+        assertEquals(COLUMNS, replayer.getColumns());
+        assertEquals(ROWS, replayer.getRows());
+        SessionReplayer.Result result = replayer.replay(false);
+        assertEquals(2, result.outputEvents);
+        assertEquals(2, result.frames);
+        assertEquals("Hello \"world\"", getRow(replayer, 0));
+        assertEquals("bold    tab\\", getRow(replayer, 1));
+    }
+
+    public void testSplitCharacter() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(out);
+        recorder.start(COLUMNS, ROWS);
+        byte[] bytes = "a\u00e9\u4e2d".getBytes("UTF-8");
+        // Split after the first byte of each non-ASCII character
+        recorder.output(bytes, 0, 2);
+        recorder.output(bytes, 2, 2);
+        recorder.output(bytes, 4, 2);
+        recorder.close();
+
+        SessionReplayer replayer = new SessionReplayer(new StringReader(out.toString("UTF-8")));
+        SessionReplayer.Result result = replayer.replay(false);
+        assertEquals(3, result.outputEvents);
+        assertEquals(bytes.length, result.outputBytes);
+        assertEquals("a\u00e9\u4e2d", getRow(replayer, 0));
+    }
+
+    public void testResizeAndSynchronizedOutput() throws Exception {
+        String recording = "{\"version\": 2, \"width\": 20, \"height\": 5,"
+            + " \"env\": {\"TERM\": \"xterm\"}, \"theme\": null}\n"
+            + "[0.1, \"o\", \"\\u001b[?2026h\"]\n"
+            + "[0.2, \"i\", \"ls\\r\"]\n"
+            + "[0.3, \"o\", \"abc\\u001b[?2026l\"]\n"
+            + "[0.4, \"r\", \"30x10\"]\n"
+            + "\n";
+        SessionReplayer replayer = new SessionReplayer(new StringReader(recording));
+        SessionReplayer.Result result = replayer.replay(false);
+        assertEquals(2, result.outputEvents);
+        assertEquals(1, result.frames);
+        assertEquals(1, result.resizes);
+        assertEquals(30, replayer.getEmulator().getColumns());
+        assertEquals(10, replayer.getEmulator().getRows());
+    }
+
+    public void testBadRecording() throws Exception {
+        try {
+            new SessionReplayer(new StringReader("{\"version\": 1, \"width\": 80, \"height\": 24}\n"));
+            fail("Accepted an asciicast v1 header");
+        } catch (IOException e) {
+        }
+        try {
+            new SessionReplayer(new StringReader("{\"version\": 2, \"width\": 80, \"height\": 24}\n"
+                    + "[0.1, \"o\", \"unterminated]\n"));
+            fail("Accepted a bad event");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Line 2:"));
+        }
+    }
+}
@@ -39,6 +39,25 @@ public byte[] getCharSequence() {
         return charseq;
     }
 
+    private String clipboard = null;
+
+    @Override
+    public int getClipboardWriteLimit() {
+        return getClipboardSizeLimit();
+    }
+
+    @Override
+    public void onClipboardWrite(byte[] data, int length) {
+        try {
+            clipboard = new String(data, 0, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+        }
+    }
+
+    public String getClipboard() {
+        return clipboard;
+    }
+
     @Override
     public void write(String data) {
         try {
@@ -0,0 +1,321 @@
+package jackpal.androidterm.emulatorview;
+
+import java.io.UnsupportedEncodingException;
+
+import android.test.AndroidTestCase;
+
+public class TerminalEmulatorTest extends AndroidTestCase {
+    private static final int COLUMNS = 20;
+    private static final int ROWS = 5;
+
+    private MockTermSession mSession;
+    private TerminalEmulator mEmulator;
+
+    public TerminalEmulatorTest() {
+        super();
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSession = new MockTermSession();
+        ColorScheme scheme = new ColorScheme(0xffffffff, 0xff000000);
+        TranscriptScreen screen = new TranscriptScreen(COLUMNS, ROWS * 2, ROWS, scheme);
+        mEmulator = new TerminalEmulator(mSession, screen, COLUMNS, ROWS, scheme);
+        mEmulator.setDefaultUTF8Mode(true);
+    }
+
+    private void append(String s) throws UnsupportedEncodingException {
+        byte[] bytes = s.getBytes("UTF-8");
+        mEmulator.append(bytes, 0, bytes.length);
+    }
+
+    private String getRow(int row) {
+        return mEmulator.getScreen().getSelectedText(0, row, COLUMNS, row).trim();
+    }
+
+    private int getStyle(int column, int row) {
+        GrowableIntArray colors = new GrowableIntArray(COLUMNS);
+        mEmulator.getScreen().getSelectedText(colors, column, row, column, row);
+        return colors.at(0);
+    }
+
+    public void testShowAndHideCursor() throws Exception {
+        append("\033[?25lThe cursor is now hidden.");
+        assertFalse(mEmulator.getShowCursor());
+        append("\033[?25hThe cursor is now visible.");
+        assertTrue(mEmulator.getShowCursor());
+    }
+
+    public void testSetTitle() throws Exception {
+        append("\033]0;I am a title\033\\Text");
+        assertEquals("I am a title", mSession.getTitle());
+        append("\033]2;Tïtle\007");
+        assertEquals("Tïtle", mSession.getTitle());
+        assertEquals("Text", getRow(0));
+    }
+
+    public void testUnsupportedStringsAreIgnored() throws Exception {
+        append("a\033]4;16;rgb:00/00/00\033\\b\033P1$r\033\\c\033_apc\033\\d");
+        assertEquals("abcd", getRow(0));
+    }
+
+    public void testCancelAbortsSequence() throws Exception {
+        append("\033[31\030x");
+        assertEquals("x", getRow(0));
+        assertEquals(TextStyle.ciForeground, TextStyle.decodeForeColor(getStyle(0, 0)));
+    }
+
+    public void testTooManyParameters() throws Exception {
+        append("\033[1;1;1;1;1;1;1;1;1;1;1;1;1;1;1;1;1;1;1;1;1;1mx");
+        assertEquals("x", getRow(0));
+    }
+
+    public void testTextStyle() throws Exception {
+        append("\033[1;4;7mx\033[0my");
+        int style = getStyle(0, 0);
+        assertEquals(TextStyle.fxBold | TextStyle.fxUnderline | TextStyle.fxInverse,
+                TextStyle.decodeEffect(style));
+        assertEquals(TextStyle.fxNormal, TextStyle.decodeEffect(getStyle(1, 0)));
+    }
+
+    public void testExtendedColors() throws Exception {
+        append("\033[38;5;196;48;5;21mx");
+        assertEquals(196, TextStyle.decodeForeColor(getStyle(0, 0)));
+        assertEquals(21, TextStyle.decodeBackColor(getStyle(0, 0)));
+    }
+
+    public void testRgbColors() throws Exception {
+        append("\033[38;2;255;0;0mx\033[38:2::0:0:255my\033[38:2:128:128:128mz");
+        assertEquals(196, TextStyle.decodeForeColor(getStyle(0, 0)));
+        assertEquals(21, TextStyle.decodeForeColor(getStyle(1, 0)));
+        assertEquals(244, TextStyle.decodeForeColor(getStyle(2, 0)));
+    }
+
+    public void testSubParameters() throws Exception {
+        append("\033[38:5:196;1mx\033[4:3my\033[4:0mz");
+        int style = getStyle(0, 0);
+        assertEquals(196, TextStyle.decodeForeColor(style));
+        assertEquals(TextStyle.fxBold, TextStyle.decodeEffect(style));
+        // Underline styles other than 4:0 give a plain underline
+        assertEquals(TextStyle.fxBold | TextStyle.fxUnderline,
+                TextStyle.decodeEffect(getStyle(1, 0)));
+        assertEquals(TextStyle.fxBold, TextStyle.decodeEffect(getStyle(2, 0)));
+    }
+
+    public void testNearestColor() {
+        assertEquals(16, TerminalEmulator.nearestColor(0, 0, 0));
+        assertEquals(231, TerminalEmulator.nearestColor(255, 255, 255));
+        assertEquals(16 + 36 * 5 + 6 * 2, TerminalEmulator.nearestColor(255, 135, 0));
+        assertEquals(232, TerminalEmulator.nearestColor(8, 8, 8));
+    }
+
+    public void testSynchronizedOutput() throws Exception {
+        append("\033[?2026h");
+        assertTrue(mEmulator.getSynchronizedOutput());
+        append("\033[?2026$p");
+        assertEquals("\033[?2026;1$y", new String(mSession.getCharSequence(), "UTF-8"));
+        mSession.clearQueue();
+        append("\033[?2026l\033[?2026$p");
+        assertFalse(mEmulator.getSynchronizedOutput());
+        assertEquals("\033[?2026;2$y", new String(mSession.getCharSequence(), "UTF-8"));
+    }
+
+    public void testRequestUnknownMode() throws Exception {
+        append("\033[?4242$p");
+        assertEquals("\033[?4242;0$y", new String(mSession.getCharSequence(), "UTF-8"));
+    }
+
+    public void testHyperlinks() throws Exception {
+        append("\033]8;id=1;http://example.com/\033\\link\033]8;;\033\\ text");
+        assertEquals("link text", getRow(0));
+        TranscriptScreen screen = mEmulator.getScreen();
+        assertEquals("http://example.com/", screen.getLinkUrl(0, 0));
+        assertEquals("http://example.com/", screen.getLinkUrl(3, 0));
+        assertNull(screen.getLinkUrl(4, 0));
+        assertTrue(screen.hasLinks(0));
+        assertFalse(screen.hasLinks(1));
+    }
+
+    public void testHyperlinkWithCombiningChars() throws Exception {
+        // As ls --hyperlink prints a decomposed (NFD) file name
+        append("\033]8;;file:///caf\u00e9\033\\e\u0301e\u0301e\u0301\033]8;;\033\\x");
+        TranscriptScreen screen = mEmulator.getScreen();
+        for (int column = 0; column < 3; column++) {
+            assertEquals("file:///caf\u00e9", screen.getLinkUrl(column, 0));
+        }
+        assertNull(screen.getLinkUrl(3, 0));
+    }
+
+    public void testLongHyperlink() throws Exception {
+        StringBuilder url = new StringBuilder("http://example.com/");
+        while (url.length() < 2000) {
+            url.append("0123456789");
+        }
+        append("\033]8;;" + url + "\007x\033]8;;\007");
+        assertEquals(url.toString(), mEmulator.getScreen().getLinkUrl(0, 0));
+    }
+
+    public void testRepeat() throws Exception {
+        append("ab\033[3b");
+        assertEquals("abbbb", getRow(0));
+
+        // Repeats wrap like ordinary characters, and go through insert mode
+        append("\r\nx\033[21b");
+        assertEquals("xxxxxxxxxxxxxxxxxxxx", getRow(1));
+        assertEquals("xx", getRow(2));
+        append("\r\033[4hy\033[2b\033[4l");
+        assertEquals("yyyxx", getRow(2));
+
+        // Without autowrap, the last column is overwritten
+        append("\033[?7l\r\n\033[20Gz\033[5b");
+        assertEquals("z", getRow(3));
+        assertEquals(19, mEmulator.getCursorCol());
+    }
+
+    public void testCombiningCharAtStartOfRow() throws Exception {
+        // Nothing to combine with after a CR; the decoder must carry on
+        append("a\r\u0302\u00e9");
+        assertEquals("\u00e9", getRow(0));
+        append("\r\n\u0302\u4e2d");
+        assertEquals("\u4e2d", getRow(1));
+    }
+
+    public void testCombiningCharInLastColumnKeepsStyle() throws Exception {
+        // The accent combines with the e in the last column
+        append("\033[31m\u4e2d01234567890123456e\u0301");
+        assertEquals("\u4e2d01234567890123456e\u0301", getRow(0));
+        GrowableIntArray colors = new GrowableIntArray(COLUMNS);
+        mEmulator.getScreen().getSelectedText(colors, 0, 0, COLUMNS, 0);
+        for (int i = 0; i < colors.length(); i++) {
+            assertEquals(1, TextStyle.decodeForeColor(colors.at(i)));
+        }
+    }
+
+    public void testLineWrapAfterBatchedScroll() throws Exception {
+        /* The x in the last column marks its row; the LF's scroll is still
+           pending when the wide char wraps from the row below it */
+        append("\033[5;20Hx\n\u4e00");
+        TranscriptScreen screen = mEmulator.getScreen();
+        for (int row = 0; row < ROWS; row++) {
+            assertEquals("row " + row, row == 2 || row == 3, screen.getScriptLineWrap(row));
+        }
+        assertEquals("x", getRow(2));
+        assertEquals("\u4e00", getRow(4));
+    }
+
+    public void testInsertMode() throws Exception {
+        append("0123456789\r\033[4h");
+        append("ab");
+        append("c");
+        assertEquals("abc0123456789", getRow(0));
+        assertEquals(3, mEmulator.getCursorCol());
+
+        // Text pushed past the end of the row is lost
+        append("\033[4lxyz\r\033[4h0123456789ABCDEFGHIJK");
+        assertEquals("0123456789ABCDEFGHIJ", getRow(0));
+        assertEquals("K", getRow(1));
+    }
+
+    public void testInsertAndEraseCharacters() throws Exception {
+        append("0123456789\033[5G\033[2@");
+        assertEquals("0123  456789", getRow(0));
+        append("\033[P");
+        assertEquals("0123 456789", getRow(0));
+        append("\033[6G\033[X");
+        assertEquals("0123  56789", getRow(0));
+        append("\033[100X");
+        assertEquals("0123", getRow(0));
+    }
+
+    public void testClipboardWrite() throws Exception {
+        append("\033]52;c;SGVsbG8s");
+        append("IHdvcmxkIQ==\033\\x");
+        assertEquals("Hello, world!", mSession.getClipboard());
+        assertEquals("x", getRow(0));
+
+        // Reading the clipboard isn't allowed
+        append("\033]52;c;?\007");
+        assertNull(mSession.getCharSequence());
+        assertEquals("Hello, world!", mSession.getClipboard());
+    }
+
+    public void testLongClipboardWrite() throws Exception {
+        StringBuilder data = new StringBuilder("\033]52;;");
+        for (int i = 0; i < 10000; ++i) {
+            data.append("QUFB"); // "AAA"
+        }
+        append(data.append("\007x").toString());
+        assertEquals(30000, mSession.getClipboard().length());
+        assertEquals("x", getRow(0));
+
+        mSession.setClipboardSizeLimit(29999);
+        append("\033]52;c;SGVsbG8s\030");
+        append(data.toString());
+        assertEquals(30000, mSession.getClipboard().length());
+        assertEquals("xx", getRow(0));
+    }
+
+    public void testShellIntegrationMarks() throws Exception {
+        append("\033]133;A\007$ \033]133;B\007ls\r\n\033]133;C\007a\r\nb\r\n"
+                + "\033]133;D;0\007\033]133;A\007$ ");
+        TranscriptScreen screen = mEmulator.getScreen();
+        assertEquals(0, screen.getPreviousMark(3, 'A'));
+        assertEquals(3, screen.getNextMark(0, 'A'));
+        assertEquals(1, screen.getPreviousMark(3, 'C'));
+        StringBuilder output = new StringBuilder();
+        screen.writeRows(1, 3, output);
+        assertEquals("a\nb\n", output.toString());
+
+        // The marks move with the text as it scrolls
+        append("\r\n\r\n\r\n\r\n");
+        assertEquals(-3, screen.getPreviousMark(0, 'A'));
+        assertEquals(0, screen.getNextMark(-3, 'A'));
+
+        /* ... and are carried over when the screen is rebuilt for a resize,
+           which puts the text back at the top of the screen */
+        mEmulator.updateSize(COLUMNS - 5, ROWS);
+        assertEquals(0, screen.getNextMark(-1, 'A'));
+        assertEquals(1, screen.getNextMark(0, 'C'));
+        assertEquals(3, screen.getNextMark(0, 'A'));
+    }
+
+    public void testPerformanceCounters() throws Exception {
+        // Nothing is counted until counters are set
+        append("\033[1mbold\033[m\r\n");
+        PerformanceCounters counters = new PerformanceCounters();
+        mEmulator.setPerformanceCounters(counters);
+        append("\033[1mbold\033[m\r\n\033[2J\033[?25l\033]0;title\007\0337\033P1$r\033\\");
+        assertEquals(2, counters.getControls());
+        assertEquals(4, counters.getCsiSequences());
+        assertEquals(2, counters.getCsiSequences('m'));
+        assertEquals(1, counters.getCsiSequences('J'));
+        assertEquals(1, counters.getCsiSequences('l'));
+        assertEquals(1, counters.getOscSequences());
+        assertEquals(1, counters.getDcsSequences());
+        // ESC 7, and the ST which ends the DCS string
+        assertEquals(2, counters.getEscSequences());
+
+        mEmulator.setPerformanceCounters(null);
+        append("\033[1m");
+        assertEquals(4, counters.getCsiSequences());
+    }
+
+    public void testSlowFrames() {
+        PerformanceCounters counters = new PerformanceCounters();
+        counters.countFrame(1000000, 24);
+        assertEquals(0, counters.getSlowFrames());
+        for (int i = 1; i <= PerformanceCounters.SLOW_FRAMES_KEPT + 2; i++) {
+            counters.countFrame(PerformanceCounters.SLOW_FRAME_NANOS + i, i);
+        }
+        assertEquals(PerformanceCounters.SLOW_FRAMES_KEPT + 2, counters.getSlowFrames());
+        assertEquals(PerformanceCounters.SLOW_FRAMES_KEPT + 2, counters.getSlowFrameRows(0));
+        assertEquals(3, counters.getSlowFrameRows(PerformanceCounters.SLOW_FRAMES_KEPT - 1));
+        try {
+            counters.getSlowFrameRows(PerformanceCounters.SLOW_FRAMES_KEPT);
+            fail("Returned a slow frame which wasn't kept");
+        } catch (IndexOutOfBoundsException e) {
+        }
+        assertEquals(PerformanceCounters.SLOW_FRAMES_KEPT + 3, counters.getFrames());
+    }
+}
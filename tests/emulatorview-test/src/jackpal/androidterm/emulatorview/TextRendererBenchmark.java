@@ -0,0 +1,122 @@
+package jackpal.androidterm.emulatorview;
+
+import java.io.UnsupportedEncodingException;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Compares how long GlyphAtlasRenderer and PaintRenderer take to draw a
+ * full 80x24 screen of colored text, the way EmulatorView.onDraw does.
+ * It has to run on a device (or emulator) to mean anything:
+ * <pre>
+ * adb shell am instrument -w -e class jackpal.androidterm.emulatorview.TextRendererBenchmark \
+ *     jackpal.androidterm.test/android.test.InstrumentationTestRunner
+ * adb logcat -s TextRendererBenchmark
+ * </pre>
+ * Each renderer draws WARM_UP_FRAMES frames first (which also fills the
+ * glyph atlas), then FRAMES timed frames; the average time per frame is
+ * logged.  The test fails only if a renderer doesn't draw anything.
+ */
+public class TextRendererBenchmark extends AndroidTestCase {
+    private static final String TAG = "TextRendererBenchmark";
+
+    private static final int COLUMNS = 80;
+    private static final int ROWS = 24;
+    private static final int FONT_SIZE = 24;
+    private static final int WARM_UP_FRAMES = 20;
+    private static final int FRAMES = 200;
+
+    private TerminalEmulator mEmulator;
+    private ColorScheme mScheme;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheme = new ColorScheme(0xffffffff, 0xff000000);
+        TranscriptScreen screen = new TranscriptScreen(COLUMNS, ROWS * 2, ROWS, mScheme);
+        mEmulator = new TerminalEmulator(new MockTermSession(), screen, COLUMNS, ROWS, mScheme);
+        mEmulator.setDefaultUTF8Mode(true);
+        fillScreen();
+    }
+
+    /** Something like a colored "ls -l", with some bold and wide text. */
+    private void fillScreen() throws UnsupportedEncodingException {
+        StringBuilder text = new StringBuilder();
+        for (int row = 0; row < ROWS - 1; row++) {
+            text.append("-rw-r--r-- 1 user group ").append(1000 + row * 37)
+                    .append(" Oct 19 12:").append(10 + row).append(' ');
+            switch (row % 4) {
+            case 0:
+                text.append("\033[1;34mdirectory-").append(row).append("\033[m");
+                break;
+            case 1:
+                text.append("\033[32mscript-").append(row).append(".sh\033[m");
+                break;
+            case 2:
+                text.append("\033[7m文件-").append(row).append(".txt\033[m");
+                break;
+            default:
+                text.append("plain-file-").append(row).append(".c");
+                break;
+            }
+            text.append("\r\n");
+        }
+        byte[] bytes = text.toString().getBytes("UTF-8");
+        mEmulator.append(bytes, 0, bytes.length);
+    }
+
+    private long timeFrames(TextRenderer<Canvas> renderer, Canvas canvas, int frames) {
+        TranscriptScreen screen = mEmulator.getScreen();
+        int cy = mEmulator.getCursorRow();
+        int cx = mEmulator.getCursorCol();
+        long start = System.nanoTime();
+        for (int frame = 0; frame < frames; frame++) {
+            renderer.startFrame();
+            canvas.drawColor(mScheme.getBackColor());
+            float y = renderer.getCharacterHeight() + renderer.getTopMargin();
+            screen.drawBackground(0, ROWS, canvas, 0, y, renderer);
+            for (int row = 0; row < ROWS; row++) {
+                screen.drawText(row, canvas, 0, y, renderer, row == cy ? cx : -1,
+                        -1, -1, "", TextRenderer.MODE_OFF);
+                y += renderer.getCharacterHeight();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long measure(String name, TextRenderer<Canvas> renderer) {
+        int width = (int) Math.ceil(renderer.getCharacterWidth() * COLUMNS);
+        int height = renderer.getCharacterHeight() * (ROWS + 1);
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+
+        timeFrames(renderer, canvas, WARM_UP_FRAMES);
+        long nanosPerFrame = timeFrames(renderer, canvas, FRAMES) / FRAMES;
+        Log.i(TAG, name + ": " + nanosPerFrame / 1000 + " us/frame (" + COLUMNS + "x"
+                + ROWS + ", " + FONT_SIZE + "px)");
+
+        // Make sure something was drawn at all
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        bitmap.recycle();
+        boolean drawn = false;
+        for (int pixel : pixels) {
+            if (pixel != mScheme.getBackColor()) {
+                drawn = true;
+                break;
+            }
+        }
+        assertTrue(name + " drew nothing", drawn);
+        return nanosPerFrame;
+    }
+
+    public void testCompareRenderers() {
+        long paint = measure("PaintRenderer", new PaintRenderer(FONT_SIZE, mScheme));
+        long atlas = measure("GlyphAtlasRenderer", new GlyphAtlasRenderer(FONT_SIZE, mScheme));
+        Log.i(TAG, "GlyphAtlasRenderer takes " + (100 * atlas / Math.max(1, paint))
+                + "% of the time PaintRenderer does");
+    }
+}
@@ -0,0 +1,388 @@
+package jackpal.androidterm.emulatorview;
+
+import android.test.AndroidTestCase;
+
+public class UnicodeTranscriptTest extends AndroidTestCase {
+    private static final int COLUMNS = 10;
+    private static final int ROWS = 5;
+
+    private UnicodeTranscript mTranscript;
+
+    public UnicodeTranscriptTest() {
+        super();
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTranscript = new UnicodeTranscript(COLUMNS, 20, ROWS, 0);
+        mTranscript.blockSet(0, 0, COLUMNS, ROWS, ' ', 0);
+    }
+
+    private void putString(int column, int row, String s) {
+        for (int i = 0; i < s.length(); ) {
+            int codePoint = s.codePointAt(i);
+            mTranscript.setChar(column, row, codePoint, 0);
+            column += UnicodeTranscript.charWidth(codePoint);
+            i += Character.charCount(codePoint);
+        }
+    }
+
+    private String getString(int row) {
+        char[] line = mTranscript.getLine(row);
+        if (line == null) {
+            return "          ";
+        }
+        int length = 0;
+        while (length < line.length && line[length] != 0) {
+            ++length;
+        }
+        return new String(line, 0, length);
+    }
+
+    public void testClearWholeRow() {
+        putString(0, 1, "abcdefghij");
+        mTranscript.blockSet(0, 1, COLUMNS, 1, ' ', 3);
+        assertNull(mTranscript.getLine(1));
+        StyleRow color = mTranscript.getLineColor(1);
+        assertTrue(color.isSolidStyle());
+        assertEquals(3, color.getSolidStyle());
+    }
+
+    public void testClearPartOfRow() {
+        putString(0, 0, "abcdefghij");
+        mTranscript.blockSet(2, 0, 3, 1, ' ', 2);
+        assertEquals("ab   fghij", getString(0));
+        assertEquals(0, mTranscript.getLineColor(0).get(1));
+        assertEquals(2, mTranscript.getLineColor(0).get(2));
+        assertEquals(0, mTranscript.getLineColor(0).get(5));
+    }
+
+    public void testMoveWholeRows() {
+        putString(0, 0, "row0");
+        putString(0, 1, "row1");
+        putString(0, 2, "row2");
+        // Insert a line at row 0, as IL does
+        mTranscript.blockCopy(0, 0, COLUMNS, ROWS - 1, 0, 1);
+        mTranscript.blockSet(0, 0, COLUMNS, 1, ' ', 0);
+        assertEquals("          ", getString(0));
+        assertEquals("row0      ", getString(1));
+        assertEquals("row1      ", getString(2));
+        assertEquals("row2      ", getString(3));
+    }
+
+    public void testCopySpanIntoFullLine() {
+        putString(0, 0, "abcdefghij");
+        putString(0, 1, "一丁xyz");
+        mTranscript.blockCopy(0, 0, 3, 1, 5, 1);
+        assertEquals("一丁xabc  ", getString(1));
+    }
+
+    public void testCopySpanWithinFullLine() {
+        putString(0, 0, "一ab丁cd");
+        // Delete one character at column 2, as DCH does
+        mTranscript.blockCopy(3, 0, COLUMNS - 3, 1, 2, 0);
+        mTranscript.blockSet(COLUMNS - 1, 0, 1, 1, ' ', 0);
+        assertEquals("一b丁cd   ", getString(0));
+    }
+
+    public void testCopySpanCuttingWideChar() {
+        putString(0, 0, "a一bcdefg");
+        // Copying from the second half of a wide character gives a space
+        mTranscript.blockCopy(2, 0, 3, 1, 2, 1);
+        assertEquals("   bc     ", getString(1));
+    }
+
+    public void testScrollMultipleLines() {
+        for (int row = 0; row < ROWS; ++row) {
+            putString(0, row, "row" + row);
+        }
+        mTranscript.scroll(0, ROWS, 0, 2);
+        assertEquals("row2      ", getString(0));
+        assertEquals("row4      ", getString(2));
+        assertEquals("          ", getString(3));
+        assertEquals("row1      ", getString(-1));
+        assertEquals(2, mTranscript.getActiveTranscriptRows());
+    }
+
+    public void testScrollRegionWithoutTranscript() {
+        // The alternate screen buffer has no transcript rows
+        mTranscript = new UnicodeTranscript(COLUMNS, ROWS, ROWS, 0);
+        mTranscript.blockSet(0, 0, COLUMNS, ROWS, ' ', 0);
+        for (int row = 0; row < ROWS; ++row) {
+            putString(0, row, "row" + row);
+        }
+        mTranscript.scroll(1, ROWS - 1, 0, 2);
+        assertEquals("row0      ", getString(0));
+        assertEquals("row3      ", getString(1));
+        assertEquals("          ", getString(2));
+        assertEquals("          ", getString(3));
+        assertEquals("row4      ", getString(4));
+    }
+
+    public void testCopySpanOnRowsAddedByResize() {
+        putString(0, 0, "hello");
+        int[] cursor = { 0, 1 };
+        assertTrue(mTranscript.resize(COLUMNS, ROWS + 3, cursor));
+        int newRow = ROWS + 1;
+        // Inserting and deleting characters on a row the resize added
+        mTranscript.blockCopy(1, newRow, COLUMNS - 4, 1, 4, newRow);
+        mTranscript.blockCopy(4, newRow + 1, COLUMNS - 4, 1, 2, newRow + 1);
+        assertEquals("          ", getString(newRow));
+        assertEquals("          ", getString(newRow + 1));
+        assertEquals(0, mTranscript.getLineColor(newRow).get(COLUMNS - 1));
+
+        // And onto one from a blank row the resize added
+        putString(0, newRow, "abcdef");
+        mTranscript.blockCopy(0, newRow + 1, 3, 1, 1, newRow);
+        assertEquals("a   ef    ", getString(newRow));
+    }
+
+    public void testCopyFromRowErasedWithBackground() {
+        // As EL with a background color, then DCH: the background moves left
+        int blue = TextStyle.encode(TextStyle.ciForeground, 4, TextStyle.fxNormal);
+        mTranscript.blockSet(0, 0, COLUMNS, 1, ' ', blue);
+        mTranscript.blockCopy(3, 0, COLUMNS - 3, 1, 0, 0);
+        mTranscript.blockSet(COLUMNS - 3, 0, 3, 1, ' ', 0);
+        StyleRow styles = mTranscript.getLineColor(0);
+        for (int column = 0; column < COLUMNS - 3; column++) {
+            assertEquals(blue, styles.get(column));
+        }
+        assertEquals(0, styles.get(COLUMNS - 1));
+
+        // The same onto a row which has characters
+        putString(0, 1, "abcdefghij");
+        mTranscript.blockCopy(0, 0, 4, 1, 2, 1);
+        assertEquals("ab    ghij", getString(1));
+        assertEquals(blue, mTranscript.getLineColor(1).get(2));
+    }
+
+    public void testCopyNothingAtEndOfFullLine() {
+        putString(0, 0, "123456789\ud83d\ude00");
+        String before = getString(0);
+        mTranscript.blockCopy(COLUMNS, 0, 0, 1, COLUMNS, 0);
+        mTranscript.blockCopy(0, 0, 0, 1, COLUMNS, 0);
+        assertEquals(before, getString(0));
+    }
+
+    public void testCombiningCharsOnWideChar() {
+        putString(0, 0, "a一b");
+        // A combining character written to either half attaches to the wide char
+        mTranscript.setChar(2, 0, 0x0332, 0);
+        assertEquals("a一\u0332b      ", getString(0));
+        putString(2, 0, "c");
+        assertEquals("a cb      ", getString(0));
+    }
+
+    public void testCombiningCharStormIsCapped() {
+        putString(0, 0, "xy");
+        for (int i = 0; i < 100000; ++i) {
+            mTranscript.setChar(0, 0, 0x0301, 0);
+        }
+        String line = getString(0);
+        assertEquals(COLUMNS + FullUnicodeLine.MAX_COMBINING_CHARS, line.length());
+        assertEquals('x', line.charAt(0));
+        assertEquals('y', line.charAt(1 + FullUnicodeLine.MAX_COMBINING_CHARS));
+        // Overwriting the column discards its combining characters
+        putString(0, 0, "z");
+        assertEquals("zy        ", getString(0));
+    }
+
+    public void testTranscriptGrowsAsNeeded() {
+        mTranscript = new UnicodeTranscript(COLUMNS, 1000, ROWS, 0);
+        mTranscript.blockSet(0, 0, COLUMNS, ROWS, ' ', 0);
+        for (int i = 0; i < 1200; ++i) {
+            putString(0, ROWS - 1, Integer.toString(i));
+            mTranscript.scroll(0, ROWS, 0);
+        }
+        assertEquals(1000 - ROWS, mTranscript.getActiveTranscriptRows());
+        assertEquals("1199      ", getString(ROWS - 2));
+        assertEquals("1195      ", getString(-1));
+        assertEquals("996       ", getString(-200));
+        assertEquals("201       ", getString(-(1000 - ROWS)));
+    }
+
+    public void testLinksAreReclaimed() {
+        for (int i = 0; i < 100; i++) {
+            int link = mTranscript.internLink("http://example.com/" + i);
+            // Only the link written last is still on the screen
+            assertTrue(link > 0 && link < 16);
+            mTranscript.setChar(0, 0, 'a', 0);
+            mTranscript.setLink(0, 0, link);
+        }
+        assertEquals("http://example.com/99", mTranscript.getLinkUrl(0, 0));
+        mTranscript.blockSet(0, 0, COLUMNS, 1, ' ', 0);
+        assertNull(mTranscript.getLinkUrl(0, 0));
+        assertFalse(mTranscript.hasLinks(0));
+    }
+
+    public void testMarks() {
+        mTranscript.addMark(0, 'A');
+        mTranscript.addMark(1, 'C');
+        mTranscript.addMark(3, 'D');
+        mTranscript.addMark(3, 'A');
+        assertEquals(0, mTranscript.getPreviousMark(3, 'A'));
+        assertEquals(3, mTranscript.getNextMark(0, 'A'));
+        assertEquals(3, mTranscript.getPreviousMark(4, 0));
+        assertEquals(UnicodeTranscript.NO_MARK, mTranscript.getPreviousMark(0, 'A'));
+        assertEquals(UnicodeTranscript.NO_MARK, mTranscript.getNextMark(3, 0));
+
+        mTranscript.scroll(0, ROWS, 0, 2);
+        assertEquals(-2, mTranscript.getPreviousMark(0, 'A'));
+        assertEquals(1, mTranscript.getNextMark(-2, 'A'));
+
+        // A prompt drawn higher up replaces the marks below it
+        mTranscript.addMark(0, 'A');
+        assertEquals(0, mTranscript.getPreviousMark(ROWS, 'A'));
+        assertEquals(UnicodeTranscript.NO_MARK, mTranscript.getNextMark(0, 0));
+    }
+
+    public void testMarksScrolledOutAreForgotten() {
+        for (int i = 0; i < 100; i++) {
+            mTranscript.addMark(ROWS - 1, 'A');
+            mTranscript.scroll(0, ROWS, 0);
+        }
+        /* The transcript and screen hold 20 rows, and the last mark was
+           scrolled to row ROWS - 2, so only the last 19 marks are left */
+        int row = ROWS;
+        int count = 0;
+        while ((row = mTranscript.getPreviousMark(row, 'A')) != UnicodeTranscript.NO_MARK) {
+            count++;
+        }
+        assertEquals(19, count);
+    }
+
+    public void testStatistics() {
+        TranscriptStatistics stats = new TranscriptStatistics();
+        mTranscript.getStatistics(stats);
+        assertEquals(ROWS, stats.getActiveRows());
+        assertEquals(20, stats.getMaxRows());
+        // Blank rows aren't allocated until something is written to them
+        assertEquals(0, stats.getBasicRows());
+        long blankBytes = stats.getEstimatedBytes();
+
+        putString(0, 0, "abc");
+        mTranscript.getStatistics(stats);
+        assertEquals(1, stats.getBasicRows());
+        assertEquals(0, stats.getFullRows());
+        assertEquals(0, stats.getStyledRows());
+        long basicBytes = stats.getEstimatedBytes();
+        assertTrue(basicBytes > blankBytes);
+
+        putString(0, 1, "\u4e2d\u6587");
+        mTranscript.setChar(0, 2, 'x', 1);
+        mTranscript.getStatistics(stats);
+        assertEquals(2, stats.getBasicRows());
+        assertEquals(1, stats.getFullRows());
+        assertEquals(1, stats.getStyledRows());
+        assertTrue(stats.getEstimatedBytes() > basicBytes);
+
+        TranscriptStatistics total = new TranscriptStatistics();
+        total.add(stats);
+        total.add(stats);
+        assertEquals(2, total.getFullRows());
+        assertEquals(2 * stats.getEstimatedBytes(), total.getEstimatedBytes());
+    }
+
+    private void fillTranscript() {
+        for (int i = 0; i < 20; ++i) {
+            putString(0, ROWS - 1, "row" + i);
+            if (i % 3 == 1) {
+                putString(5, ROWS - 1, "\u4e2de\u0301");
+            } else if (i % 3 == 2) {
+                mTranscript.setChar(9, ROWS - 1, 'x', 7);
+                mTranscript.setLink(9, ROWS - 1, mTranscript.internLink("http://example.com/" + i));
+                mTranscript.setLineWrap(ROWS - 1);
+            }
+            mTranscript.scroll(0, ROWS, 0);
+        }
+    }
+
+    public void testCompact() {
+        fillTranscript();
+        int firstRow = -mTranscript.getActiveTranscriptRows();
+        String[] text = new String[ROWS - firstRow];
+        for (int row = firstRow; row < ROWS; ++row) {
+            text[row - firstRow] = getString(row);
+        }
+        TranscriptStatistics stats = new TranscriptStatistics();
+        mTranscript.getStatistics(stats);
+        long bytes = stats.getEstimatedBytes();
+
+        assertTrue(mTranscript.compact());
+        assertTrue(mTranscript.isCompacted());
+        assertFalse(mTranscript.compact());
+        mTranscript.getStatistics(stats);
+        assertEquals(-firstRow, stats.getCompactedRows());
+        assertTrue(stats.getEstimatedBytes() < bytes);
+
+        // The screen can be read without unpacking the transcript
+        assertEquals(text[ROWS - 2 - firstRow], getString(ROWS - 2));
+        assertTrue(mTranscript.isCompacted());
+
+        for (int row = firstRow; row < ROWS; ++row) {
+            assertEquals(text[row - firstRow], getString(row));
+        }
+        assertFalse(mTranscript.isCompacted());
+        // Row -2 was row 14, a styled row with a link
+        assertEquals(7, mTranscript.getLineColor(-2).get(9));
+        assertTrue(mTranscript.getLineWrap(-2));
+        assertFalse(mTranscript.getLineWrap(-1));
+        assertEquals("http://example.com/14", mTranscript.getLinkUrl(9, -2));
+    }
+
+    public void testScrollCompacted() {
+        fillTranscript();
+        String oldest = getString(-mTranscript.getActiveTranscriptRows() + 1);
+        String last = getString(ROWS - 2);
+        assertTrue(mTranscript.compact());
+        mTranscript.scroll(0, ROWS, 0);
+        assertFalse(mTranscript.isCompacted());
+        assertEquals(20 - ROWS, mTranscript.getActiveTranscriptRows());
+        assertEquals(oldest, getString(-mTranscript.getActiveTranscriptRows()));
+        assertEquals(last, getString(ROWS - 3));
+
+        assertTrue(mTranscript.compact());
+        assertTrue(mTranscript.resize(COLUMNS, ROWS + 2, null));
+        assertFalse(mTranscript.isCompacted());
+        assertEquals(last, getString(ROWS - 1));
+    }
+
+    public void testTruncate() {
+        fillTranscript();
+        String[] text = new String[5 + ROWS];
+        for (int row = -5; row < ROWS; ++row) {
+            text[row + 5] = getString(row);
+        }
+        mTranscript.addMark(-12, 'A');
+        mTranscript.addMark(-2, 'A');
+
+        assertEquals(0, mTranscript.truncate(20));
+        assertEquals(10, mTranscript.truncate(5));
+        assertEquals(5, mTranscript.getActiveTranscriptRows());
+        for (int row = -5; row < ROWS; ++row) {
+            assertEquals(text[row + 5], getString(row));
+        }
+        assertEquals("http://example.com/14", mTranscript.getLinkUrl(9, -2));
+        // The mark on a row thrown away is forgotten
+        assertEquals(-2, mTranscript.getPreviousMark(ROWS, 'A'));
+        assertEquals(UnicodeTranscript.NO_MARK, mTranscript.getPreviousMark(-2, 'A'));
+
+        // The transcript still grows as before
+        mTranscript.scroll(0, ROWS, 0);
+        assertEquals(6, mTranscript.getActiveTranscriptRows());
+        assertEquals(text[0], getString(-6));
+    }
+
+    public void testTruncateCompacted() {
+        fillTranscript();
+        String newest = getString(-1);
+        String oldestKept = getString(-3);
+        assertTrue(mTranscript.compact());
+        assertEquals(12, mTranscript.truncate(3));
+        assertTrue(mTranscript.isCompacted());
+        assertEquals(3, mTranscript.getActiveTranscriptRows());
+        assertEquals(oldestKept, getString(-3));
+        assertEquals(newest, getString(-1));
+    }
+}